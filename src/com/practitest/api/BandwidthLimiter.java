@@ -0,0 +1,106 @@
+package com.practitest.api;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket holding all uploads of the agent to a ceiling of bytes per second, so they leave room on a
+ * shared uplink for the tests themselves.
+ * <p/>
+ * The bucket holds up to one second worth of bytes. Bulk reads wait until the bytes they took are paid for.
+ * Priority reads (the task's result rather than its attachments) are counted the same but never wait, so they
+ * go ahead of any bulk transfer and push it further back instead.
+ */
+public class BandwidthLimiter {
+  private final long bytesPerSecond;
+  private final Metrics metrics;
+  // negative when reads got ahead of the rate, the debt later bulk reads wait for
+  private double tokens;
+  private long refilledAt = System.nanoTime();
+
+  /**
+   * @param bytesPerSecond the ceiling, more than 0
+   */
+  public BandwidthLimiter(long bytesPerSecond, Metrics metrics) {
+    if (bytesPerSecond <= 0) throw new IllegalArgumentException("Rate must be positive: " + bytesPerSecond);
+    this.bytesPerSecond = bytesPerSecond;
+    this.metrics = metrics;
+    this.tokens = bytesPerSecond;
+  }
+
+  public long getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  /**
+   * Takes <code>bytes</code> from the bucket and, unless <code>priority</code>, waits until the bucket is
+   * no longer in debt for them.
+   */
+  public void acquire(long bytes, boolean priority) throws InterruptedException {
+    long waitNanos = reserve(bytes, priority);
+    if (waitNanos <= 0) return;
+    metrics.add("xbot_upload_throttled_ms_total", TimeUnit.NANOSECONDS.toMillis(waitNanos));
+    TimeUnit.NANOSECONDS.sleep(waitNanos);
+  }
+
+  /**
+   * @return the stream, read no faster than the bucket allows
+   */
+  public InputStream throttle(InputStream in, boolean priority) {
+    return new ThrottledInputStream(in, priority);
+  }
+
+  private synchronized long reserve(long bytes, boolean priority) {
+    long now = System.nanoTime();
+    tokens = Math.min(bytesPerSecond, tokens + (now - refilledAt) * bytesPerSecond / 1e9);
+    refilledAt = now;
+    tokens -= bytes;
+    metrics.add(priority ? "xbot_upload_priority_bytes_total" : "xbot_upload_bulk_bytes_total", bytes);
+    if (priority || tokens >= 0) return 0;
+    return (long) (-tokens * 1e9 / bytesPerSecond);
+  }
+
+  private class ThrottledInputStream extends FilterInputStream {
+    private final boolean priority;
+    // small reads keep the waits short and the rate even
+    private final int maxRead = (int) Math.max(1024, Math.min(64 * 1024, bytesPerSecond / 10));
+
+    ThrottledInputStream(InputStream in, boolean priority) {
+      super(in);
+      this.priority = priority;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int read = super.read();
+      if (read >= 0) pay(1);
+      return read;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, Math.min(length, maxRead));
+      if (read > 0) pay(read);
+      return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+      long skipped = super.skip(count);
+      if (skipped > 0) pay(skipped);
+      return skipped;
+    }
+
+    private void pay(long bytes) throws InterruptedIOException {
+      try {
+        acquire(bytes, priority);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for upload bandwidth");
+      }
+    }
+  }
+}
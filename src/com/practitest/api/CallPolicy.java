@@ -0,0 +1,66 @@
+package com.practitest.api;
+
+/**
+ * Timeouts and failure handling for the calls to PractiTest. All durations are in milliseconds, 0 disables
+ * the respective limit.
+ */
+public class CallPolicy {
+  public static final CallPolicy DEFAULT = new CallPolicy(5000, 60000, 60000, 0, 0, 5, 30000);
+
+  private final int connectTimeout;
+  private final int readTimeout;
+  private final long pollDeadline;
+  private final long uploadDeadline;
+  private final long hedgeDelay;
+  private final int circuitBreakerFailures;
+  private final long circuitBreakerOpen;
+
+  /**
+   * @param connectTimeout         time to establish a connection
+   * @param readTimeout            longest silence while waiting for data on an established connection
+   * @param pollDeadline           total time a <code>nextTask</code> call may take
+   * @param uploadDeadline         total time an <code>uploadResult</code> call may take
+   * @param hedgeDelay             send a second poll if the first did not answer within this time.
+   *                               Only safe if the server hands out the same task to repeated polls.
+   * @param circuitBreakerFailures consecutive failures that open the circuit breaker
+   * @param circuitBreakerOpen     time the breaker stays open before letting a probe through
+   */
+  public CallPolicy(int connectTimeout, int readTimeout, long pollDeadline, long uploadDeadline,
+                    long hedgeDelay, int circuitBreakerFailures, long circuitBreakerOpen) {
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.pollDeadline = pollDeadline;
+    this.uploadDeadline = uploadDeadline;
+    this.hedgeDelay = hedgeDelay;
+    this.circuitBreakerFailures = circuitBreakerFailures;
+    this.circuitBreakerOpen = circuitBreakerOpen;
+  }
+
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  public long getPollDeadline() {
+    return pollDeadline;
+  }
+
+  public long getUploadDeadline() {
+    return uploadDeadline;
+  }
+
+  public long getHedgeDelay() {
+    return hedgeDelay;
+  }
+
+  public int getCircuitBreakerFailures() {
+    return circuitBreakerFailures;
+  }
+
+  public long getCircuitBreakerOpen() {
+    return circuitBreakerOpen;
+  }
+}
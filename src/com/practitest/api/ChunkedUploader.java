@@ -0,0 +1,319 @@
+package com.practitest.api;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Sends large result files in fixed-size chunks ahead of the result upload, so that a transfer cut short
+ * carries on from the last chunk the server acknowledged instead of starting over.
+ * <p/>
+ * Every chunk is posted to <code>upload_result_chunk.json</code> with the upload id, its index, offset and
+ * SHA-256. The server answers 200 once it stored a chunk whose checksum matches, and is expected to accept a
+ * chunk it already has again. A failed chunk is sent again after a growing pause, up to a number of retries.
+ * The result upload then names the file's upload id instead of carrying the file.
+ * <p/>
+ * The count of acknowledged chunks is kept in a state file per upload, written after every acknowledgement.
+ * The upload id is derived from the instance, the part and the file's path, size and modification time, so a
+ * later attempt at the same file for the same instance, also by a restarted agent, resumes where the last one
+ * stopped, while a changed file starts over. The agent makes such attempts for the results it keeps after a failed
+ * upload.
+ */
+public class ChunkedUploader {
+  private static final Logger logger = Logger.getLogger(ChunkedUploader.class.getName());
+
+  private static final String STATE_SUFFIX = ".upload";
+  private static final long STALE_STATE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+  private final File stateDirectory;
+  private final long thresholdBytes;
+  private final int chunkBytes;
+  private final int retries;
+  private final long retryDelayMillis;
+  private final Metrics metrics;
+
+  /**
+   * @param thresholdBytes   files larger than this are sent in chunks
+   * @param retries          times a chunk is sent again before the upload fails
+   * @param retryDelayMillis pause before the first retry of a chunk, growing with every further one
+   */
+  public ChunkedUploader(File stateDirectory, long thresholdBytes, int chunkBytes, int retries, long retryDelayMillis,
+                         Metrics metrics) {
+    if (chunkBytes <= 0) throw new IllegalArgumentException("Chunk size must be positive: " + chunkBytes);
+    this.stateDirectory = stateDirectory;
+    this.thresholdBytes = thresholdBytes;
+    this.chunkBytes = chunkBytes;
+    this.retries = retries;
+    this.retryDelayMillis = retryDelayMillis;
+    this.metrics = metrics;
+  }
+
+  public boolean accepts(File file) {
+    return file.length() > thresholdBytes;
+  }
+
+  /**
+   * Deletes the state of uploads left unfinished for a week; their instances will not be uploaded again.
+   */
+  public void removeStaleState() {
+    File[] states = stateDirectory.listFiles();
+    if (states == null) return;
+    long cutoff = System.currentTimeMillis() - STALE_STATE_MILLIS;
+    for (File state : states) {
+      if (state.getName().endsWith(STATE_SUFFIX) && state.lastModified() < cutoff && state.delete())
+        logger.info("Dropped stale upload state " + state);
+    }
+  }
+
+  /**
+   * @param chunkURL     the chunk endpoint, with the client and instance parameters
+   * @param deadlineMillis total time each chunk may take, 0 for no limit
+   * @param bandwidth    paces the chunks as bulk transfer, null for no limit
+   * @return the upload id, once every chunk was acknowledged
+   */
+  public CompletableFuture<String> upload(Transport transport, String chunkURL, Map<String, String> headers,
+                                          String instanceId, String partName, File file, long deadlineMillis,
+                                          BandwidthLimiter bandwidth) {
+    try {
+      Upload upload = new Upload(transport, chunkURL, headers, uploadId(instanceId, partName, file), file,
+              deadlineMillis, bandwidth);
+      return upload.start();
+    } catch (IOException e) {
+      CompletableFuture<String> failed = new CompletableFuture<String>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+  }
+
+  /**
+   * Forgets an upload once the result that names it was accepted.
+   */
+  public void completed(String uploadId) {
+    stateFile(uploadId).delete();
+  }
+
+  String uploadId(String instanceId, String partName, File file) throws IOException {
+    MessageDigest digest = sha256();
+    digest.update((instanceId + "\n" + partName + "\n" + file.getCanonicalPath() + "\n" + file.length() + "\n" +
+            file.lastModified() + "\n" + chunkBytes).getBytes(StandardCharsets.UTF_8));
+    return toHex(digest.digest()).substring(0, 32);
+  }
+
+  private File stateFile(String uploadId) {
+    return new File(stateDirectory, uploadId + STATE_SUFFIX);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes)
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    return hex.toString();
+  }
+
+  /**
+   * One file on its way, chunk after chunk.
+   */
+  private class Upload {
+    private final Transport transport;
+    private final String chunkURL;
+    private final Map<String, String> headers;
+    private final String id;
+    private final File file;
+    private final long length;
+    private final int chunkCount;
+    private final long deadlineMillis;
+    private final BandwidthLimiter bandwidth;
+    private volatile int acknowledged = 0;
+    private volatile int failures = 0;
+
+    Upload(Transport transport, String chunkURL, Map<String, String> headers, String id, File file,
+           long deadlineMillis, BandwidthLimiter bandwidth) {
+      this.transport = transport;
+      this.chunkURL = chunkURL;
+      this.headers = new LinkedHashMap<String, String>(headers);
+      this.headers.put("Content-Type", "application/octet-stream");
+      this.id = id;
+      this.file = file;
+      this.length = file.length();
+      this.chunkCount = (int) Math.max(1, (length + chunkBytes - 1) / chunkBytes);
+      this.deadlineMillis = deadlineMillis;
+      this.bandwidth = bandwidth;
+    }
+
+    CompletableFuture<String> start() {
+      acknowledged = readState();
+      if (acknowledged > 0) {
+        metrics.increment("xbot_chunked_upload_resumed_total");
+        logger.info("Resuming upload of " + file + " at chunk " + acknowledged + " of " + chunkCount);
+      }
+      return sendRemaining();
+    }
+
+    /**
+     * Loops rather than recursing while chunks complete right away, as they do on a blocking transport.
+     */
+    private CompletableFuture<String> sendRemaining() {
+      while (acknowledged < chunkCount) {
+        CompletableFuture<Void> chunk = sendChunk(acknowledged);
+        if (!chunk.isDone()) {
+          return chunk.thenCompose(new Function<Void, CompletableFuture<String>>() {
+            public CompletableFuture<String> apply(Void ignored) {
+              return sendRemaining();
+            }
+          });
+        }
+        try {
+          chunk.join();
+        } catch (CompletionException e) {
+          CompletableFuture<String> failed = new CompletableFuture<String>();
+          failed.completeExceptionally(e.getCause());
+          return failed;
+        }
+      }
+      return CompletableFuture.completedFuture(id);
+    }
+
+    /**
+     * @return completes once the chunk was acknowledged or once it may be tried again, fails when out of retries
+     */
+    private CompletableFuture<Void> sendChunk(final int index) {
+      final long offset = (long) index * chunkBytes;
+      CompletableFuture<Void> failed = new CompletableFuture<Void>();
+      byte[] chunk;
+      try {
+        chunk = read(offset, (int) Math.min(chunkBytes, length - offset));
+        if (bandwidth != null) bandwidth.acquire(chunk.length, false);
+      } catch (IOException e) {
+        failed.completeExceptionally(e);
+        return failed;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failed.completeExceptionally(e);
+        return failed;
+      }
+      String url = chunkURL + "&upload_id=" + id + "&index=" + index + "&offset=" + offset +
+              "&total_size=" + length + "&sha256=" + toHex(sha256().digest(chunk));
+      final int size = chunk.length;
+      return transport.execute(new Transport.Request("POST", url, headers, chunk, deadlineMillis))
+              .handle(new BiFunction<Transport.Response, Throwable, CompletableFuture<Void>>() {
+                public CompletableFuture<Void> apply(Transport.Response response, Throwable error) {
+                  if (error == null && response.getStatusCode() == 200) {
+                    acknowledged(index, size);
+                    return CompletableFuture.completedFuture(null);
+                  }
+                  Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                  String reason = cause != null ? String.valueOf(cause.getMessage()) : response.getStatusLine();
+                  if (++failures > retries) {
+                    CompletableFuture<Void> gaveUp = new CompletableFuture<Void>();
+                    gaveUp.completeExceptionally(new IOException("Chunk " + index + " of " + file +
+                            " was not accepted after " + failures + " attempts: " + reason, cause));
+                    return gaveUp;
+                  }
+                  metrics.increment("xbot_chunked_upload_retries_total");
+                  logger.warning("Chunk " + index + " of " + file + " failed (" + reason + "), sending it again");
+                  return CompletableFuture.runAsync(new Runnable() {
+                    public void run() {
+                    }
+                  }, CompletableFuture.delayedExecutor(retryDelayMillis * failures, TimeUnit.MILLISECONDS));
+                }
+              })
+              .thenCompose(Function.<CompletableFuture<Void>>identity());
+    }
+
+    private void acknowledged(int index, int size) {
+      acknowledged = index + 1;
+      failures = 0;
+      metrics.increment("xbot_chunked_upload_chunks_total");
+      metrics.add("xbot_chunked_upload_bytes_total", size);
+      try {
+        writeState();
+      } catch (IOException e) {
+        // the upload goes on, only a resume would start further back
+        logger.warning("Failed to record the progress of " + file + ": " + e.getMessage());
+      }
+    }
+
+    private byte[] read(long offset, int size) throws IOException {
+      byte[] chunk = new byte[size];
+      RandomAccessFile in = new RandomAccessFile(file, "r");
+      try {
+        in.seek(offset);
+        in.readFully(chunk);
+      } finally {
+        in.close();
+      }
+      return chunk;
+    }
+
+    /**
+     * @return chunks acknowledged by an earlier attempt, 0 if there is none or its state does not fit the file
+     */
+    private int readState() {
+      File state = stateFile(id);
+      if (!state.isFile()) return 0;
+      Properties properties = new Properties();
+      try {
+        InputStream in = new FileInputStream(state);
+        try {
+          properties.load(in);
+        } finally {
+          in.close();
+        }
+        if (Long.parseLong(properties.getProperty("length", "-1")) != length) return 0;
+        int acknowledged = Integer.parseInt(properties.getProperty("acknowledged_chunks", "0"));
+        return acknowledged >= 0 && acknowledged <= chunkCount ? acknowledged : 0;
+      } catch (IOException e) {
+        logger.warning("Ignoring unreadable upload state " + state + ": " + e.getMessage());
+      } catch (NumberFormatException e) {
+        logger.warning("Ignoring corrupt upload state " + state);
+      }
+      return 0;
+    }
+
+    private void writeState() throws IOException {
+      if (!stateDirectory.isDirectory() && !stateDirectory.mkdirs())
+        throw new IOException("Failed to create " + stateDirectory);
+      Properties properties = new Properties();
+      properties.setProperty("file", file.getPath());
+      properties.setProperty("length", String.valueOf(length));
+      properties.setProperty("chunk_bytes", String.valueOf(chunkBytes));
+      properties.setProperty("acknowledged_chunks", String.valueOf(acknowledged));
+      File state = stateFile(id);
+      File temporary = new File(stateDirectory, id + ".tmp");
+      OutputStream out = new FileOutputStream(temporary);
+      try {
+        properties.store(out, null);
+      } finally {
+        out.close();
+      }
+      // a crash leaves either the previous state or this one
+      Files.move(temporary.toPath(), state.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+}
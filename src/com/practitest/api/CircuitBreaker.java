@@ -0,0 +1,60 @@
+package com.practitest.api;
+
+/**
+ * Stops calling a server that keeps failing.
+ * <p/>
+ * After <code>failureThreshold</code> consecutive failures the breaker opens and calls fail fast. Once
+ * <code>openMillis</code> passed a single probe call is let through: its success closes the breaker again,
+ * its failure keeps it open for another period.
+ */
+public class CircuitBreaker {
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final long openNanos;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures = 0;
+  private long openedAt;
+
+  public CircuitBreaker(int failureThreshold, long openMillis) {
+    this.failureThreshold = failureThreshold;
+    this.openNanos = openMillis * 1000000L;
+  }
+
+  /**
+   * @return whether a call may go out now. A caller that was let through must report its outcome.
+   */
+  public synchronized boolean allowRequest() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (System.nanoTime() - openedAt < openNanos)
+          return false;
+        state = State.HALF_OPEN;
+        return true; // the probe
+      default:
+        return false; // a probe is already in flight
+    }
+  }
+
+  public synchronized void recordSuccess() {
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+  }
+
+  public synchronized void recordFailure() {
+    ++consecutiveFailures;
+    if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+      state = State.OPEN;
+      openedAt = System.nanoTime();
+    }
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+}
@@ -1,44 +1,35 @@
 package com.practitest.api;
 
 import org.apache.commons.httpclient.*;
-import org.apache.commons.httpclient.auth.AuthScope;
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.multipart.FilePart;
-import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
-import org.apache.commons.httpclient.methods.multipart.Part;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.apache.commons.httpclient.params.HttpConnectionParams;
-import org.apache.commons.httpclient.protocol.Protocol;
 import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-
-import javax.net.SocketFactory;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.X509TrustManager;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 import java.io.File;
-import java.io.InputStream;
 import java.io.IOException;
-import java.math.BigInteger;
 import java.net.*;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateExpiredException;
-import java.security.cert.CertificateNotYetValidException;
-import java.security.cert.X509Certificate;
-import java.util.Date;
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.logging.Level;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
 /**
@@ -47,85 +38,289 @@ import java.util.logging.Logger;
 public class Client {
   private static final Logger logger = Logger.getLogger(Client.class.getName());
 
-  private static final int DEFAULT_CONNECTION_TIMEOUT = 5000;
-
   private static final JsonFactory jsonFactory = new JsonFactory();
+  // thread-safe once configured, and costly to build
+  private static final ObjectMapper mapper = new ObjectMapper(jsonFactory);
+  private static final byte[] EMPTY_DOCUMENT = "{}".getBytes(StandardCharsets.US_ASCII);
 
   private String serverURL;
   private String apiToken;
   private String clientId;
-  private String proxyHost;
-  private String proxyPort;
-  private String proxyUser;
-  private String proxyPassword;
   private String version;
 
-  private HttpClient httpClient;
+  private final Transport transport;
+  private final CallPolicy callPolicy;
+  private final BandwidthLimiter uploadBandwidth;
+  private final boolean filesAfterResult;
+  private final ChunkedUploader chunkedUploader;
+  // the same for every poll, so built once: an idle agent polls all day
+  private final Map<String, String> authenticationHeaders;
+  private final Transport.Request pollRequest;
+  private final Function<Transport.Response, Task> pollResponseParser = new Function<Transport.Response, Task>() {
+    public Task apply(Transport.Response response) {
+      if (response.getStatusCode() == HttpStatus.SC_OK) {
+        try {
+          return parseTaskDocument(response.getBody());
+        } catch (IOException e) {
+          throw new CompletionException(e);
+        }
+      } else if (response.getStatusCode() == HttpStatus.SC_INTERNAL_SERVER_ERROR)
+        throw new CompletionException(generateApiException(response));
+      else
+        logger.severe("Remote call failed: " + response.getStatusLine());
+      return null;
+    }
+  };
 
   public Client(String serverURL, String apiToken, String clientId,
                 String proxyHost, String proxyPort, String proxyUser, String proxyPassword, String version) {
+    this(serverURL, apiToken, clientId, new CommonsHttpTransport(proxyHost, proxyPort, proxyUser, proxyPassword), version);
+  }
+
+  public Client(String serverURL, String apiToken, String clientId, Transport transport, String version) {
+    this(serverURL, apiToken, clientId, transport, CallPolicy.DEFAULT, version);
+  }
+
+  /**
+   * @param callPolicy only the poll and upload deadlines are applied here, the transport is expected to be
+   *                   built according to the rest of it
+   */
+  public Client(String serverURL, String apiToken, String clientId, Transport transport, CallPolicy callPolicy,
+                String version) {
+    this(serverURL, apiToken, clientId, transport, callPolicy, null, false, version);
+  }
+
+  /**
+   * @param uploadBandwidth  shared by all uploads, usually of all clients of the agent; null for no limit
+   * @param filesAfterResult upload the exit code, output and summary first and the result files in a second
+   *                         <code>upload_test_result</code> call, so the outcome shows before the files are
+   *                         in. Only for servers that add files uploaded later to the instance's result.
+   */
+  public Client(String serverURL, String apiToken, String clientId, Transport transport, CallPolicy callPolicy,
+                BandwidthLimiter uploadBandwidth, boolean filesAfterResult, String version) {
+    this(serverURL, apiToken, clientId, transport, callPolicy, uploadBandwidth, filesAfterResult, null, version);
+  }
+
+  /**
+   * @param chunkedUploader sends the result files it accepts in resumable chunks ahead of the result upload;
+   *                        null to send every file as a part of it
+   */
+  public Client(String serverURL, String apiToken, String clientId, Transport transport, CallPolicy callPolicy,
+                BandwidthLimiter uploadBandwidth, boolean filesAfterResult, ChunkedUploader chunkedUploader,
+                String version) {
     if (serverURL.endsWith("/") || serverURL.endsWith("\\"))
       this.serverURL = serverURL.substring(0, serverURL.length() - 1);
     else
       this.serverURL = serverURL;
     this.apiToken = apiToken;
     this.clientId = clientId;
-    this.proxyHost = proxyHost;
-    this.proxyPort = proxyPort;
-    this.proxyUser = proxyUser;
-    this.proxyPassword = proxyPassword;
+    this.transport = transport;
+    this.callPolicy = callPolicy;
+    this.uploadBandwidth = uploadBandwidth;
+    this.filesAfterResult = filesAfterResult;
+    this.chunkedUploader = chunkedUploader;
     this.version = version;
+    this.authenticationHeaders = Collections.singletonMap("Authorization", "custom api_token=" + apiToken);
+    this.pollRequest = new Transport.Request("GET", constructURL("next_test").toString(), authenticationHeaders,
+            Collections.<String, File>emptyMap(), callPolicy.getPollDeadline());
+  }
+
+  /**
+   * Closes the pooled connections that are not in use; the client stays usable.
+   */
+  public void closeIdleConnections() {
+    transport.closeIdleConnections();
+  }
+
+  /**
+   * Closes the pooled connections. The client must not be used afterwards.
+   */
+  public void close() {
+    transport.close();
   }
 
   public Task nextTask() throws Exception {
-    String url = constructURL("next_test").toString();
-    GetMethod getMethod = new GetMethod(url);
-    setAuthenticationParameters(getMethod);
-    try {
-      int httpResult = getHTTPClient().executeMethod(getMethod);
-      if (httpResult == HttpStatus.SC_OK) {
-        return parseTaskDocument(getMethod.getResponseBodyAsStream());
-      } else if (httpResult == HttpStatus.SC_INTERNAL_SERVER_ERROR)
-        generateApiException(getMethod);
-      else
-        logger.severe("Remote call failed: " + getMethod.getStatusLine().toString());
-    } finally {
-      getMethod.releaseConnection();
-    }
-    return null;
+    return await(nextTaskAsync());
+  }
+
+  public CompletableFuture<Task> nextTaskAsync() {
+    return transport.execute(pollRequest).thenApply(pollResponseParser);
   }
 
   public String uploadResult(TaskResult result) throws Exception {
-    StringBuilder urlBuilder = constructURL("upload_test_result");
+    return await(uploadResultAsync(result));
+  }
+
+  public CompletableFuture<String> uploadResultAsync(final TaskResult result) {
+    final StringBuilder urlBuilder = constructURL("upload_test_result");
     urlBuilder.append("&instance_id=").append(result.getInstanceId());
-    urlBuilder.append("&exit_code=").append(result.getExitCode());
-    urlBuilder.append("&result=").append(URLEncoder.encode(result.getOutput(), "UTF-8"));
-    PostMethod postMethod = new PostMethod(urlBuilder.toString());
-    setAuthenticationParameters(postMethod);
-    if (result.getFiles() != null && !result.getFiles().isEmpty()) {
-      List<Part> parts = new LinkedList<Part>();
-      for (File file : result.getFiles())
-        parts.add(new FilePart("result_files[" + file.getName() + "]", file));
-      postMethod.setRequestEntity(new MultipartRequestEntity(
-                                                             parts.toArray(new Part[parts.size()]),
-                                                             postMethod.getParams()
-                                                             ));
+    final Map<String, String> headers = new LinkedHashMap<String, String>();
+    setAuthenticationParameters(headers);
+    // the output goes in the body, the URL stays short and out of proxy logs whatever the output size
+    final Map<String, String> fields = new LinkedHashMap<String, String>();
+    fields.put("exit_code", String.valueOf(result.getExitCode()));
+    final Map<String, File> fileParts = new LinkedHashMap<String, File>();
+    if (result.getOutputFile() != null)
+      fileParts.put("result", result.getOutputFile());
+    else
+      fields.put("result", result.getFullOutput());
+    if (result.getSummaryFile() != null)
+      fileParts.put("result_summary", result.getSummaryFile());
+    // the outcome is small and goes ahead of the attachments, which take what bandwidth is left
+    final Set<String> priorityParts = new HashSet<String>(fileParts.keySet());
+    final Map<String, File> resultFiles = new LinkedHashMap<String, File>();
+    final Map<String, File> chunkedFiles = new LinkedHashMap<String, File>();
+    if (result.getFiles() != null) {
+      for (File file : result.getFiles()) {
+        if (chunkedUploader != null && chunkedUploader.accepts(file))
+          chunkedFiles.put(file.getName(), file);
+        else
+          resultFiles.put("result_files[" + file.getName() + "]", file);
+      }
+    }
+    if (!filesAfterResult || (resultFiles.isEmpty() && chunkedFiles.isEmpty())) {
+      return uploadChunked(result.getInstanceId(), headers, chunkedFiles)
+              .thenCompose(new Function<Map<String, String>, CompletableFuture<String>>() {
+                public CompletableFuture<String> apply(Map<String, String> uploadIds) {
+                  fields.putAll(uploadIds);
+                  fileParts.putAll(resultFiles);
+                  return upload(urlBuilder.toString(), headers, fields, fileParts, priorityParts, uploadIds);
+                }
+              });
+    }
+    return upload(urlBuilder.toString(), headers, fields, fileParts, priorityParts, Collections.<String, String>emptyMap())
+            .thenCompose(new Function<String, CompletableFuture<String>>() {
+              public CompletableFuture<String> apply(final String url) {
+                return uploadChunked(result.getInstanceId(), headers, chunkedFiles)
+                        .thenCompose(new Function<Map<String, String>, CompletableFuture<String>>() {
+                          public CompletableFuture<String> apply(Map<String, String> uploadIds) {
+                            return upload(url, headers, uploadIds, resultFiles, Collections.<String>emptySet(), uploadIds);
+                          }
+                        });
+              }
+            });
+  }
+
+  public Map<String, String> uploadResults(List<TaskResult> results) throws Exception {
+    return await(uploadResultsAsync(results));
+  }
+
+  /**
+   * Reports several results in one <code>upload_test_results.json</code> call, for results without files,
+   * whose output is given as a string.
+   *
+   * @return why the server did not take a result, per instance id; empty when it took them all. A result the
+   *         server did not mention counts as taken, since it may well have stored it.
+   */
+  public CompletableFuture<Map<String, String>> uploadResultsAsync(final List<TaskResult> results) {
+    String url = constructURL("upload_test_results").toString();
+    Map<String, String> headers = new LinkedHashMap<String, String>();
+    setAuthenticationParameters(headers);
+    headers.put("Content-Type", "application/json");
+    ObjectNode document = mapper.createObjectNode();
+    ArrayNode items = document.putArray("results");
+    for (TaskResult result : results) {
+      if ((result.getFiles() != null && !result.getFiles().isEmpty()) || result.getOutputFile() != null)
+        throw new IllegalArgumentException("Result of " + result.getInstanceId() + " cannot be batched");
+      items.addObject()
+              .put("instance_id", result.getInstanceId())
+              .put("exit_code", result.getExitCode())
+              .put("result", result.getFullOutput());
     }
+    byte[] body;
     try {
-      int httpResult = getHTTPClient().executeMethod(postMethod);
-      if (httpResult == HttpStatus.SC_INTERNAL_SERVER_ERROR)
-        generateApiException(postMethod);
-      else if (httpResult != HttpStatus.SC_OK) {
-        logger.severe("Remote call failed: " + postMethod.getStatusLine().toString());
-      }
-    } finally {
-      postMethod.releaseConnection();
+      body = mapper.writeValueAsBytes(document);
+    } catch (IOException e) {
+      CompletableFuture<Map<String, String>> failed = new CompletableFuture<Map<String, String>>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    return transport.execute(new Transport.Request("POST", url, headers, body, callPolicy.getUploadDeadline()))
+            .thenApply(new Function<Transport.Response, Map<String, String>>() {
+              public Map<String, String> apply(Transport.Response response) {
+                if (response.getStatusCode() != HttpStatus.SC_OK)
+                  throw new CompletionException(response.getStatusCode() == HttpStatus.SC_INTERNAL_SERVER_ERROR ?
+                          generateApiException(response) :
+                          new IOException("Remote call failed: " + response.getStatusLine()));
+                try {
+                  return parseBatchResponse(results, response.getBody());
+                } catch (IOException e) {
+                  throw new CompletionException(e);
+                }
+              }
+            });
+  }
+
+  /**
+   * Sends the files one after the other in chunks.
+   *
+   * @return a <code>result_file_uploads[&lt;file name&gt;]</code> field per file, naming its upload id
+   */
+  private CompletableFuture<Map<String, String>> uploadChunked(final String instanceId, final Map<String, String> headers,
+                                                               Map<String, File> chunkedFiles) {
+    final Map<String, String> uploadIds = new LinkedHashMap<String, String>();
+    CompletableFuture<Map<String, String>> chain = CompletableFuture.completedFuture(uploadIds);
+    if (chunkedFiles.isEmpty()) return chain;
+    final String chunkURL = constructURL("upload_result_chunk").append("&instance_id=").append(instanceId).toString();
+    for (final Map.Entry<String, File> file : chunkedFiles.entrySet()) {
+      chain = chain.thenCompose(new Function<Map<String, String>, CompletableFuture<Map<String, String>>>() {
+        public CompletableFuture<Map<String, String>> apply(Map<String, String> ignored) {
+          return chunkedUploader.upload(transport, chunkURL, headers, instanceId, "result_files[" + file.getKey() + "]",
+                  file.getValue(), callPolicy.getUploadDeadline(), uploadBandwidth)
+                  .thenApply(new Function<String, Map<String, String>>() {
+                    public Map<String, String> apply(String uploadId) {
+                      uploadIds.put("result_file_uploads[" + file.getKey() + "]", uploadId);
+                      return uploadIds;
+                    }
+                  });
+        }
+      });
+    }
+    return chain;
+  }
+
+  /**
+   * @param uploadIds chunked uploads the request names, forgotten once it was accepted
+   */
+  private CompletableFuture<String> upload(final String url, Map<String, String> headers, Map<String, String> fields,
+                                           Map<String, File> fileParts, Set<String> priorityParts,
+                                           final Map<String, String> uploadIds) {
+    return transport.execute(new Transport.Request("POST", url, headers, fields, fileParts,
+            callPolicy.getUploadDeadline(), uploadBandwidth, priorityParts))
+            .thenApply(new Function<Transport.Response, String>() {
+              public String apply(Transport.Response response) {
+                if (response.getStatusCode() != HttpStatus.SC_OK)
+                  throw new CompletionException(response.getStatusCode() == HttpStatus.SC_INTERNAL_SERVER_ERROR ?
+                          generateApiException(response) :
+                          new IOException("Remote call failed: " + response.getStatusLine()));
+                for (String uploadId : uploadIds.values())
+                  chunkedUploader.completed(uploadId);
+                return url;
+              }
+            });
+  }
+
+  private Map<String, String> parseBatchResponse(List<TaskResult> results, byte[] document) throws IOException {
+    Set<String> missing = new LinkedHashSet<String>();
+    for (TaskResult result : results)
+      missing.add(result.getInstanceId());
+    Map<String, String> rejected = new LinkedHashMap<String, String>();
+    for (JsonNode item : mapper.readTree(document).path("results")) {
+      String instanceId = item.path("instance_id").asText();
+      if (!missing.remove(instanceId)) continue;
+      if (!"ok".equals(item.path("status").asText()))
+        rejected.put(instanceId, item.hasNonNull("error") ? item.path("error").asText() : item.path("status").asText());
     }
-    return urlBuilder.toString();
+    if (!missing.isEmpty())
+      logger.warning("The server's answer to a batch does not mention " + missing + ", taking them as stored");
+    return rejected;
   }
 
-  private Task parseTaskDocument(InputStream stream) throws IOException {
-    JsonNode rootNode = (new ObjectMapper(jsonFactory)).readTree(stream);
+  private Task parseTaskDocument(byte[] document) throws IOException {
+    // an empty queue, most polls: nothing to parse
+    if (Arrays.equals(document, EMPTY_DOCUMENT))
+      return null;
+    JsonNode rootNode = mapper.readTree(document);
     if (rootNode.path("instance").isMissingNode())
       return null;
     return new Task(rootNode.path("instance").path("id").asText(),
@@ -137,26 +332,21 @@ public class Client {
                     rootNode.path("instance").path("timeout_in_seconds").asInt());
   }
 
-  private void generateApiException(HttpMethodBase mm) throws Exception {
-    throw new Exception("Remote call Failed Error #" + HttpStatus.SC_INTERNAL_SERVER_ERROR + ":" + mm.getResponseBodyAsString());
+  private APIException generateApiException(Transport.Response response) {
+    return new APIException("Remote call Failed Error #" + HttpStatus.SC_INTERNAL_SERVER_ERROR + ":" +
+            new String(response.getBody(), StandardCharsets.UTF_8));
   }
 
-  private synchronized HttpClient getHTTPClient() {
-    if (httpClient == null) {
-      Protocol easyHTTPS = new Protocol("https", new EasySSLProtocolSocketFactory(), 443);
-      Protocol.registerProtocol("https", easyHTTPS);
-
-      httpClient = new HttpClient();
-      if (!proxyHost.isEmpty()) {
-        httpClient.getHostConfiguration().setProxy(proxyHost, Integer.parseInt(proxyPort));
-      }
-      if (!proxyUser.isEmpty()) {
-        NTCredentials credentials = new NTCredentials(proxyUser, proxyPassword, "", "");
-        httpClient.getState().setProxyCredentials(AuthScope.ANY, credentials);
-      }
-      httpClient.getHttpConnectionManager().getParams().setConnectionTimeout(DEFAULT_CONNECTION_TIMEOUT);
+  private static <T> T await(CompletableFuture<T> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null ?
+              e.getCause().getCause() : e.getCause();
+      if (cause instanceof Exception) throw (Exception) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw e;
     }
-    return httpClient;
   }
 
   private StringBuilder constructURL(String command) {
@@ -168,11 +358,8 @@ public class Client {
   }
 
 
-  private void setAuthenticationParameters(HttpMethod request) throws NoSuchAlgorithmException {
-    StringBuilder sb = new StringBuilder();
-    long timestamp = new Date().getTime();
-    sb.append("custom api_token=").append(apiToken);
-    request.setRequestHeader("Authorization", sb.toString());
+  private void setAuthenticationParameters(Map<String, String> headers) {
+    headers.putAll(authenticationHeaders);
   }
 
   public static class Task {
@@ -222,7 +409,9 @@ public class Client {
     }
   }
 
-  public class APIException extends Exception {
+  public static class APIException extends Exception {
+    private static final long serialVersionUID = 1L;
+
     public APIException(String s) {
       super(s);
     }
@@ -233,12 +422,44 @@ public class Client {
     private final int exitCode;
     private final List<File> files;
     private final String output;
+    private final File outputFile;
+    private final File summaryFile;
 
     public TaskResult(String instanceId, int exitCode, List<File> files, String output) {
+      this(instanceId, exitCode, files, output, null);
+    }
+
+    /**
+     * @param summaryFile per-test results parsed from the result files, uploaded as the <code>result_summary</code>
+     *                    part; null if there is none
+     */
+    public TaskResult(String instanceId, int exitCode, List<File> files, String output, File summaryFile) {
       this.instanceId = instanceId;
       this.exitCode = exitCode;
       this.files = files;
       this.output = output;
+      this.outputFile = null;
+      this.summaryFile = summaryFile;
+    }
+
+    /**
+     * @param outputFile the captured console output, uploaded as the <code>result</code> part straight from disk
+     */
+    public TaskResult(String instanceId, int exitCode, List<File> files, File outputFile) {
+      this(instanceId, exitCode, files, outputFile, null);
+    }
+
+    /**
+     * @param summaryFile per-test results parsed from the result files, uploaded as the <code>result_summary</code>
+     *                    part; null if there is none
+     */
+    public TaskResult(String instanceId, int exitCode, List<File> files, File outputFile, File summaryFile) {
+      this.instanceId = instanceId;
+      this.exitCode = exitCode;
+      this.files = files;
+      this.output = "";
+      this.outputFile = outputFile;
+      this.summaryFile = summaryFile;
     }
 
     public String getInstanceId() {
@@ -257,70 +478,35 @@ public class Client {
       return getOutput(255);
     }
 
-    public String getOutput(int maxLength) {
-      return output.length() > maxLength ? output.substring(0, maxLength - 6) + "<...>" : output;
+    public String getFullOutput() {
+      return output;
     }
-  }
-
-  // adopted from http://svn.apache.org/viewvc/httpcomponents/oac.hc3x/trunk/src/contrib/org/apache/commons/httpclient/contrib/ssl/
-
-  public static class EasyX509TrustManager implements X509TrustManager {
-    private X509TrustManager standardTrustManager = null;
-
-    /** Log object for this class */
-    private static final Log LOG = LogFactory.getLog(EasyX509TrustManager.class);
 
     /**
-     * Constructor for EasyX509TrustManager.
+     * @return the file holding the console output, null when it was given as a string
      */
-    public EasyX509TrustManager(KeyStore keystore) throws NoSuchAlgorithmException, KeyStoreException {
-      super();
-      TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-      factory.init(keystore);
-      TrustManager[] trustManagers = factory.getTrustManagers();
-      if (trustManagers.length == 0) {
-        throw new NoSuchAlgorithmException("no trust managers found");
-      }
-      this.standardTrustManager = (X509TrustManager)trustManagers[0];
-    }
-
-    /**
-     * @see javax.net.ssl.X509TrustManager#checkClientTrusted(X509Certificate[], String)
-     */
-    public void checkClientTrusted(X509Certificate[] certificates, String authType) throws CertificateException {
-      standardTrustManager.checkClientTrusted(certificates, authType);
+    public File getOutputFile() {
+      return outputFile;
     }
 
-    /**
-     * @see javax.net.ssl.X509TrustManager#checkServerTrusted(X509Certificate[], String)
-     */
-    public void checkServerTrusted(X509Certificate[] certificates, String authType) throws CertificateException {
-      if ((certificates != null) && LOG.isDebugEnabled()) {
-        LOG.debug("Server certificate chain:");
-        for (int i=0; i<certificates.length; i++) {
-          LOG.debug("X509Certificate[" + i + "]=" + certificates[i]);
-        }
-      }
-      if ((certificates != null) && (certificates.length > 0)) {
-        certificates[0].checkValidity();
-      } else {
-        standardTrustManager.checkServerTrusted(certificates, authType);
-      }
+    public File getSummaryFile() {
+      return summaryFile;
     }
 
-    /**
-     * @see X509TrustManager#getAcceptedIssuers()
-     */
-    public X509Certificate[] getAcceptedIssuers() {
-      return this.standardTrustManager.getAcceptedIssuers();
+    public String getOutput(int maxLength) {
+      return output.length() > maxLength ? output.substring(0, maxLength - 6) + "<...>" : output;
     }
   }
 
-  public static class EasySSLProtocolSocketFactory implements SecureProtocolSocketFactory {
+  // adopted from http://svn.apache.org/viewvc/httpcomponents/oac.hc3x/trunk/src/contrib/org/apache/commons/httpclient/contrib/ssl/
 
-    /** Log object for this class. */
-    private static final Log LOG = LogFactory.getLog(EasySSLProtocolSocketFactory.class);
-    private SSLContext sslContext = null;
+  /**
+   * Opens TLS connections for commons-httpclient from the shared {@link TlsContext}, so connections resume
+   * earlier sessions. The handshake is done right away, which lets it be bounded by the connection's socket
+   * timeout and counted in the <code>xbot_tls_*</code> metrics. Like {@link JdkHttpTransport}, it checks that the
+   * certificate is for the host connected to, not only that it is trusted.
+   */
+  public static class EasySSLProtocolSocketFactory implements SecureProtocolSocketFactory {
 
     /**
      * Constructor for EasySSLProtocolSocketFactory.
@@ -329,25 +515,30 @@ public class Client {
       super();
     }
 
-    private static SSLContext createEasySSLContext() {
-      try {
-        SSLContext context = SSLContext.getInstance("SSL");
-        context.init(
-                null,
-                new TrustManager[] {new EasyX509TrustManager(null)},
-                null);
-        return context;
-      } catch (Exception e) {
-        LOG.error(e.getMessage(), e);
-        throw new HttpClientError(e.toString());
-      }
+    private static SSLSocketFactory getSocketFactory() {
+      return TlsContext.get().getSocketFactory();
     }
 
-    private SSLContext getSSLContext() {
-      if (this.sslContext == null) {
-        this.sslContext = createEasySSLContext();
+    private static Socket handshake(Socket socket, int timeout) throws IOException {
+      SSLSocket sslSocket = (SSLSocket) socket;
+      SSLParameters parameters = sslSocket.getSSLParameters();
+      parameters.setEndpointIdentificationAlgorithm("HTTPS");
+      sslSocket.setSSLParameters(parameters);
+      long startedAt = System.nanoTime();
+      long startedAtMillis = System.currentTimeMillis();
+      int previousTimeout = sslSocket.getSoTimeout();
+      try {
+        if (timeout > 0) sslSocket.setSoTimeout(timeout);
+        sslSocket.startHandshake();
+        if (timeout > 0) sslSocket.setSoTimeout(previousTimeout);
+      } catch (IOException e) {
+        sslSocket.close();
+        throw e;
       }
-      return this.sslContext;
+      // a resumed session was created by an earlier handshake
+      boolean resumed = sslSocket.getSession().getCreationTime() < startedAtMillis;
+      TlsContext.recordHandshake(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt), resumed);
+      return sslSocket;
     }
 
     /**
@@ -359,21 +550,15 @@ public class Client {
             InetAddress clientHost,
             int clientPort)
       throws IOException, UnknownHostException {
-      return getSSLContext().getSocketFactory().createSocket(
+      return handshake(getSocketFactory().createSocket(
               host,
               port,
               clientHost,
-              clientPort);
+              clientPort), 0);
     }
 
     /**
      * Attempts to get a new socket connection to the given host within the given time limit.
-     * <p>
-     *   To circumvent the limitations of older JREs that do not support connect timeout a
-     *   controller thread is executed. The controller thread attempts to create a new socket
-     *   within the given limit of time. If socket constructor does not return until the
-     *   timeout expires, the controller terminates and throws an {@link ConnectTimeoutException}
-     * </p>
      *
      * @param host the host name/IP
      * @param port the port of the host
@@ -398,16 +583,23 @@ public class Client {
         throw new IllegalArgumentException("Parameters may not be null");
       }
       int timeout  = params.getConnectionTimeout();
-      SocketFactory socketFactory = getSSLContext().getSocketFactory();
+      SSLSocketFactory socketFactory = getSocketFactory();
       if (timeout == 0) {
-        return socketFactory.createSocket(host, port, localAddress, localPort);
+        return handshake(socketFactory.createSocket(host, port, localAddress, localPort), params.getSoTimeout());
       } else {
-        Socket socket = socketFactory.createSocket();
+        // connected plain first, then layered with the host name it is checked against
+        Socket socket = new Socket();
         SocketAddress localAddr = new InetSocketAddress(localAddress, localPort);
         SocketAddress remoteAddr = new InetSocketAddress(host, port);
-        socket.bind(localAddr);
-        socket.connect(remoteAddr, timeout);
-        return socket;
+        try {
+          socket.bind(localAddr);
+          socket.connect(remoteAddr, timeout);
+        } catch (IOException e) {
+          socket.close();
+          throw e;
+        }
+        return handshake(socketFactory.createSocket(socket, host, port, true),
+                params.getSoTimeout() > 0 ? params.getSoTimeout() : timeout);
       }
     }
 
@@ -416,10 +608,12 @@ public class Client {
      */
     public Socket createSocket(String host, int port)
       throws IOException, UnknownHostException {
-      return getSSLContext().getSocketFactory().createSocket(host, port);
+      return handshake(getSocketFactory().createSocket(host, port), 0);
     }
 
     /**
+     * Layers TLS over an established connection, e.g. a tunnel through the proxy.
+     *
      * @see SecureProtocolSocketFactory#createSocket(Socket, String, int, boolean)
      */
     public Socket createSocket(
@@ -428,11 +622,11 @@ public class Client {
             int port,
             boolean autoClose)
       throws IOException, UnknownHostException {
-      return getSSLContext().getSocketFactory().createSocket(
+      return handshake(getSocketFactory().createSocket(
               socket,
               host,
               port,
-              autoClose);
+              autoClose), socket.getSoTimeout());
     }
 
     public boolean equals(Object obj) {
@@ -0,0 +1,181 @@
+package com.practitest.api;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.NTCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.multipart.FilePart;
+import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
+import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.methods.multipart.PartSource;
+import org.apache.commons.httpclient.methods.multipart.StringPart;
+import org.apache.commons.httpclient.protocol.Protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Blocking transport on commons-httpclient 3: every request occupies the calling thread until it is done.
+ * Supports NTLM proxy authentication.
+ */
+public class CommonsHttpTransport implements Transport {
+  // aborts requests that overrun their deadline
+  private static final ScheduledExecutorService deadlineTimer = createDeadlineTimer();
+
+  static {
+    // protocols are registered globally, so once for all transports
+    Protocol.registerProtocol("https", new Protocol("https", new Client.EasySSLProtocolSocketFactory(), 443));
+  }
+
+  private final MultiThreadedHttpConnectionManager connectionManager;
+  private final HttpClient httpClient;
+
+  public CommonsHttpTransport(String proxyHost, String proxyPort, String proxyUser, String proxyPassword) {
+    this(proxyHost, proxyPort, proxyUser, proxyPassword,
+            CallPolicy.DEFAULT.getConnectTimeout(), CallPolicy.DEFAULT.getReadTimeout());
+  }
+
+  public CommonsHttpTransport(String proxyHost, String proxyPort, String proxyUser, String proxyPassword,
+                              int connectTimeout, int readTimeout) {
+    connectionManager = new MultiThreadedHttpConnectionManager();
+    connectionManager.getParams().setConnectionTimeout(connectTimeout);
+    connectionManager.getParams().setSoTimeout(readTimeout);
+    httpClient = new HttpClient(connectionManager);
+    if (!proxyHost.isEmpty()) {
+      httpClient.getHostConfiguration().setProxy(proxyHost, Integer.parseInt(proxyPort));
+    }
+    if (!proxyUser.isEmpty()) {
+      NTCredentials credentials = new NTCredentials(proxyUser, proxyPassword, "", "");
+      httpClient.getState().setProxyCredentials(AuthScope.ANY, credentials);
+    }
+  }
+
+  public CompletableFuture<Response> execute(Request request) {
+    CompletableFuture<Response> result = new CompletableFuture<Response>();
+    try {
+      result.complete(executeMethod(request));
+    } catch (DeadlineExceededException e) {
+      result.completeExceptionally(new TimeoutException(
+              "Request took longer than " + request.getDeadlineMillis() + " ms: " + request.getUrl()));
+    } catch (Exception e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  public void closeIdleConnections() {
+    connectionManager.closeIdleConnections(0);
+  }
+
+  public void close() {
+    connectionManager.shutdown();
+  }
+
+  private static ScheduledExecutorService createDeadlineTimer() {
+    ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "xbot-http-deadline");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    // deadlines of completed requests are dropped right away, so the thread can end once the agent is idle
+    timer.setRemoveOnCancelPolicy(true);
+    timer.setKeepAliveTime(60, TimeUnit.SECONDS);
+    timer.allowCoreThreadTimeOut(true);
+    return timer;
+  }
+
+  private Response executeMethod(Request request) throws IOException, DeadlineExceededException {
+    final HttpMethodBase method;
+    if ("GET".equals(request.getMethod())) {
+      method = new GetMethod(request.getUrl());
+    } else if ("POST".equals(request.getMethod())) {
+      PostMethod postMethod = new PostMethod(request.getUrl());
+      if (request.isMultipart()) {
+        List<Part> parts = new LinkedList<Part>();
+        for (Map.Entry<String, String> field : request.getFields().entrySet())
+          parts.add(new StringPart(field.getKey(), field.getValue(), "UTF-8"));
+        for (Map.Entry<String, File> filePart : request.getFileParts().entrySet())
+          parts.add(new FilePart(filePart.getKey(), new RequestPartSource(request, filePart.getKey(), filePart.getValue())));
+        postMethod.setRequestEntity(new MultipartRequestEntity(
+                parts.toArray(new Part[parts.size()]),
+                postMethod.getParams()));
+      } else if (request.getBody() != null) {
+        postMethod.setRequestEntity(new ByteArrayRequestEntity(request.getBody()));
+      }
+      method = postMethod;
+    } else {
+      throw new IllegalArgumentException("Unsupported method " + request.getMethod());
+    }
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet())
+      method.setRequestHeader(header.getKey(), header.getValue());
+    final AtomicBoolean aborted = new AtomicBoolean(false);
+    ScheduledFuture<?> deadline = null;
+    if (request.getDeadlineMillis() > 0) {
+      deadline = deadlineTimer.schedule(new Runnable() {
+        public void run() {
+          aborted.set(true);
+          method.abort();
+        }
+      }, request.getDeadlineMillis(), TimeUnit.MILLISECONDS);
+    }
+    try {
+      int status = httpClient.executeMethod(method);
+      return new Response(status, method.getStatusLine().toString(), method.getResponseBody());
+    } catch (IOException e) {
+      if (aborted.get()) throw new DeadlineExceededException();
+      throw e;
+    } finally {
+      if (deadline != null) deadline.cancel(false);
+      method.releaseConnection();
+    }
+  }
+
+  private static class DeadlineExceededException extends Exception {
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Reads a file part through {@link Request#openFilePart}, each time the body is written.
+   */
+  private static class RequestPartSource implements PartSource {
+    private final Request request;
+    private final String name;
+    private final File file;
+
+    RequestPartSource(Request request, String name, File file) {
+      this.request = request;
+      this.name = name;
+      this.file = file;
+    }
+
+    public long getLength() {
+      return file.length();
+    }
+
+    public String getFileName() {
+      return file.getName();
+    }
+
+    public InputStream createInputStream() throws IOException {
+      return request.openFilePart(name);
+    }
+  }
+}
@@ -0,0 +1,239 @@
+package com.practitest.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.net.Authenticator;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking transport on <code>java.net.http.HttpClient</code>.
+ * <p/>
+ * Prefers HTTP/2, so concurrent polls and uploads are multiplexed over a single connection, and completes
+ * requests on a couple of worker threads instead of one thread per request in flight. File parts are
+ * streamed from disk. TLS sessions come from the shared {@link TlsContext}. Proxy authentication is limited to Basic; use {@link CommonsHttpTransport} for NTLM proxies.
+ */
+public class JdkHttpTransport implements Transport {
+  private static final int WORKER_THREADS = 2;
+
+  private final ExecutorService executor;
+  private final HttpClient httpClient;
+  private volatile PreparedGet lastGet;
+
+  public JdkHttpTransport(String proxyHost, String proxyPort, String proxyUser, String proxyPassword) {
+    this(proxyHost, proxyPort, proxyUser, proxyPassword, CallPolicy.DEFAULT.getConnectTimeout());
+  }
+
+  /**
+   * java.net.http has no socket read timeout, a stalled connection is cut by the request deadline instead.
+   */
+  public JdkHttpTransport(String proxyHost, String proxyPort, final String proxyUser, final String proxyPassword,
+                          int connectTimeout) {
+    ThreadPoolExecutor workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "xbot-http-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    // no worker threads are kept around while the agent is idle
+    workers.allowCoreThreadTimeOut(true);
+    executor = workers;
+    HttpClient.Builder builder = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofMillis(connectTimeout))
+            .sslContext(TlsContext.get())
+            .executor(executor);
+    if (!proxyHost.isEmpty()) {
+      builder.proxy(ProxySelector.of(new InetSocketAddress(proxyHost, Integer.parseInt(proxyPort))));
+    }
+    if (!proxyUser.isEmpty()) {
+      builder.authenticator(new Authenticator() {
+        @Override
+        protected PasswordAuthentication getPasswordAuthentication() {
+          if (getRequestorType() != RequestorType.PROXY) return null;
+          return new PasswordAuthentication(proxyUser, proxyPassword.toCharArray());
+        }
+      });
+    }
+    httpClient = builder.build();
+  }
+
+  public CompletableFuture<Response> execute(final Request request) {
+    HttpRequest httpRequest = toHttpRequest(request);
+    if (httpRequest == null) {
+      CompletableFuture<Response> result = new CompletableFuture<Response>();
+      result.completeExceptionally(new IllegalArgumentException("Unsupported method " + request.getMethod()));
+      return result;
+    }
+    CompletableFuture<HttpResponse<byte[]>> response =
+            httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofByteArray());
+    if (request.getDeadlineMillis() > 0) // the request timeout only covers waiting for the response headers
+      response = response.orTimeout(request.getDeadlineMillis(), TimeUnit.MILLISECONDS);
+    final CompletableFuture<Response> result = new CompletableFuture<Response>();
+    response.whenComplete(new BiConsumer<HttpResponse<byte[]>, Throwable>() {
+      public void accept(HttpResponse<byte[]> response, Throwable error) {
+        if (error == null) {
+          String protocol = response.version() == HttpClient.Version.HTTP_2 ? "HTTP/2" : "HTTP/1.1";
+          result.complete(new Response(response.statusCode(), protocol + " " + response.statusCode(), response.body()));
+          return;
+        }
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof HttpTimeoutException || cause instanceof TimeoutException)
+          result.completeExceptionally(new TimeoutException(
+                  "Request took longer than " + request.getDeadlineMillis() + " ms: " + request.getUrl()));
+        else
+          result.completeExceptionally(cause);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * @return null for a method other than GET and POST
+   */
+  private HttpRequest toHttpRequest(Request request) {
+    boolean get = "GET".equals(request.getMethod());
+    // a client sends the same poll request over and over, and an HttpRequest can be sent any number of times
+    PreparedGet prepared = lastGet;
+    if (get && prepared != null && prepared.request == request) return prepared.httpRequest;
+    HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(request.getUrl()));
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet())
+      builder.header(header.getKey(), header.getValue());
+    if (request.getDeadlineMillis() > 0)
+      builder.timeout(Duration.ofMillis(request.getDeadlineMillis()));
+    if (get) {
+      HttpRequest httpRequest = builder.GET().build();
+      lastGet = new PreparedGet(request, httpRequest);
+      return httpRequest;
+    } else if ("POST".equals(request.getMethod())) {
+      if (request.getBody() != null) {
+        builder.POST(HttpRequest.BodyPublishers.ofByteArray(request.getBody()));
+      } else if (!request.isMultipart()) {
+        builder.POST(HttpRequest.BodyPublishers.noBody());
+      } else {
+        MultipartBody body = new MultipartBody(request);
+        builder.header("Content-Type", body.getContentType());
+        builder.POST(HttpRequest.BodyPublishers.fromPublisher(
+                HttpRequest.BodyPublishers.ofInputStream(body), body.getContentLength()));
+      }
+      return builder.build();
+    }
+    return null;
+  }
+
+  public void closeIdleConnections() {
+    // java.net.http has no way to close its pool, idle connections time out by themselves
+    // (jdk.httpclient.keepalive.timeout)
+  }
+
+  public void close() {
+    executor.shutdown();
+  }
+
+  private static final class PreparedGet {
+    final Request request;
+    final HttpRequest httpRequest;
+
+    PreparedGet(Request request, HttpRequest httpRequest) {
+      this.request = request;
+      this.httpRequest = httpRequest;
+    }
+  }
+
+  /**
+   * multipart/form-data body with one part per field and per file, files read from disk while sending.
+   */
+  private static class MultipartBody implements Supplier<InputStream> {
+    private final String boundary = "xbot-" + UUID.randomUUID();
+    private final Request request;
+    private final List<Object> segments = new ArrayList<Object>(); // byte[] or the name of a file part
+    private long contentLength = 0;
+
+    MultipartBody(Request request) {
+      this.request = request;
+      for (Map.Entry<String, String> field : request.getFields().entrySet()) {
+        add(("--" + boundary + "\r\n" +
+                "Content-Disposition: form-data; name=\"" + field.getKey() + "\"\r\n" +
+                "Content-Type: text/plain; charset=UTF-8\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        add(field.getValue().getBytes(StandardCharsets.UTF_8));
+        add("\r\n".getBytes(StandardCharsets.UTF_8));
+      }
+      for (Map.Entry<String, File> filePart : request.getFileParts().entrySet()) {
+        add(("--" + boundary + "\r\n" +
+                "Content-Disposition: form-data; name=\"" + filePart.getKey() + "\"; filename=\"" + filePart.getValue().getName() + "\"\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                "Content-Transfer-Encoding: binary\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        segments.add(filePart.getKey());
+        contentLength += filePart.getValue().length();
+        add("\r\n".getBytes(StandardCharsets.UTF_8));
+      }
+      add(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void add(byte[] bytes) {
+      segments.add(bytes);
+      contentLength += bytes.length;
+    }
+
+    String getContentType() {
+      return "multipart/form-data; boundary=" + boundary;
+    }
+
+    long getContentLength() {
+      return contentLength;
+    }
+
+    public InputStream get() {
+      final Iterator<Object> iterator = segments.iterator();
+      return new SequenceInputStream(new Enumeration<InputStream>() {
+        public boolean hasMoreElements() {
+          return iterator.hasNext();
+        }
+
+        public InputStream nextElement() {
+          Object segment = iterator.next();
+          if (segment instanceof byte[])
+            return new ByteArrayInputStream((byte[]) segment);
+          try {
+            return request.openFilePart((String) segment);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package com.practitest.api;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide registry of named counters and gauges, reported by the xBot <code>/status</code> endpoint.
+ */
+public class Metrics {
+  private static final Metrics instance = new Metrics();
+
+  private final ConcurrentMap<String, AtomicLong> values = new ConcurrentHashMap<String, AtomicLong>();
+
+  public static Metrics getInstance() {
+    return instance;
+  }
+
+  public void increment(String name) {
+    add(name, 1);
+  }
+
+  public void add(String name, long delta) {
+    value(name).addAndGet(delta);
+  }
+
+  public void set(String name, long newValue) {
+    value(name).set(newValue);
+  }
+
+  /**
+   * Raises the gauge to <code>candidate</code> if that is larger than its current value.
+   */
+  public void max(String name, long candidate) {
+    AtomicLong value = value(name);
+    long current;
+    while (candidate > (current = value.get()) && !value.compareAndSet(current, candidate)) ;
+  }
+
+  public long get(String name) {
+    AtomicLong value = values.get(name);
+    return value == null ? 0 : value.get();
+  }
+
+  public SortedMap<String, Long> snapshot() {
+    SortedMap<String, Long> snapshot = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> entry : values.entrySet())
+      snapshot.put(entry.getKey(), entry.getValue().get());
+    return snapshot;
+  }
+
+  private AtomicLong value(String name) {
+    AtomicLong value = values.get(name);
+    if (value == null) {
+      AtomicLong created = new AtomicLong();
+      value = values.putIfAbsent(name, created);
+      if (value == null) value = created;
+    }
+    return value;
+  }
+}
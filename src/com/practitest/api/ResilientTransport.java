@@ -0,0 +1,179 @@
+package com.practitest.api;
+
+import java.net.SocketTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Wraps a transport with a {@link CircuitBreaker} and, optionally, hedged GET requests: when a GET did not
+ * answer within the hedge delay an identical one is sent and whichever answers first wins.
+ * <p/>
+ * Server errors (5xx), transport failures and timeouts count as failures. Outcomes are recorded in {@link Metrics}
+ * under <code>xbot_api_*</code>.
+ */
+public class ResilientTransport implements Transport {
+  private static final Logger logger = Logger.getLogger(ResilientTransport.class.getName());
+
+  private static final ThreadFactory daemonThreads = new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "xbot-api-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+  private static final ScheduledExecutorService hedgeTimer = createHedgeTimer();
+  // hedged attempts must not run on the caller's thread, a blocking transport would only return once done
+  private static final ExecutorService hedgeExecutor = Executors.newCachedThreadPool(daemonThreads);
+
+  private final Transport delegate;
+  private final CircuitBreaker circuitBreaker;
+  private final long hedgeDelayMillis;
+  private final Metrics metrics;
+
+  public ResilientTransport(Transport delegate, CircuitBreaker circuitBreaker, long hedgeDelayMillis, Metrics metrics) {
+    this.delegate = delegate;
+    this.circuitBreaker = circuitBreaker;
+    this.hedgeDelayMillis = hedgeDelayMillis;
+    this.metrics = metrics;
+    publishState();
+  }
+
+  public CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  public CompletableFuture<Response> execute(final Request request) {
+    if (!circuitBreaker.allowRequest()) {
+      metrics.increment("xbot_api_rejected_total");
+      CompletableFuture<Response> rejected = new CompletableFuture<Response>();
+      rejected.completeExceptionally(new CircuitOpenException(request.getUrl()));
+      return rejected;
+    }
+    publishState();
+    metrics.increment("xbot_api_requests_total");
+    final long startedAt = System.nanoTime();
+    CompletableFuture<Response> response;
+    try {
+      response = hedgeDelayMillis > 0 && "GET".equals(request.getMethod()) ?
+              executeHedged(request) :
+              delegate.execute(request);
+    } catch (RuntimeException e) {
+      // still recorded below, or a half-open probe that threw would hold the breaker half-open for good
+      response = new CompletableFuture<Response>();
+      response.completeExceptionally(e);
+    }
+    return response.whenComplete(new BiConsumer<Response, Throwable>() {
+      public void accept(Response response, Throwable error) {
+        long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        metrics.add("xbot_api_latency_ms_total", latency);
+        metrics.max("xbot_api_latency_ms_max", latency);
+        if (error == null && response.getStatusCode() < 500) {
+          circuitBreaker.recordSuccess();
+        } else {
+          if (isTimeout(error)) metrics.increment("xbot_api_timeouts_total");
+          metrics.increment("xbot_api_failures_total");
+          circuitBreaker.recordFailure();
+          if (circuitBreaker.getState() == CircuitBreaker.State.OPEN)
+            logger.warning("PractiTest calls keep failing, circuit breaker is open");
+        }
+        publishState();
+      }
+    });
+  }
+
+  public void closeIdleConnections() {
+    delegate.closeIdleConnections();
+  }
+
+  public void close() {
+    delegate.close();
+  }
+
+  private static ScheduledExecutorService createHedgeTimer() {
+    ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, daemonThreads);
+    // like the cached hedge executor, lets its thread go while the agent is idle
+    timer.setKeepAliveTime(60, TimeUnit.SECONDS);
+    timer.allowCoreThreadTimeOut(true);
+    return timer;
+  }
+
+  private CompletableFuture<Response> executeHedged(final Request request) {
+    final CompletableFuture<Response> result = new CompletableFuture<Response>();
+    final AtomicInteger pending = new AtomicInteger(1);
+    dispatch(request).whenComplete(firstWins(result, pending, false));
+    hedgeTimer.schedule(new Runnable() {
+      public void run() {
+        if (result.isDone() || !pending.compareAndSet(1, 2)) return;
+        metrics.increment("xbot_api_hedged_total");
+        dispatch(request).whenComplete(firstWins(result, pending, true));
+      }
+    }, hedgeDelayMillis, TimeUnit.MILLISECONDS);
+    return result;
+  }
+
+  private CompletableFuture<Response> dispatch(final Request request) {
+    return CompletableFuture.supplyAsync(new Supplier<CompletableFuture<Response>>() {
+      public CompletableFuture<Response> get() {
+        return delegate.execute(request);
+      }
+    }, hedgeExecutor).thenCompose(new Function<CompletableFuture<Response>, CompletableFuture<Response>>() {
+      public CompletableFuture<Response> apply(CompletableFuture<Response> response) {
+        return response;
+      }
+    });
+  }
+
+  private BiConsumer<Response, Throwable> firstWins(final CompletableFuture<Response> result,
+                                                   final AtomicInteger pending,
+                                                   final boolean hedge) {
+    return new BiConsumer<Response, Throwable>() {
+      public void accept(Response response, Throwable error) {
+        int stillPending = pending.decrementAndGet();
+        if (error == null) {
+          if (hedge && !result.isDone())
+            metrics.increment("xbot_api_hedge_wins_total"); // counted before completing so callers see it
+          result.complete(response);
+        } else if (stillPending == 0) {
+          result.completeExceptionally(error);
+        }
+      }
+    };
+  }
+
+  private void publishState() {
+    metrics.set("xbot_api_circuit_breaker_state", circuitBreaker.getState().ordinal());
+  }
+
+  private static boolean isTimeout(Throwable error) {
+    if (error instanceof CompletionException && error.getCause() != null)
+      error = error.getCause();
+    return error instanceof TimeoutException || error instanceof HttpTimeoutException ||
+            error instanceof SocketTimeoutException;
+  }
+
+  /**
+   * The call was not made at all because PractiTest kept failing recently.
+   */
+  public static class CircuitOpenException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException(String url) {
+      super("PractiTest is failing, not calling " + url + " until the next probe");
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package com.practitest.api;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+
+/**
+ * The one SSL context shared by every connection to PractiTest, whichever transport or client opened it.
+ * <p/>
+ * Sharing it means sharing its client session cache, so a new connection resumes an earlier TLS session
+ * instead of going through a full handshake. Server certificates are validated against the configured trust
+ * store, or the JVM default one.
+ */
+public final class TlsContext {
+  public static final int DEFAULT_SESSION_CACHE_SIZE = 64;
+  public static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+  private static volatile SSLContext context;
+  private static String trustStorePath = "";
+  private static String trustStorePassword = "";
+  private static String trustStoreType = KeyStore.getDefaultType();
+  private static int sessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+  private static int sessionTimeoutSeconds = DEFAULT_SESSION_TIMEOUT_SECONDS;
+
+  private TlsContext() {
+  }
+
+  /**
+   * Replaces the shared context; connections opened from now on use the new settings.
+   *
+   * @param trustStorePath empty to trust the JVM default certificate authorities
+   */
+  public static synchronized void configure(String trustStorePath, String trustStorePassword, String trustStoreType,
+                                            int sessionCacheSize, int sessionTimeoutSeconds) {
+    TlsContext.trustStorePath = trustStorePath;
+    TlsContext.trustStorePassword = trustStorePassword;
+    TlsContext.trustStoreType = trustStoreType;
+    TlsContext.sessionCacheSize = sessionCacheSize;
+    TlsContext.sessionTimeoutSeconds = sessionTimeoutSeconds;
+    context = null;
+  }
+
+  public static SSLContext get() {
+    SSLContext current = context;
+    if (current == null) {
+      synchronized (TlsContext.class) {
+        current = context;
+        if (current == null)
+          context = current = create();
+      }
+    }
+    return current;
+  }
+
+  static void recordHandshake(long latencyMillis, boolean resumed) {
+    Metrics metrics = Metrics.getInstance();
+    metrics.increment("xbot_tls_handshakes_total");
+    if (resumed) metrics.increment("xbot_tls_resumed_handshakes_total");
+    metrics.add("xbot_tls_handshake_ms_total", latencyMillis);
+    metrics.max("xbot_tls_handshake_ms_max", latencyMillis);
+  }
+
+  private static SSLContext create() {
+    try {
+      KeyStore trustStore = null;
+      if (!trustStorePath.isEmpty()) {
+        trustStore = KeyStore.getInstance(trustStoreType);
+        InputStream in = new FileInputStream(trustStorePath);
+        try {
+          trustStore.load(in, trustStorePassword.isEmpty() ? null : trustStorePassword.toCharArray());
+        } finally {
+          in.close();
+        }
+      }
+      TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      trustManagerFactory.init(trustStore);
+
+      SSLContext sslContext = SSLContext.getInstance("TLS");
+      sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+      SSLSessionContext sessions = sslContext.getClientSessionContext();
+      sessions.setSessionCacheSize(sessionCacheSize);
+      sessions.setSessionTimeout(sessionTimeoutSeconds);
+      return sslContext;
+    } catch (Exception e) {
+      throw new IllegalStateException("Failed to initialize SSL context: " + e.getMessage(), e);
+    }
+  }
+}
@@ -0,0 +1,174 @@
+package com.practitest.api;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Moves the requests of a {@link Client} over the wire.
+ * <p/>
+ * Implementations may be blocking ({@link CommonsHttpTransport}, the returned future is already completed)
+ * or asynchronous ({@link JdkHttpTransport}). Either way the returned future only fails on transport
+ * errors; any HTTP status is delivered as a {@link Response}.
+ */
+public interface Transport {
+  CompletableFuture<Response> execute(Request request);
+
+  /**
+   * Closes the pooled connections that are not in use, for an agent going idle. The transport stays usable
+   * and connects again on the next request.
+   */
+  void closeIdleConnections();
+
+  /**
+   * Releases the pooled connections and threads. The transport must not be used afterwards.
+   */
+  void close();
+
+  class Request {
+    private final String method;
+    private final String url;
+    private final Map<String, String> headers;
+    private final Map<String, String> fields;
+    private final Map<String, File> fileParts;
+    private final long deadlineMillis;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final Set<String> priorityParts;
+    private final byte[] body;
+
+    public Request(String method, String url, Map<String, String> headers, Map<String, File> fileParts) {
+      this(method, url, headers, fileParts, 0);
+    }
+
+    /**
+     * @param fileParts      when not empty the request is sent as multipart/form-data, one part per file,
+     *                       each streamed from disk
+     * @param deadlineMillis total time the request may take, the future fails with a
+     *                       {@link java.util.concurrent.TimeoutException} once it passed. 0 for no deadline.
+     */
+    public Request(String method, String url, Map<String, String> headers, Map<String, File> fileParts,
+                   long deadlineMillis) {
+      this(method, url, headers, Collections.<String, String>emptyMap(), fileParts, deadlineMillis);
+    }
+
+    /**
+     * @param fields text parts, sent ahead of the file parts
+     */
+    public Request(String method, String url, Map<String, String> headers, Map<String, String> fields,
+                   Map<String, File> fileParts, long deadlineMillis) {
+      this(method, url, headers, fields, fileParts, deadlineMillis, null, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param bandwidthLimiter paces the file parts as they are read from disk, null to send them at full speed
+     * @param priorityParts    file parts that are counted against the limiter but never wait for it
+     */
+    public Request(String method, String url, Map<String, String> headers, Map<String, String> fields,
+                   Map<String, File> fileParts, long deadlineMillis, BandwidthLimiter bandwidthLimiter,
+                   Set<String> priorityParts) {
+      this(method, url, headers, fields, fileParts, deadlineMillis, bandwidthLimiter, priorityParts, null);
+    }
+
+    /**
+     * @param body sent as is, with the content type given in <code>headers</code>
+     */
+    public Request(String method, String url, Map<String, String> headers, byte[] body, long deadlineMillis) {
+      this(method, url, headers, Collections.<String, String>emptyMap(), Collections.<String, File>emptyMap(),
+              deadlineMillis, null, Collections.<String>emptySet(), body);
+    }
+
+    private Request(String method, String url, Map<String, String> headers, Map<String, String> fields,
+                    Map<String, File> fileParts, long deadlineMillis, BandwidthLimiter bandwidthLimiter,
+                    Set<String> priorityParts, byte[] body) {
+      this.method = method;
+      this.url = url;
+      this.headers = Collections.unmodifiableMap(new LinkedHashMap<String, String>(headers));
+      this.fields = Collections.unmodifiableMap(new LinkedHashMap<String, String>(fields));
+      this.fileParts = Collections.unmodifiableMap(new LinkedHashMap<String, File>(fileParts));
+      this.deadlineMillis = deadlineMillis;
+      this.bandwidthLimiter = bandwidthLimiter;
+      this.priorityParts = Collections.unmodifiableSet(new LinkedHashSet<String>(priorityParts));
+      this.body = body;
+    }
+
+    public String getMethod() {
+      return method;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    public Map<String, String> getHeaders() {
+      return headers;
+    }
+
+    public Map<String, String> getFields() {
+      return fields;
+    }
+
+    /**
+     * @return whether the request has a multipart/form-data body
+     */
+    public boolean isMultipart() {
+      return !fields.isEmpty() || !fileParts.isEmpty();
+    }
+
+    public Map<String, File> getFileParts() {
+      return fileParts;
+    }
+
+    /**
+     * @return the raw body, null when there is none or the request is multipart
+     */
+    public byte[] getBody() {
+      return body;
+    }
+
+    public long getDeadlineMillis() {
+      return deadlineMillis;
+    }
+
+    /**
+     * Opens a file part for sending; transports read file parts through here only, so that the bandwidth
+     * limit applies whatever the transport.
+     */
+    public InputStream openFilePart(String name) throws IOException {
+      File file = fileParts.get(name);
+      if (file == null) throw new IllegalArgumentException("No file part " + name);
+      InputStream in = new FileInputStream(file);
+      return bandwidthLimiter == null ? in : bandwidthLimiter.throttle(in, priorityParts.contains(name));
+    }
+  }
+
+  class Response {
+    private final int statusCode;
+    private final String statusLine;
+    private final byte[] body;
+
+    public Response(int statusCode, String statusLine, byte[] body) {
+      this.statusCode = statusCode;
+      this.statusLine = statusLine;
+      this.body = body == null ? new byte[0] : body;
+    }
+
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    public String getStatusLine() {
+      return statusLine;
+    }
+
+    public byte[] getBody() {
+      return body;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Metrics;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Decides whether the host can take another task, from its load average, available memory and free disk space.
+ * A threshold of zero turns that check off, and so does a missing <code>/proc</code> file (e.g. on Windows or macOS).
+ */
+final class AdmissionController {
+  private final File procDirectory;
+  private final int processors;
+  private final double maxLoadPerCpu;
+  private final long minFreeMemoryBytes;
+  private final long minFreeDiskBytes;
+  private final Metrics metrics;
+
+  /**
+   * @param procDirectory      where <code>loadavg</code> and <code>meminfo</code> are read from, normally /proc
+   * @param maxLoadPerCpu      highest 1 minute load average per processor at which tasks are still taken
+   * @param minFreeMemoryBytes lowest available memory at which tasks are still taken
+   * @param minFreeDiskBytes   lowest usable space in the results directory at which tasks are still taken
+   */
+  AdmissionController(File procDirectory, int processors, double maxLoadPerCpu, long minFreeMemoryBytes,
+                      long minFreeDiskBytes, Metrics metrics) {
+    this.procDirectory = procDirectory;
+    this.processors = processors;
+    this.maxLoadPerCpu = maxLoadPerCpu;
+    this.minFreeMemoryBytes = minFreeMemoryBytes;
+    this.minFreeDiskBytes = minFreeDiskBytes;
+    this.metrics = metrics;
+  }
+
+  boolean isEnabled() {
+    return maxLoadPerCpu > 0 || minFreeMemoryBytes > 0 || minFreeDiskBytes > 0;
+  }
+
+  /**
+   * @param resultsDirectory where the next task will most likely write its results, its nearest existing
+   *                         ancestor is checked; null to check the working directory
+   * @return null when the next task can be pulled, otherwise why it should be held back
+   */
+  String check(File resultsDirectory) {
+    String refusal = null;
+    if (maxLoadPerCpu > 0) {
+      double load = readLoadAverage();
+      if (load >= 0) {
+        double loadPerCpu = load / processors;
+        metrics.set("xbot_host_load_per_cpu_milli", Math.round(loadPerCpu * 1000));
+        if (loadPerCpu > maxLoadPerCpu)
+          refusal = String.format(Locale.ROOT, "load average %.2f per CPU is above %.2f", loadPerCpu, maxLoadPerCpu);
+      }
+    }
+    if (refusal == null && minFreeMemoryBytes > 0) {
+      long available = readAvailableMemory();
+      if (available >= 0) {
+        metrics.set("xbot_host_memory_available_bytes", available);
+        if (available < minFreeMemoryBytes)
+          refusal = "available memory " + available / (1024 * 1024) + " MB is below " + minFreeMemoryBytes / (1024 * 1024) + " MB";
+      }
+    }
+    if (refusal == null && minFreeDiskBytes > 0) {
+      File directory = existingAncestor(resultsDirectory != null ? resultsDirectory : new File(System.getProperty("user.dir")));
+      if (directory != null) {
+        long usable = directory.getUsableSpace();
+        metrics.set("xbot_host_disk_usable_bytes", usable);
+        if (usable < minFreeDiskBytes)
+          refusal = "free disk space in " + directory + " " + usable / (1024 * 1024) + " MB is below " + minFreeDiskBytes / (1024 * 1024) + " MB";
+      }
+    }
+    metrics.set("xbot_admission_open", refusal == null ? 1 : 0);
+    if (refusal != null) metrics.increment("xbot_admission_held_total");
+    return refusal;
+  }
+
+  /**
+   * @return the 1 minute load average, -1 if unknown
+   */
+  private double readLoadAverage() {
+    String line = readFirstLine(new File(procDirectory, "loadavg"));
+    if (line == null) return -1;
+    try {
+      return Double.parseDouble(line.trim().split("\\s+")[0]);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return MemAvailable in bytes, or MemFree + Cached on kernels older than 3.14; -1 if unknown
+   */
+  private long readAvailableMemory() {
+    File meminfo = new File(procDirectory, "meminfo");
+    if (!meminfo.isFile()) return -1;
+    long free = -1;
+    long cached = 0;
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(meminfo), StandardCharsets.US_ASCII));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.startsWith("MemAvailable:")) return kilobytes(line) * 1024;
+          if (line.startsWith("MemFree:")) free = kilobytes(line);
+          else if (line.startsWith("Cached:")) cached = kilobytes(line);
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      return -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+    return free < 0 ? -1 : (free + cached) * 1024;
+  }
+
+  private static long kilobytes(String meminfoLine) {
+    return Long.parseLong(meminfoLine.split("\\s+")[1]);
+  }
+
+  private static String readFirstLine(File file) {
+    if (!file.isFile()) return null;
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII));
+      try {
+        return reader.readLine();
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static File existingAncestor(File file) {
+    File current = file.getAbsoluteFile();
+    while (current != null && !current.exists())
+      current = current.getParentFile();
+    return current;
+  }
+}
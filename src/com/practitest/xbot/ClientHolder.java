@@ -0,0 +1,74 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current PractiTest client.
+ * <p/>
+ * A reconfiguration swaps in a fully built client in one step, so a poll never sees a half configured
+ * (or missing) client. Work in flight keeps its lease on the client it started with; a replaced client
+ * is closed once its last lease is released.
+ */
+class ClientHolder {
+  private final AtomicReference<Lease> current = new AtomicReference<Lease>();
+
+  /**
+   * @return a lease on the current client, or <code>null</code> when xBot is not configured.
+   *         The caller must {@link Lease#release() release} it when done.
+   */
+  Lease acquire() {
+    while (true) {
+      Lease lease = current.get();
+      if (lease == null || lease.retain())
+        return lease;
+      // lost a race with replace(), the lease we saw was just closed
+    }
+  }
+
+  /**
+   * @return the current client without leasing it, for status reporting only
+   */
+  Client peek() {
+    Lease lease = current.get();
+    return lease == null ? null : lease.client;
+  }
+
+  /**
+   * Makes <code>client</code> (may be <code>null</code>) the current one.
+   */
+  void replace(Client client) {
+    Lease previous = current.getAndSet(client == null ? null : new Lease(client));
+    if (previous != null)
+      previous.release();
+  }
+
+  static class Lease {
+    private final Client client;
+    // one reference is held by the holder itself for as long as the client is the current one
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private Lease(Client client) {
+      this.client = client;
+    }
+
+    Client getClient() {
+      return client;
+    }
+
+    private boolean retain() {
+      while (true) {
+        int count = references.get();
+        if (count == 0) return false;
+        if (references.compareAndSet(count, count + 1)) return true;
+      }
+    }
+
+    void release() {
+      if (references.decrementAndGet() == 0)
+        client.close();
+    }
+  }
+}
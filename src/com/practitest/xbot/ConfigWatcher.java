@@ -0,0 +1,88 @@
+package com.practitest.xbot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the settings file and calls back once it was changed on disk.
+ * <p/>
+ * Editors usually produce a burst of events for a single save (truncate, write, rename), so the callback only
+ * runs after the file has been quiet for {@link #SETTLE_MILLIS}.
+ */
+class ConfigWatcher implements Runnable {
+  private static final Logger logger = Logger.getLogger(ConfigWatcher.class.getName());
+
+  private static final long SETTLE_MILLIS = 500;
+
+  private final Path directory;
+  private final Path fileName;
+  private final Runnable onChange;
+  private final WatchService watchService;
+
+  ConfigWatcher(File settingsFile, Runnable onChange) throws IOException {
+    Path path = settingsFile.getAbsoluteFile().toPath();
+    this.directory = path.getParent();
+    this.fileName = path.getFileName();
+    this.onChange = onChange;
+    this.watchService = FileSystems.getDefault().newWatchService();
+    directory.register(watchService,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+  }
+
+  void start() {
+    Thread thread = new Thread(this, "xbot-config-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void stop() {
+    try {
+      watchService.close();
+    } catch (IOException e) {
+      logger.warning("Failed to close settings watcher: " + e.getMessage());
+    }
+  }
+
+  public void run() {
+    try {
+      while (true) {
+        WatchKey key = watchService.take();
+        boolean changed = drain(key);
+        // wait for the burst of events to settle
+        while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+          changed |= drain(key);
+        }
+        if (changed) {
+          try {
+            onChange.run();
+          } catch (Throwable e) {
+            logger.log(Level.SEVERE, "Failed to apply changed settings", e);
+          }
+        }
+      }
+    } catch (InterruptedException ignored) {
+    } catch (ClosedWatchServiceException ignored) {
+    }
+  }
+
+  private boolean drain(WatchKey key) {
+    boolean changed = false;
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context()))
+        changed = true;
+    }
+    key.reset();
+    return changed;
+  }
+}
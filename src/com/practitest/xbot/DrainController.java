@@ -0,0 +1,108 @@
+package com.practitest.xbot;
+
+/**
+ * Tracks whether the agent is working on a task and takes it out of service for a restart: once draining,
+ * no further task is pulled, the running one gets until the deadline to finish and upload its result.
+ */
+final class DrainController {
+  private boolean busy = false;
+  private String currentInstanceId;
+  private Thread currentTaskThread;
+  private long drainStartedAt = 0;
+  private long drainDeadline = 0;
+  private int tasksFinishedWhileDraining = 0;
+
+  /**
+   * Called before polling for work.
+   *
+   * @return false when draining, nothing may be pulled any more
+   */
+  synchronized boolean beginWork() {
+    if (isDraining()) return false;
+    busy = true;
+    return true;
+  }
+
+  /**
+   * Called once the poll and whatever task it returned are done, including the result upload.
+   */
+  synchronized void endWork() {
+    busy = false;
+    notifyAll();
+  }
+
+  synchronized void taskStarted(String instanceId, Thread taskThread) {
+    currentInstanceId = instanceId;
+    currentTaskThread = taskThread;
+  }
+
+  synchronized void taskFinished() {
+    currentInstanceId = null;
+    currentTaskThread = null;
+    if (isDraining()) ++tasksFinishedWhileDraining;
+  }
+
+  /**
+   * @return false if a drain was already under way; its deadline is moved up if this one is sooner
+   */
+  synchronized boolean startDrain(long timeoutMillis) {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    if (isDraining()) {
+      drainDeadline = Math.min(drainDeadline, deadline);
+      notifyAll();
+      return false;
+    }
+    drainStartedAt = System.currentTimeMillis();
+    drainDeadline = deadline;
+    notifyAll();
+    return true;
+  }
+
+  synchronized boolean isDraining() {
+    return drainStartedAt != 0;
+  }
+
+  synchronized boolean isBusy() {
+    return busy;
+  }
+
+  /**
+   * Follows the drain deadline, should a later drain request move it up.
+   *
+   * @param graceMillis how long past the drain deadline to keep waiting
+   * @return true once nothing is running, false if the deadline passed first
+   */
+  synchronized boolean awaitIdle(long graceMillis) throws InterruptedException {
+    long remaining;
+    while (busy && (remaining = drainDeadline + graceMillis - System.currentTimeMillis()) > 0)
+      wait(remaining);
+    return !busy;
+  }
+
+  /**
+   * Stops the running task the same way its timeout would, so whatever it produced is still uploaded.
+   *
+   * @return the instance id of the interrupted task, null if none was running
+   */
+  synchronized String interruptTask() {
+    if (currentTaskThread == null) return null;
+    currentTaskThread.interrupt();
+    return currentInstanceId;
+  }
+
+  /**
+   * @return <code>name value</code> lines, for <code>/drain</code>
+   */
+  synchronized String describe() {
+    StringBuilder status = new StringBuilder();
+    long now = System.currentTimeMillis();
+    status.append("state ").append(!isDraining() ? "serving" : busy ? "draining" : "drained").append('\n');
+    status.append("task ").append(currentInstanceId != null ? currentInstanceId : "-").append('\n');
+    if (isDraining()) {
+      status.append("elapsed_ms ").append(now - drainStartedAt).append('\n');
+      status.append("remaining_ms ").append(Math.max(0, drainDeadline - now)).append('\n');
+      status.append("tasks_finished ").append(tasksFinishedWhileDraining).append('\n');
+    }
+    return status.toString();
+  }
+}
@@ -0,0 +1,480 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Metrics;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * On-disk history of the agent's log messages, kept across restarts.
+ * <p/>
+ * {@link #append} only queues the event, a single background thread writes them to size-capped segment files
+ * <code>events-N.log</code>, the oldest segments are deleted once there are too many. Every segment has a small
+ * index (<code>events-N.idx</code>) with its time range and the offsets of each task instance's events, so a
+ * lookup reads only the lines it returns.
+ */
+class EventLog implements Runnable {
+  private static final Logger logger = Logger.getLogger(EventLog.class.getName());
+
+  private static final int QUEUE_CAPACITY = 10000;
+  private static final int BATCH_SIZE = 512;
+  private static final String SEGMENT_PREFIX = "events-";
+  private static final String LOG_SUFFIX = ".log";
+  private static final String INDEX_SUFFIX = ".idx";
+  private static final Event STOP = new Event(0, null, "");
+
+  private final File directory;
+  private final long segmentSize;
+  private final int maxSegments;
+  private final Metrics metrics;
+  private final BlockingQueue<Event> queue = new ArrayBlockingQueue<Event>(QUEUE_CAPACITY);
+  private final LinkedList<Segment> segments = new LinkedList<Segment>(); // oldest first, guarded by this
+  private Thread writer;
+
+  // writer thread only
+  private OutputStream out;
+  private long position;
+
+  /**
+   * @param segmentSize bytes after which a new segment is started
+   * @param maxSegments segments kept, older ones are deleted
+   */
+  EventLog(File directory, long segmentSize, int maxSegments, Metrics metrics) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSegments = maxSegments;
+    this.metrics = metrics;
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Failed to create " + directory);
+    for (long sequence : existingSequences())
+      segments.add(Segment.load(directory, sequence));
+  }
+
+  void start() throws IOException {
+    long sequence = segments.isEmpty() ? 1 : segments.getLast().sequence + 1;
+    openSegment(sequence);
+    writer = new Thread(this, "xbot-event-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Queues an event without blocking; when the writer fell that far behind the event is dropped and counted.
+   *
+   * @param instanceId the task instance the event belongs to, null if none
+   */
+  void append(String instanceId, String message) {
+    if (!queue.offer(new Event(System.currentTimeMillis(), instanceId, message)))
+      metrics.increment("xbot_event_log_dropped_total");
+  }
+
+  /**
+   * Writes out what was queued so far and stops the writer.
+   */
+  void close() {
+    Thread thread = writer;
+    if (thread == null) return;
+    try {
+      if (queue.offer(STOP, 5, TimeUnit.SECONDS))
+        thread.join(5000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return every written event of the task instance, oldest first
+   */
+  List<Event> findByInstance(String instanceId) throws IOException {
+    List<Event> events = new ArrayList<Event>();
+    for (Segment segment : snapshot()) {
+      List<Long> offsets = segment.offsetsOf(instanceId);
+      if (offsets.isEmpty()) continue;
+      RandomAccessFile file = openForReading(segment);
+      if (file == null) continue;
+      try {
+        for (long offset : offsets)
+          events.add(Event.parse(readLine(file, offset)));
+      } finally {
+        file.close();
+      }
+    }
+    return events;
+  }
+
+  /**
+   * @return every written event logged between the two times (inclusive), oldest first
+   */
+  List<Event> findBetween(long from, long to) throws IOException {
+    List<Event> events = new ArrayList<Event>();
+    for (Segment segment : snapshot()) {
+      if (!segment.overlaps(from, to)) continue;
+      RandomAccessFile file = openForReading(segment);
+      if (file == null) continue;
+      try {
+        long end = segment.getFlushedLength();
+        long offset = 0;
+        while (offset < end) {
+          String line = readLine(file, offset);
+          offset = file.getFilePointer();
+          Event event = Event.parse(line);
+          if (event.getTime() >= from && event.getTime() <= to) events.add(event);
+        }
+      } finally {
+        file.close();
+      }
+    }
+    return events;
+  }
+
+  public void run() {
+    List<Event> batch = new ArrayList<Event>(BATCH_SIZE);
+    boolean stopped = false;
+    try {
+      while (!stopped) {
+        batch.add(queue.take());
+        queue.drainTo(batch, BATCH_SIZE - 1);
+        for (Event event : batch) {
+          if (event == STOP) {
+            stopped = true;
+            break;
+          }
+          write(event);
+        }
+        batch.clear();
+        flush();
+      }
+    } catch (InterruptedException ignored) {
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Failed to write event log, disk history stops here", e);
+    } finally {
+      try {
+        closeSegment();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to close event log segment", e);
+      }
+    }
+  }
+
+  private void write(Event event) throws IOException {
+    byte[] line = event.format().getBytes(StandardCharsets.UTF_8);
+    if (position > 0 && position + line.length > segmentSize) {
+      closeSegment();
+      openSegment(activeSegment().sequence + 1);
+    }
+    out.write(line);
+    activeSegment().record(event, position);
+    position += line.length;
+  }
+
+  private void flush() throws IOException {
+    out.flush();
+    activeSegment().setFlushedLength(position);
+  }
+
+  private void openSegment(long sequence) throws IOException {
+    Segment segment = new Segment(directory, sequence);
+    out = new BufferedOutputStream(new FileOutputStream(segment.log, true));
+    position = segment.log.length();
+    segment.setFlushedLength(position);
+    synchronized (this) {
+      segments.add(segment);
+      while (segments.size() > maxSegments)
+        segments.removeFirst().delete();
+    }
+  }
+
+  private void closeSegment() throws IOException {
+    if (out == null) return;
+    flush();
+    out.close();
+    out = null;
+    activeSegment().writeIndex();
+  }
+
+  private synchronized Segment activeSegment() {
+    return segments.getLast();
+  }
+
+  private synchronized List<Segment> snapshot() {
+    return new ArrayList<Segment>(segments);
+  }
+
+  private static RandomAccessFile openForReading(Segment segment) {
+    try {
+      return new RandomAccessFile(segment.log, "r");
+    } catch (IOException e) {
+      return null; // rotated away meanwhile
+    }
+  }
+
+  private static String readLine(RandomAccessFile file, long offset) throws IOException {
+    file.seek(offset);
+    ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+    byte[] buffer = new byte[256];
+    int read;
+    while ((read = file.read(buffer)) > 0) {
+      for (int i = 0; i < read; ++i) {
+        if (buffer[i] == '\n') {
+          line.write(buffer, 0, i);
+          file.seek(file.getFilePointer() - read + i + 1);
+          return new String(line.toByteArray(), StandardCharsets.UTF_8);
+        }
+      }
+      line.write(buffer, 0, read);
+    }
+    return new String(line.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private List<Long> existingSequences() {
+    String[] names = directory.list(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(LOG_SUFFIX);
+      }
+    });
+    List<Long> sequences = new ArrayList<Long>();
+    for (String name : names == null ? new String[0] : names) {
+      try {
+        sequences.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - LOG_SUFFIX.length())));
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    Collections.sort(sequences);
+    return sequences;
+  }
+
+  /**
+   * One logged message.
+   */
+  static class Event {
+    private final long time;
+    private final String instanceId;
+    private final String message;
+
+    Event(long time, String instanceId, String message) {
+      this.time = time;
+      this.instanceId = instanceId;
+      this.message = message;
+    }
+
+    long getTime() {
+      return time;
+    }
+
+    /**
+     * @return null when the event does not belong to a task instance
+     */
+    String getInstanceId() {
+      return instanceId;
+    }
+
+    String getMessage() {
+      return message;
+    }
+
+    String format() {
+      return time + "\t" + (instanceId == null ? "" : escape(instanceId)) + "\t" + escape(message) + "\n";
+    }
+
+    static Event parse(String line) {
+      String[] fields = line.split("\t", 3);
+      try {
+        if (fields.length == 3)
+          return new Event(Long.parseLong(fields[0]), fields[1].isEmpty() ? null : unescape(fields[1]), unescape(fields[2]));
+      } catch (NumberFormatException ignored) {
+      }
+      return new Event(0, null, line); // torn by a crash mid-write
+
+    }
+
+    private static String escape(String value) {
+      return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+      StringBuilder sb = new StringBuilder(value.length());
+      for (int i = 0; i < value.length(); ++i) {
+        char c = value.charAt(i);
+        if (c == '\\' && i + 1 < value.length()) {
+          char next = value.charAt(++i);
+          sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+        } else {
+          sb.append(c);
+        }
+      }
+      return sb.toString();
+    }
+  }
+
+  /**
+   * A segment file and its index, held in memory for lookups and written next to the segment once it is closed.
+   * A segment without an up-to-date index file (the agent was killed) is indexed again when loaded.
+   */
+  static class Segment {
+    final long sequence;
+    final File log;
+    final File index;
+    private long minTime = Long.MAX_VALUE;
+    private long maxTime = Long.MIN_VALUE;
+    private final Map<String, List<Long>> offsets = new LinkedHashMap<String, List<Long>>();
+    private volatile long flushedLength = 0;
+
+    Segment(File directory, long sequence) {
+      this.sequence = sequence;
+      this.log = new File(directory, SEGMENT_PREFIX + sequence + LOG_SUFFIX);
+      this.index = new File(directory, SEGMENT_PREFIX + sequence + INDEX_SUFFIX);
+    }
+
+    static Segment load(File directory, long sequence) throws IOException {
+      Segment segment = new Segment(directory, sequence);
+      if (!segment.index.isFile() || segment.index.lastModified() < segment.log.lastModified() || !segment.readIndex())
+        segment.rebuildIndex();
+      segment.flushedLength = segment.log.length();
+      return segment;
+    }
+
+    synchronized void record(Event event, long offset) {
+      minTime = Math.min(minTime, event.getTime());
+      maxTime = Math.max(maxTime, event.getTime());
+      if (event.getInstanceId() == null) return;
+      List<Long> instanceOffsets = offsets.get(event.getInstanceId());
+      if (instanceOffsets == null) {
+        instanceOffsets = new ArrayList<Long>();
+        offsets.put(event.getInstanceId(), instanceOffsets);
+      }
+      instanceOffsets.add(offset);
+    }
+
+    /**
+     * @return offsets of the instance's events that readers can already see
+     */
+    synchronized List<Long> offsetsOf(String instanceId) {
+      List<Long> instanceOffsets = offsets.get(instanceId);
+      if (instanceOffsets == null) return Collections.emptyList();
+      List<Long> visible = new ArrayList<Long>(instanceOffsets.size());
+      for (long offset : instanceOffsets)
+        if (offset < flushedLength) visible.add(offset);
+      return visible;
+    }
+
+    synchronized boolean overlaps(long from, long to) {
+      return minTime <= to && maxTime >= from;
+    }
+
+    long getFlushedLength() {
+      return flushedLength;
+    }
+
+    void setFlushedLength(long flushedLength) {
+      this.flushedLength = flushedLength;
+    }
+
+    /**
+     * Writes the index next to it first and moves it in place, so that a crash leaves the old index or the new one.
+     */
+    synchronized void writeIndex() throws IOException {
+      File written = new File(index.getPath() + ".tmp");
+      PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(written), StandardCharsets.UTF_8));
+      try {
+        writer.println(minTime + " " + maxTime);
+        for (Map.Entry<String, List<Long>> entry : offsets.entrySet()) {
+          StringBuilder line = new StringBuilder(URLEncoder.encode(entry.getKey(), "UTF-8"));
+          for (long offset : entry.getValue())
+            line.append(' ').append(offset);
+          writer.println(line);
+        }
+      } finally {
+        writer.close();
+      }
+      if (writer.checkError()) throw new IOException("Failed to write " + written);
+      Files.move(written.toPath(), index.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    void delete() {
+      log.delete();
+      index.delete();
+    }
+
+    /**
+     * @return false, with nothing read, when the index is not readable as one (e.g. left empty or cut off by a
+     *         crash of an agent that wrote it in place)
+     */
+    private synchronized boolean readIndex() throws IOException {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), StandardCharsets.UTF_8));
+      try {
+        String first = reader.readLine();
+        String[] range = first != null ? first.split(" ") : new String[0];
+        if (range.length != 2) return discardIndex();
+        minTime = Long.parseLong(range[0]);
+        maxTime = Long.parseLong(range[1]);
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] fields = line.split(" ");
+          if (fields.length < 2) return discardIndex();
+          List<Long> instanceOffsets = new ArrayList<Long>(fields.length - 1);
+          for (String offset : Arrays.asList(fields).subList(1, fields.length))
+            instanceOffsets.add(Long.parseLong(offset));
+          offsets.put(URLDecoder.decode(fields[0], "UTF-8"), instanceOffsets);
+        }
+        return true;
+      } catch (IllegalArgumentException e) {
+        // NumberFormatException, or a broken escape in an instance id
+        return discardIndex();
+      } finally {
+        reader.close();
+      }
+    }
+
+    private boolean discardIndex() {
+      logger.warning("Index " + index + " is damaged, indexing the segment again");
+      minTime = Long.MAX_VALUE;
+      maxTime = Long.MIN_VALUE;
+      offsets.clear();
+      return false;
+    }
+
+    private void rebuildIndex() throws IOException {
+      RandomAccessFile file = new RandomAccessFile(log, "r");
+      try {
+        long offset = 0;
+        long length = file.length();
+        while (offset < length) {
+          String line = readLine(file, offset);
+          record(Event.parse(line), offset);
+          offset = file.getFilePointer();
+        }
+      } finally {
+        file.close();
+      }
+      writeIndex();
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package com.practitest.xbot;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.time.Duration;
+
+/**
+ * One Java Flight Recorder recording, started and dumped over the admin listener, so a slow agent can be looked
+ * into without restarting it with <code>-XX:StartFlightRecording</code>.
+ */
+final class FlightRecording {
+  private Recording recording;
+
+  /**
+   * @param settings    name of a JFR configuration, <code>default</code> or <code>profile</code>
+   * @param maxDuration after which the recording stops by itself, bounding its overhead should nobody dump it
+   * @return false if a recording is already running
+   * @throws IllegalArgumentException if <code>settings</code> is not a plain name
+   */
+  synchronized boolean start(String settings, Duration maxDuration) throws IOException, ParseException {
+    if (!settings.matches("[A-Za-z0-9_-]+")) throw new IllegalArgumentException("Invalid recording settings " + settings);
+    if (recording != null && recording.getState() == RecordingState.RUNNING) return false;
+    close();
+    Recording started = new Recording(Configuration.getConfiguration(settings));
+    started.setName("xbot");
+    started.enable(TaskPhaseEvent.class);
+    started.setDuration(maxDuration);
+    started.setToDisk(true);
+    started.start();
+    recording = started;
+    return true;
+  }
+
+  synchronized boolean hasRecording() {
+    return recording != null;
+  }
+
+  /**
+   * Writes what has been recorded so far to <code>out</code>; a running recording goes on.
+   *
+   * @return false if there is no recording
+   */
+  synchronized boolean dump(OutputStream out) throws IOException {
+    if (recording == null) return false;
+    File file = File.createTempFile("xbot", ".jfr");
+    try {
+      recording.dump(file.toPath());
+      Files.copy(file.toPath(), out);
+    } finally {
+      file.delete();
+    }
+    return true;
+  }
+
+  /**
+   * Stops and discards the recording.
+   */
+  synchronized void close() {
+    if (recording == null) return;
+    recording.close();
+    recording = null;
+  }
+
+  /**
+   * @return <code>name value</code> lines, for <code>/jfr</code>
+   */
+  synchronized String describe() {
+    if (recording == null) return "state none\n";
+    StringBuilder status = new StringBuilder();
+    status.append("state ").append(recording.getState().name().toLowerCase()).append('\n');
+    if (recording.getStartTime() != null)
+      status.append("started ").append(recording.getStartTime()).append('\n');
+    if (recording.getDuration() != null)
+      status.append("max_duration_s ").append(recording.getDuration().getSeconds()).append('\n');
+    status.append("size_bytes ").append(recording.getSize()).append('\n');
+    return status.toString();
+  }
+}
@@ -0,0 +1,142 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits how many tasks all the agents on a host run at once, through a file they share: one record per slot,
+ * and whoever holds the lock on a record holds the slot.
+ * <p/>
+ * Locks are released by the kernel when their process ends however it ends, so the slots of an agent that crashed
+ * or was killed are free again right away; there is nothing to expire or clean up. The records themselves, mapped
+ * into memory, only tell who holds which slot, for the log. Agents sharing a file should agree on the number of
+ * slots: each one only looks at as many as it was given.
+ */
+final class HostSlots {
+  private static final int RECORD_SIZE = 64;
+  private static final int PID_OFFSET = 0;
+  private static final int PORT_OFFSET = 8;
+  private static final int SINCE_OFFSET = 12;
+
+  private final File file;
+  private final int slots;
+  private final int port;
+  private final Metrics metrics;
+  private final RandomAccessFile access;
+  private final FileChannel channel;
+  private final MappedByteBuffer records;
+  private Slot held;
+
+  /**
+   * @param port the agent's listening port, recorded with the slots it holds to tell agents apart in the log
+   */
+  HostSlots(File file, int slots, int port, Metrics metrics) throws IOException {
+    this.file = file;
+    this.slots = slots;
+    this.port = port;
+    this.metrics = metrics;
+    access = new RandomAccessFile(file, "rw");
+    channel = access.getChannel();
+    records = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) slots * RECORD_SIZE);
+  }
+
+  int getSlots() {
+    return slots;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * @return the slot claimed, or null when all are held, by other agents or by this one already
+   */
+  synchronized Slot tryAcquire() throws IOException {
+    if (held != null) return null;
+    for (int index = 0; index < slots; ++index) {
+      FileLock lock;
+      try {
+        lock = channel.tryLock((long) index * RECORD_SIZE, RECORD_SIZE, false);
+      } catch (OverlappingFileLockException e) {
+        // held through another channel of this JVM
+        lock = null;
+      }
+      if (lock == null) continue;
+      int position = index * RECORD_SIZE;
+      records.putLong(position + PID_OFFSET, ProcessHandle.current().pid());
+      records.putInt(position + PORT_OFFSET, port);
+      records.putLong(position + SINCE_OFFSET, System.currentTimeMillis());
+      held = new Slot(index, lock);
+      metrics.set("xbot_host_slot_held", 1);
+      return held;
+    }
+    metrics.increment("xbot_host_slot_waits_total");
+    return null;
+  }
+
+  /**
+   * @return who holds the slots this agent could not get, from their records, e.g. <code>pid 4242 (port
+   *         18081)</code>
+   */
+  synchronized List<String> describeHolders() {
+    List<String> holders = new ArrayList<String>();
+    for (int index = 0; index < slots; ++index) {
+      if (held != null && held.index == index) continue;
+      int position = index * RECORD_SIZE;
+      long pid = records.getLong(position + PID_OFFSET);
+      if (pid != 0) holders.add("pid " + pid + " (port " + records.getInt(position + PORT_OFFSET) + ")");
+    }
+    return holders;
+  }
+
+  synchronized void close() {
+    if (held != null) held.release();
+    try {
+      access.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  private synchronized void release(Slot slot) {
+    if (held != slot) return;
+    held = null;
+    int position = slot.index * RECORD_SIZE;
+    // cleared while still holding the lock, so a new holder's record is never overwritten
+    records.putLong(position + PID_OFFSET, 0);
+    records.putInt(position + PORT_OFFSET, 0);
+    records.putLong(position + SINCE_OFFSET, 0);
+    try {
+      slot.lock.release();
+    } catch (IOException ignored) {
+      // the channel is gone, and the lock with it
+    }
+    metrics.set("xbot_host_slot_held", 0);
+  }
+
+  final class Slot {
+    private final int index;
+    private final FileLock lock;
+
+    private Slot(int index, FileLock lock) {
+      this.index = index;
+      this.lock = lock;
+    }
+
+    int getIndex() {
+      return index;
+    }
+
+    void release() {
+      HostSlots.this.release(this);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Metrics;
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Tells when the agent has had nothing to do for a while, so that it can give back what it only needs while
+ * running tasks, and when it has work again.
+ */
+final class IdleMode {
+  private static final int SHRINK_MAX_FREE_RATIO = 10;
+  private static final int SHRINK_ROUNDS = 3;
+
+  private final long quietMillis;
+  private final Metrics metrics;
+  private long lastActiveAt = System.nanoTime();
+  private boolean idle = false;
+
+  /**
+   * @param quietMillis time without a task after which the agent turns idle, 0 never to
+   */
+  IdleMode(long quietMillis, Metrics metrics) {
+    this.quietMillis = quietMillis;
+    this.metrics = metrics;
+  }
+
+  boolean isEnabled() {
+    return quietMillis > 0;
+  }
+
+  synchronized boolean isIdle() {
+    return idle;
+  }
+
+  /**
+   * Called when a task arrives.
+   *
+   * @return true if the agent was idle until now
+   */
+  synchronized boolean taskArrived() {
+    lastActiveAt = System.nanoTime();
+    if (!idle) return false;
+    idle = false;
+    metrics.set("xbot_idle", 0);
+    return true;
+  }
+
+  /**
+   * Called after a poll that returned no task.
+   *
+   * @return true once, when the quiet period just passed; the caller then releases its resources
+   */
+  synchronized boolean nothingToDo() {
+    if (idle || !isEnabled() || (System.nanoTime() - lastActiveAt) / 1000000 < quietMillis) return false;
+    idle = true;
+    metrics.set("xbot_idle", 1);
+    metrics.increment("xbot_idle_entered_total");
+    return true;
+  }
+
+  /**
+   * Runs full collections with the heap's free ratios lowered, so that the collector gives back the committed heap
+   * that is not in use rather than keeping up to 70% of it free, then restores them. Serial shrinks the heap by steps,
+   * hence a few rounds; no collector shrinks it below the initial size (-Xms).
+   */
+  static void shrinkHeap() {
+    HotSpotDiagnosticMXBean diagnostics = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+    String minFreeRatio = null;
+    String maxFreeRatio = null;
+    try {
+      if (diagnostics != null) {
+        minFreeRatio = diagnostics.getVMOption("MinHeapFreeRatio").getValue();
+        maxFreeRatio = diagnostics.getVMOption("MaxHeapFreeRatio").getValue();
+        // the minimum first, it may not exceed the maximum
+        diagnostics.setVMOption("MinHeapFreeRatio", "0");
+        diagnostics.setVMOption("MaxHeapFreeRatio", String.valueOf(SHRINK_MAX_FREE_RATIO));
+      }
+    } catch (RuntimeException e) {
+      // the options are not manageable on this JVM, a plain collection is all we can ask for
+    }
+    try {
+      for (int i = 0; i < SHRINK_ROUNDS; ++i)
+        System.gc();
+    } finally {
+      try {
+        if (maxFreeRatio != null) diagnostics.setVMOption("MaxHeapFreeRatio", maxFreeRatio);
+        if (minFreeRatio != null) diagnostics.setVMOption("MinHeapFreeRatio", minFreeRatio);
+      } catch (RuntimeException ignored) {
+      }
+    }
+  }
+}
@@ -1,28 +1,42 @@
 package com.practitest.xbot;
 
+import com.practitest.api.BandwidthLimiter;
+import com.practitest.api.CallPolicy;
+import com.practitest.api.ChunkedUploader;
+import com.practitest.api.CircuitBreaker;
 import com.practitest.api.Client;
+import com.practitest.api.CommonsHttpTransport;
+import com.practitest.api.JdkHttpTransport;
+import com.practitest.api.Metrics;
+import com.practitest.api.ResilientTransport;
+import com.practitest.api.TlsContext;
+import com.practitest.api.Transport;
 import org.mortbay.jetty.Request;
 import org.mortbay.jetty.Server;
 import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.thread.QueuedThreadPool;
 import org.xml.sax.SAXException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.ParserConfigurationException;
-import java.awt.*;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
 import java.io.*;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.URL;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
+import java.time.Duration;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -43,62 +57,174 @@ public class Main {
 
   private static final String NO_TRAY_ICON_PROPERTY_KEY = "com.practitest.xbot.no_tray_icon";
   private static final String LISTENING_PORT_PROPERTY_KEY = "com.practitest.xbot.listening_port";
-
-  private static final String XBOT_TRAY_CAPTION = "PractiTest xBot";
+  private static final String FAST_STARTUP_PROPERTY_KEY = "com.practitest.xbot.fast_startup";
+  private static final String EXIT_AFTER_FIRST_POLL_PROPERTY_KEY = "com.practitest.xbot.exit_after_first_poll";
+  private static final String HTTP_TRANSPORT_PROPERTY_KEY = "com.practitest.xbot.http_transport";
+  private static final String CONNECT_TIMEOUT_PROPERTY_KEY = "com.practitest.xbot.connect_timeout_ms";
+  private static final String READ_TIMEOUT_PROPERTY_KEY = "com.practitest.xbot.read_timeout_ms";
+  private static final String POLL_DEADLINE_PROPERTY_KEY = "com.practitest.xbot.poll_deadline_ms";
+  private static final String UPLOAD_DEADLINE_PROPERTY_KEY = "com.practitest.xbot.upload_deadline_ms";
+  private static final String UPLOAD_BANDWIDTH_PROPERTY_KEY = "com.practitest.xbot.upload_bytes_per_s";
+  private static final String UPLOAD_FILES_AFTER_RESULT_PROPERTY_KEY = "com.practitest.xbot.upload_files_after_result";
+  private static final String CHUNKED_UPLOAD_THRESHOLD_PROPERTY_KEY = "com.practitest.xbot.chunked_upload_mb";
+  private static final String UPLOAD_CHUNK_SIZE_PROPERTY_KEY = "com.practitest.xbot.upload_chunk_kb";
+  private static final String UPLOAD_CHUNK_RETRIES_PROPERTY_KEY = "com.practitest.xbot.upload_chunk_retries";
+  private static final String UPLOAD_STATE_DIR_PROPERTY_KEY = "com.practitest.xbot.upload_state_dir";
+  private static final String RESULT_BATCH_SIZE_PROPERTY_KEY = "com.practitest.xbot.result_batch_size";
+  private static final String RESULT_BATCH_BYTES_PROPERTY_KEY = "com.practitest.xbot.result_batch_kb";
+  private static final String RESULT_BATCH_LINGER_PROPERTY_KEY = "com.practitest.xbot.result_batch_linger_ms";
+  private static final String POLL_HEDGE_DELAY_PROPERTY_KEY = "com.practitest.xbot.poll_hedge_delay_ms";
+  private static final String CIRCUIT_BREAKER_FAILURES_PROPERTY_KEY = "com.practitest.xbot.circuit_breaker_failures";
+  private static final String CIRCUIT_BREAKER_OPEN_PROPERTY_KEY = "com.practitest.xbot.circuit_breaker_open_ms";
+  private static final String TRUST_STORE_PROPERTY_KEY = "com.practitest.xbot.trust_store";
+  private static final String TRUST_STORE_PASSWORD_PROPERTY_KEY = "com.practitest.xbot.trust_store_password";
+  private static final String TRUST_STORE_TYPE_PROPERTY_KEY = "com.practitest.xbot.trust_store_type";
+  private static final String TLS_SESSION_CACHE_SIZE_PROPERTY_KEY = "com.practitest.xbot.tls_session_cache_size";
+  private static final String TLS_SESSION_TIMEOUT_PROPERTY_KEY = "com.practitest.xbot.tls_session_timeout_s";
+  private static final String POLL_INTERVAL_PROPERTY_KEY = "com.practitest.xbot.poll_interval_s";
+  private static final String POLL_NOW_PORT_PROPERTY_KEY = "com.practitest.xbot.poll_now_port";
+  private static final String POLL_NOW_MIN_INTERVAL_PROPERTY_KEY = "com.practitest.xbot.poll_now_min_interval_ms";
+  private static final String IDLE_AFTER_PROPERTY_KEY = "com.practitest.xbot.idle_after_s";
+  private static final String OUTPUT_LIMIT_PROPERTY_KEY = "com.practitest.xbot.output_limit_kb";
+  private static final String COMPRESS_OUTPUT_PROPERTY_KEY = "com.practitest.xbot.compress_output";
+  private static final String EVENT_LOG_DIR_PROPERTY_KEY = "com.practitest.xbot.event_log_dir";
+  private static final String EVENT_LOG_SEGMENT_SIZE_PROPERTY_KEY = "com.practitest.xbot.event_log_segment_kb";
+  private static final String EVENT_LOG_SEGMENTS_PROPERTY_KEY = "com.practitest.xbot.event_log_segments";
+  private static final String TASK_TRACES_PROPERTY_KEY = "com.practitest.xbot.task_traces";
+  private static final String HTTP_THREADS_PROPERTY_KEY = "com.practitest.xbot.http_threads";
+  private static final String RESULT_SUMMARY_PROPERTY_KEY = "com.practitest.xbot.result_summary";
+  private static final String MAX_LOAD_PER_CPU_PROPERTY_KEY = "com.practitest.xbot.max_load_per_cpu";
+  private static final String MIN_FREE_MEMORY_PROPERTY_KEY = "com.practitest.xbot.min_free_memory_mb";
+  private static final String MIN_FREE_DISK_PROPERTY_KEY = "com.practitest.xbot.min_free_disk_mb";
+  private static final String RESULT_CACHE_DIR_PROPERTY_KEY = "com.practitest.xbot.result_cache_dir";
+  private static final String RESULT_CACHE_SIZE_PROPERTY_KEY = "com.practitest.xbot.result_cache_mb";
+  private static final String DRAIN_TIMEOUT_PROPERTY_KEY = "com.practitest.xbot.drain_timeout_s";
+  private static final String TASK_CPUS_PROPERTY_KEY = "com.practitest.xbot.task_cpus";
+  private static final String TASK_CPU_LIMIT_PROPERTY_KEY = "com.practitest.xbot.task_cpu_limit";
+  private static final String TASK_MEMORY_LIMIT_PROPERTY_KEY = "com.practitest.xbot.task_memory_mb";
+  private static final String TASK_CGROUP_PROPERTY_KEY = "com.practitest.xbot.task_cgroup";
+  private static final String LAUNCHER_PROPERTY_KEY = "com.practitest.xbot.launcher";
+  private static final String HOST_SLOTS_PROPERTY_KEY = "com.practitest.xbot.host_slots";
+  private static final String HOST_SLOTS_FILE_PROPERTY_KEY = "com.practitest.xbot.host_slots_file";
 
   private static final int DEFAULT_LISTENING_PORT = 18080;
   private static final int TEST_RUNNER_DELAY = 60;
   private static final int TEST_RUNNER_INITIAL_DELAY = 3;
+  private static final int FAST_STARTUP_TEST_RUNNER_INITIAL_DELAY = 0;
   private static final int MAX_TEST_RUNNER_LOG = 100;
+  private static final int DEFAULT_OUTPUT_LIMIT_KB = 10 * 1024;
+  private static final long OUTPUT_DRAIN_TIMEOUT = 5000;
+  private static final long TASK_KILL_GRACE = 2000;
+  private static final long TASK_KILL_POLL = 20;
+  private static final int DEFAULT_EVENT_LOG_SEGMENT_SIZE_KB = 1024;
+  private static final int DEFAULT_EVENT_LOG_SEGMENTS = 50;
+  private static final int DEFAULT_TASK_TRACES = 500;
+  private static final int DEFAULT_HTTP_THREADS = 4;
+  private static final int HTTP_IDLE_TIMEOUT = 30000;
+  private static final int DEFAULT_DRAIN_TIMEOUT_S = 60;
+  private static final int DEFAULT_FLIGHT_RECORDING_DURATION_S = 600;
+  private static final int DEFAULT_UPLOAD_CHUNK_KB = 4096;
+  private static final int DEFAULT_UPLOAD_CHUNK_RETRIES = 5;
+  private static final long UPLOAD_CHUNK_RETRY_DELAY = 1000;
+  private static final long DEFAULT_POLL_NOW_MIN_INTERVAL = 1000;
+  private static final int DEFAULT_RESULT_BATCH_KB = 64;
+  private static final long DEFAULT_RESULT_BATCH_LINGER = 1000;
+  private static final long DRAIN_UPLOAD_GRACE = 30000;
 
   private static final Pattern PARAMETER_PARSER_PATTERN = Pattern.compile("[^\\s\"']+|\"([^\"]*)\"|'([^']*)'");
 
-  private Image trayIconImageReady;
-  private Image trayIconImageRunning;
-  private Image trayIconImageError;
-  private TrayIcon trayIcon;
+  private volatile TrayIconController trayIcon;
 
   private int listeningPort;
+  private boolean noTrayIcon;
+  private boolean startupDeferred;
+  private boolean exitAfterFirstPoll;
   private Lock lock;
   private Condition exitCondition;
-  private Server theServer;
-  private AtomicReference<Client> theClient = new AtomicReference<Client>();
+  private boolean exitRequested = false;
+  private volatile Server theServer;
+  private final AtomicBoolean firstPollCompleted = new AtomicBoolean(false);
+  private final ClientHolder theClient = new ClientHolder();
+  // one ceiling for all uploads, whichever client they go through
+  private final BandwidthLimiter uploadBandwidth = createUploadBandwidth();
+  private final ChunkedUploader chunkedUploader = createChunkedUploader();
+  private final PendingResults pendingResults = createPendingResults();
+  private final ResultBatcher resultBatcher = createResultBatcher();
+  private ConfigWatcher configWatcher;
   private ScheduledFuture<?> testRunner;
+  private volatile PollTrigger pollTrigger;
   private final Deque<String> testRunnerLog = new LinkedList<String>();
+  private volatile EventLog eventLog;
+  private final TaskTraceStore taskTraces = new TaskTraceStore(Integer.getInteger(TASK_TRACES_PROPERTY_KEY, DEFAULT_TASK_TRACES));
+  private final AdmissionController admission = new AdmissionController(new File("/proc"),
+          Runtime.getRuntime().availableProcessors(),
+          Double.parseDouble(System.getProperty(MAX_LOAD_PER_CPU_PROPERTY_KEY, "0")),
+          Long.getLong(MIN_FREE_MEMORY_PROPERTY_KEY, 0) * 1024 * 1024,
+          Long.getLong(MIN_FREE_DISK_PROPERTY_KEY, 0) * 1024 * 1024,
+          Metrics.getInstance());
+  private volatile File lastResultsDirectory;
+  private final ResultCache resultCache = createResultCache();
+  private final DrainController drainController = new DrainController();
+  private final FlightRecording flightRecording = new FlightRecording();
+  private final IdleMode idleMode = new IdleMode(Long.getLong(IDLE_AFTER_PROPERTY_KEY, 0) * 1000, Metrics.getInstance());
+  private final TaskIsolation isolation = createTaskIsolation();
+  private final ProcessLauncher launcher = createLauncher();
+  private volatile HostSlots hostSlots;
+  private volatile Thread drainer;
 
-  private String apiToken = "";
-  private String serverURL = "";
-  private String clientId = "";
-  private String proxyHost = "";
-  private String proxyPort = "";
-  private String proxyUser = "";
-  private String proxyPassword = "";
+  private volatile Settings settings;
 
   public Main(int listeningPort, boolean noTrayIcon) throws Exception {
+    this(listeningPort, noTrayIcon, false, false);
+  }
+
+  /**
+   * @param fastStartup        when set, the first poll is issued right away and both the internal
+   *                           http server and the tray icon are only brought up after it returned
+   * @param exitAfterFirstPoll exit as soon as the first poll (and the deferred initialization) is done,
+   *                           used for startup benchmarks and class data sharing training runs
+   */
+  public Main(int listeningPort, boolean noTrayIcon, boolean fastStartup, boolean exitAfterFirstPoll) throws Exception {
     logger.info("Running v" + VERSION);
     if (listeningPort > 0) {
-      loadSettings();
+      settings = Settings.load(settingsFile());
       this.listeningPort = listeningPort;
+      this.noTrayIcon = noTrayIcon;
+      this.startupDeferred = fastStartup;
+      this.exitAfterFirstPoll = exitAfterFirstPoll;
       lock = new ReentrantLock();
       exitCondition = lock.newCondition();
-      initializeHTTPListener();
+      initializeEventLog();
+      initializeHostSlots();
+      if (!fastStartup) {
+        initializeHTTPListener();
+      }
       addTestRunnerLog("Running version " + VERSION);
-      addTestRunnerLog("Loading with API Key: " + apiToken + " and serverURL: " + serverURL);
+      addTestRunnerLog("Loading with API Key: " + settings.getApiToken() + " and serverURL: " + settings.getServerURL());
+      initializeTls();
       initializeClient();
-      initializeScheduler();
-      if (!noTrayIcon) {
+      initializeConfigWatcher();
+      initializeScheduler(fastStartup ? FAST_STARTUP_TEST_RUNNER_INITIAL_DELAY : TEST_RUNNER_INITIAL_DELAY);
+      if (!fastStartup && !noTrayIcon) {
         initializeTrayIcon();
       }
 
       Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
         public void run() {
           logger.info("In shutdown hook");
-          lock.lock();
-          try {
-            exitCondition.signal();
-          } finally {
-            lock.unlock();
+          if (!isExitRequested()) {
+            // terminated from outside (SIGTERM): let the running task finish and upload first
+            drain(TimeUnit.SECONDS.toMillis(Integer.getInteger(DRAIN_TIMEOUT_PROPERTY_KEY, DEFAULT_DRAIN_TIMEOUT_S)), "terminated");
+            Thread draining = drainer;
+            try {
+              if (draining != null) draining.join();
+            } catch (InterruptedException ignored) {
+            }
           }
+          flushResults();
+          requestExit();
+          EventLog log = eventLog;
+          if (log != null) log.close();
         }
       }));
     } // else -- running from test
@@ -108,19 +234,31 @@ public class Main {
     // wait for exit signal
     lock.lock();
     try {
-      exitCondition.await();
+      while (!exitRequested) {
+        exitCondition.await();
+      }
     } catch (InterruptedException ignored) {
     } finally {
       lock.unlock();
     }
     // stop and exit
-    logger.info("Stopping the internal http server...");
-    try {
-      theServer.stop();
-    } catch (Exception e) {
-      logger.severe("Failed to stop internal http server: " + e.getMessage());
+    if (configWatcher != null) {
+      configWatcher.stop();
+    }
+    PollTrigger trigger = pollTrigger;
+    if (trigger != null) {
+      trigger.close();
+    }
+    Server server = theServer;
+    if (server != null) {
+      logger.info("Stopping the internal http server...");
+      try {
+        server.stop();
+      } catch (Exception e) {
+        logger.severe("Failed to stop internal http server: " + e.getMessage());
+      }
+      logger.info("Stopped internal http server.");
     }
-    logger.info("Stopped internal http server.");
     testRunner.cancel(false);
     // wait for completion of current task
     try {
@@ -130,155 +268,332 @@ public class Main {
     } catch (ExecutionException e) {
       logger.severe("Failed to execute test: " + e.getMessage());
     }
+    flushResults();
+    if (launcher != null) {
+      launcher.close();
+    }
     System.exit(0);
   }
 
   public static void main(String[] args) throws Exception {
     boolean noTrayIcon = Boolean.parseBoolean(System.getProperty(NO_TRAY_ICON_PROPERTY_KEY, Boolean.FALSE.toString()));
     int listeningPort = Integer.parseInt(System.getProperty(LISTENING_PORT_PROPERTY_KEY, String.valueOf(DEFAULT_LISTENING_PORT)));
+    boolean fastStartup = Boolean.parseBoolean(System.getProperty(FAST_STARTUP_PROPERTY_KEY, Boolean.FALSE.toString()));
+    boolean exitAfterFirstPoll = Boolean.parseBoolean(System.getProperty(EXIT_AFTER_FIRST_POLL_PROPERTY_KEY, Boolean.FALSE.toString()));
 
-    Main me = new Main(listeningPort, noTrayIcon);
+    Main me = new Main(listeningPort, noTrayIcon, fastStartup, exitAfterFirstPoll);
     me.run();
   }
 
-  private void loadSettings() {
-    File settingsFile = new File(System.getProperty("user.dir"), "xbot.properties");
-    if (settingsFile.exists()) {
-      try {
-        Properties settings = new Properties();
-        settings.load(new FileReader(settingsFile));
-        serverURL = settings.getProperty("server_url", "").trim();
-        if(serverURL.equals("")){
-          
-          serverURL = "https://prod.practitest.com";
+  private boolean isExitRequested() {
+    lock.lock();
+    try {
+      return exitRequested;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stops pulling tasks and exits once the running task, if any, finished and uploaded its result.
+   * A task still running at the deadline is stopped as if it timed out, and what it produced is uploaded.
+   */
+  private void drain(long timeoutMillis, String reason) {
+    if (!drainController.startDrain(timeoutMillis)) return; // already draining, possibly with a closer deadline now
+    logger.info("Draining (" + reason + "), exiting within " + timeoutMillis + " ms");
+    addTestRunnerLog("Draining (" + reason + "): no more tasks are taken, exiting once the current one is done");
+    Metrics.getInstance().set("xbot_draining", 1);
+    setTrayStatus(TrayIconController.Status.READY, "PractiTest xBot is draining");
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          if (!drainController.awaitIdle(0)) {
+            String instanceId = drainController.interruptTask();
+            if (instanceId != null)
+              addTestRunnerLog(instanceId, "Drain deadline reached, stopping the task and uploading what it produced");
+            if (!drainController.awaitIdle(DRAIN_UPLOAD_GRACE))
+              logger.warning("Drain did not complete, exiting anyway");
+          }
+        } catch (InterruptedException ignored) {
         }
-        apiToken = settings.getProperty("api_token", "").trim();
-        clientId = settings.getProperty("client_id", "").trim();
-        proxyHost = settings.getProperty("proxy_host", "").trim();
-        proxyPort = settings.getProperty("proxy_port", "").trim();
-        proxyUser = settings.getProperty("proxy_user", "").trim();
-        proxyPassword = settings.getProperty("proxy_password", "").trim();
-      } catch (IOException ignore) {
+        logger.info("Drained");
+        addTestRunnerLog("Drained, exiting");
+        requestExit();
       }
+    }, "xbot-drain");
+    thread.setDaemon(true);
+    drainer = thread;
+    thread.start();
+  }
+
+  /**
+   * Sends the results still waiting for a batch, before the agent exits.
+   */
+  private void flushResults() {
+    if (resultBatcher == null) return;
+    try {
+      resultBatcher.flush();
+    } catch (InterruptedException e) {
+      logger.warning("Exiting with " + resultBatcher.getPending() + " results not reported");
     }
-    else{
-      serverURL = "https://prod.practitest.com";
+  }
+
+  private void requestExit() {
+    lock.lock();
+    try {
+      exitRequested = true;
+      exitCondition.signal();
+    } catch (IllegalMonitorStateException ignore) {
+    } finally {
+      lock.unlock();
     }
   }
 
+  private void initializeEventLog() {
+    File directory = new File(System.getProperty(EVENT_LOG_DIR_PROPERTY_KEY,
+            new File(System.getProperty("user.dir"), "xbot-events").getPath()));
+    try {
+      EventLog log = new EventLog(directory,
+              Integer.getInteger(EVENT_LOG_SEGMENT_SIZE_PROPERTY_KEY, DEFAULT_EVENT_LOG_SEGMENT_SIZE_KB) * 1024L,
+              Integer.getInteger(EVENT_LOG_SEGMENTS_PROPERTY_KEY, DEFAULT_EVENT_LOG_SEGMENTS),
+              Metrics.getInstance());
+      log.start();
+      eventLog = log;
+    } catch (IOException e) {
+      logger.warning("Failed to open the event log in " + directory + ", history is kept in memory only: " + e.getMessage());
+    }
+  }
+
+  private void initializeHostSlots() {
+    int slots = Integer.getInteger(HOST_SLOTS_PROPERTY_KEY, 0);
+    if (slots <= 0) return;
+    File file = new File(System.getProperty(HOST_SLOTS_FILE_PROPERTY_KEY,
+            new File(System.getProperty("java.io.tmpdir"), "xbot-host-slots").getPath()));
+    try {
+      hostSlots = new HostSlots(file, slots, listeningPort, Metrics.getInstance());
+      logger.info("Sharing " + slots + " task slots with the other agents on this host through " + file);
+    } catch (IOException e) {
+      logger.warning("Failed to open the host slots file " + file + ", tasks are taken regardless of other agents: " + e.getMessage());
+    }
+  }
+
+  private static File settingsFile() {
+    return new File(System.getProperty("user.dir"), "xbot.properties");
+  }
+
   private void saveSettings() {
-    // overwrites the xbot.properties!
-    Properties settings = new Properties();
-    settings.setProperty("server_url", serverURL);
-    settings.setProperty("api_key", apiToken);
-    settings.setProperty("client_id", clientId);
-    settings.setProperty("proxy_host", proxyHost);
-    settings.setProperty("proxy_port", proxyPort);
-    settings.setProperty("proxy_user", proxyUser);
-    settings.setProperty("proxy_password", proxyPassword);
     try {
-      settings.store(new FileWriter(new File(System.getProperty("user.dir"), "xbot.properties")),
-              "Please do not change this file manually, it'll be re-written by the application anyway.");
+      settings.save(settingsFile());
     } catch (IOException e) {
       logger.severe("Failed to store application settings: " + e.getMessage());
     }
   }
 
+  /**
+   * Picks up edits of xbot.properties made while running.
+   */
+  private void initializeConfigWatcher() {
+    try {
+      configWatcher = new ConfigWatcher(settingsFile(), new Runnable() {
+        public void run() {
+          reloadSettings();
+        }
+      });
+      configWatcher.start();
+    } catch (IOException e) {
+      logger.warning("Settings file will not be watched for changes: " + e.getMessage());
+    }
+  }
+
+  private synchronized void reloadSettings() {
+    Settings reloaded = Settings.load(settingsFile());
+    if (reloaded.equals(settings)) return; // e.g. our own saveSettings()
+    logger.info("Settings file changed, reconfiguring");
+    addTestRunnerLog("Settings file changed, reconfiguring with serverURL: " + reloaded.getServerURL());
+    settings = reloaded;
+    initializeClient();
+  }
+
+  /**
+   * @return null unless <code>com.practitest.xbot.result_cache_mb</code> is set
+   */
+  private static ResultCache createResultCache() {
+    long size = Long.getLong(RESULT_CACHE_SIZE_PROPERTY_KEY, 0);
+    if (size <= 0) return null;
+    File directory = new File(System.getProperty(RESULT_CACHE_DIR_PROPERTY_KEY,
+            new File(System.getProperty("user.dir"), "xbot-result-cache").getPath()));
+    return new ResultCache(directory, size * 1024 * 1024, Metrics.getInstance());
+  }
+
+  /**
+   * @return null unless one of the <code>com.practitest.xbot.task_*</code> isolation settings is set
+   */
+  private static TaskIsolation createTaskIsolation() {
+    String cpus = System.getProperty(TASK_CPUS_PROPERTY_KEY);
+    double cpuLimit = Double.parseDouble(System.getProperty(TASK_CPU_LIMIT_PROPERTY_KEY, "0"));
+    long memoryLimit = Long.getLong(TASK_MEMORY_LIMIT_PROPERTY_KEY, 0) * 1024 * 1024;
+    String cgroup = System.getProperty(TASK_CGROUP_PROPERTY_KEY);
+    if (cpus == null && cpuLimit <= 0 && memoryLimit <= 0 && cgroup == null) return null;
+    File cgroupRoot = null;
+    if (cgroup != null) {
+      cgroupRoot = new File(cgroup);
+    } else if (cpuLimit > 0 || memoryLimit > 0) {
+      File mount = TaskIsolation.findCgroupMount();
+      if (mount != null) cgroupRoot = new File(mount, "xbot-tasks");
+      else logger.warning("No cgroup v2 hierarchy, task CPU and memory limits are not applied");
+    }
+    TaskIsolation isolation = TaskIsolation.create(cpus, cpuLimit, memoryLimit, cgroupRoot, Metrics.getInstance());
+    return isolation.isEnabled() ? isolation : null;
+  }
+
+  /**
+   * @return null unless <code>com.practitest.xbot.launcher</code> is true, or if the launcher shell cannot start
+   */
+  private static ProcessLauncher createLauncher() {
+    if (!Boolean.getBoolean(LAUNCHER_PROPERTY_KEY)) return null;
+    try {
+      return ProcessLauncher.start(Metrics.getInstance());
+    } catch (IOException e) {
+      logger.warning("Failed to start the launcher shell, tasks are started directly: " + e.getMessage());
+      return null;
+    }
+  }
+
   private void initializeHTTPListener() throws Exception {
-    theServer = new Server(listeningPort);
+    final WebContent.Template preferencesPage = WebContent.template("preferences.html");
+    QueuedThreadPool threadPool = new QueuedThreadPool();
+    threadPool.setName("xbot-http");
+    threadPool.setMinThreads(1);
+    // the connector's selector holds one of the threads for good
+    threadPool.setMaxThreads(Math.max(2, Integer.getInteger(HTTP_THREADS_PROPERTY_KEY, DEFAULT_HTTP_THREADS)) + 1);
+    threadPool.setMaxIdleTimeMs(HTTP_IDLE_TIMEOUT);
+    SelectChannelConnector connector = new SelectChannelConnector();
+    connector.setPort(listeningPort);
+    connector.setMaxIdleTime(HTTP_IDLE_TIMEOUT);
+    theServer = new Server();
+    theServer.setThreadPool(threadPool);
+    theServer.addConnector(connector);
+    theServer.setSendServerVersion(false);
     theServer.setHandler(new AbstractHandler() {
       public void handle(String target,
                          HttpServletRequest request,
                          HttpServletResponse response,
                          int dispatch) throws IOException, ServletException {
-        if (target.equals("/status")) {
-          response.setContentType("text/plain");
-          response.setStatus(HttpServletResponse.SC_OK);
-          response.getWriter().println("OK");
+        if (target.startsWith(WebContent.ASSETS_PATH)) {
+          WebContent.Asset asset = WebContent.asset(target.substring(WebContent.ASSETS_PATH.length()));
+          if (asset == null)
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+          else
+            asset.serve(request, response);
+          ((Request) request).setHandled(true);
+        } else if (target.equals("/status")) {
+          StringBuilder status = new StringBuilder(4096);
+          status.append("OK\n");
+          for (Map.Entry<String, Long> metric : Metrics.getInstance().snapshot().entrySet())
+            status.append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+          for (Map.Entry<String, Long> gauge : jvmGauges().entrySet())
+            status.append(gauge.getKey()).append(' ').append(gauge.getValue()).append('\n');
+          WebContent.send(request, response, "text/plain; charset=UTF-8", status.toString().getBytes("UTF-8"));
           ((Request) request).setHandled(true);
         } else if (target.equals("/preferences")) {
-          response.setContentType("text/html");
-          response.setStatus(HttpServletResponse.SC_OK);
-          PrintWriter out = response.getWriter();
-          out.println("<html><head><title>PractiTest xBot preferences</title></head>");
-          out.println("<link rel=\"stylesheet\" href=\"https://maxcdn.bootstrapcdn.com/bootstrap/3.3.6/css/bootstrap.min.css\" crossorigin=\"anonymous\"/>");
-          out.println("<body><form method=\"POST\" action=\"/set_preferences\" class=\"form-horizontal\">");
-          out.println("<row><h1 class=\"text-center\">PractiTest xBot configuration</h1></row>");
-          out.println("<div class=\"form-group\">");
-          out.println("<label for=\"server_url\" class=\"col-sm-2 control-label\">PractiTest URL:</label>");
-          out.println("<div class=\"col-sm-10\">");
-          out.println("<input class=\"form-control\" type=\"text\" id=\"server_url\" name=\"server_url\"  value=\"" + serverURL + "\" />");
-          out.println("</div>");
-          out.println("</div>");
-          out.println("<div class=\"form-group\">");
-          out.println("<label for=\"api_key\" class=\"col-sm-2 control-label\">API Token:</label>");
-          out.println("<div class=\"col-sm-10\">");
-          out.println("<input class=\"form-control\" type=\"text\" id=\"api_token\" name=\"api_token\" value=\"" + apiToken + "\" />");
-          out.println("</div>");
-          out.println("</div>");
-          out.println("<div class=\"form-group\">");
-          out.println("<label for=\"client_id\" class=\"col-sm-2 control-label\">Client ID:</label>");
-          out.println("<div class=\"col-sm-10\">");
-          out.println("<input class=\"form-control\" type=\"text\" id=\"client_id\" name=\"client_id\" value=\"" + clientId + "\" />");
-          out.println("</div>");
-          out.println("</div>");
-          out.println("<div id=\"proxy_settings\" style=\"display:none\">");
-          out.println("<div class=\"form-group\">");
-          out.println("<label for=\"proxy_host\" class=\"col-sm-2 control-label\">Proxy host:</label>");
-          out.println("<div class=\"col-sm-10\">");
-          out.println("<input class=\"form-control\" type=\"text\" id=\"proxy_host\" name=\"proxy_host\" value=\"" + proxyHost + "\" />");
-          out.println("</div>");
-          out.println("</div>");
-          out.println("<div class=\"form-group\">");
-          out.println("<label for=\"proxy_port\" class=\"col-sm-2 control-label\">Proxy port:</label>");
-          out.println("<div class=\"col-sm-10\">");
-          out.println("<input class=\"form-control\" type=\"text\" id=\"proxy_port\" name=\"proxy_port\" value=\"" + proxyPort + "\" />");
-          out.println("</div>");
-          out.println("</div>");
-          out.println("<div class=\"form-group\">");
-          out.println("<label for=\"proxy_user\" class=\"col-sm-2 control-label\">Proxy username:</label>");
-          out.println("<div class=\"col-sm-10\">");
-          out.println("<input class=\"form-control\" type=\"text\" id=\"proxy_user\" name=\"proxy_user\" value=\"" + proxyUser + "\" />");
-          out.println("</div>");
-          out.println("</div>");
-          out.println("<div class=\"form-group\">");
-          out.println("<label for=\"proxy_password\" class=\"col-sm-2 control-label\">Proxy password:</label>");
-          out.println("<div class=\"col-sm-10\">");
-          out.println("<input class=\"form-control\" type=\"text\" id=\"proxy_password\" name=\"proxy_password\" value=\"" + proxyPassword + "\" />");
-          out.println("</div>");
-          out.println("</div>");
-          out.println("</div>");
-          out.println("<a href=\"/log\">View Log</a> &nbsp; &nbsp;");
-          out.println("<a href=\"#\" onclick=\" document.getElementById('proxy_settings').style.display = 'block' \">Configure Proxy</a> &nbsp; &nbsp;");
-          out.println("<input type=\"submit\" value=\"Update &rArr;\" />");
-          out.println("</form></body></html>");
+          Settings current = settings;
+          Map<String, String> values = new HashMap<String, String>();
+          values.put("server_url", current.getServerURL());
+          values.put("api_token", current.getApiToken());
+          values.put("client_id", current.getClientId());
+          values.put("proxy_host", current.getProxyHost());
+          values.put("proxy_port", current.getProxyPort());
+          values.put("proxy_user", current.getProxyUser());
+          values.put("proxy_password", current.getProxyPassword());
+          WebContent.send(request, response, "text/html; charset=UTF-8", preferencesPage.render(values));
           ((Request) request).setHandled(true);
         } else if (target.equals("/set_preferences")) {
-          serverURL = request.getParameter("server_url");
-          apiToken = request.getParameter("api_token");
-          clientId = request.getParameter("client_id");
-          proxyHost = request.getParameter("proxy_host");
-          proxyPort = request.getParameter("proxy_port");
-          proxyUser = request.getParameter("proxy_user");
-          proxyPassword = request.getParameter("proxy_password");
-          saveSettings();
-          initializeClient();
+          synchronized (Main.this) {
+            settings = new Settings(request.getParameter("server_url"),
+                    request.getParameter("api_token"),
+                    request.getParameter("client_id"),
+                    request.getParameter("proxy_host"),
+                    request.getParameter("proxy_port"),
+                    request.getParameter("proxy_user"),
+                    request.getParameter("proxy_password"));
+            saveSettings();
+            initializeClient();
+          }
           response.sendRedirect("/preferences");
           ((Request) request).setHandled(true);
+        } else if (target.equals("/drain")) {
+          if (request.getMethod().equals("POST")) {
+            String timeout = request.getParameter("timeout_s");
+            long timeoutSeconds = timeout != null ? parseNonNegative(timeout) :
+                    Integer.getInteger(DRAIN_TIMEOUT_PROPERTY_KEY, DEFAULT_DRAIN_TIMEOUT_S);
+            if (timeoutSeconds < 0) {
+              response.sendError(HttpServletResponse.SC_BAD_REQUEST, "timeout_s must be a number of seconds, 0 or more");
+              ((Request) request).setHandled(true);
+              return;
+            }
+            drain(TimeUnit.SECONDS.toMillis(timeoutSeconds), "requested over HTTP");
+          }
+          WebContent.send(request, response, "text/plain; charset=UTF-8", drainController.describe().getBytes("UTF-8"));
+          ((Request) request).setHandled(true);
+        } else if (target.equals("/poll-now")) {
+          PollTrigger trigger = pollTrigger;
+          if (trigger == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The scheduler is not started yet");
+          } else {
+            if (request.getMethod().equals("POST")) trigger.request();
+            WebContent.send(request, response, "text/plain; charset=UTF-8", trigger.describe().getBytes("UTF-8"));
+          }
+          ((Request) request).setHandled(true);
+        } else if (target.equals("/jfr") || target.startsWith("/jfr/")) {
+          serveFlightRecording(target, request, response);
+          ((Request) request).setHandled(true);
+        } else if (target.equals("/tasks") || target.startsWith("/tasks/")) {
+          serveTaskTraces(target.substring("/tasks".length()), request, response);
+          ((Request) request).setHandled(true);
         } else if (target.equals("/log")) {
-          response.setContentType("text/html");
-          response.setStatus(HttpServletResponse.SC_OK);
-          PrintWriter out = response.getWriter();
-          out.println("<html><head><meta http-equiv=\"refresh\" content=\"5\" /><title>PractiTest xBot log</title></head>");
-          out.println("<body><h1>PractiTest xBot v" + VERSION + " log</h1><div>");
-          synchronized (testRunnerLog) {
-            for (String message : testRunnerLog) {
+          String minutes = request.getParameter("minutes");
+          if (minutes != null && parseNonNegative(minutes) < 0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "minutes must be a whole number, 0 or more");
+            ((Request) request).setHandled(true);
+            return;
+          }
+          ByteArrayOutputStream page = new ByteArrayOutputStream(8192);
+          PrintWriter out = new PrintWriter(new OutputStreamWriter(page, "UTF-8"));
+          out.println("<html><head>" + (request.getQueryString() == null ? "<meta http-equiv=\"refresh\" content=\"5\" />" : "") +
+                  "<title>PractiTest xBot log</title><link rel=\"stylesheet\" href=\"/assets/xbot.css\"/></head>");
+          out.println("<body><h1>PractiTest xBot v" + VERSION + " log</h1>");
+          EventLog log = eventLog;
+          String instanceId = request.getParameter("instance");
+          if (log != null) {
+            out.println("<form method=\"GET\" action=\"/log\">Task instance <input type=\"text\" name=\"instance\"/> " +
+                    "<input type=\"submit\" value=\"Show history\"/></form>");
+          }
+          out.println("<div>");
+          if (log != null && (instanceId != null || minutes != null)) {
+            List<EventLog.Event> events;
+            if (instanceId != null) {
+              events = log.findByInstance(instanceId);
+            } else {
+              long to = System.currentTimeMillis();
+              events = log.findBetween(to - TimeUnit.MINUTES.toMillis(parseNonNegative(minutes)), to);
+            }
+            for (EventLog.Event event : events) {
               out.println("<p>");
-              out.println(message);
+              out.println(WebContent.escapeHtml(DateFormat.getDateTimeInstance().format(new Date(event.getTime())) + " :: " + event.getMessage()));
               out.println("</p>");
             }
+          } else {
+            synchronized (testRunnerLog) {
+              for (String message : testRunnerLog) {
+                out.println("<p>");
+                out.println(message);
+                out.println("</p>");
+              }
+            }
           }
           out.println("</div></body></html>");
+          out.flush();
+          WebContent.send(request, response, "text/html; charset=UTF-8", page.toByteArray());
           ((Request) request).setHandled(true);
         }
       }
@@ -286,173 +601,631 @@ public class Main {
     theServer.start();
   }
 
+  /**
+   * <code>POST /jfr/start</code> starts a flight recording, <code>GET /jfr/dump</code> downloads what it recorded so
+   * far, <code>POST /jfr/stop</code> discards it and <code>/jfr</code> tells its state.
+   */
+  private void serveFlightRecording(String target, HttpServletRequest request, HttpServletResponse response) throws IOException {
+    boolean post = request.getMethod().equals("POST");
+    if (target.equals("/jfr/start") && post) {
+      String settings = request.getParameter("settings");
+      String duration = request.getParameter("duration_s");
+      try {
+        if (!flightRecording.start(settings != null ? settings : "default",
+                Duration.ofSeconds(duration != null ? Long.parseLong(duration) : DEFAULT_FLIGHT_RECORDING_DURATION_S))) {
+          response.sendError(HttpServletResponse.SC_CONFLICT, "A recording is already running");
+          return;
+        }
+      } catch (java.text.ParseException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid recording settings: " + e.getMessage());
+        return;
+      } catch (NoSuchFileException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No recording settings named " + settings);
+        return;
+      } catch (IllegalArgumentException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        return;
+      }
+      addTestRunnerLog("Started a flight recording");
+    } else if (target.equals("/jfr/stop") && post) {
+      flightRecording.close();
+    } else if (target.equals("/jfr/dump")) {
+      if (!flightRecording.hasRecording()) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "No recording, POST /jfr/start first");
+        return;
+      }
+      response.setContentType("application/octet-stream");
+      response.setHeader("Content-Disposition", "attachment; filename=\"xbot-" + System.currentTimeMillis() + ".jfr\"");
+      flightRecording.dump(response.getOutputStream());
+      return;
+    } else if (!target.equals("/jfr")) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    WebContent.send(request, response, "text/plain; charset=UTF-8", flightRecording.describe().getBytes("UTF-8"));
+  }
+
+  /**
+   * <code>/tasks</code> lists the recent task timelines, <code>/tasks/{instanceId}</code> shows one,
+   * <code>/tasks/trace.json</code> and <code>/tasks/{instanceId}/trace.json</code> export them as Chrome trace events.
+   */
+  private void serveTaskTraces(String path, HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String traceSuffix = "/trace.json";
+    ByteArrayOutputStream page = new ByteArrayOutputStream(8192);
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(page, "UTF-8"));
+    if (path.endsWith(traceSuffix)) {
+      String instanceId = path.substring(0, path.length() - traceSuffix.length());
+      List<TaskTrace> traces;
+      if (instanceId.isEmpty()) {
+        traces = taskTraces.getAll();
+      } else {
+        TaskTrace trace = taskTraces.get(URLDecoder.decode(instanceId.substring(1), "UTF-8"));
+        if (trace == null) {
+          response.sendError(HttpServletResponse.SC_NOT_FOUND, "No timeline for task instance " + instanceId.substring(1));
+          return;
+        }
+        traces = Collections.singletonList(trace);
+      }
+      TaskTraceStore.writeChromeTrace(traces, out);
+      out.flush();
+      WebContent.send(request, response, "application/json", page.toByteArray());
+      return;
+    }
+
+    if (path.isEmpty() || path.equals("/")) {
+      out.println("<html><head><title>PractiTest xBot tasks</title><link rel=\"stylesheet\" href=\"/assets/xbot.css\"/></head>");
+      out.println("<body><h1>Recent tasks</h1><p><a href=\"/tasks/trace.json\">Chrome trace of all tasks</a></p>");
+      out.println("<table><tr><th>Instance</th><th>Test</th><th>Started</th><th>Total ms</th></tr>");
+      List<TaskTrace> traces = taskTraces.getAll();
+      Collections.reverse(traces);
+      for (TaskTrace trace : traces) {
+        String link = "/tasks/" + URLEncoder.encode(trace.getInstanceId(), "UTF-8");
+        out.println("<tr><td><a href=\"" + link + "\">" + WebContent.escapeHtml(trace.getInstanceId()) + "</a></td>" +
+                "<td>" + WebContent.escapeHtml(trace.getDescription()) + "</td>" +
+                "<td>" + DateFormat.getDateTimeInstance().format(new Date(trace.getStartMicros() / 1000)) + "</td>" +
+                "<td>" + trace.getDurationMicros() / 1000 + "</td></tr>");
+      }
+      out.println("</table></body></html>");
+      out.flush();
+      WebContent.send(request, response, "text/html; charset=UTF-8", page.toByteArray());
+      return;
+    }
+    TaskTrace trace = taskTraces.get(URLDecoder.decode(path.substring(1), "UTF-8"));
+    if (trace == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND, "No timeline for task instance " + path.substring(1));
+      return;
+    }
+    out.println("<html><head><title>PractiTest xBot task " + WebContent.escapeHtml(trace.getInstanceId()) + "</title>" +
+            "<link rel=\"stylesheet\" href=\"/assets/xbot.css\"/></head>");
+    out.println("<body><h1>Task instance " + WebContent.escapeHtml(trace.getInstanceId()) + "</h1>");
+    out.println("<p>" + WebContent.escapeHtml(trace.getDescription()) + ", " + trace.getDurationMicros() / 1000 + " ms in total. " +
+            "<a href=\"" + URLEncoder.encode(trace.getInstanceId(), "UTF-8") + "/trace.json\">Chrome trace</a></p>");
+    out.println("<table><tr><th>Phase</th><th>Start ms</th><th>Duration ms</th><th>Thread</th></tr>");
+    long start = trace.getStartMicros();
+    for (TaskTrace.Span span : trace.getSpans()) {
+      out.println("<tr><td>" + span.getName() + "</td>" +
+              "<td>" + (span.getStartMicros() - start) / 1000.0 + "</td>" +
+              "<td>" + span.getDurationMicros() / 1000.0 + "</td>" +
+              "<td>" + WebContent.escapeHtml(span.getThreadName()) + "</td></tr>");
+    }
+    out.println("</table></body></html>");
+    out.flush();
+    WebContent.send(request, response, "text/html; charset=UTF-8", page.toByteArray());
+  }
+
   private void initializeTrayIcon() {
-    if (SystemTray.isSupported()) {
-      SystemTray tray = SystemTray.getSystemTray();
-
-      Image trayIconImageNotConfigured = loadImage("images/trayNotConfigured.png");
-      trayIconImageReady = loadImage("images/trayReady.png");
-      trayIconImageRunning = loadImage("images/trayRunning.png");
-      trayIconImageError = loadImage("images/trayError.png");
-
-      PopupMenu popup = new PopupMenu();
-      MenuItem preferencesItem = new MenuItem("Preferences");
-      preferencesItem.addActionListener(new ActionListener() {
-        public void actionPerformed(ActionEvent event) {
+    trayIcon = TrayIconController.install(listeningPort,
+            theClient.peek() != null ? TrayIconController.Status.READY : TrayIconController.Status.NOT_CONFIGURED,
+            new Runnable() {
+              public void run() {
+                requestExit();
+              }
+            });
+  }
+
+  /**
+   * Called once the first poll returned. Brings up whatever was deferred by the fast startup mode,
+   * off the scheduler thread so the task fetched by the first poll is not held back by it.
+   */
+  private void completeStartup() {
+    if (!firstPollCompleted.compareAndSet(false, true)) return;
+    Thread initializer = new Thread(new Runnable() {
+      public void run() {
+        if (startupDeferred) {
           try {
-            Desktop.getDesktop().browse(new URI("http://localhost:" + listeningPort + "/preferences"));
-          } catch (IOException e) {
-            logger.severe("Failed to open URL: " + e.getMessage());
-          } catch (URISyntaxException e) {
-            logger.severe("Failed to open URL: " + e.getMessage());
+            initializeHTTPListener();
+          } catch (Exception e) {
+            logger.severe("Failed to start internal http server: " + e.getMessage());
           }
-        }
-      });
-      popup.add(preferencesItem);
-      MenuItem logItem = new MenuItem("Log");
-      logItem.addActionListener(new ActionListener() {
-        public void actionPerformed(ActionEvent event) {
-          try {
-            Desktop.getDesktop().browse(new URI("http://localhost:" + listeningPort + "/log"));
-          } catch (IOException e) {
-            logger.severe("Failed to open URL: " + e.getMessage());
-          } catch (URISyntaxException e) {
-            logger.severe("Failed to open URL: " + e.getMessage());
+          if (!noTrayIcon) {
+            initializeTrayIcon();
           }
         }
-      });
-      popup.add(logItem);
-      popup.addSeparator();
-      MenuItem exitItem = new MenuItem("Exit");
-      exitItem.addActionListener(new ActionListener() {
-        public void actionPerformed(ActionEvent event) {
-          logger.info("Exiting...");
-          lock.lock();
-          try {
-            exitCondition.signal();
-          } catch (IllegalMonitorStateException ignore) {
-          } finally {
-            lock.unlock();
-          }
+        if (exitAfterFirstPoll) {
+          logger.info("First poll completed, exiting");
+          requestExit();
         }
-      });
-      popup.add(exitItem);
+      }
+    }, "xbot-deferred-init");
+    initializer.setDaemon(true);
+    initializer.start();
+  }
 
-      trayIcon = new TrayIcon(theClient.get() != null ? trayIconImageReady : trayIconImageNotConfigured, XBOT_TRAY_CAPTION, popup);
+  private void initializeClient() {
+    Settings current = settings;
+    if (!current.isComplete()) {
+      theClient.replace(null);
+      return;
+    }
+    // fully build the new client before it becomes visible to the scheduler
+    CallPolicy callPolicy = callPolicy();
+    theClient.replace(new Client(current.getServerURL(), current.getApiToken(), current.getClientId(),
+            createTransport(current, callPolicy), callPolicy, uploadBandwidth,
+            Boolean.getBoolean(UPLOAD_FILES_AFTER_RESULT_PROPERTY_KEY), chunkedUploader, VERSION));
+    setTrayStatus(TrayIconController.Status.READY, "PractiTest xBot is ready");
+  }
 
-      trayIcon.setImageAutoSize(true);
-      trayIcon.setToolTip(XBOT_TRAY_CAPTION);
+  private static BandwidthLimiter createUploadBandwidth() {
+    long bytesPerSecond = Long.getLong(UPLOAD_BANDWIDTH_PROPERTY_KEY, 0);
+    return bytesPerSecond > 0 ? new BandwidthLimiter(bytesPerSecond, Metrics.getInstance()) : null;
+  }
 
-      try {
-        tray.add(trayIcon);
-      } catch (AWTException e) {
-        logger.severe("TrayIcon could not be added: " + e.getMessage());
+  /**
+   * @return null unless <code>com.practitest.xbot.chunked_upload_mb</code> is set
+   */
+  private static File uploadStateDirectory() {
+    return new File(System.getProperty(UPLOAD_STATE_DIR_PROPERTY_KEY,
+            new File(System.getProperty("user.dir"), "xbot-uploads").getPath()));
+  }
+
+  private static ChunkedUploader createChunkedUploader() {
+    long threshold = Long.getLong(CHUNKED_UPLOAD_THRESHOLD_PROPERTY_KEY, 0);
+    if (threshold <= 0) return null;
+    ChunkedUploader uploader = new ChunkedUploader(uploadStateDirectory(), threshold * 1024 * 1024,
+            Integer.getInteger(UPLOAD_CHUNK_SIZE_PROPERTY_KEY, DEFAULT_UPLOAD_CHUNK_KB) * 1024,
+            Integer.getInteger(UPLOAD_CHUNK_RETRIES_PROPERTY_KEY, DEFAULT_UPLOAD_CHUNK_RETRIES),
+            UPLOAD_CHUNK_RETRY_DELAY, Metrics.getInstance());
+    uploader.removeStaleState();
+    return uploader;
+  }
+
+  /**
+   * @return null unless <code>com.practitest.xbot.chunked_upload_mb</code> is set, results are then kept next to
+   *         the chunked upload state
+   */
+  private static PendingResults createPendingResults() {
+    if (Long.getLong(CHUNKED_UPLOAD_THRESHOLD_PROPERTY_KEY, 0) <= 0) return null;
+    return new PendingResults(uploadStateDirectory(), Metrics.getInstance());
+  }
+
+  /**
+   * @return null unless <code>com.practitest.xbot.result_batch_size</code> is above 1
+   */
+  private ResultBatcher createResultBatcher() {
+    int size = Integer.getInteger(RESULT_BATCH_SIZE_PROPERTY_KEY, 0);
+    if (size <= 1) return null;
+    return new ResultBatcher(size, Long.getLong(RESULT_BATCH_BYTES_PROPERTY_KEY, DEFAULT_RESULT_BATCH_KB) * 1024,
+            Long.getLong(RESULT_BATCH_LINGER_PROPERTY_KEY, DEFAULT_RESULT_BATCH_LINGER), new ResultBatcher.Sender() {
+      public Map<String, String> sendBatch(List<Client.TaskResult> results) throws Exception {
+        ClientHolder.Lease lease = theClient.acquire();
+        if (lease == null) throw new IOException("PractiTest client is not configured");
+        try {
+          return lease.getClient().uploadResults(results);
+        } finally {
+          lease.release();
+        }
       }
-    } else {
-      logger.warning("System tray is not supported");
+
+      public void sendOne(Client.TaskResult result, String reason) {
+        String instanceId = result.getInstanceId();
+        addTestRunnerLog(instanceId, "Batch did not take the test results (" + reason + "), uploading them on their own");
+        ClientHolder.Lease lease = theClient.acquire();
+        if (lease == null) {
+          errorDisplay(instanceId, "PractiTest client is not configured", null);
+          keepForRetry(result, new IOException("PractiTest client is not configured"));
+          return;
+        }
+        try {
+          String uploadedTo = lease.getClient().uploadResult(result);
+          addTestRunnerLog(instanceId, "Finished uploading test results [" + uploadedTo + "].");
+        } catch (Client.APIException e) {
+          errorDisplay(instanceId, e.getMessage(), "APIException: ");
+        } catch (Exception e) {
+          errorDisplay(instanceId, e.getMessage(), null);
+          keepForRetry(result, e);
+        } finally {
+          lease.release();
+        }
+      }
+    }, Metrics.getInstance());
+  }
+
+  private static void initializeTls() {
+    TlsContext.configure(System.getProperty(TRUST_STORE_PROPERTY_KEY, ""),
+            System.getProperty(TRUST_STORE_PASSWORD_PROPERTY_KEY, ""),
+            System.getProperty(TRUST_STORE_TYPE_PROPERTY_KEY, KeyStore.getDefaultType()),
+            Integer.getInteger(TLS_SESSION_CACHE_SIZE_PROPERTY_KEY, TlsContext.DEFAULT_SESSION_CACHE_SIZE),
+            Integer.getInteger(TLS_SESSION_TIMEOUT_PROPERTY_KEY, TlsContext.DEFAULT_SESSION_TIMEOUT_SECONDS));
+  }
+
+  /**
+   * @return <code>value</code> as a whole number of 0 or more, -1 if it is not one
+   */
+  private static long parseNonNegative(String value) {
+    try {
+      long parsed = Long.parseLong(value.trim());
+      return parsed >= 0 ? parsed : -1;
+    } catch (NumberFormatException e) {
+      return -1;
     }
   }
 
-  private void initializeClient() {
-    theClient.set(null);
-    if (serverURL.isEmpty() || apiToken.isEmpty() || clientId.isEmpty()) return;
-    theClient.set(new Client(serverURL, apiToken, clientId, proxyHost, proxyPort, proxyUser, proxyPassword, VERSION));
-    setTrayStatus(trayIconImageReady, "PractiTest xBot is ready",
-            TrayIcon.MessageType.INFO);
+  /**
+   * Process resource usage, read when <code>/status</code> is requested rather than sampled.
+   */
+  private static Map<String, Long> jvmGauges() {
+    Map<String, Long> gauges = new TreeMap<String, Long>();
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    gauges.put("xbot_jvm_heap_used_bytes", heap.getUsed());
+    gauges.put("xbot_jvm_heap_committed_bytes", heap.getCommitted());
+    gauges.put("xbot_jvm_threads", (long) ManagementFactory.getThreadMXBean().getThreadCount());
+    java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      long cpuNanos = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+      if (cpuNanos >= 0) gauges.put("xbot_jvm_cpu_ms", TimeUnit.NANOSECONDS.toMillis(cpuNanos));
+    }
+    return gauges;
+  }
+
+  private static CallPolicy callPolicy() {
+    CallPolicy defaults = CallPolicy.DEFAULT;
+    return new CallPolicy(
+            Integer.getInteger(CONNECT_TIMEOUT_PROPERTY_KEY, defaults.getConnectTimeout()),
+            Integer.getInteger(READ_TIMEOUT_PROPERTY_KEY, defaults.getReadTimeout()),
+            Long.getLong(POLL_DEADLINE_PROPERTY_KEY, defaults.getPollDeadline()),
+            Long.getLong(UPLOAD_DEADLINE_PROPERTY_KEY, defaults.getUploadDeadline()),
+            Long.getLong(POLL_HEDGE_DELAY_PROPERTY_KEY, defaults.getHedgeDelay()),
+            Integer.getInteger(CIRCUIT_BREAKER_FAILURES_PROPERTY_KEY, defaults.getCircuitBreakerFailures()),
+            Long.getLong(CIRCUIT_BREAKER_OPEN_PROPERTY_KEY, defaults.getCircuitBreakerOpen()));
+  }
+
+  private static Transport createTransport(Settings current, CallPolicy callPolicy) {
+    String name = System.getProperty(HTTP_TRANSPORT_PROPERTY_KEY, "commons");
+    Transport transport;
+    if (name.equals("jdk")) {
+      transport = new JdkHttpTransport(current.getProxyHost(), current.getProxyPort(), current.getProxyUser(), current.getProxyPassword(),
+              callPolicy.getConnectTimeout());
+    } else {
+      if (!name.equals("commons"))
+        logger.warning("Unknown http transport [" + name + "], using commons");
+      transport = new CommonsHttpTransport(current.getProxyHost(), current.getProxyPort(), current.getProxyUser(), current.getProxyPassword(),
+              callPolicy.getConnectTimeout(), callPolicy.getReadTimeout());
+    }
+    return new ResilientTransport(transport,
+            new CircuitBreaker(callPolicy.getCircuitBreakerFailures(), callPolicy.getCircuitBreakerOpen()),
+            callPolicy.getHedgeDelay(), Metrics.getInstance());
   }
 
-  private void initializeScheduler() {
+  private void initializeScheduler(int initialDelay) {
     final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-    testRunner = scheduler.scheduleWithFixedDelay(new Runnable() {
+    Runnable poll = new Runnable() {
       public void run() {
         logger.info("TestRunner is awake");
-        addTestRunnerLog("TestRunner is awake getting next test to run");
-        Client client = theClient.get();
-        if (client != null) {
-          while (runScript(client)) ;
-        } else { // client is null
-          logger.warning("PractiTest client is not yet configured");
-          addTestRunnerLog("PractiTest client is not yet configured");
+        PollTrigger trigger = pollTrigger;
+        if (trigger != null) trigger.pollStarted();
+        if (!drainController.beginWork()) {
+          logger.info("Draining, not taking tasks");
+          return;
+        }
+        try {
+          pollAndRun();
+        } finally {
+          drainController.endWork();
         }
-        logger.info("TestRunner finished, going to sleep.");
-        addTestRunnerLog("TestRunner finished, going to sleep.");
       }
-    }, TEST_RUNNER_INITIAL_DELAY, TEST_RUNNER_DELAY, TimeUnit.SECONDS);
+    };
+    PollTrigger trigger = new PollTrigger(scheduler, poll,
+            Long.getLong(POLL_NOW_MIN_INTERVAL_PROPERTY_KEY, DEFAULT_POLL_NOW_MIN_INTERVAL), Metrics.getInstance());
+    Integer port = Integer.getInteger(POLL_NOW_PORT_PROPERTY_KEY);
+    if (port != null) {
+      try {
+        trigger.listen(port);
+      } catch (IOException e) {
+        logger.warning("Failed to take poll requests on port " + port + ": " + e.getMessage());
+      }
+    }
+    pollTrigger = trigger;
+    testRunner = scheduler.scheduleWithFixedDelay(poll, initialDelay,
+            Integer.getInteger(POLL_INTERVAL_PROPERTY_KEY, TEST_RUNNER_DELAY), TimeUnit.SECONDS);
+  }
+
+  private void pollAndRun() {
+    addTestRunnerLog("TestRunner is awake getting next test to run");
+    if (!admitNextTask()) {
+      completeStartup();
+      logger.info("TestRunner finished, going to sleep.");
+      addTestRunnerLog("TestRunner finished, going to sleep.");
+      return;
+    }
+    ClientHolder.Lease lease = theClient.acquire();
+    if (lease != null) {
+      uploadPendingResults(lease.getClient());
+      // every task leases whatever client is current when it starts and finishes on that one,
+      // so a reconfiguration takes effect from the next task on
+      while (lease != null) {
+        boolean more;
+        try {
+          more = runInHostSlot(lease.getClient());
+        } finally {
+          lease.release();
+        }
+        lease = more && !drainController.isDraining() && admitNextTask() ? theClient.acquire() : null;
+      }
+    } else { // client is null
+      logger.warning("PractiTest client is not yet configured");
+      addTestRunnerLog("PractiTest client is not yet configured");
+      completeStartup();
+    }
+    logger.info("TestRunner finished, going to sleep.");
+    addTestRunnerLog("TestRunner finished, going to sleep.");
+  }
+
+  /**
+   * @return false when the host is too busy for another task; the next scheduled poll checks again
+   */
+  private boolean admitNextTask() {
+    if (!admission.isEnabled()) return true;
+    String refusal = admission.check(lastResultsDirectory);
+    if (refusal == null) return true;
+    logger.info("Not taking a task, " + refusal);
+    addTestRunnerLog("Not taking a task, " + refusal);
+    setTrayStatus(TrayIconController.Status.READY, "PractiTest xBot is waiting for the host: " + refusal);
+    return false;
+  }
+
+  /**
+   * Runs {@link #runScript(Client)} in one of the host's task slots, held from the poll until the result is
+   * uploaded; without a free one nothing is pulled until the next scheduled poll.
+   */
+  private boolean runInHostSlot(Client client) {
+    HostSlots slots = hostSlots;
+    if (slots == null) return runScript(client);
+    HostSlots.Slot slot;
+    try {
+      slot = slots.tryAcquire();
+    } catch (IOException e) {
+      logger.warning("Failed to claim a host slot, taking the task regardless: " + e.getMessage());
+      return runScript(client);
+    }
+    if (slot == null) {
+      completeStartup();
+      String holders = slots.describeHolders().toString();
+      logger.info("Not taking a task, all " + slots.getSlots() + " host slots are taken by " + holders);
+      addTestRunnerLog("Not taking a task, all " + slots.getSlots() + " host slots are taken by " + holders);
+      setTrayStatus(TrayIconController.Status.READY, "PractiTest xBot is waiting for a host slot");
+      return false;
+    }
+    try {
+      return runScript(client);
+    } finally {
+      slot.release();
+    }
   }
 
   private boolean runScript(Client client) {
+    // when the poll itself fails, wait for the next scheduled one instead of hammering the server
+    boolean polled = false;
+    String instanceId = null;
+    TaskTrace trace = null;
+    TaskTrace.Phase poll = TaskTrace.begin("poll");
     try {
-      Client.Task task = client.nextTask();
+      Client.Task task;
+      try {
+        task = client.nextTask();
+        polled = true;
+      } finally {
+        completeStartup();
+      }
       if (task == null) {
         addTestRunnerLog("There is no test to run in the queue");
-        setTrayStatus(trayIconImageReady, "PractiTest xBot is ready",
-                TrayIcon.MessageType.INFO);
+        setTrayStatus(TrayIconController.Status.READY, "PractiTest xBot is ready");
+        if (idleMode.nothingToDo()) enterIdleMode(client);
         return false;
       }
+      if (idleMode.taskArrived()) {
+        logger.info("Leaving idle mode");
+        addTestRunnerLog("Got a task, leaving idle mode");
+      }
+      instanceId = task.getInstanceId();
+      lastResultsDirectory = new File(task.getPathToTestResults());
+      trace = new TaskTrace(task.getInstanceId(), task.getDescription());
+      poll.end(trace, 0);
+      taskTraces.add(trace);
       String taskName = task.getDescription() + " [" + task.getPathToTestApplication() + "]";
-      addTestRunnerLog("Running " + taskName);
-      setTrayStatus(trayIconImageRunning, "PractiTest xBot is running: " + taskName,
-              TrayIcon.MessageType.INFO);
+      addTestRunnerLog(task.getInstanceId(), "Running " + taskName);
+      setTrayStatus(TrayIconController.Status.RUNNING, "PractiTest xBot is running: " + taskName);
 
-      TaskRunner taskRunner = new TaskRunner(task);
+      TaskRunner taskRunner = new TaskRunner(task, trace);
       Thread taskRunnerThread = new Thread(taskRunner);
       taskRunnerThread.setDaemon(true);
-      taskRunnerThread.start();
-      taskRunnerThread.join();
+      drainController.taskStarted(task.getInstanceId(), taskRunnerThread);
+      try {
+        taskRunnerThread.start();
+        taskRunnerThread.join();
+      } finally {
+        drainController.taskFinished();
+      }
       if (taskRunner.isTimedOut())
-        addTestRunnerLog("Task [" + taskName + "] timed out");
+        addTestRunnerLog(task.getInstanceId(), "Task [" + taskName + "] timed out");
       else
-        addTestRunnerLog("Task [" + taskName + "] finished with exit code " + taskRunner.getExitCode());
-      addTestRunnerLog("Task [" + taskName + "] output: [" + taskRunner.getOutput() + "]");
-      addTestRunnerLog("Uploading test results..." +
+        addTestRunnerLog(task.getInstanceId(), "Task [" + taskName + "] finished with exit code " + taskRunner.getExitCode());
+      addTestRunnerLog(task.getInstanceId(), "Task [" + taskName + "] output: [" + taskRunner.getOutput() + "]");
+      Client.TaskResult batched = batchableResult(task, taskRunner);
+      if (batched != null) {
+        taskRunner.discardOutput();
+        resultBatcher.add(batched);
+        addTestRunnerLog(task.getInstanceId(), "Test results go out with the next batch");
+        setTrayStatus(TrayIconController.Status.READY, "PractiTest xBot finished running task, ready for the next one");
+        return polled;
+      }
+      addTestRunnerLog(task.getInstanceId(), "Uploading test results..." +
               (taskRunner.getResultFiles() == null ?
                       "[no result files]" :
                       taskRunner.getResultFiles().toString()));
-      String uploadedTo = client.uploadResult(
+      String uploadedTo;
+      long uploadBytes = taskRunner.getUploadBytes();
+      TaskTrace.Phase upload = TaskTrace.begin("upload");
+      Client.TaskResult result = taskRunner.getOutputFile() != null ?
+              new Client.TaskResult(
+                      task.getInstanceId(),
+                      taskRunner.getExitCode(),
+                      taskRunner.getResultFiles(),
+                      taskRunner.getOutputFile(),
+                      taskRunner.getSummaryFile()) :
               new Client.TaskResult(
                       task.getInstanceId(),
                       taskRunner.getExitCode(),
                       taskRunner.getResultFiles(),
-                      taskRunner.getOutput()));
-      addTestRunnerLog("Finished uploading test results [" + uploadedTo + "].");
-      setTrayStatus(trayIconImageReady, "PractiTest xBot finished running task, ready for the next one", TrayIcon.MessageType.INFO);
+                      taskRunner.getOutput());
+      try {
+        uploadedTo = client.uploadResult(result);
+      } catch (Exception e) {
+        keepForRetry(result, e);
+        throw e;
+      } finally {
+        upload.end(trace, uploadBytes);
+        taskRunner.discardOutput();
+      }
+      addTestRunnerLog(task.getInstanceId(), "Finished uploading test results [" + uploadedTo + "].");
+      setTrayStatus(TrayIconController.Status.READY, "PractiTest xBot finished running task, ready for the next one");
     } catch (IOException e) {
-      errorDisplay(e.getMessage(), null);
+      errorDisplay(instanceId, e.getMessage(), null);
     } catch (NoSuchAlgorithmException e) {
-      errorDisplay(e.getMessage(), null);
+      errorDisplay(instanceId, e.getMessage(), null);
     } catch (ParserConfigurationException e) {
-      errorDisplay(e.getMessage(), null);
+      errorDisplay(instanceId, e.getMessage(), null);
     } catch (SAXException e) {
-      errorDisplay(e.getMessage(), null);
+      errorDisplay(instanceId, e.getMessage(), null);
     } catch (Client.APIException e) {
-      errorDisplay(e.getMessage(), "APIException: ");
+      errorDisplay(instanceId, e.getMessage(), "APIException: ");
+    } catch (ResilientTransport.CircuitOpenException e) {
+      errorDisplay(instanceId, e.getMessage(), "Skipped: ");
+    } catch (TimeoutException e) {
+      errorDisplay(instanceId, e.getMessage(), "Timed out: ");
     } catch (Throwable e) {
-      errorDisplay(e.getMessage(), "Unhandled exception: ");
+      errorDisplay(instanceId, e.getMessage(), "Unhandled exception: ");
+    } finally {
+      if (trace != null) trace.record("task", poll.getStartNanos(), System.nanoTime());
+      else poll.end(null, 0);
     }
-    return true;
+    return polled;
   }
 
-  private void setTrayStatus(Image image, String message, TrayIcon.MessageType messageType) {
+  /**
+   * Keeps a result whose upload failed for {@link #uploadPendingResults(Client)}, unless the server refused it.
+   */
+  private void keepForRetry(Client.TaskResult result, Exception failure) {
+    if (pendingResults == null || failure instanceof Client.APIException) return;
     try {
-      if (trayIcon != null) {
-        trayIcon.setImage(image);
-        trayIcon.displayMessage(XBOT_TRAY_CAPTION, message, messageType);
+      pendingResults.add(result);
+      addTestRunnerLog(result.getInstanceId(), "Test results are kept to be uploaded again");
+    } catch (IOException e) {
+      logger.warning("Failed to keep the results of " + result.getInstanceId() + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Uploads the results kept after failed uploads, also by an earlier run of the agent, oldest first. One that
+   * fails again stays for the next poll without holding up the others; the server refusing it drops it.
+   */
+  private void uploadPendingResults(Client client) {
+    if (pendingResults == null) return;
+    for (Client.TaskResult result : pendingResults.list()) {
+      String instanceId = result.getInstanceId();
+      addTestRunnerLog(instanceId, "Uploading test results kept after a failed upload...");
+      try {
+        String uploadedTo = client.uploadResult(result);
+        pendingResults.remove(instanceId);
+        addTestRunnerLog(instanceId, "Finished uploading test results [" + uploadedTo + "].");
+      } catch (Client.APIException e) {
+        pendingResults.remove(instanceId);
+        errorDisplay(instanceId, e.getMessage(), "APIException: ");
+      } catch (ResilientTransport.CircuitOpenException e) {
+        // the rest would be skipped the same way
+        errorDisplay(instanceId, e.getMessage(), "Skipped, retrying on the next poll: ");
+        return;
+      } catch (Exception e) {
+        errorDisplay(instanceId, e.getMessage(), "Upload failed again, retrying on the next poll: ");
+      }
+    }
+  }
+
+  /**
+   * @return the task's result with its output read in, when it can be reported in a batch; null when it is
+   *         uploaded on its own
+   */
+  private Client.TaskResult batchableResult(Client.Task task, TaskRunner taskRunner) {
+    if (resultBatcher == null || taskRunner.getSummaryFile() != null) return null;
+    if (taskRunner.getResultFiles() != null && !taskRunner.getResultFiles().isEmpty()) return null;
+    String output = taskRunner.getOutput();
+    File outputFile = taskRunner.getOutputFile();
+    if (outputFile != null) {
+      // compressed or large output keeps going straight from disk
+      if (outputFile.getName().endsWith(".gz") || outputFile.length() > resultBatcher.getMaxBytes()) return null;
+      try {
+        output = new String(Files.readAllBytes(outputFile.toPath()), "UTF-8");
+      } catch (IOException e) {
+        return null;
+      }
+    }
+    Client.TaskResult result = new Client.TaskResult(task.getInstanceId(), taskRunner.getExitCode(), null, output);
+    return resultBatcher.accepts(result) ? result : null;
+  }
+
+  /**
+   * Gives back what the agent only needs while it runs tasks: pooled connections, and the heap left committed
+   * after them, through full collections. The helper threads of the transports and of the admin listener end by
+   * themselves once unused. Nothing needs to be set up again for the next task.
+   */
+  private void enterIdleMode(Client client) {
+    logger.info("No task for " + Long.getLong(IDLE_AFTER_PROPERTY_KEY, 0) + " s, going idle");
+    addTestRunnerLog("No task for " + Long.getLong(IDLE_AFTER_PROPERTY_KEY, 0) + " s, releasing resources until the next one");
+    client.closeIdleConnections();
+    long committedBefore = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getCommitted();
+    IdleMode.shrinkHeap();
+    long committedAfter = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getCommitted();
+    logger.info("Heap committed went from " + committedBefore / 1024 + " KB to " + committedAfter / 1024 + " KB");
+  }
+
+  private void setTrayStatus(TrayIconController.Status status, String message) {
+    try {
+      TrayIconController tray = trayIcon;
+      if (tray != null) {
+        tray.setStatus(status, message);
       }
     } catch (Throwable ignore) {
     }
   }
 
-  private void errorDisplay(String message, String error_prefix) {
-    setTrayStatus(trayIconImageError, "PractiTest xBot failed to run task: " + message,
-            TrayIcon.MessageType.ERROR);
+  private void errorDisplay(String instanceId, String message, String error_prefix) {
+    setTrayStatus(TrayIconController.Status.ERROR, "PractiTest xBot failed to run task: " + message);
     // the default is the communication error
     if (error_prefix == null)
       error_prefix = "Error occurred during communication with PractiTest server: ";
     logger.severe(error_prefix + message);
-    addTestRunnerLog(error_prefix + message);
+    addTestRunnerLog(instanceId, error_prefix + message);
   }
 
   private void addTestRunnerLog(String message) {
+    addTestRunnerLog(null, message);
+  }
+
+  /**
+   * @param instanceId the task instance the message is about, so it can be looked up later; null if none
+   */
+  private void addTestRunnerLog(String instanceId, String message) {
+    EventLog log = eventLog;
+    if (log != null) log.append(instanceId, message);
     synchronized (testRunnerLog) {
       StringBuilder sb = new StringBuilder();
       sb.append(DateFormat.getDateTimeInstance().format(new Date())).append(" :: ").append(message);
@@ -463,29 +1236,32 @@ public class Main {
     }
   }
 
-  private Image loadImage(String path) {
-    URL internalPath = getClass().getResource("/" + path);
-    if (internalPath == null) {
-      logger.warning("Failed to load resource [" + path + "], falling back to regular path");
-      return Toolkit.getDefaultToolkit().getImage(path);
-    }
-    return Toolkit.getDefaultToolkit().getImage(internalPath);
-  }
-
   /**
    * This class runs external process with given timeout.
    * The code is based on this article: http://kylecartmell.com/?p=9
    */
   class TaskRunner implements Runnable {
     private Client.Task task;
+    private final TaskTrace trace;
 
     private boolean timedOut = false;
     private int exitCode = -1;
     private java.util.List<File> resultFiles;
     private String output = "";
+    private OutputSpool outputSpool;
+    private File summaryFile;
+    private File cachedOutputFile;
 
     public TaskRunner(Client.Task task) {
+      this(task, new TaskTrace(task.getInstanceId(), task.getDescription()));
+    }
+
+    /**
+     * @param trace receives a span per phase of the run
+     */
+    TaskRunner(Client.Task task, TaskTrace trace) {
       this.task = task;
+      this.trace = trace;
     }
 
     public boolean isTimedOut() {
@@ -500,14 +1276,47 @@ public class Main {
       return resultFiles;
     }
 
+    /**
+     * @return the beginning of the console output
+     */
     public String getOutput() {
       return output;
     }
 
+    /**
+     * @return the complete console output, up to <code>com.practitest.xbot.output_limit_kb</code>,
+     *         null when it could not be captured
+     */
+    public File getOutputFile() {
+      return outputSpool != null ? outputSpool.getFile() : cachedOutputFile;
+    }
+
+    /**
+     * @return per-test results of the JUnit XML and TAP reports among the result files, when
+     *         <code>com.practitest.xbot.result_summary</code> is set and there were any
+     */
+    public File getSummaryFile() {
+      return summaryFile;
+    }
+
+    /**
+     * Deletes the temporary files of the run, once they have been uploaded.
+     */
+    public void discardOutput() {
+      if (outputSpool != null) outputSpool.delete();
+      if (summaryFile != null) summaryFile.delete();
+    }
+
     public void run() {
+      long startedAt = System.nanoTime();
+      TaskTrace.Phase processPhase = null;
       Timer timer = null;
+      Interrupter interrupter = null;
       Process process = null;
+      Thread streamDrainerThread = null;
+      TaskIsolation.Sandbox sandbox = null;
       boolean captureFiles = false;
+      String cacheKey = null;
       try {
         // parse the command line
         List<String> parameters = new ArrayList<String>();
@@ -522,40 +1331,55 @@ public class Main {
           }
         }
         logger.info("Running command [" + parameters.toString() + "]");
-        addTestRunnerLog("Running command [" + parameters.toString() + "]");
+        addTestRunnerLog(task.getInstanceId(), "Running command [" + parameters.toString() + "]");
         File workingDirectory = new File(parameters.get(0)).getParentFile();
         logger.info("Working directory: [" + workingDirectory.getAbsolutePath() + "]");
-        ProcessBuilder processBuilder = new ProcessBuilder(parameters);
+        if (resultCache != null) {
+          cacheKey = resultCache.fingerprint(parameters, workingDirectory, task.getPathToTestResults(), task.getNumOfFilesToUpload());
+          if (cacheKey != null && reuseCachedResult(cacheKey)) {
+            summarizeResultsIfEnabled();
+            trace.record("run", startedAt, System.nanoTime());
+            return;
+          }
+        }
+        sandbox = isolation != null ? isolation.open(task.getInstanceId()) : null;
+        ProcessBuilder processBuilder = new ProcessBuilder(sandbox != null ? sandbox.wrap(parameters) : parameters);
         processBuilder.directory(workingDirectory);
         processBuilder.redirectErrorStream(true);
+        outputSpool = new OutputSpool(
+                Long.getLong(OUTPUT_LIMIT_PROPERTY_KEY, DEFAULT_OUTPUT_LIMIT_KB) * 1024,
+                Boolean.getBoolean(COMPRESS_OUTPUT_PROPERTY_KEY));
         timer = new Timer(true);
-        Interrupter interrupter = new Interrupter(Thread.currentThread());
+        interrupter = new Interrupter(Thread.currentThread());
         timer.schedule(interrupter, task.getTimeoutInSeconds() * 1000);
-        process = processBuilder.start();
-        StreamDrainer streamDrainer = new StreamDrainer(process.getInputStream());
-        Thread streamDrainerThread = new Thread(streamDrainer);
+        TaskTrace.Phase spawn = TaskTrace.begin("spawn");
+        process = launcher != null ? launcher.start(processBuilder) : processBuilder.start();
+        spawn.end(trace, 0);
+        processPhase = TaskTrace.begin("process");
+        streamDrainerThread = new Thread(new StreamDrainer(process.getInputStream(), outputSpool));
         streamDrainerThread.setDaemon(true);
         streamDrainerThread.start();
         exitCode = process.waitFor();
-        output = streamDrainer.getOutput();
         captureFiles = true;
       } catch (InterruptedException e) {
         // timeout expired
-        addTestRunnerLog("Timeout expired for [" + task.getDescription() + "]");
+        addTestRunnerLog(task.getInstanceId(), "Timeout expired for [" + task.getDescription() + "]");
         logger.warning("Timeout expired for [" + task.getDescription() + "]");
         timedOut = true;
-        process.destroy();
+        if (process != null) stop(process);
+        if (sandbox != null) sandbox.kill();
       } catch (IOException e) {
         // some other error
-        addTestRunnerLog("IO exception while running [" + task.getDescription() + "]: " + e.getMessage());
+        addTestRunnerLog(task.getInstanceId(), "IO exception while running [" + task.getDescription() + "]: " + e.getMessage());
         logger.warning("IO exception while running [" + task.getDescription() + "]: " + e.getMessage());
       } catch (Throwable e) {
         // some other non IO-related error
-        addTestRunnerLog("Exception while running [" + task.getDescription() + "]: " + e.getMessage());
+        addTestRunnerLog(task.getInstanceId(), "Exception while running [" + task.getDescription() + "]: " + e.getMessage());
         logger.warning("Exception while running [" + task.getDescription() + "]: " + e.getMessage());
       } finally {
         // If the process returns within the timeout period, we have to stop the interrupter
         // so that it does not unexpectedly interrupt some other code later.
+        if (interrupter != null) interrupter.disarm();
         if (timer != null) timer.cancel();
 
         // We need to clear the interrupt flag on the current thread just in case
@@ -564,9 +1388,20 @@ public class Main {
         //
         // Oh, and there's also Sun bug 6420270 to worry about here.
         Thread.interrupted();
+        if (processPhase != null) processPhase.end(trace, outputSpool != null ? outputSpool.getCapturedBytes() : 0);
+        if (sandbox != null) {
+          TaskIsolation.Usage usage = sandbox.close();
+          if (usage != null) addTestRunnerLog(task.getInstanceId(), "Task resource usage: " + usage);
+        }
+
+        // whatever the process wrote before it ended (or was killed) is still uploaded
+        TaskTrace.Phase collectOutput = TaskTrace.begin("collect_output");
+        finishOutput(streamDrainerThread);
+        collectOutput.end(trace, outputSpool != null ? outputSpool.getCapturedBytes() : 0);
       }
 
       if (captureFiles) {
+        TaskTrace.Phase scanResults = TaskTrace.begin("scan_results");
         logger.info("Capturing files from [" + task.getPathToTestResults() + "]");
         File taskResultFilesDir = new File(task.getPathToTestResults());
         if (taskResultFilesDir.isDirectory()) {
@@ -586,46 +1421,222 @@ public class Main {
         } else if (taskResultFilesDir.isFile()) {
           resultFiles = Arrays.asList(taskResultFilesDir);
         }
+        scanResults.end(trace, totalLength(resultFiles));
+        if (cacheKey != null) storeInCache(cacheKey);
+      }
+      summarizeResultsIfEnabled();
+      trace.record("run", startedAt, System.nanoTime());
+    }
+
+    /**
+     * @return true if a cached result was found, it then stands for this run
+     */
+    private boolean reuseCachedResult(String cacheKey) throws IOException {
+      long lookupStartedAt = System.nanoTime();
+      ResultCache.Entry cached = resultCache.lookup(cacheKey);
+      trace.record("cache_lookup", lookupStartedAt, System.nanoTime());
+      if (cached == null) return false;
+      exitCode = cached.getExitCode();
+      resultFiles = cached.getResultFiles();
+      cachedOutputFile = cached.getOutputFile();
+      output = "<reused from the result cache>";
+      addTestRunnerLog(task.getInstanceId(), "Inputs unchanged, reusing the cached result " + cacheKey + " with exit code " + exitCode);
+      return true;
+    }
+
+    private void storeInCache(String cacheKey) {
+      long storeStartedAt = System.nanoTime();
+      try {
+        resultCache.store(cacheKey, exitCode, getOutputFile(), resultFiles);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to cache the result of [" + task.getDescription() + "]", e);
+      }
+      trace.record("cache_store", storeStartedAt, System.nanoTime());
+    }
+
+    private void summarizeResultsIfEnabled() {
+      String summaryMode = System.getProperty(RESULT_SUMMARY_PROPERTY_KEY, "off");
+      if (resultFiles != null && !summaryMode.equals("off")) {
+        long summaryStartedAt = System.nanoTime();
+        summarizeResults(summaryMode.equals("replace"));
+        trace.record("summarize_results", summaryStartedAt, System.nanoTime());
+      }
+    }
+
+    /**
+     * @param replaceReports upload the summary instead of the reports it was made from
+     */
+    private void summarizeResults(boolean replaceReports) {
+      try {
+        summaryFile = File.createTempFile("xbot-summary", ".json");
+        ResultSummary summary = ResultSummary.write(resultFiles, summaryFile);
+        if (summary.getReports().isEmpty() && summary.getTests() == 0) {
+          summaryFile.delete();
+          summaryFile = null;
+          return;
+        }
+        addTestRunnerLog(task.getInstanceId(), "Summarized " + summary.getTests() + " tests from " +
+                summary.getReports().size() + " reports: " + summary.getPassed() + " passed, " +
+                summary.getFailed() + " failed, " + summary.getErrors() + " errors, " + summary.getSkipped() + " skipped");
+        if (replaceReports) {
+          List<File> remaining = new ArrayList<File>(resultFiles);
+          remaining.removeAll(summary.getReports());
+          resultFiles = remaining;
+        }
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to summarize the result files", e);
+        if (summaryFile != null) summaryFile.delete();
+        summaryFile = null;
+      }
+    }
+
+    /**
+     * @return size of the output, result files and summary to upload
+     */
+    public long getUploadBytes() {
+      File outputFile = getOutputFile();
+      long bytes = outputFile != null ? outputFile.length() : output != null ? output.length() : 0;
+      if (summaryFile != null) bytes += summaryFile.length();
+      return bytes + totalLength(resultFiles);
+    }
+
+    private long totalLength(List<File> files) {
+      long length = 0;
+      if (files != null)
+        for (File file : files) length += file.length();
+      return length;
+    }
+
+    private void finishOutput(Thread streamDrainerThread) {
+      if (outputSpool == null) return;
+      try {
+        if (streamDrainerThread != null) streamDrainerThread.join(OUTPUT_DRAIN_TIMEOUT);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      try {
+        outputSpool.close();
+        output = outputSpool.getHead();
+        if (outputSpool.getDroppedBytes() > 0)
+          addTestRunnerLog(task.getInstanceId(), "Task output exceeded the limit, " + outputSpool.getDroppedBytes() + " bytes were dropped");
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to capture process console output", e);
+        outputSpool.delete();
+        outputSpool = null;
+      }
+    }
+
+    /**
+     * Ends the process and everything it started, so that nothing outlives the task or keeps its output stream
+     * open: SIGTERM first, then SIGKILL for whatever is still there after {@link #TASK_KILL_GRACE}. Processes
+     * that already left the tree by reparenting are only caught by the task's cgroup, if it has one.
+     */
+    private void stop(Process process) {
+      // the children have to be found before their parent goes, they are reparented after that
+      List<ProcessHandle> tree = new ArrayList<ProcessHandle>();
+      Iterator<ProcessHandle> descendants = process.descendants().iterator();
+      while (descendants.hasNext())
+        tree.add(descendants.next());
+      // the task itself through its Process: one the launcher started has no handle if it ended right away
+      process.destroy();
+      for (ProcessHandle handle : tree)
+        handle.destroy();
+      // polled rather than waited for with onExit, which takes a thread per process that is not our child
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TASK_KILL_GRACE);
+      List<ProcessHandle> stubborn = new ArrayList<ProcessHandle>(tree);
+      while (true) {
+        Iterator<ProcessHandle> handles = stubborn.iterator();
+        while (handles.hasNext())
+          if (!isRunning(handles.next())) handles.remove();
+        if ((stubborn.isEmpty() && !process.isAlive()) || System.nanoTime() >= deadline) break;
+        try {
+          Thread.sleep(TASK_KILL_POLL);
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+      boolean alive = process.isAlive();
+      if (stubborn.isEmpty() && !alive) return;
+      logger.warning((stubborn.size() + (alive ? 1 : 0)) + " processes of [" + task.getDescription() +
+              "] ignored SIGTERM, killing them");
+      // including whatever they started during the grace period
+      List<ProcessHandle> remaining = new ArrayList<ProcessHandle>(stubborn);
+      if (alive) {
+        descendants = process.descendants().iterator();
+        while (descendants.hasNext())
+          remaining.add(descendants.next());
+      }
+      for (ProcessHandle handle : stubborn) {
+        descendants = handle.descendants().iterator();
+        while (descendants.hasNext())
+          remaining.add(descendants.next());
+      }
+      process.destroyForcibly();
+      for (ProcessHandle handle : remaining)
+        handle.destroyForcibly();
+    }
+
+    /**
+     * @return false also for a zombie, which stays until its parent reaps it but does not run any more
+     */
+    private boolean isRunning(ProcessHandle handle) {
+      if (!handle.isAlive()) return false;
+      try {
+        String stat = new String(Files.readAllBytes(new File("/proc/" + handle.pid() + "/stat").toPath()), "US-ASCII");
+        // pid (command) state ..., the command may hold spaces and parentheses
+        return !stat.startsWith("Z", stat.lastIndexOf(')') + 2);
+      } catch (IOException e) {
+        // gone meanwhile, or no /proc
+        return handle.isAlive();
       }
     }
 
     private class Interrupter extends TimerTask {
       private Thread thread;
+      private boolean disarmed = false;
 
       public Interrupter(Thread thread) {
         this.thread = thread;
       }
 
       @Override
-      public void run() {
+      public synchronized void run() {
+        if (disarmed) return;
         logger.info("Interrupting...");
-        addTestRunnerLog("Interrupting...");
+        addTestRunnerLog(task.getInstanceId(), "Interrupting...");
         thread.interrupt();
       }
+
+      /**
+       * Once this returns, the thread is not going to be interrupted any more: an interrupt already under way
+       * has landed, and can be cleared.
+       */
+      synchronized void disarm() {
+        disarmed = true;
+        cancel();
+      }
     }
 
     private class StreamDrainer implements Runnable {
-      private final BufferedReader reader;
-      private final StringBuffer outputBuffer = new StringBuffer(); // use StringBuffer instead of StringBuilder -- synchronization
+      private final InputStream inputStream;
+      private final OutputSpool spool;
 
-      private StreamDrainer(InputStream inputStream) {
-        this.reader = new BufferedReader(new InputStreamReader(inputStream));
+      private StreamDrainer(InputStream inputStream, OutputSpool spool) {
+        this.inputStream = inputStream;
+        this.spool = spool;
       }
 
       public void run() {
-        String line;
+        byte[] buffer = new byte[8192];
+        int read;
         try {
-          while (!Thread.interrupted() && (line = reader.readLine()) != null) {
-            outputBuffer.append(line).append('\n');
+          while (!Thread.interrupted() && (read = inputStream.read(buffer)) >= 0) {
+            spool.write(buffer, 0, read);
           }
         } catch (IOException e) {
           logger.log(Level.WARNING, "Failed to read process console stream", e);
         }
       }
-
-      public String getOutput() {
-        return outputBuffer.toString();
-      }
     }
   }
 }
@@ -0,0 +1,88 @@
+package com.practitest.xbot;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Captures a task's console output into a temporary file while the task runs, so the result upload streams it
+ * from disk instead of holding it in memory.
+ * <p/>
+ * Output past the size limit is counted but dropped, and a note saying how much was dropped ends the file.
+ * The beginning of the output is also kept in memory for the agent's own log.
+ */
+final class OutputSpool {
+  private static final int HEAD_LENGTH = 255;
+
+  private final File file;
+  private final OutputStream out;
+  private final long limit;
+  private final ByteArrayOutputStream head = new ByteArrayOutputStream(HEAD_LENGTH);
+  private long captured = 0;
+  private long dropped = 0;
+  private boolean closed = false;
+
+  /**
+   * @param limit    bytes of output to keep
+   * @param compress gzip the file
+   */
+  OutputSpool(long limit, boolean compress) throws IOException {
+    this.limit = limit;
+    file = File.createTempFile("xbot-output", compress ? ".log.gz" : ".log");
+    OutputStream stream = new BufferedOutputStream(new FileOutputStream(file));
+    out = compress ? new GZIPOutputStream(stream) : stream;
+  }
+
+  synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+    if (closed) return;
+    if (head.size() < HEAD_LENGTH)
+      head.write(buffer, offset, Math.min(length, HEAD_LENGTH - head.size()));
+    int kept = (int) Math.min(length, limit - captured);
+    if (kept > 0) {
+      out.write(buffer, offset, kept);
+      captured += kept;
+    }
+    dropped += length - Math.max(kept, 0);
+  }
+
+  synchronized void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    try {
+      if (dropped > 0)
+        out.write(("\n<output truncated, " + dropped + " more bytes dropped>\n").getBytes(Charset.defaultCharset()));
+    } finally {
+      out.close();
+    }
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  synchronized long getCapturedBytes() {
+    return captured;
+  }
+
+  synchronized long getDroppedBytes() {
+    return dropped;
+  }
+
+  /**
+   * @return the beginning of the output, marked with <code>&lt;...&gt;</code> when there is more
+   */
+  synchronized String getHead() {
+    String text = new String(head.toByteArray(), Charset.defaultCharset());
+    return captured + dropped > head.size() ? text + "<...>" : text;
+  }
+
+  void delete() {
+    if (!file.delete() && file.exists())
+      file.deleteOnExit();
+  }
+}
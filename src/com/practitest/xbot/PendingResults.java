@@ -0,0 +1,181 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Client;
+import com.practitest.api.Metrics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Results whose upload failed, kept on disk until they are uploaded again, also by a restarted agent. Kept next to
+ * the chunked upload state, so that uploading one again resumes its large files from the last acknowledged chunk.
+ * <p/>
+ * Result files are referred to where the task left them, with their size and modification time: one that changed
+ * since, most likely overwritten by a later task, is left out rather than uploaded for the wrong instance. The
+ * console output and the summary, which only exist in temporary files, are copied. Like the chunk state, a result
+ * left for a week is dropped.
+ */
+final class PendingResults {
+  private static final Logger logger = Logger.getLogger(PendingResults.class.getName());
+
+  private static final String RESULT_SUFFIX = ".result";
+  private static final long STALE_RESULT_MILLIS = TimeUnit.DAYS.toMillis(7);
+  // between the instance and the name of a copied file; URL encoding escapes it, so no instance holds it
+  private static final String COPY_SEPARATOR = "~";
+
+  private final File directory;
+  private final Metrics metrics;
+
+  PendingResults(File directory, Metrics metrics) {
+    this.directory = directory;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Keeps a result to upload again, replacing any kept earlier for the same instance.
+   */
+  synchronized void add(Client.TaskResult result) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Failed to create " + directory);
+    String name = fileName(result.getInstanceId());
+    Properties properties = new Properties();
+    properties.setProperty("instance_id", result.getInstanceId());
+    properties.setProperty("exit_code", String.valueOf(result.getExitCode()));
+    if (result.getOutputFile() != null) {
+      File output = new File(directory, name + COPY_SEPARATOR + result.getOutputFile().getName());
+      copy(result.getOutputFile(), output);
+      properties.setProperty("output_file", output.getPath());
+    } else {
+      properties.setProperty("output", result.getFullOutput());
+    }
+    if (result.getSummaryFile() != null) {
+      File summary = new File(directory, name + COPY_SEPARATOR + result.getSummaryFile().getName());
+      copy(result.getSummaryFile(), summary);
+      properties.setProperty("summary_file", summary.getPath());
+    }
+    if (result.getFiles() != null)
+      for (int i = 0; i < result.getFiles().size(); ++i) {
+        File file = result.getFiles().get(i);
+        properties.setProperty("file." + i, file.getAbsolutePath());
+        properties.setProperty("file." + i + ".length", String.valueOf(file.length()));
+        properties.setProperty("file." + i + ".modified", String.valueOf(file.lastModified()));
+      }
+    File written = new File(directory, name + RESULT_SUFFIX + ".tmp");
+    OutputStream out = new FileOutputStream(written);
+    try {
+      properties.store(out, "result to upload again");
+    } finally {
+      out.close();
+    }
+    Files.move(written.toPath(), resultFile(result.getInstanceId()).toPath(),
+            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    metrics.set("xbot_results_pending", count());
+  }
+
+  /**
+   * @return the results kept, oldest first; results of a week ago and unreadable ones are dropped
+   */
+  synchronized List<Client.TaskResult> list() {
+    File[] files = directory.listFiles();
+    List<Client.TaskResult> results = new ArrayList<Client.TaskResult>();
+    if (files == null) return results;
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File a, File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    long cutoff = System.currentTimeMillis() - STALE_RESULT_MILLIS;
+    for (File file : files) {
+      if (!file.getName().endsWith(RESULT_SUFFIX)) continue;
+      Properties properties = new Properties();
+      try {
+        InputStream in = new FileInputStream(file);
+        try {
+          properties.load(in);
+        } finally {
+          in.close();
+        }
+        String instanceId = properties.getProperty("instance_id");
+        if (file.lastModified() < cutoff) {
+          logger.info("Dropping the result of instance " + instanceId + ", not uploaded for a week");
+          remove(instanceId);
+          continue;
+        }
+        results.add(toResult(properties));
+      } catch (IOException e) {
+        logger.warning("Failed to read " + file + ": " + e.getMessage());
+      } catch (RuntimeException e) {
+        logger.warning("Dropping unreadable " + file + ": " + e);
+        file.delete();
+      }
+    }
+    metrics.set("xbot_results_pending", results.size());
+    return results;
+  }
+
+  synchronized void remove(String instanceId) {
+    String prefix = fileName(instanceId) + COPY_SEPARATOR;
+    File[] files = directory.listFiles();
+    if (files != null)
+      for (File file : files)
+        if (file.getName().startsWith(prefix)) file.delete();
+    resultFile(instanceId).delete();
+    metrics.set("xbot_results_pending", count());
+  }
+
+  private Client.TaskResult toResult(Properties properties) {
+    String instanceId = properties.getProperty("instance_id");
+    int exitCode = Integer.parseInt(properties.getProperty("exit_code"));
+    List<File> files = new ArrayList<File>();
+    for (int i = 0; properties.getProperty("file." + i) != null; ++i) {
+      File file = new File(properties.getProperty("file." + i));
+      if (file.isFile() && file.length() == Long.parseLong(properties.getProperty("file." + i + ".length")) &&
+              file.lastModified() == Long.parseLong(properties.getProperty("file." + i + ".modified")))
+        files.add(file);
+      else
+        logger.warning("Leaving " + file + " out of the result of instance " + instanceId + ", it changed since the task");
+    }
+    String outputFile = properties.getProperty("output_file");
+    String summaryFile = properties.getProperty("summary_file");
+    File summary = summaryFile != null ? new File(summaryFile) : null;
+    if (outputFile == null)
+      return new Client.TaskResult(instanceId, exitCode, files, properties.getProperty("output", ""), summary);
+    return new Client.TaskResult(instanceId, exitCode, files, new File(outputFile), summary);
+  }
+
+  private int count() {
+    String[] names = directory.list();
+    int count = 0;
+    if (names != null)
+      for (String name : names)
+        if (name.endsWith(RESULT_SUFFIX)) ++count;
+    return count;
+  }
+
+  private File resultFile(String instanceId) {
+    return new File(directory, fileName(instanceId) + RESULT_SUFFIX);
+  }
+
+  private static String fileName(String instanceId) {
+    return "result-" + URLEncoder.encode(instanceId, StandardCharsets.UTF_8);
+  }
+
+  private static void copy(File from, File to) throws IOException {
+    Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+}
@@ -0,0 +1,135 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Runs a poll ahead of the schedule when asked to, for pipelines that know they just queued work.
+ * <p/>
+ * Requests coalesce: while a requested poll has not started yet, further requests join it, and any poll that
+ * starts, scheduled or requested, serves every request made before it. A requested poll starts no sooner than
+ * <code>minIntervalMillis</code> after the previous one, so a stream of requests cannot keep the server busy.
+ * Requested polls run on the scheduler's thread, so they never overlap a scheduled one.
+ */
+final class PollTrigger {
+  private static final Logger logger = Logger.getLogger(PollTrigger.class.getName());
+
+  private final ScheduledExecutorService scheduler;
+  private final Runnable poll;
+  private final long minIntervalMillis;
+  private final Metrics metrics;
+  private final AtomicBoolean requested = new AtomicBoolean(false);
+  private volatile long lastPollAt = 0;
+  private volatile ServerSocket socket;
+
+  /**
+   * @param poll the scheduled poll, which calls {@link #pollStarted()} as it starts
+   */
+  PollTrigger(ScheduledExecutorService scheduler, Runnable poll, long minIntervalMillis, Metrics metrics) {
+    this.scheduler = scheduler;
+    this.poll = poll;
+    this.minIntervalMillis = minIntervalMillis;
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return false when the request joined a poll already on its way
+   */
+  boolean request() {
+    metrics.increment("xbot_poll_now_requests_total");
+    if (!requested.compareAndSet(false, true)) return false;
+    long delay = 0;
+    if (lastPollAt != 0)
+      delay = Math.max(0, minIntervalMillis - (System.nanoTime() - lastPollAt) / 1000000);
+    try {
+      scheduler.schedule(new Runnable() {
+        public void run() {
+          // a scheduled poll may have served the request meanwhile
+          if (!requested.get()) return;
+          metrics.increment("xbot_poll_now_polls_total");
+          poll.run();
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      requested.set(false);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Called by every poll as it starts; it serves the requests made so far.
+   */
+  void pollStarted() {
+    requested.set(false);
+    lastPollAt = System.nanoTime();
+  }
+
+  boolean isPending() {
+    return requested.get();
+  }
+
+  String describe() {
+    return isPending() ? "Poll requested, starting shortly\n" : "No poll pending\n";
+  }
+
+  /**
+   * Also takes requests on a loopback port: every connection is one, answered with <code>OK</code>.
+   *
+   * @param port 0 for any free port
+   */
+  void listen(int port) throws IOException {
+    final ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    socket = server;
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        while (!server.isClosed()) {
+          try {
+            Socket connection = server.accept();
+            try {
+              request();
+              OutputStream out = connection.getOutputStream();
+              out.write("OK\n".getBytes(StandardCharsets.US_ASCII));
+              out.flush();
+            } finally {
+              connection.close();
+            }
+          } catch (IOException e) {
+            if (!server.isClosed()) logger.warning("Poll request connection failed: " + e.getMessage());
+          }
+        }
+      }
+    }, "xbot-poll-now");
+    thread.setDaemon(true);
+    thread.start();
+    logger.info("Taking poll requests on 127.0.0.1:" + server.getLocalPort());
+  }
+
+  /**
+   * @return the loopback port taking requests, -1 if there is none
+   */
+  int getPort() {
+    ServerSocket server = socket;
+    return server != null ? server.getLocalPort() : -1;
+  }
+
+  void close() {
+    ServerSocket server = socket;
+    if (server == null) return;
+    try {
+      server.close();
+    } catch (IOException ignored) {
+    }
+  }
+}
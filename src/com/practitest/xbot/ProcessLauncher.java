@@ -0,0 +1,448 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Metrics;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Starts task processes from a small shell started once, instead of forking the agent's JVM for each, so that
+ * spawning does not get slower as the agent's heap grows.
+ * <p/>
+ * Requests go to the shell's stdin, a line each: an id, the working directory, a path for the output and the
+ * command, all shell-quoted. For each one the shell forks a subshell that makes a named pipe at that path and
+ * answers <code>ready &lt;id&gt;</code>; once the agent opened the pipe, and unlinked it, the subshell starts the
+ * command with stdout and stderr on the pipe, then answers <code>started &lt;id&gt; &lt;pid&gt;</code> and, once
+ * the command ended, <code>exit &lt;id&gt; &lt;status&gt;</code>. Output goes through the pipe as it would from
+ * {@link ProcessBuilder}, nothing of it is written to disk, and it ends once every process holding the pipe is gone.
+ * <p/>
+ * What the shell cannot do the same way as {@link ProcessBuilder} still goes through it: commands with a line
+ * break, a program that is not there or not executable (for the same error), separate stderr or a changed
+ * environment. So does everything once the shell is gone. Tasks get an empty stdin.
+ */
+final class ProcessLauncher {
+  private static final Logger logger = Logger.getLogger(ProcessLauncher.class.getName());
+
+  private static final String SCRIPT =
+          "exec 3>&1\n" +
+          "while IFS= read -r request; do\n" +
+          "  eval \"set -- $request\"\n" +
+          "  if [ \"$1\" = reap ]; then\n" +
+          "    eval \"wait \\$job_$2 2>/dev/null; unset job_$2\"\n" +
+          "    continue\n" +
+          "  fi\n" +
+          "  id=$1 directory=$2 output=$3\n" +
+          "  shift 3\n" +
+          "  (\n" +
+          // the subshell's own messages, such as the shell telling a job was killed, are not task output
+          "    exec 2>/dev/null </dev/null\n" +
+          "    cd \"$directory\" && mkfifo -m 600 \"$output\" || { echo \"failed $id\" >&3; exit 1; }\n" +
+          "    echo \"ready $id\" >&3\n" +
+          // waits for the agent to open the other end
+          "    exec 4>\"$output\"\n" +
+          "    \"$@\" >&4 2>&4 3>&- 4>&- &\n" +
+          // only the command and what it starts hold the pipe, so its end is the end of their output
+          "    exec 4>&-\n" +
+          "    echo \"started $id $!\" >&3\n" +
+          "    wait $!\n" +
+          "    echo \"exit $id $?\" >&3\n" +
+          "  ) &\n" +
+          "  eval \"job_$id=\\$!\"\n" +
+          "done\n";
+
+  // how long the subshell may take to open its end of the output pipe once it answered ready
+  private static final long OPEN_TIMEOUT_MILLIS = 10000;
+  private static final ScheduledExecutorService watchdog = createWatchdog();
+
+  private final Process shell;
+  private final File pipes;
+  private final Writer requests;
+  private final Metrics metrics;
+  private final Map<Long, LaunchedProcess> launched = new ConcurrentHashMap<Long, LaunchedProcess>();
+  private final AtomicLong nextId = new AtomicLong();
+  private volatile boolean available = true;
+
+  private ProcessLauncher(Process shell, File pipes, Metrics metrics) {
+    this.shell = shell;
+    this.pipes = pipes;
+    this.requests = new OutputStreamWriter(shell.getOutputStream(), StandardCharsets.UTF_8);
+    this.metrics = metrics;
+  }
+
+  static ProcessLauncher start(Metrics metrics) throws IOException {
+    ProcessBuilder builder = new ProcessBuilder("/bin/sh", "-c", SCRIPT);
+    builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+    // only the agent's user may open the pipes in it
+    File pipes = Files.createTempDirectory("xbot-launcher").toFile();
+    final ProcessLauncher launcher = new ProcessLauncher(builder.start(), pipes, metrics);
+    Thread reader = new Thread(new Runnable() {
+      public void run() {
+        launcher.readAnswers();
+      }
+    }, "xbot-launcher");
+    reader.setDaemon(true);
+    reader.start();
+    logger.info("Task processes are started by launcher shell " + launcher.shell.pid());
+    return launcher;
+  }
+
+  boolean isAvailable() {
+    return available;
+  }
+
+  /**
+   * Starts the command of <code>builder</code> from the launcher shell, or directly when it cannot.
+   */
+  Process start(ProcessBuilder builder) throws IOException {
+    List<String> command = builder.command();
+    File directory = builder.directory() != null ? builder.directory() : new File(System.getProperty("user.dir"));
+    if (!available || !canLaunch(builder, command)) {
+      metrics.increment("xbot_launcher_direct_spawns_total");
+      return builder.start();
+    }
+    long id = nextId.incrementAndGet();
+    File output = new File(pipes, id + ".out");
+    LaunchedProcess process = new LaunchedProcess(id, output);
+    launched.put(id, process);
+    StringBuilder request = new StringBuilder(256);
+    request.append(id).append(' ').append(quote(directory.getPath())).append(' ').append(quote(output.getPath()));
+    for (String argument : command)
+      request.append(' ').append(quote(argument));
+    try {
+      send(request.toString());
+      process.open(watchdog);
+    } catch (IOException e) {
+      launched.remove(id);
+      output.delete();
+      if (!available) {
+        metrics.increment("xbot_launcher_direct_spawns_total");
+        return builder.start();
+      }
+      throw e;
+    }
+    metrics.increment("xbot_launcher_spawns_total");
+    return process;
+  }
+
+  /**
+   * Ends the launcher shell; processes it started keep running until they are done.
+   */
+  void close() {
+    available = false;
+    try {
+      requests.close();
+    } catch (IOException ignored) {
+    }
+    File[] left = pipes.listFiles();
+    if (left != null)
+      for (File pipe : left) pipe.delete();
+    pipes.delete();
+  }
+
+  private static ScheduledExecutorService createWatchdog() {
+    ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "xbot-launcher-watchdog");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    // a timeout is cancelled at every start that went well, and its thread is let go while no task starts
+    timer.setRemoveOnCancelPolicy(true);
+    timer.setKeepAliveTime(60, TimeUnit.SECONDS);
+    timer.allowCoreThreadTimeOut(true);
+    return timer;
+  }
+
+  private boolean canLaunch(ProcessBuilder builder, List<String> command) {
+    if (command.isEmpty() || !builder.redirectErrorStream() || !builder.environment().equals(System.getenv()))
+      return false;
+    for (String argument : command)
+      if (argument.indexOf('\n') >= 0 || argument.indexOf('\0') >= 0) return false;
+    // a program that cannot be run fails in ProcessBuilder, with the error tasks expect
+    String program = command.get(0);
+    if (program.indexOf('/') >= 0) return isExecutable(new File(program));
+    String path = System.getenv("PATH");
+    if (path == null) return false;
+    for (String directory : path.split(File.pathSeparator))
+      if (isExecutable(new File(directory.isEmpty() ? "." : directory, program))) return true;
+    return false;
+  }
+
+  private static boolean isExecutable(File program) {
+    return program.isFile() && program.canExecute();
+  }
+
+  private void send(String request) throws IOException {
+    synchronized (requests) {
+      requests.write(request);
+      requests.write('\n');
+      requests.flush();
+    }
+  }
+
+  private void readAnswers() {
+    try {
+      BufferedReader answers = new BufferedReader(new InputStreamReader(shell.getInputStream(), StandardCharsets.UTF_8));
+      String answer;
+      while ((answer = answers.readLine()) != null) {
+        String[] fields = answer.split(" ");
+        LaunchedProcess process = fields.length >= 2 ? launched.get(Long.parseLong(fields[1])) : null;
+        if (process == null) {
+          logger.warning("Unexpected answer from the launcher shell: " + answer);
+        } else if (fields[0].equals("ready") && fields.length == 2) {
+          process.ready();
+        } else if (fields[0].equals("started") && fields.length == 3) {
+          process.started(Long.parseLong(fields[2]));
+        } else if (fields[0].equals("exit") && fields.length == 3) {
+          finished(process, Integer.parseInt(fields[2]));
+        } else if (fields[0].equals("failed")) {
+          process.failed(new IOException("The launcher shell could not start the process"));
+          finished(process, -1);
+        }
+      }
+    } catch (IOException e) {
+      logger.warning("Lost the launcher shell: " + e.getMessage());
+    } catch (NumberFormatException e) {
+      logger.warning("Garbled answer from the launcher shell: " + e.getMessage());
+    }
+    available = false;
+    if (!launched.isEmpty())
+      logger.warning("The launcher shell ended, " + launched.size() + " processes it started are not followed any more");
+    for (LaunchedProcess process : launched.values()) {
+      process.failed(new IOException("The launcher shell ended"));
+      process.exited(-1);
+    }
+    launched.clear();
+  }
+
+  private void finished(LaunchedProcess process, int status) {
+    launched.remove(process.id);
+    process.exited(status);
+    try {
+      // the subshell that waited for it is done too
+      send("reap " + process.id);
+    } catch (IOException ignored) {
+      // the reader finds out the shell is gone
+    }
+  }
+
+  private static String quote(String argument) {
+    return "'" + argument.replace("'", "'\\''") + "'";
+  }
+
+  /**
+   * A process started by the launcher shell: not our child, so followed through the shell's answers.
+   */
+  private static final class LaunchedProcess extends Process {
+    private final long id;
+    private final File output;
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private final CountDownLatch start = new CountDownLatch(1);
+    private final CompletableFuture<Integer> exit = new CompletableFuture<Integer>();
+    private volatile long pid = -1;
+    private volatile ProcessHandle handle;
+    private volatile InputStream input;
+    private volatile IOException failure;
+
+    LaunchedProcess(long id, File output) {
+      this.id = id;
+      this.output = output;
+    }
+
+    void ready() {
+      ready.countDown();
+    }
+
+    void started(long pid) {
+      this.pid = pid;
+      // taken while the process is there, it still tells it is gone afterwards
+      handle = ProcessHandle.of(pid).orElse(null);
+      start.countDown();
+    }
+
+    void failed(IOException e) {
+      failure = e;
+      ready.countDown();
+      start.countDown();
+    }
+
+    void exited(int status) {
+      exit.complete(status);
+    }
+
+    /**
+     * Opens the output pipe once the subshell made it, which lets the subshell start the command, and waits for
+     * the command to be started. Should the subshell not open its end in time, gone after answering, the
+     * watchdog opens it instead, only to end the wait.
+     */
+    void open(ScheduledExecutorService watchdog) throws IOException {
+      awaitUninterruptibly(ready);
+      if (failure != null) throw failure;
+      // whichever of the open and the timeout comes first
+      final AtomicBoolean settled = new AtomicBoolean();
+      ScheduledFuture<?> timeout = watchdog.schedule(new Runnable() {
+        public void run() {
+          if (settled.getAndSet(true)) return;
+          try {
+            new FileOutputStream(output).close();
+          } catch (IOException ignored) {
+          }
+        }
+      }, OPEN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      try {
+        input = new FileInputStream(output);
+      } finally {
+        timeout.cancel(false);
+        // both ends are open, the pipe lives on without its name
+        output.delete();
+      }
+      if (settled.getAndSet(true)) {
+        input.close();
+        throw new IOException("The launcher shell did not open the output of the process");
+      }
+      awaitUninterruptibly(start);
+      if (failure != null) {
+        input.close();
+        throw failure;
+      }
+    }
+
+    /**
+     * Waits for the shell's answer even if interrupted, as {@link ProcessBuilder#start()} would; the interrupt
+     * is kept for whatever comes next.
+     */
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          latch.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return OutputStream.nullOutputStream();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return input;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+      return InputStream.nullInputStream();
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+      try {
+        return exit.get();
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+
+    @Override
+    public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+      try {
+        exit.get(timeout, unit);
+        return true;
+      } catch (TimeoutException e) {
+        return false;
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+
+    @Override
+    public int exitValue() {
+      if (!exit.isDone()) throw new IllegalThreadStateException("process hasn't exited");
+      return exit.join();
+    }
+
+    @Override
+    public void destroy() {
+      if (handle != null) handle.destroy();
+    }
+
+    @Override
+    public Process destroyForcibly() {
+      if (handle != null) handle.destroyForcibly();
+      return this;
+    }
+
+    @Override
+    public boolean isAlive() {
+      return !exit.isDone();
+    }
+
+    @Override
+    public long pid() {
+      return pid;
+    }
+
+    /**
+     * @throws IllegalStateException when the process ended before the shell's answer was read, which leaves no
+     *                               handle to take; {@link #descendants()} and the rest of the class do without
+     */
+    @Override
+    public ProcessHandle toHandle() {
+      ProcessHandle current = handle != null ? handle : ProcessHandle.of(pid).orElse(null);
+      if (current == null) throw new IllegalStateException("Process " + pid + " ended before it was looked up");
+      return current;
+    }
+
+    @Override
+    public Stream<ProcessHandle> children() {
+      return handle != null ? handle.children() : Stream.<ProcessHandle>empty();
+    }
+
+    @Override
+    public Stream<ProcessHandle> descendants() {
+      return handle != null ? handle.descendants() : Stream.<ProcessHandle>empty();
+    }
+
+    @Override
+    public CompletableFuture<Process> onExit() {
+      return exit.thenApply(new Function<Integer, Process>() {
+        public Process apply(Integer status) {
+          return LaunchedProcess.this;
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,188 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Client;
+import com.practitest.api.Metrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Collects the results of tasks that produced no files and reports them together, so that short tasks do not
+ * each wait for a round trip to the server.
+ * <p/>
+ * A batch goes out once it holds <code>maxCount</code> results or <code>maxBytes</code> of output, or once its
+ * oldest result waited <code>lingerMillis</code>. Results the server did not take, or all of a batch that
+ * failed as a whole, are uploaded one by one on the usual per-instance path. The sending thread only runs
+ * while results are pending.
+ */
+final class ResultBatcher implements Runnable {
+  private static final Logger logger = Logger.getLogger(ResultBatcher.class.getName());
+
+  // instance id, exit code and JSON framing of a result
+  private static final int RESULT_OVERHEAD_BYTES = 64;
+
+  interface Sender {
+    /**
+     * @return why the server did not take a result, per instance id
+     */
+    Map<String, String> sendBatch(List<Client.TaskResult> results) throws Exception;
+
+    /**
+     * Uploads a result the batch did not get through, on its own.
+     */
+    void sendOne(Client.TaskResult result, String reason);
+  }
+
+  private final int maxCount;
+  private final long maxBytes;
+  private final long lingerMillis;
+  private final Sender sender;
+  private final Metrics metrics;
+
+  private final List<Pending> pending = new ArrayList<Pending>();
+  private long pendingBytes = 0;
+  private boolean running = false;
+  private int sending = 0;
+
+  ResultBatcher(int maxCount, long maxBytes, long lingerMillis, Sender sender, Metrics metrics) {
+    this.maxCount = maxCount;
+    this.maxBytes = maxBytes;
+    this.lingerMillis = lingerMillis;
+    this.sender = sender;
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return whether the result can go in a batch: no files, and its output given as a string that fits one
+   */
+  boolean accepts(Client.TaskResult result) {
+    return (result.getFiles() == null || result.getFiles().isEmpty()) && result.getOutputFile() == null &&
+            result.getSummaryFile() == null && size(result) <= maxBytes;
+  }
+
+  long getMaxBytes() {
+    return maxBytes;
+  }
+
+  synchronized void add(Client.TaskResult result) {
+    Pending added = new Pending(result, size(result), System.nanoTime());
+    pending.add(added);
+    pendingBytes += added.size;
+    if (!running) {
+      running = true;
+      Thread thread = new Thread(this, "xbot-result-batcher");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    notifyAll();
+  }
+
+  synchronized int getPending() {
+    return pending.size();
+  }
+
+  /**
+   * Sends whatever is pending now, and waits until batches already on their way are through.
+   */
+  void flush() throws InterruptedException {
+    while (true) {
+      List<Client.TaskResult> batch;
+      synchronized (this) {
+        batch = take();
+        if (batch.isEmpty()) {
+          while (sending > 0) wait();
+          return;
+        }
+      }
+      send(batch);
+    }
+  }
+
+  public void run() {
+    while (true) {
+      List<Client.TaskResult> batch;
+      synchronized (this) {
+        try {
+          while (!pending.isEmpty() && pending.size() < maxCount && pendingBytes < maxBytes) {
+            long waited = (System.nanoTime() - pending.get(0).enqueuedAt) / 1000000;
+            if (waited >= lingerMillis) break;
+            wait(lingerMillis - waited);
+          }
+        } catch (InterruptedException ignored) {
+          // send what there is
+        }
+        if (pending.isEmpty()) {
+          running = false;
+          return;
+        }
+        batch = take();
+      }
+      send(batch);
+    }
+  }
+
+  /**
+   * Takes up to a batch worth of pending results, by count and by bytes but always at least one; the caller must
+   * send them. Results left over keep waiting since they were added.
+   */
+  private List<Client.TaskResult> take() {
+    List<Client.TaskResult> batch = new ArrayList<Client.TaskResult>();
+    long batchBytes = 0;
+    while (!pending.isEmpty() && batch.size() < maxCount) {
+      if (!batch.isEmpty() && batchBytes + pending.get(0).size > maxBytes) break;
+      Pending next = pending.remove(0);
+      pendingBytes -= next.size;
+      batchBytes += next.size;
+      batch.add(next.result);
+    }
+    if (!batch.isEmpty()) ++sending;
+    return batch;
+  }
+
+  private void send(List<Client.TaskResult> batch) {
+    try {
+      metrics.increment("xbot_result_batches_total");
+      metrics.add("xbot_results_batched_total", batch.size());
+      Map<String, String> rejected;
+      try {
+        rejected = sender.sendBatch(batch);
+      } catch (Exception e) {
+        logger.warning("Batch of " + batch.size() + " results failed, uploading them one by one: " + e.getMessage());
+        rejected = new LinkedHashMap<String, String>();
+        for (Client.TaskResult result : batch)
+          rejected.put(result.getInstanceId(), "batch failed: " + e.getMessage());
+      }
+      for (Client.TaskResult result : batch) {
+        String reason = rejected.get(result.getInstanceId());
+        if (reason == null) continue;
+        metrics.increment("xbot_result_batch_fallbacks_total");
+        sender.sendOne(result, reason);
+      }
+    } finally {
+      synchronized (this) {
+        --sending;
+        notifyAll();
+      }
+    }
+  }
+
+  private static long size(Client.TaskResult result) {
+    return result.getFullOutput().getBytes(StandardCharsets.UTF_8).length + RESULT_OVERHEAD_BYTES;
+  }
+
+  private static final class Pending {
+    private final Client.TaskResult result;
+    private final long size;
+    private final long enqueuedAt;
+
+    Pending(Client.TaskResult result, long size, long enqueuedAt) {
+      this.result = result;
+      this.size = size;
+      this.enqueuedAt = enqueuedAt;
+    }
+  }
+}
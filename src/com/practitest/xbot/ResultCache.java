@@ -0,0 +1,317 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Metrics;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Results of deterministic tasks, reused when the same command runs again on the same inputs.
+ * <p/>
+ * A task opts in with a <code>.xbot-inputs</code> file in its working directory that lists, one per line,
+ * the files and directories its result depends on. The cache key is a hash of the tokenised command line,
+ * the content of the command itself, of the inputs file and of every listed input. Entries are directories
+ * holding the exit code, the console output and the result files; the least recently used ones are deleted
+ * once the cache grows past its size limit.
+ */
+final class ResultCache {
+  static final String INPUTS_FILE = ".xbot-inputs";
+
+  private static final Logger logger = Logger.getLogger(ResultCache.class.getName());
+  private static final String EXIT_CODE_FILE = "exit_code";
+  private static final String FILES_INDEX = "files.idx";
+  private static final String FILES_DIRECTORY = "files";
+  private static final String OUTPUT_NAME = "output";
+
+  private final File directory;
+  private final long maxBytes;
+  private final Metrics metrics;
+
+  ResultCache(File directory, long maxBytes, Metrics metrics) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.metrics = metrics;
+  }
+
+  /**
+   * @param parameters       the tokenised command line
+   * @param workingDirectory where the command runs and where the inputs file is looked for
+   * @return the cache key, null when the task did not opt in
+   */
+  String fingerprint(List<String> parameters, File workingDirectory, String pathToResults, int numOfFilesToUpload)
+          throws IOException {
+    File inputsFile = new File(workingDirectory, INPUTS_FILE);
+    if (!inputsFile.isFile()) return null;
+    MessageDigest digest = sha256();
+    for (String parameter : parameters)
+      update(digest, "arg:" + parameter);
+    update(digest, "results:" + pathToResults + ":" + numOfFilesToUpload);
+    hashPath(digest, "command", resolveCommand(parameters.get(0), workingDirectory));
+    hashPath(digest, "inputs", inputsFile);
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(inputsFile), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) continue;
+        File input = new File(line);
+        hashPath(digest, line, input.isAbsolute() ? input : new File(workingDirectory, line));
+      }
+    } finally {
+      reader.close();
+    }
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Finds the program the way {@link ProcessBuilder} runs it: a path is taken from the task's working directory,
+   * a bare name is looked for along <code>PATH</code>, whose empty and relative entries are also taken from there.
+   *
+   * @param workingDirectory null for the agent's
+   * @return the program, or where it was expected when it is not found
+   */
+  static File resolveCommand(String program, File workingDirectory) {
+    File command = new File(program);
+    if (program.indexOf('/') >= 0)
+      return command.isAbsolute() ? command : new File(workingDirectory, program).getAbsoluteFile();
+    String path = System.getenv("PATH");
+    if (path != null) {
+      for (String entry : path.split(File.pathSeparator)) {
+        File directory = new File(entry.isEmpty() ? "." : entry);
+        if (!directory.isAbsolute()) directory = new File(workingDirectory, directory.getPath());
+        File candidate = new File(directory, program).getAbsoluteFile();
+        if (candidate.isFile() && candidate.canExecute()) return candidate;
+      }
+    }
+    return new File(workingDirectory, program).getAbsoluteFile();
+  }
+
+  /**
+   * @return the cached result, null on a miss
+   */
+  Entry lookup(String key) {
+    File entry = new File(directory, key);
+    File exitCodeFile = new File(entry, EXIT_CODE_FILE);
+    Entry found = null;
+    if (exitCodeFile.isFile()) {
+      try {
+        found = new Entry(entry, Integer.parseInt(new String(Files.readAllBytes(exitCodeFile.toPath()), StandardCharsets.US_ASCII).trim()));
+        entry.setLastModified(System.currentTimeMillis());
+      } catch (IOException e) {
+        logger.warning("Ignoring unreadable cache entry " + entry + ": " + e.getMessage());
+      } catch (NumberFormatException e) {
+        logger.warning("Ignoring corrupt cache entry " + entry);
+      }
+    }
+    metrics.increment(found != null ? "xbot_result_cache_hits_total" : "xbot_result_cache_misses_total");
+    long hits = metrics.get("xbot_result_cache_hits_total");
+    metrics.set("xbot_result_cache_hit_ratio_percent", hits * 100 / (hits + metrics.get("xbot_result_cache_misses_total")));
+    return found;
+  }
+
+  /**
+   * Adds a result, then deletes the least recently used entries past the size limit.
+   *
+   * @param output the console output, null if it was not captured
+   */
+  void store(String key, int exitCode, File output, List<File> resultFiles) throws IOException {
+    long size = output != null ? output.length() : 0;
+    if (resultFiles != null)
+      for (File file : resultFiles) size += file.length();
+    if (size > maxBytes) {
+      logger.info("Result of " + key + " is larger than the whole cache, not caching it");
+      return;
+    }
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Cannot create " + directory);
+    // built aside and renamed into place, so a lookup never sees half an entry
+    File staging = Files.createTempDirectory(directory.toPath(), "." + key).toFile();
+    try {
+      if (output != null)
+        Files.copy(output.toPath(), new File(staging, OUTPUT_NAME + (output.getName().endsWith(".gz") ? ".log.gz" : ".log")).toPath());
+      File files = new File(staging, FILES_DIRECTORY);
+      if (!files.mkdir()) throw new IOException("Cannot create " + files);
+      Writer index = new OutputStreamWriter(new FileOutputStream(new File(staging, FILES_INDEX)), StandardCharsets.UTF_8);
+      try {
+        if (resultFiles != null) {
+          // kept below their common directory, so that reports of the same name from different places stay apart
+          Path base = commonDirectory(resultFiles);
+          for (File file : resultFiles) {
+            Path relative = base.relativize(file.toPath().toAbsolutePath().normalize());
+            Path copy = files.toPath().resolve(relative);
+            Files.createDirectories(copy.getParent());
+            Files.copy(file.toPath(), copy, StandardCopyOption.REPLACE_EXISTING);
+            index.write(relative.toString().replace(File.separatorChar, '/') + "\n");
+          }
+        }
+      } finally {
+        index.close();
+      }
+      OutputStream exitCodeOut = new FileOutputStream(new File(staging, EXIT_CODE_FILE));
+      try {
+        exitCodeOut.write(String.valueOf(exitCode).getBytes(StandardCharsets.US_ASCII));
+      } finally {
+        exitCodeOut.close();
+      }
+      File entry = new File(directory, key);
+      if (entry.exists()) deleteRecursively(entry);
+      Files.move(staging.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      if (staging.exists()) deleteRecursively(staging);
+    }
+    evict();
+  }
+
+  private static Path commonDirectory(List<File> files) {
+    Path common = null;
+    for (File file : files) {
+      Path parent = file.toPath().toAbsolutePath().normalize().getParent();
+      if (common == null) common = parent;
+      while (!parent.startsWith(common)) common = common.getParent();
+    }
+    return common;
+  }
+
+  private void evict() {
+    File[] entries = directory.listFiles();
+    if (entries == null) return;
+    Arrays.sort(entries, new Comparator<File>() {
+      public int compare(File left, File right) {
+        // most recently used first
+        return Long.valueOf(right.lastModified()).compareTo(left.lastModified());
+      }
+    });
+    long total = 0;
+    boolean full = false;
+    for (File entry : entries) {
+      if (entry.getName().startsWith(".")) continue; // being stored
+      long size = sizeOf(entry);
+      full = full || total + size > maxBytes;
+      if (full) {
+        deleteRecursively(entry);
+        metrics.increment("xbot_result_cache_evictions_total");
+      } else {
+        total += size;
+      }
+    }
+    metrics.set("xbot_result_cache_bytes", total);
+  }
+
+  private static long sizeOf(File file) {
+    if (!file.exists()) return 0;
+    if (file.isFile()) return file.length();
+    long size = 0;
+    File[] children = file.listFiles();
+    if (children != null)
+      for (File child : children) size += sizeOf(child);
+    return size;
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null)
+      for (File child : children) deleteRecursively(child);
+    file.delete();
+  }
+
+  private static void hashPath(MessageDigest digest, String name, File path) throws IOException {
+    if (path.isDirectory()) {
+      update(digest, "dir:" + name);
+      String[] children = path.list();
+      if (children == null) return;
+      Arrays.sort(children);
+      for (String child : children)
+        hashPath(digest, name + "/" + child, new File(path, child));
+    } else if (path.isFile()) {
+      update(digest, "file:" + name + ":" + path.length());
+      byte[] buffer = new byte[8192];
+      InputStream in = new FileInputStream(path);
+      try {
+        int read;
+        while ((read = in.read(buffer)) != -1)
+          digest.update(buffer, 0, read);
+      } finally {
+        in.close();
+      }
+    } else {
+      update(digest, "missing:" + name);
+    }
+  }
+
+  private static void update(MessageDigest digest, String text) {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    // length prefixed, so that no two different sequences hash the same
+    digest.update((bytes.length + ":").getBytes(StandardCharsets.US_ASCII));
+    digest.update(bytes);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes)
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    return hex.toString();
+  }
+
+  static final class Entry {
+    private final File directory;
+    private final int exitCode;
+
+    private Entry(File directory, int exitCode) {
+      this.directory = directory;
+      this.exitCode = exitCode;
+    }
+
+    int getExitCode() {
+      return exitCode;
+    }
+
+    /**
+     * @return the cached console output, null if there is none
+     */
+    File getOutputFile() {
+      File[] outputs = directory.listFiles();
+      if (outputs != null)
+        for (File file : outputs)
+          if (file.getName().startsWith(OUTPUT_NAME)) return file;
+      return null;
+    }
+
+    /**
+     * @return the result files, in their original order; names are kept, directories only where they differed
+     */
+    List<File> getResultFiles() throws IOException {
+      List<File> files = new ArrayList<File>();
+      for (String name : Files.readAllLines(new File(directory, FILES_INDEX).toPath(), StandardCharsets.UTF_8))
+        if (!name.isEmpty()) files.add(new File(new File(directory, FILES_DIRECTORY), name));
+      return Collections.unmodifiableList(files);
+    }
+  }
+}
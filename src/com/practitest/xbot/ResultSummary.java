@@ -0,0 +1,288 @@
+package com.practitest.xbot;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Per-test results of the JUnit XML and TAP reports among a task's result files, written as one compact JSON
+ * document:
+ * <pre>
+ * {"tests":3,"passed":1,"failed":1,"errors":0,"skipped":1,
+ *  "reports":[{"file":"TEST-a.xml","format":"junit","steps":[{"name":"...","class":"...","status":"failed",
+ *    "time_ms":12,"message":"..."},...]}]}
+ * </pre>
+ * Reports are read with streaming parsers and every step goes straight to the output file, so memory use does
+ * not depend on the size of the reports. Files in other formats are left out.
+ */
+final class ResultSummary {
+  static final String PASSED = "passed";
+  static final String FAILED = "failed";
+  static final String ERROR = "error";
+  static final String SKIPPED = "skipped";
+
+  private static final int MAX_MESSAGE_LENGTH = 1024;
+  private static final Pattern TAP_PLAN = Pattern.compile("^1\\.\\.\\d+");
+  private static final Pattern TAP_RESULT = Pattern.compile("^(not )?ok\\b\\s*(\\d+)?\\s*(?:- )?([^#]*?)\\s*(?:#\\s*(\\w+)\\b\\s*(.*))?$");
+  private static final JsonFactory jsonFactory = new JsonFactory();
+  private static final XMLInputFactory xmlInputFactory = createXmlInputFactory();
+
+  private final List<File> reports = new ArrayList<File>();
+  private int passed;
+  private int failed;
+  private int errors;
+  private int skipped;
+
+  private ResultSummary() {
+  }
+
+  /**
+   * Summarizes the reports among <code>files</code> into <code>target</code>.
+   *
+   * @return the summary totals; a report that could not be parsed entirely is still in the summary, with a
+   *         <code>parse_error</code>, but not in {@link #getReports()}
+   */
+  static ResultSummary write(List<File> files, File target) throws IOException {
+    ResultSummary summary = new ResultSummary();
+    JsonGenerator json = jsonFactory.createGenerator(target, JsonEncoding.UTF8);
+    try {
+      json.writeStartObject();
+      json.writeArrayFieldStart("reports");
+      for (File file : files) {
+        String format = detectFormat(file);
+        if (format == null) continue;
+        json.writeStartObject();
+        json.writeStringField("file", file.getName());
+        json.writeStringField("format", format);
+        json.writeArrayFieldStart("steps");
+        String parseError = null;
+        try {
+          if (format.equals("junit"))
+            summary.parseJUnit(file, json);
+          else
+            summary.parseTap(file, json);
+        } catch (XMLStreamException e) {
+          parseError = e.getMessage();
+        }
+        json.writeEndArray();
+        if (parseError != null)
+          json.writeStringField("parse_error", truncate(parseError));
+        else
+          summary.reports.add(file);
+        json.writeEndObject();
+      }
+      json.writeEndArray();
+      json.writeNumberField("tests", summary.getTests());
+      json.writeNumberField(PASSED, summary.passed);
+      json.writeNumberField(FAILED, summary.failed);
+      json.writeNumberField("errors", summary.errors);
+      json.writeNumberField(SKIPPED, summary.skipped);
+      json.writeEndObject();
+    } finally {
+      json.close();
+    }
+    return summary;
+  }
+
+  /**
+   * @return the files that were fully summarized
+   */
+  List<File> getReports() {
+    return Collections.unmodifiableList(reports);
+  }
+
+  int getTests() {
+    return passed + failed + errors + skipped;
+  }
+
+  int getPassed() {
+    return passed;
+  }
+
+  int getFailed() {
+    return failed;
+  }
+
+  int getErrors() {
+    return errors;
+  }
+
+  int getSkipped() {
+    return skipped;
+  }
+
+  /**
+   * @return "junit", "tap", or null for anything else; only looks at the beginning of the file
+   */
+  static String detectFormat(File file) throws IOException {
+    String name = file.getName().toLowerCase();
+    if (name.endsWith(".xml")) {
+      InputStream in = new BufferedInputStream(new FileInputStream(file));
+      try {
+        XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+        try {
+          while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+              String root = reader.getLocalName();
+              return root.equals("testsuite") || root.equals("testsuites") ? "junit" : null;
+            }
+          }
+        } finally {
+          reader.close();
+        }
+      } catch (XMLStreamException e) {
+        return null;
+      } finally {
+        in.close();
+      }
+      return null;
+    }
+    if (name.endsWith(".tap")) return "tap";
+    if (name.endsWith(".txt") || name.endsWith(".log") || name.indexOf('.') < 0) {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null && line.trim().isEmpty()) ;
+        return line != null && (line.startsWith("TAP version") || TAP_PLAN.matcher(line).find()) ? "tap" : null;
+      } finally {
+        reader.close();
+      }
+    }
+    return null;
+  }
+
+  private void parseJUnit(File file, JsonGenerator json) throws IOException, XMLStreamException {
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+    try {
+      String name = null;
+      String className = null;
+      long timeMillis = -1;
+      String status = null;
+      StringBuilder message = null;
+      boolean messageFromText = false;
+      int outcomeDepth = 0;
+      while (reader.hasNext()) {
+        switch (reader.next()) {
+          case XMLStreamConstants.START_ELEMENT:
+            String element = reader.getLocalName();
+            if (element.equals("testcase")) {
+              name = reader.getAttributeValue(null, "name") != null ? reader.getAttributeValue(null, "name") : "";
+              className = reader.getAttributeValue(null, "classname");
+              timeMillis = parseSeconds(reader.getAttributeValue(null, "time"));
+              status = PASSED;
+              message = null;
+            } else if (name != null && outcomeDepth == 0 &&
+                    (element.equals("failure") || element.equals("error") || element.equals("skipped"))) {
+              status = element.equals("failure") ? FAILED : element.equals("error") ? ERROR : SKIPPED;
+              message = new StringBuilder();
+              String attribute = reader.getAttributeValue(null, "message");
+              if (attribute != null) message.append(truncate(attribute));
+              messageFromText = attribute == null;
+              outcomeDepth = 1;
+            } else if (outcomeDepth > 0) {
+              ++outcomeDepth;
+            }
+            break;
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.CDATA:
+            // without a message attribute the element text (usually a stack trace) is the message
+            if (outcomeDepth > 0 && messageFromText && message.length() < MAX_MESSAGE_LENGTH) {
+              int length = Math.min(reader.getTextLength(), MAX_MESSAGE_LENGTH - message.length());
+              message.append(reader.getTextCharacters(), reader.getTextStart(), length);
+            }
+            break;
+          case XMLStreamConstants.END_ELEMENT:
+            if (outcomeDepth > 0) {
+              --outcomeDepth;
+            } else if (name != null && reader.getLocalName().equals("testcase")) {
+              writeStep(json, name, className, status, timeMillis, message == null ? null : message.toString().trim());
+              name = null;
+            }
+            break;
+        }
+      }
+    } finally {
+      reader.close();
+      in.close();
+    }
+  }
+
+  private void parseTap(File file, JsonGenerator json) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        // indented lines belong to subtests, their parent's line has the outcome
+        Matcher result = TAP_RESULT.matcher(line);
+        if (!result.matches()) continue;
+        String directive = result.group(4) == null ? "" : result.group(4).toUpperCase();
+        String status;
+        if (directive.equals("SKIP") || directive.equals("TODO"))
+          status = SKIPPED;
+        else
+          status = result.group(1) == null ? PASSED : FAILED;
+        String name = result.group(3).isEmpty() ? "test " + result.group(2) : result.group(3);
+        String message = status.equals(SKIPPED) ? (directive + " " + result.group(5)).trim() : null;
+        writeStep(json, name, null, status, -1, message);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void writeStep(JsonGenerator json, String name, String className, String status, long timeMillis,
+                         String message) throws IOException {
+    if (status.equals(PASSED)) ++passed;
+    else if (status.equals(FAILED)) ++failed;
+    else if (status.equals(ERROR)) ++errors;
+    else ++skipped;
+    json.writeStartObject();
+    json.writeStringField("name", name);
+    if (className != null) json.writeStringField("class", className);
+    json.writeStringField("status", status);
+    if (timeMillis >= 0) json.writeNumberField("time_ms", timeMillis);
+    if (message != null && !message.isEmpty()) json.writeStringField("message", message);
+    json.writeEndObject();
+  }
+
+  private static long parseSeconds(String seconds) {
+    if (seconds == null) return -1;
+    try {
+      return Math.round(Double.parseDouble(seconds.replace(",", "")) * 1000);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static String truncate(String text) {
+    return text.length() > MAX_MESSAGE_LENGTH ? text.substring(0, MAX_MESSAGE_LENGTH - 5) + "<...>" : text;
+  }
+
+  private static XMLInputFactory createXmlInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    // reports come from the tests under run, never resolve anything they point to
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+    return factory;
+  }
+}
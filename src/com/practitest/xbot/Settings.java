@@ -0,0 +1,132 @@
+package com.practitest.xbot;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Immutable snapshot of the xBot configuration, as stored in <code>xbot.properties</code>.
+ */
+final class Settings {
+  static final String DEFAULT_SERVER_URL = "https://prod.practitest.com";
+
+  private final String serverURL;
+  private final String apiToken;
+  private final String clientId;
+  private final String proxyHost;
+  private final String proxyPort;
+  private final String proxyUser;
+  private final String proxyPassword;
+
+  Settings(String serverURL, String apiToken, String clientId,
+           String proxyHost, String proxyPort, String proxyUser, String proxyPassword) {
+    this.serverURL = normalize(serverURL);
+    this.apiToken = normalize(apiToken);
+    this.clientId = normalize(clientId);
+    this.proxyHost = normalize(proxyHost);
+    this.proxyPort = normalize(proxyPort);
+    this.proxyUser = normalize(proxyUser);
+    this.proxyPassword = normalize(proxyPassword);
+  }
+
+  /**
+   * Reads the settings file, falling back to the defaults for whatever is missing or unreadable.
+   */
+  static Settings load(File settingsFile) {
+    Properties settings = new Properties();
+    if (settingsFile.exists()) {
+      try {
+        Reader reader = new FileReader(settingsFile);
+        try {
+          settings.load(reader);
+        } finally {
+          reader.close();
+        }
+      } catch (IOException ignore) {
+      }
+    }
+    String serverURL = settings.getProperty("server_url", "").trim();
+    return new Settings(serverURL.isEmpty() ? DEFAULT_SERVER_URL : serverURL,
+            settings.getProperty("api_token", ""),
+            settings.getProperty("client_id", ""),
+            settings.getProperty("proxy_host", ""),
+            settings.getProperty("proxy_port", ""),
+            settings.getProperty("proxy_user", ""),
+            settings.getProperty("proxy_password", ""));
+  }
+
+  void save(File settingsFile) throws IOException {
+    // overwrites the xbot.properties!
+    Properties settings = new Properties();
+    settings.setProperty("server_url", serverURL);
+    settings.setProperty("api_token", apiToken);
+    settings.setProperty("client_id", clientId);
+    settings.setProperty("proxy_host", proxyHost);
+    settings.setProperty("proxy_port", proxyPort);
+    settings.setProperty("proxy_user", proxyUser);
+    settings.setProperty("proxy_password", proxyPassword);
+    Writer writer = new FileWriter(settingsFile);
+    try {
+      settings.store(writer, "Please do not change this file manually, it'll be re-written by the application anyway.");
+    } finally {
+      writer.close();
+    }
+  }
+
+  boolean isComplete() {
+    return !serverURL.isEmpty() && !apiToken.isEmpty() && !clientId.isEmpty();
+  }
+
+  String getServerURL() {
+    return serverURL;
+  }
+
+  String getApiToken() {
+    return apiToken;
+  }
+
+  String getClientId() {
+    return clientId;
+  }
+
+  String getProxyHost() {
+    return proxyHost;
+  }
+
+  String getProxyPort() {
+    return proxyPort;
+  }
+
+  String getProxyUser() {
+    return proxyUser;
+  }
+
+  String getProxyPassword() {
+    return proxyPassword;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) return true;
+    if (!(obj instanceof Settings)) return false;
+    return Arrays.equals(values(), ((Settings) obj).values());
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(values());
+  }
+
+  private String[] values() {
+    return new String[]{serverURL, apiToken, clientId, proxyHost, proxyPort, proxyUser, proxyPassword};
+  }
+
+  private static String normalize(String value) {
+    return value == null ? "" : value.trim();
+  }
+}
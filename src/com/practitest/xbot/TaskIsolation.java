@@ -0,0 +1,344 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Metrics;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Keeps task processes off each other's toes: pins them to a CPU set with <code>taskset</code> and, where a
+ * cgroup v2 hierarchy is writable, runs each task in its own cgroup with CPU and memory limits, whose usage is
+ * read back once it ends.
+ * <p/>
+ * Every feature is probed once when the agent starts; whatever the host does not support is logged and left out,
+ * and tasks then run exactly as they would without isolation.
+ */
+final class TaskIsolation {
+  private static final Logger logger = Logger.getLogger(TaskIsolation.class.getName());
+  private static final long CPU_PERIOD_MICROS = 100000;
+  private static final int CGROUP_REMOVE_ATTEMPTS = 20;
+  // writes the shell's own pid to the cgroup.procs file given as $0
+  private static final String JOIN_SCRIPT = "echo $$ > \"$0\"";
+
+  private final String cpus;
+  private final long cpuQuotaMicros;
+  private final long memoryLimit;
+  private final File cgroupRoot;
+  private final Metrics metrics;
+
+  /**
+   * @param cpus        CPU list for <code>taskset -c</code>, e.g. <code>2-3</code>; null not to pin tasks
+   * @param cpuLimit    CPUs' worth of time a task may use, 0 for no limit
+   * @param memoryLimit bytes of memory a task may use, 0 for no limit
+   * @param cgroupRoot  cgroup v2 directory to create the task cgroups in, null not to use cgroups
+   */
+  static TaskIsolation create(String cpus, double cpuLimit, long memoryLimit, File cgroupRoot, Metrics metrics) {
+    if (cpus != null && !cpus.matches("[0-9]+(-[0-9]+)?(,[0-9]+(-[0-9]+)?)*")) {
+      logger.warning("Ignoring the CPU list " + cpus + ", expected something like 0-3 or 1,3");
+      cpus = null;
+    }
+    if (cpus != null && !isOnPath("taskset")) {
+      logger.warning("taskset is not available, tasks are not pinned to CPUs " + cpus);
+      cpus = null;
+    }
+    if (cgroupRoot != null && !prepareCgroupRoot(cgroupRoot, cpuLimit > 0, memoryLimit > 0)) {
+      if (cpuLimit > 0 || memoryLimit > 0)
+        logger.warning("No writable cgroup v2 directory at " + cgroupRoot + ", task CPU and memory limits are not applied");
+      cgroupRoot = null;
+    }
+    return new TaskIsolation(cpus, cgroupRoot != null && cpuLimit > 0 ? Math.round(cpuLimit * CPU_PERIOD_MICROS) : 0,
+            cgroupRoot != null ? memoryLimit : 0, cgroupRoot, metrics);
+  }
+
+  private TaskIsolation(String cpus, long cpuQuotaMicros, long memoryLimit, File cgroupRoot, Metrics metrics) {
+    this.cpus = cpus;
+    this.cpuQuotaMicros = cpuQuotaMicros;
+    this.memoryLimit = memoryLimit;
+    this.cgroupRoot = cgroupRoot;
+    this.metrics = metrics;
+  }
+
+  boolean isEnabled() {
+    return cpus != null || cgroupRoot != null;
+  }
+
+  /**
+   * @return where the cgroup v2 hierarchy is mounted, from <code>/proc/self/mounts</code>; null if it is not
+   */
+  static File findCgroupMount() {
+    File mounts = new File("/proc/self/mounts");
+    if (!mounts.isFile()) return null;
+    try {
+      for (String line : readLines(mounts)) {
+        String[] fields = line.split(" ");
+        if (fields.length > 2 && fields[2].equals("cgroup2")) return new File(fields[1]);
+      }
+    } catch (IOException e) {
+      logger.fine("Cannot read " + mounts + ": " + e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Sets up the cgroup of one task; close it once the task's process ended.
+   */
+  Sandbox open(String instanceId) {
+    File cgroup = null;
+    if (cgroupRoot != null) {
+      File directory = new File(cgroupRoot, "task-" + instanceId.replaceAll("[^A-Za-z0-9_-]", "_") + "-" + System.nanoTime());
+      if (directory.mkdir()) {
+        try {
+          if (cpuQuotaMicros > 0) write(new File(directory, "cpu.max"), cpuQuotaMicros + " " + CPU_PERIOD_MICROS);
+          if (memoryLimit > 0) write(new File(directory, "memory.max"), String.valueOf(memoryLimit));
+          cgroup = directory;
+        } catch (IOException e) {
+          logger.warning("Failed to set the limits of " + directory + ", running the task without a cgroup: " + e.getMessage());
+          remove(directory);
+        }
+      } else {
+        logger.warning("Failed to create " + directory + ", running the task without a cgroup");
+      }
+    }
+    return new Sandbox(cgroup);
+  }
+
+  final class Sandbox {
+    private final File cgroup;
+
+    private Sandbox(File cgroup) {
+      this.cgroup = cgroup;
+    }
+
+    File getCgroup() {
+      return cgroup;
+    }
+
+    /**
+     * @return the command line that runs <code>command</code> inside this sandbox
+     */
+    List<String> wrap(List<String> command) {
+      List<String> wrapped = new ArrayList<String>();
+      if (cgroup != null) {
+        // the shell joins the cgroup before it becomes the task, so not even the first fork escapes it; should the
+        // move fail anyway, the task still runs, only without its limits; the group keeps the shell's complaint
+        // about the redirection out of the task's output
+        wrapped.add("/bin/sh");
+        wrapped.add("-c");
+        wrapped.add("{ " + JOIN_SCRIPT + "; } 2>/dev/null; exec \"$@\"");
+        wrapped.add(new File(cgroup, "cgroup.procs").getPath());
+      }
+      if (cpus != null) {
+        wrapped.add("taskset");
+        wrapped.add("-c");
+        wrapped.add(cpus);
+      }
+      wrapped.addAll(command);
+      return wrapped;
+    }
+
+    /**
+     * Kills every process left in the cgroup, those the task forked into the background included.
+     */
+    void kill() {
+      if (cgroup == null) return;
+      try {
+        write(new File(cgroup, "cgroup.kill"), "1");
+      } catch (IOException e) {
+        logger.fine("cgroup.kill is not supported: " + e.getMessage());
+      }
+    }
+
+    /**
+     * Reads the task's resource usage and removes its cgroup.
+     *
+     * @return null without a cgroup
+     */
+    Usage close() {
+      if (cgroup == null) return null;
+      Usage usage = new Usage(
+              readField(new File(cgroup, "cpu.stat"), "usage_usec"),
+              readValue(new File(cgroup, "memory.peak")),
+              readField(new File(cgroup, "memory.events"), "oom_kill"));
+      if (usage.getCpuMicros() > 0) metrics.add("xbot_task_cpu_usec_total", usage.getCpuMicros());
+      if (usage.getPeakMemoryBytes() > 0) metrics.max("xbot_task_memory_peak_bytes_max", usage.getPeakMemoryBytes());
+      if (usage.getOomKills() > 0) metrics.add("xbot_task_oom_kills_total", usage.getOomKills());
+      remove(cgroup);
+      return usage;
+    }
+  }
+
+  static final class Usage {
+    private final long cpuMicros;
+    private final long peakMemoryBytes;
+    private final long oomKills;
+
+    Usage(long cpuMicros, long peakMemoryBytes, long oomKills) {
+      this.cpuMicros = cpuMicros;
+      this.peakMemoryBytes = peakMemoryBytes;
+      this.oomKills = oomKills;
+    }
+
+    /**
+     * @return CPU time of all the task's processes, -1 if unknown
+     */
+    long getCpuMicros() {
+      return cpuMicros;
+    }
+
+    /**
+     * @return highest memory use, -1 if unknown (kernels before 5.19)
+     */
+    long getPeakMemoryBytes() {
+      return peakMemoryBytes;
+    }
+
+    long getOomKills() {
+      return oomKills;
+    }
+
+    @Override
+    public String toString() {
+      return "CPU " + (cpuMicros >= 0 ? cpuMicros / 1000 + " ms" : "unknown") +
+              ", peak memory " + (peakMemoryBytes >= 0 ? peakMemoryBytes / (1024 * 1024) + " MB" : "unknown") +
+              (oomKills > 0 ? ", " + oomKills + " processes killed for running out of memory" : "");
+    }
+  }
+
+  private static boolean prepareCgroupRoot(File root, boolean cpu, boolean memory) {
+    if (!root.isDirectory() && !root.mkdir()) return false;
+    File controllers = new File(root, "cgroup.controllers");
+    if (!controllers.isFile()) return false;
+    try {
+      String available = " " + readLines(controllers).toString().replaceAll("[\\[\\],]", " ") + " ";
+      StringBuilder enable = new StringBuilder();
+      if (cpu) {
+        if (available.contains(" cpu ")) enable.append("+cpu ");
+        else logger.warning("The cpu controller is not available in " + root + ", task CPU time is not limited");
+      }
+      if (memory) {
+        if (available.contains(" memory ")) enable.append("+memory");
+        else logger.warning("The memory controller is not available in " + root + ", task memory is not limited");
+      }
+      if (enable.length() > 0)
+        write(new File(root, "cgroup.subtree_control"), enable.toString().trim());
+      File probe = new File(root, "xbot-probe-" + System.nanoTime());
+      if (!probe.mkdir()) return false;
+      try {
+        // creating a cgroup is not enough: moving a process into one also takes write access to the common
+        // ancestor of where the process is and where it goes, which a delegation may not give
+        if (!join(probe)) {
+          logger.warning("Cannot move processes into a cgroup under " + root);
+          return false;
+        }
+      } finally {
+        remove(probe);
+      }
+      return true;
+    } catch (IOException e) {
+      logger.warning("Cannot use cgroup " + root + ": " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * @return whether a short-lived shell could move itself into <code>cgroup</code>
+   */
+  private static boolean join(File cgroup) throws IOException {
+    Process process = new ProcessBuilder("/bin/sh", "-c", JOIN_SCRIPT, new File(cgroup, "cgroup.procs").getPath())
+            .redirectErrorStream(true).start();
+    try {
+      process.getOutputStream().close();
+      String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+      int exitCode = process.waitFor();
+      if (exitCode != 0) logger.fine(output);
+      return exitCode == 0;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      process.destroyForcibly();
+      return false;
+    }
+  }
+
+  private static void remove(File cgroup) {
+    // a cgroup can only go once its last process exited, which may take a moment after a kill
+    for (int attempt = 0; attempt < CGROUP_REMOVE_ATTEMPTS; ++attempt) {
+      if (cgroup.delete() || !cgroup.exists()) return;
+      File[] files = cgroup.listFiles();
+      if (files != null && !new File(cgroup, "cgroup.events").exists()) {
+        // not a real cgroup file system, plain files are in the way
+        for (File file : files) file.delete();
+        continue;
+      }
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    logger.warning("Failed to remove cgroup " + cgroup);
+  }
+
+  private static long readValue(File file) {
+    try {
+      List<String> lines = readLines(file);
+      return lines.isEmpty() ? -1 : Long.parseLong(lines.get(0).trim());
+    } catch (IOException e) {
+      return -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static long readField(File file, String name) {
+    try {
+      for (String line : readLines(file)) {
+        String[] fields = line.trim().split("\\s+");
+        if (fields.length == 2 && fields[0].equals(name)) return Long.parseLong(fields[1]);
+      }
+    } catch (IOException e) {
+      return -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+    return -1;
+  }
+
+  private static List<String> readLines(File file) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) lines.add(line);
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+
+  private static void write(File file, String value) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(value.getBytes(StandardCharsets.US_ASCII));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static boolean isOnPath(String executable) {
+    String path = System.getenv("PATH");
+    if (path == null) return false;
+    for (String directory : path.split(File.pathSeparator))
+      if (new File(directory, executable).canExecute()) return true;
+    return false;
+  }
+}
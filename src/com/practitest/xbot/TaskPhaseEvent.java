@@ -0,0 +1,31 @@
+package com.practitest.xbot;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event for one phase of a task, so that GC pauses and thread stalls in a recording can be
+ * told apart by what the agent was doing at the time. Committed by {@link TaskTrace.Phase#end}.
+ */
+@Name("com.practitest.xbot.TaskPhase")
+@Label("Task Phase")
+@Category("PractiTest xBot")
+@Description("A phase of running a task: poll, spawn, process, collect_output, scan_results or upload")
+@StackTrace(false)
+final class TaskPhaseEvent extends Event {
+  @Label("Phase")
+  String phase;
+
+  @Label("Instance Id")
+  String instanceId;
+
+  @Label("Bytes")
+  @Description("Output captured, result files found or request body uploaded, depending on the phase")
+  @DataAmount
+  long bytes;
+}
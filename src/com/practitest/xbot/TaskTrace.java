@@ -0,0 +1,154 @@
+package com.practitest.xbot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timeline of one task instance: a span per phase (poll, process spawn, the test itself, result file scan,
+ * upload...), recorded from whichever thread ran the phase.
+ */
+final class TaskTrace {
+  private final String instanceId;
+  private final String description;
+  private final long createdAtMillis = System.currentTimeMillis();
+  private final long createdAtNanos = System.nanoTime();
+  private final List<Span> spans = new ArrayList<Span>();
+
+  TaskTrace(String instanceId, String description) {
+    this.instanceId = instanceId;
+    this.description = description;
+  }
+
+  String getInstanceId() {
+    return instanceId;
+  }
+
+  String getDescription() {
+    return description;
+  }
+
+  /**
+   * @param startNanos {@link System#nanoTime()} when the phase started, may be before this trace was created
+   * @param endNanos   {@link System#nanoTime()} when it ended
+   */
+  void record(String name, long startNanos, long endNanos) {
+    long startMicros = createdAtMillis * 1000 + Math.floorDiv(startNanos - createdAtNanos, 1000L);
+    Span span = new Span(name, startMicros, TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos),
+            Thread.currentThread().getName());
+    synchronized (spans) {
+      spans.add(span);
+    }
+  }
+
+  /**
+   * Starts timing a phase that is also reported to Java Flight Recorder, as a {@link TaskPhaseEvent}.
+   */
+  static Phase begin(String name) {
+    return new Phase(name);
+  }
+
+  /**
+   * @return the spans in the order they started
+   */
+  List<Span> getSpans() {
+    List<Span> copy;
+    synchronized (spans) {
+      copy = new ArrayList<Span>(spans);
+    }
+    Collections.sort(copy, new Comparator<Span>() {
+      public int compare(Span left, Span right) {
+        return Long.valueOf(left.getStartMicros()).compareTo(right.getStartMicros());
+      }
+    });
+    return copy;
+  }
+
+  /**
+   * @return wall clock time of the earliest span, in epoch microseconds
+   */
+  long getStartMicros() {
+    long start = createdAtMillis * 1000;
+    for (Span span : getSpans())
+      start = Math.min(start, span.getStartMicros());
+    return start;
+  }
+
+  /**
+   * @return time from the start of the first span to the end of the last one
+   */
+  long getDurationMicros() {
+    long start = Long.MAX_VALUE;
+    long end = Long.MIN_VALUE;
+    for (Span span : getSpans()) {
+      start = Math.min(start, span.getStartMicros());
+      end = Math.max(end, span.getStartMicros() + span.getDurationMicros());
+    }
+    return start == Long.MAX_VALUE ? 0 : end - start;
+  }
+
+  static final class Phase {
+    private final String name;
+    private final long startNanos = System.nanoTime();
+    private final TaskPhaseEvent event = new TaskPhaseEvent();
+
+    private Phase(String name) {
+      this.name = name;
+      event.begin();
+    }
+
+    long getStartNanos() {
+      return startNanos;
+    }
+
+    /**
+     * @param trace the task's trace, null if there is none (a poll that returned no task)
+     * @param bytes how much data the phase handled, 0 if that does not apply
+     */
+    void end(TaskTrace trace, long bytes) {
+      event.end();
+      if (trace != null) trace.record(name, startNanos, System.nanoTime());
+      if (event.shouldCommit()) {
+        event.phase = name;
+        event.instanceId = trace != null ? trace.getInstanceId() : null;
+        event.bytes = bytes;
+        event.commit();
+      }
+    }
+  }
+
+  static final class Span {
+    private final String name;
+    private final long startMicros;
+    private final long durationMicros;
+    private final String threadName;
+
+    Span(String name, long startMicros, long durationMicros, String threadName) {
+      this.name = name;
+      this.startMicros = startMicros;
+      this.durationMicros = durationMicros;
+      this.threadName = threadName;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    /**
+     * @return wall clock start, in epoch microseconds
+     */
+    long getStartMicros() {
+      return startMicros;
+    }
+
+    long getDurationMicros() {
+      return durationMicros;
+    }
+
+    String getThreadName() {
+      return threadName;
+    }
+  }
+}
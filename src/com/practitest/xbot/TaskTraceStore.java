@@ -0,0 +1,85 @@
+package com.practitest.xbot;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The timelines of the most recent tasks, oldest dropped first, and their export as Chrome trace-event JSON
+ * (<code>chrome://tracing</code>, Perfetto): one row per task instance, one complete event per span.
+ */
+final class TaskTraceStore {
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
+  private final Map<String, TaskTrace> traces;
+
+  TaskTraceStore(final int capacity) {
+    traces = new LinkedHashMap<String, TaskTrace>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, TaskTrace> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  synchronized void add(TaskTrace trace) {
+    traces.remove(trace.getInstanceId()); // a re-run instance moves to the end
+    traces.put(trace.getInstanceId(), trace);
+  }
+
+  synchronized TaskTrace get(String instanceId) {
+    return traces.get(instanceId);
+  }
+
+  /**
+   * @return the stored traces, oldest first
+   */
+  synchronized List<TaskTrace> getAll() {
+    return new ArrayList<TaskTrace>(traces.values());
+  }
+
+  static void writeChromeTrace(Collection<TaskTrace> traces, Writer writer) throws IOException {
+    JsonGenerator json = jsonFactory.createGenerator(writer);
+    json.writeStartObject();
+    json.writeArrayFieldStart("traceEvents");
+    int row = 0;
+    for (TaskTrace trace : traces) {
+      ++row;
+      json.writeStartObject();
+      json.writeStringField("name", "thread_name");
+      json.writeStringField("ph", "M");
+      json.writeNumberField("pid", 1);
+      json.writeNumberField("tid", row);
+      json.writeObjectFieldStart("args");
+      json.writeStringField("name", "instance " + trace.getInstanceId());
+      json.writeEndObject();
+      json.writeEndObject();
+      for (TaskTrace.Span span : trace.getSpans()) {
+        json.writeStartObject();
+        json.writeStringField("name", span.getName());
+        json.writeStringField("cat", "task");
+        json.writeStringField("ph", "X");
+        json.writeNumberField("ts", span.getStartMicros());
+        json.writeNumberField("dur", span.getDurationMicros());
+        json.writeNumberField("pid", 1);
+        json.writeNumberField("tid", row);
+        json.writeObjectFieldStart("args");
+        json.writeStringField("instance", trace.getInstanceId());
+        json.writeStringField("thread", span.getThreadName());
+        json.writeEndObject();
+        json.writeEndObject();
+      }
+    }
+    json.writeEndArray();
+    json.writeStringField("displayTimeUnit", "ms");
+    json.writeEndObject();
+    json.flush();
+  }
+}
@@ -0,0 +1,126 @@
+package com.practitest.xbot;
+
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.logging.Logger;
+
+/**
+ * System tray icon of the xBot.
+ * <p/>
+ * Lives apart from {@link Main} so that nothing from AWT is loaded (or the toolkit initialized)
+ * unless the tray is actually wanted.
+ */
+class TrayIconController {
+  private static final Logger logger = Logger.getLogger(TrayIconController.class.getName());
+
+  private static final String XBOT_TRAY_CAPTION = "PractiTest xBot";
+
+  enum Status {
+    NOT_CONFIGURED, READY, RUNNING, ERROR
+  }
+
+  private final Image trayIconImageNotConfigured;
+  private final Image trayIconImageReady;
+  private final Image trayIconImageRunning;
+  private final Image trayIconImageError;
+  private final TrayIcon trayIcon;
+
+  private TrayIconController(final int listeningPort, Status initialStatus, final Runnable exitAction) {
+    trayIconImageNotConfigured = loadImage("images/trayNotConfigured.png");
+    trayIconImageReady = loadImage("images/trayReady.png");
+    trayIconImageRunning = loadImage("images/trayRunning.png");
+    trayIconImageError = loadImage("images/trayError.png");
+
+    PopupMenu popup = new PopupMenu();
+    MenuItem preferencesItem = new MenuItem("Preferences");
+    preferencesItem.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent event) {
+        browse("http://localhost:" + listeningPort + "/preferences");
+      }
+    });
+    popup.add(preferencesItem);
+    MenuItem logItem = new MenuItem("Log");
+    logItem.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent event) {
+        browse("http://localhost:" + listeningPort + "/log");
+      }
+    });
+    popup.add(logItem);
+    popup.addSeparator();
+    MenuItem exitItem = new MenuItem("Exit");
+    exitItem.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent event) {
+        logger.info("Exiting...");
+        exitAction.run();
+      }
+    });
+    popup.add(exitItem);
+
+    trayIcon = new TrayIcon(imageFor(initialStatus), XBOT_TRAY_CAPTION, popup);
+    trayIcon.setImageAutoSize(true);
+    trayIcon.setToolTip(XBOT_TRAY_CAPTION);
+  }
+
+  /**
+   * Adds the xBot icon to the system tray.
+   *
+   * @return the installed controller, or <code>null</code> if the system tray is not available
+   */
+  static TrayIconController install(int listeningPort, Status initialStatus, Runnable exitAction) {
+    if (!SystemTray.isSupported()) {
+      logger.warning("System tray is not supported");
+      return null;
+    }
+    TrayIconController controller = new TrayIconController(listeningPort, initialStatus, exitAction);
+    try {
+      SystemTray.getSystemTray().add(controller.trayIcon);
+    } catch (AWTException e) {
+      logger.severe("TrayIcon could not be added: " + e.getMessage());
+      return null;
+    }
+    return controller;
+  }
+
+  void setStatus(Status status, String message) {
+    trayIcon.setImage(imageFor(status));
+    trayIcon.displayMessage(XBOT_TRAY_CAPTION, message,
+            status == Status.ERROR ? TrayIcon.MessageType.ERROR : TrayIcon.MessageType.INFO);
+  }
+
+  private Image imageFor(Status status) {
+    switch (status) {
+      case READY:
+        return trayIconImageReady;
+      case RUNNING:
+        return trayIconImageRunning;
+      case ERROR:
+        return trayIconImageError;
+      default:
+        return trayIconImageNotConfigured;
+    }
+  }
+
+  private void browse(String url) {
+    try {
+      Desktop.getDesktop().browse(new URI(url));
+    } catch (IOException e) {
+      logger.severe("Failed to open URL: " + e.getMessage());
+    } catch (URISyntaxException e) {
+      logger.severe("Failed to open URL: " + e.getMessage());
+    }
+  }
+
+  private Image loadImage(String path) {
+    URL internalPath = getClass().getResource("/" + path);
+    if (internalPath == null) {
+      logger.warning("Failed to load resource [" + path + "], falling back to regular path");
+      return Toolkit.getDefaultToolkit().getImage(path);
+    }
+    return Toolkit.getDefaultToolkit().getImage(internalPath);
+  }
+}
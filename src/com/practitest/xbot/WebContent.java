@@ -0,0 +1,199 @@
+package com.practitest.xbot;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Pages and static assets of the local HTTP listener, bundled under <code>/web</code> on the classpath so the
+ * admin UI works without internet access.
+ * <p/>
+ * Templates are split into their literal chunks once, assets are loaded and compressed once; responses
+ * are gzip-compressed when the client accepts it.
+ */
+final class WebContent {
+  static final String ASSETS_PATH = "/assets/";
+
+  private static final String RESOURCE_ROOT = "/web/";
+  private static final String[] ASSET_NAMES = {"xbot.css"};
+  private static final int MIN_COMPRESSED_SIZE = 256;
+  private static final String ASSET_CACHE_CONTROL = "public, max-age=3600";
+
+  private static final Map<String, Asset> assets = loadAssets();
+
+  private WebContent() {
+  }
+
+  /**
+   * @return the bundled asset served at <code>/assets/{name}</code>, null if there is none
+   */
+  static Asset asset(String name) {
+    return assets.get(name);
+  }
+
+  static Template template(String name) throws IOException {
+    return new Template(new String(load(name), "UTF-8"));
+  }
+
+  static String escapeHtml(String text) {
+    return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+  }
+
+  /**
+   * Sends a complete dynamic response, compressed if the client accepts it and it is worth it.
+   */
+  static void send(HttpServletRequest request, HttpServletResponse response, String contentType, byte[] body)
+          throws IOException {
+    response.setContentType(contentType);
+    response.setHeader("Vary", "Accept-Encoding");
+    response.setHeader("Cache-Control", "no-cache");
+    response.setStatus(HttpServletResponse.SC_OK);
+    if (body.length >= MIN_COMPRESSED_SIZE && acceptsGzip(request))
+      write(response, gzip(body), true);
+    else
+      write(response, body, false);
+  }
+
+  private static boolean acceptsGzip(HttpServletRequest request) {
+    String accepted = request.getHeader("Accept-Encoding");
+    return accepted != null && accepted.toLowerCase().contains("gzip");
+  }
+
+  private static void write(HttpServletResponse response, byte[] body, boolean compressed) throws IOException {
+    if (compressed)
+      response.setHeader("Content-Encoding", "gzip");
+    response.setContentLength(body.length);
+    OutputStream out = response.getOutputStream();
+    out.write(body);
+    out.flush();
+  }
+
+  private static byte[] gzip(byte[] body) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+    GZIPOutputStream out = new GZIPOutputStream(compressed);
+    out.write(body);
+    out.close();
+    return compressed.toByteArray();
+  }
+
+  private static Map<String, Asset> loadAssets() {
+    Map<String, Asset> loaded = new HashMap<String, Asset>();
+    for (String name : ASSET_NAMES) {
+      try {
+        loaded.put(name, new Asset(contentType(name), load(name)));
+      } catch (IOException e) {
+        throw new IllegalStateException("Bundled web asset " + name + " is missing", e);
+      }
+    }
+    return Collections.unmodifiableMap(loaded);
+  }
+
+  private static String contentType(String name) {
+    if (name.endsWith(".css")) return "text/css";
+    if (name.endsWith(".js")) return "application/javascript";
+    return "application/octet-stream";
+  }
+
+  private static byte[] load(String name) throws IOException {
+    InputStream in = WebContent.class.getResourceAsStream(RESOURCE_ROOT + name);
+    if (in == null) throw new IOException("No resource " + RESOURCE_ROOT + name);
+    try {
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1)
+        content.write(buffer, 0, read);
+      return content.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * A static file, served with an ETag so that browsers and dashboards revalidate it without downloading it again.
+   */
+  static final class Asset {
+    private final String contentType;
+    private final byte[] content;
+    private final byte[] compressed;
+    private final String etag;
+
+    Asset(String contentType, byte[] content) throws IOException {
+      this.contentType = contentType;
+      this.content = content;
+      this.compressed = gzip(content);
+      CRC32 crc = new CRC32();
+      crc.update(content);
+      this.etag = "\"" + Long.toHexString(crc.getValue()) + "-" + content.length + "\"";
+    }
+
+    String getETag() {
+      return etag;
+    }
+
+    void serve(HttpServletRequest request, HttpServletResponse response) throws IOException {
+      response.setHeader("ETag", etag);
+      response.setHeader("Cache-Control", ASSET_CACHE_CONTROL);
+      response.setHeader("Vary", "Accept-Encoding");
+      String ifNoneMatch = request.getHeader("If-None-Match");
+      if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+      response.setContentType(contentType);
+      response.setStatus(HttpServletResponse.SC_OK);
+      if (acceptsGzip(request))
+        write(response, compressed, true);
+      else
+        write(response, content, false);
+    }
+  }
+
+  /**
+   * An HTML page with <code>{{name}}</code> placeholders, replaced by HTML escaped values when rendered.
+   */
+  static final class Template {
+    private final List<byte[]> literals = new ArrayList<byte[]>();
+    private final List<String> names = new ArrayList<String>();
+
+    Template(String text) throws IOException {
+      int position = 0;
+      while (true) {
+        int start = text.indexOf("{{", position);
+        int end = start < 0 ? -1 : text.indexOf("}}", start);
+        if (end < 0) {
+          literals.add(text.substring(position).getBytes("UTF-8"));
+          return;
+        }
+        literals.add(text.substring(position, start).getBytes("UTF-8"));
+        names.add(text.substring(start + 2, end).trim());
+        position = end + 2;
+      }
+    }
+
+    /**
+     * @param values placeholder values, missing ones are left empty
+     */
+    byte[] render(Map<String, String> values) throws IOException {
+      ByteArrayOutputStream page = new ByteArrayOutputStream(4096);
+      for (int i = 0; i < names.size(); ++i) {
+        page.write(literals.get(i));
+        String value = values.get(names.get(i));
+        if (value != null)
+          page.write(escapeHtml(value).getBytes("UTF-8"));
+      }
+      page.write(literals.get(names.size()));
+      return page.toByteArray();
+    }
+  }
+}
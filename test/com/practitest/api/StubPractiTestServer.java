@@ -0,0 +1,533 @@
+package com.practitest.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the PractiTest automated tests API: serves <code>next_test.json</code> from a queue
+ * and accepts <code>upload_test_result.json</code>, batches of <code>upload_test_results.json</code> and the chunks
+ * of <code>upload_result_chunk.json</code>, with configurable latency and injected server errors.
+ * Records what happened so benchmarks and tests can report on it.
+ */
+public class StubPractiTestServer {
+  public static final String NEXT_TEST_PATH = "/api/automated_tests/next_test.json";
+  public static final String UPLOAD_TEST_RESULT_PATH = "/api/automated_tests/upload_test_result.json";
+  public static final String UPLOAD_TEST_RESULTS_PATH = "/api/automated_tests/upload_test_results.json";
+  public static final String UPLOAD_RESULT_CHUNK_PATH = "/api/automated_tests/upload_result_chunk.json";
+  private static final int MAX_RECORDED_BODY = 64 * 1024;
+
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final Random random = new Random();
+
+  private volatile long latencyMillis = 0;
+  private volatile double errorRate = 0;
+
+  private final Deque<QueuedTask> queue = new ArrayDeque<QueuedTask>();
+  private final Map<String, Long> dispatchedAt = new HashMap<String, Long>();
+  private final List<Long> dispatchLatencies = new ArrayList<Long>();
+  private final List<Long> turnaroundLatencies = new ArrayList<Long>();
+  private final Map<String, Upload> uploads = new HashMap<String, Upload>();
+  private final AtomicInteger nextInstanceId = new AtomicInteger(1);
+  private final AtomicInteger polls = new AtomicInteger();
+  private final AtomicInteger emptyPolls = new AtomicInteger();
+  private final AtomicInteger injectedErrors = new AtomicInteger();
+  private final AtomicLong uploadedBytes = new AtomicLong();
+  private final Map<String, TreeMap<Integer, byte[]>> chunks = new HashMap<String, TreeMap<Integer, byte[]>>();
+  private final AtomicInteger chunkPosts = new AtomicInteger();
+  private final AtomicInteger chunkFailures = new AtomicInteger();
+  private volatile int rejectChunksFrom = -1;
+  private final AtomicInteger batchPosts = new AtomicInteger();
+  private final Set<String> rejectedInBatch = new HashSet<String>();
+  private final Set<String> unmentionedInBatch = new HashSet<String>();
+  private volatile long firstPollAt = 0;
+
+  public StubPractiTestServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(executor);
+    server.createContext(NEXT_TEST_PATH, new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        nextTest(exchange);
+      }
+    });
+    server.createContext(UPLOAD_TEST_RESULT_PATH, new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        uploadTestResult(exchange);
+      }
+    });
+    server.createContext(UPLOAD_TEST_RESULTS_PATH, new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        uploadTestResults(exchange);
+      }
+    });
+    server.createContext(UPLOAD_RESULT_CHUNK_PATH, new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        uploadResultChunk(exchange);
+      }
+    });
+  }
+
+  public StubPractiTestServer start() {
+    server.start();
+    return this;
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  public String getURL() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  /**
+   * Delay added to every response.
+   */
+  public void setLatencyMillis(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+  }
+
+  /**
+   * Fraction (0..1) of requests answered with a 500 instead of being served.
+   */
+  public void setErrorRate(double errorRate) {
+    this.errorRate = errorRate;
+  }
+
+  /**
+   * Answers the next <code>count</code> chunks with a 500 after reading them, as if the connection broke.
+   */
+  public void failNextChunks(int count) {
+    chunkFailures.set(count);
+  }
+
+  /**
+   * Answers every chunk from <code>index</code> on with a 500, as if the link went down at that point;
+   * -1 accepts them again.
+   */
+  public void rejectChunksFrom(int index) {
+    rejectChunksFrom = index;
+  }
+
+  /**
+   * Answers the result of <code>instanceId</code> with an error when it comes in a batch, taking the others.
+   */
+  public synchronized void rejectInBatch(String instanceId) {
+    rejectedInBatch.add(instanceId);
+  }
+
+  /**
+   * Stores the result of <code>instanceId</code> when it comes in a batch but leaves it out of the answer.
+   */
+  public synchronized void leaveOutOfBatchAnswer(String instanceId) {
+    unmentionedInBatch.add(instanceId);
+  }
+
+  /**
+   * Queues <code>count</code> test instances running <code>command</code>.
+   */
+  public synchronized void enqueue(int count, String command, String pathToResults, int numOfFilesToUpload, int timeoutInSeconds) {
+    long now = System.nanoTime();
+    for (int i = 0; i < count; ++i)
+      queue.add(new QueuedTask(String.valueOf(nextInstanceId.getAndIncrement()), command, pathToResults,
+              numOfFilesToUpload, timeoutInSeconds, now));
+  }
+
+  public synchronized int getQueueSize() {
+    return queue.size();
+  }
+
+  public int getPolls() {
+    return polls.get();
+  }
+
+  public int getEmptyPolls() {
+    return emptyPolls.get();
+  }
+
+  public int getInjectedErrors() {
+    return injectedErrors.get();
+  }
+
+  public synchronized int getDispatched() {
+    return dispatchedAt.size();
+  }
+
+  public synchronized int getUploads() {
+    return uploads.size();
+  }
+
+  public synchronized Upload getUpload(String instanceId) {
+    return uploads.get(instanceId);
+  }
+
+  public long getUploadedBytes() {
+    return uploadedBytes.get();
+  }
+
+  /**
+   * @return chunk requests received, including failed and repeated ones
+   */
+  public int getChunkPosts() {
+    return chunkPosts.get();
+  }
+
+  public int getBatchPosts() {
+    return batchPosts.get();
+  }
+
+  /**
+   * @return the chunks stored for an upload, in order and put together
+   */
+  public synchronized byte[] getChunkedFile(String uploadId) {
+    TreeMap<Integer, byte[]> stored = chunks.get(uploadId);
+    if (stored == null) return null;
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    for (byte[] chunk : stored.values())
+      file.write(chunk, 0, chunk.length);
+    return file.toByteArray();
+  }
+
+  /**
+   * @return {@link System#nanoTime()} of the first poll, 0 if there was none yet
+   */
+  public long getFirstPollAt() {
+    return firstPollAt;
+  }
+
+  /**
+   * @return milliseconds each dispatched instance waited in the queue before an agent pulled it
+   */
+  public synchronized List<Long> getDispatchLatencies() {
+    return new ArrayList<Long>(dispatchLatencies);
+  }
+
+  /**
+   * @return milliseconds from dispatch to the result upload, per instance
+   */
+  public synchronized List<Long> getTurnaroundLatencies() {
+    return new ArrayList<Long>(turnaroundLatencies);
+  }
+
+  /**
+   * Waits until a result (or a failed attempt at one) was uploaded for <code>count</code> instances.
+   */
+  public synchronized boolean awaitUploads(int count, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (uploads.size() < count) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) return false;
+      wait(remaining);
+    }
+    return true;
+  }
+
+  public synchronized boolean awaitFirstPoll(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (firstPollAt == 0) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) return false;
+      wait(remaining);
+    }
+    return true;
+  }
+
+  /**
+   * @return the given percentile (0..100) of <code>values</code>, 0 when empty
+   */
+  public static long percentile(List<Long> values, double percentile) {
+    if (values.isEmpty()) return 0;
+    List<Long> sorted = new ArrayList<Long>(values);
+    Collections.sort(sorted);
+    int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+    return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+  }
+
+  private void nextTest(HttpExchange exchange) throws IOException {
+    polls.incrementAndGet();
+    synchronized (this) {
+      if (firstPollAt == 0) {
+        firstPollAt = System.nanoTime();
+        notifyAll();
+      }
+    }
+    drain(exchange.getRequestBody());
+    if (delayOrFail(exchange)) return;
+    QueuedTask task;
+    synchronized (this) {
+      task = queue.poll();
+      if (task != null) {
+        long now = System.nanoTime();
+        dispatchedAt.put(task.instanceId, now);
+        dispatchLatencies.add(TimeUnit.NANOSECONDS.toMillis(now - task.enqueuedAt));
+      }
+    }
+    if (task == null) {
+      emptyPolls.incrementAndGet();
+      respond(exchange, 200, "{}");
+    } else {
+      respond(exchange, 200, "{\"instance\":{\"id\":\"" + task.instanceId + "\",\"timeout_in_seconds\":" + task.timeoutInSeconds + "}," +
+              "\"test\":{\"id\":\"" + task.instanceId + "\",\"path_to_application\":\"" + escape(task.command) + "\"," +
+              "\"path_to_results\":\"" + escape(task.pathToResults) + "\",\"num_of_files_to_upload\":" + task.numOfFilesToUpload + "}," +
+              "\"testSet\":{\"name\":\"stub\"}}");
+    }
+  }
+
+  private void uploadTestResult(HttpExchange exchange) throws IOException {
+    Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+    ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+    long bytes = drain(exchange.getRequestBody(), recorded);
+    uploadedBytes.addAndGet(bytes);
+    boolean failed = delayOrFail(exchange);
+    synchronized (this) {
+      String instanceId = query.get("instance_id");
+      if (instanceId != null && !uploads.containsKey(instanceId)) {
+        Long dispatched = dispatchedAt.get(instanceId);
+        if (dispatched != null)
+          turnaroundLatencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - dispatched));
+        uploads.put(instanceId, new Upload(query, exchange.getRequestHeaders().getFirst("Content-Type"), bytes,
+                new String(recorded.toByteArray(), StandardCharsets.UTF_8), failed));
+        notifyAll();
+      }
+    }
+    if (!failed) respond(exchange, 200, "{}");
+  }
+
+  private void uploadTestResults(HttpExchange exchange) throws IOException {
+    batchPosts.incrementAndGet();
+    ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+    long bytes = drain(exchange.getRequestBody(), recorded);
+    uploadedBytes.addAndGet(bytes);
+    if (delayOrFail(exchange)) return;
+    StringBuilder answer = new StringBuilder("{\"results\":[");
+    synchronized (this) {
+      for (JsonNode item : new ObjectMapper().readTree(recorded.toByteArray()).path("results")) {
+        String instanceId = item.path("instance_id").asText();
+        if (!unmentionedInBatch.contains(instanceId)) {
+          if (answer.charAt(answer.length() - 1) != '[') answer.append(',');
+          answer.append("{\"instance_id\":\"").append(escape(instanceId)).append("\",");
+          if (rejectedInBatch.contains(instanceId)) {
+            answer.append("\"status\":\"error\",\"error\":\"rejected by the stub\"}");
+            continue;
+          }
+          answer.append("\"status\":\"ok\"}");
+        }
+        if (uploads.containsKey(instanceId)) continue;
+        Long dispatched = dispatchedAt.get(instanceId);
+        if (dispatched != null)
+          turnaroundLatencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - dispatched));
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("instance_id", instanceId);
+        parameters.put("exit_code", item.path("exit_code").asText());
+        String result = item.path("result").asText();
+        uploads.put(instanceId, new Upload(parameters, exchange.getRequestHeaders().getFirst("Content-Type"),
+                result.length(), result, false));
+      }
+      notifyAll();
+    }
+    respond(exchange, 200, answer.append("]}").toString());
+  }
+
+  private void uploadResultChunk(HttpExchange exchange) throws IOException {
+    chunkPosts.incrementAndGet();
+    Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+    ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+    drain(exchange.getRequestBody(), chunk);
+    uploadedBytes.addAndGet(chunk.size());
+    if (delayOrFail(exchange)) return;
+    int index = Integer.parseInt(query.get("index"));
+    if (chunkFailures.getAndDecrement() > 0 || (rejectChunksFrom >= 0 && index >= rejectChunksFrom)) {
+      injectedErrors.incrementAndGet();
+      respond(exchange, 500, "injected chunk failure");
+      return;
+    }
+    byte[] bytes = chunk.toByteArray();
+    if (!toHex(sha256(bytes)).equals(query.get("sha256"))) {
+      respond(exchange, 422, "checksum mismatch");
+      return;
+    }
+    synchronized (this) {
+      TreeMap<Integer, byte[]> stored = chunks.get(query.get("upload_id"));
+      if (stored == null) {
+        stored = new TreeMap<Integer, byte[]>();
+        chunks.put(query.get("upload_id"), stored);
+      }
+      stored.put(index, bytes);
+    }
+    respond(exchange, 200, "{\"received\":" + query.get("index") + "}");
+  }
+
+  /**
+   * @return whether an error was injected (and already sent)
+   */
+  private boolean delayOrFail(HttpExchange exchange) throws IOException {
+    if (latencyMillis > 0) {
+      try {
+        Thread.sleep(latencyMillis);
+      } catch (InterruptedException ignored) {
+      }
+    }
+    boolean fail;
+    synchronized (random) {
+      fail = errorRate > 0 && random.nextDouble() < errorRate;
+    }
+    if (fail) {
+      injectedErrors.incrementAndGet();
+      respond(exchange, 500, "injected error");
+    }
+    return fail;
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  private static long drain(InputStream in) throws IOException {
+    return drain(in, null);
+  }
+
+  /**
+   * @param recorded receives the body, up to {@link #MAX_RECORDED_BODY} bytes of it; null to discard it
+   */
+  private static long drain(InputStream in, ByteArrayOutputStream recorded) throws IOException {
+    byte[] buffer = new byte[64 * 1024];
+    long total = 0;
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      if (recorded != null && recorded.size() < MAX_RECORDED_BODY)
+        recorded.write(buffer, 0, Math.min(read, MAX_RECORDED_BODY - recorded.size()));
+      total += read;
+    }
+    return total;
+  }
+
+  private static byte[] sha256(byte[] bytes) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(bytes);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes)
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    return hex.toString();
+  }
+
+  private static Map<String, String> parseQuery(String query) throws IOException {
+    Map<String, String> parameters = new HashMap<String, String>();
+    if (query == null) return parameters;
+    for (String pair : query.split("&")) {
+      int eq = pair.indexOf('=');
+      if (eq < 0)
+        parameters.put(URLDecoder.decode(pair, "UTF-8"), "");
+      else
+        parameters.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+    }
+    return parameters;
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+  /**
+   * What an agent uploaded for one instance.
+   */
+  public static class Upload {
+    private final Map<String, String> query;
+    private final String contentType;
+    private final long bodyBytes;
+    private final String body;
+    private final boolean failed;
+
+    Upload(Map<String, String> query, String contentType, long bodyBytes, String body, boolean failed) {
+      this.query = query;
+      this.contentType = contentType;
+      this.bodyBytes = bodyBytes;
+      this.body = body;
+      this.failed = failed;
+    }
+
+    public String getParameter(String name) {
+      return query.get(name);
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    public long getBodyBytes() {
+      return bodyBytes;
+    }
+
+    /**
+     * @return the start of the body, as text
+     */
+    public String getBody() {
+      return body;
+    }
+
+    /**
+     * @return whether the stub answered this upload with an injected error
+     */
+    public boolean isFailed() {
+      return failed;
+    }
+  }
+
+  private static class QueuedTask {
+    final String instanceId;
+    final String command;
+    final String pathToResults;
+    final int numOfFilesToUpload;
+    final int timeoutInSeconds;
+    final long enqueuedAt;
+
+    QueuedTask(String instanceId, String command, String pathToResults, int numOfFilesToUpload, int timeoutInSeconds, long enqueuedAt) {
+      this.instanceId = instanceId;
+      this.command = command;
+      this.pathToResults = pathToResults;
+      this.numOfFilesToUpload = numOfFilesToUpload;
+      this.timeoutInSeconds = timeoutInSeconds;
+      this.enqueuedAt = enqueuedAt;
+    }
+  }
+}
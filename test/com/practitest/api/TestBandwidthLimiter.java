@@ -0,0 +1,57 @@
+package com.practitest.api;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+public class TestBandwidthLimiter extends TestCase {
+    public void testBurstOfOneSecondIsFree() throws Exception {
+        BandwidthLimiter limiter = new BandwidthLimiter(100000, new Metrics());
+        long startedAt = System.currentTimeMillis();
+        limiter.acquire(100000, false);
+        assertTrue(System.currentTimeMillis() - startedAt < 200);
+    }
+
+    public void testBulkWaitsForTheRate() throws Exception {
+        Metrics metrics = new Metrics();
+        BandwidthLimiter limiter = new BandwidthLimiter(10000, metrics);
+        long startedAt = System.currentTimeMillis();
+        limiter.acquire(10000, false);
+        limiter.acquire(5000, false);
+        long elapsed = System.currentTimeMillis() - startedAt;
+        assertTrue("took " + elapsed + " ms", elapsed >= 400 && elapsed < 2000);
+        assertEquals(15000, metrics.get("xbot_upload_bulk_bytes_total"));
+        assertTrue(metrics.get("xbot_upload_throttled_ms_total") > 0);
+    }
+
+    public void testPriorityNeverWaitsButDelaysBulk() throws Exception {
+        Metrics metrics = new Metrics();
+        BandwidthLimiter limiter = new BandwidthLimiter(10000, metrics);
+        long startedAt = System.currentTimeMillis();
+        limiter.acquire(15000, true);
+        assertTrue(System.currentTimeMillis() - startedAt < 200);
+        limiter.acquire(1, false);
+        long elapsed = System.currentTimeMillis() - startedAt;
+        assertTrue("took " + elapsed + " ms", elapsed >= 400);
+        assertEquals(15000, metrics.get("xbot_upload_priority_bytes_total"));
+    }
+
+    public void testThrottledStreamDeliversEverything() throws Exception {
+        byte[] content = new byte[30000];
+        for (int i = 0; i < content.length; ++i)
+            content[i] = (byte) i;
+        BandwidthLimiter limiter = new BandwidthLimiter(20000, new Metrics());
+        InputStream in = limiter.throttle(new ByteArrayInputStream(content), false);
+        byte[] buffer = new byte[content.length];
+        int total = 0;
+        long startedAt = System.currentTimeMillis();
+        int read;
+        while ((read = in.read(buffer, total, buffer.length - total)) > 0)
+            total += read;
+        long elapsed = System.currentTimeMillis() - startedAt;
+        assertEquals(content.length, total);
+        assertTrue(java.util.Arrays.equals(content, buffer));
+        assertTrue("took " + elapsed + " ms", elapsed >= 400);
+    }
+}
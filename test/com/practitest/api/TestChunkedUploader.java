@@ -0,0 +1,137 @@
+package com.practitest.api;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+public class TestChunkedUploader extends TestCase {
+    private static final int CHUNK = 16 * 1024;
+
+    private StubPractiTestServer stub;
+    private Transport transport;
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        stub = new StubPractiTestServer().start();
+        transport = new CommonsHttpTransport("", "", "", "");
+        directory = File.createTempFile("xbot-chunked", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        transport.close();
+        stub.stop();
+        deleteRecursively(directory);
+    }
+
+    public void testLargeFilesGoInChunksAndSmallOnesInTheResult() throws Exception {
+        byte[] content = randomBytes(2 * CHUNK + 1000);
+        File large = createFile("video.bin", content);
+        File small = createFile("report.xml", "<testsuite/>".getBytes("UTF-8"));
+        ChunkedUploader uploader = createUploader(5);
+        createClient(uploader).uploadResult(new Client.TaskResult("1", 0, Arrays.asList(large, small), "ok"));
+
+        assertEquals(3, stub.getChunkPosts());
+        String uploadId = uploader.uploadId("1", "result_files[video.bin]", large);
+        assertTrue(Arrays.equals(content, stub.getChunkedFile(uploadId)));
+        String body = stub.getUpload("1").getBody();
+        assertTrue(body, body.contains("name=\"result_file_uploads[video.bin]\""));
+        assertTrue(body, body.contains(uploadId));
+        assertTrue(body, body.contains("<testsuite/>"));
+        assertTrue(stub.getUpload("1").getBodyBytes() < content.length);
+        assertEquals(0, stateFiles().length);
+    }
+
+    public void testFailedChunkIsSentAgain() throws Exception {
+        byte[] content = randomBytes(3 * CHUNK);
+        File large = createFile("dump.hprof", content);
+        Metrics metrics = new Metrics();
+        ChunkedUploader uploader = new ChunkedUploader(new File(directory, "state"), CHUNK, CHUNK, 2, 10, metrics);
+        stub.failNextChunks(1);
+        createClient(uploader).uploadResult(new Client.TaskResult("1", 0, Arrays.asList(large), "ok"));
+
+        assertEquals(4, stub.getChunkPosts());
+        assertEquals(1, metrics.get("xbot_chunked_upload_retries_total"));
+        assertTrue(Arrays.equals(content, stub.getChunkedFile(uploader.uploadId("1", "result_files[dump.hprof]", large))));
+    }
+
+    public void testInterruptedUploadResumesAfterRestart() throws Exception {
+        byte[] content = randomBytes(4 * CHUNK);
+        File large = createFile("dump.hprof", content);
+        Client.TaskResult result = new Client.TaskResult("1", 0, Arrays.asList(large), "ok");
+        stub.rejectChunksFrom(2);
+        try {
+            createClient(createUploader(0)).uploadResult(result);
+            fail("the third chunk should not get through");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Chunk 2"));
+        }
+        assertEquals(3, stub.getChunkPosts());
+        assertEquals(1, stateFiles().length);
+        assertNull(stub.getUpload("1"));
+
+        // a new agent with the same state directory carries on from the last acknowledged chunk
+        stub.rejectChunksFrom(-1);
+        Metrics metrics = new Metrics();
+        ChunkedUploader restarted = new ChunkedUploader(new File(directory, "state"), CHUNK, CHUNK, 0, 10, metrics);
+        createClient(restarted).uploadResult(result);
+        assertEquals(1, metrics.get("xbot_chunked_upload_resumed_total"));
+        assertEquals(5, stub.getChunkPosts());
+        assertTrue(Arrays.equals(content, stub.getChunkedFile(restarted.uploadId("1", "result_files[dump.hprof]", large))));
+        assertNotNull(stub.getUpload("1"));
+        assertEquals(0, stateFiles().length);
+    }
+
+    public void testChangedFileStartsOver() throws Exception {
+        File large = createFile("dump.hprof", randomBytes(2 * CHUNK));
+        ChunkedUploader uploader = createUploader(0);
+        String before = uploader.uploadId("1", "result_files[dump.hprof]", large);
+        assertTrue(large.setLastModified(large.lastModified() - 10000));
+        assertFalse(before.equals(uploader.uploadId("1", "result_files[dump.hprof]", large)));
+        assertFalse(before.equals(uploader.uploadId("2", "result_files[dump.hprof]", large)));
+    }
+
+    private ChunkedUploader createUploader(int retries) {
+        return new ChunkedUploader(new File(directory, "state"), CHUNK, CHUNK, retries, 10, new Metrics());
+    }
+
+    private Client createClient(ChunkedUploader uploader) {
+        return new Client(stub.getURL(), "token", "client", transport, CallPolicy.DEFAULT, null, false, uploader, "test");
+    }
+
+    private File[] stateFiles() {
+        File[] states = new File(directory, "state").listFiles();
+        return states != null ? states : new File[0];
+    }
+
+    private File createFile(String name, byte[] content) throws IOException {
+        File file = new File(directory, name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children) deleteRecursively(child);
+        file.delete();
+    }
+}
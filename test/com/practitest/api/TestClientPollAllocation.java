@@ -0,0 +1,62 @@
+package com.practitest.api;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps what an empty poll allocates in the client itself small, for agents that poll an empty queue all day.
+ * The transport is a stub answering from memory, so only the client's own share is measured.
+ */
+public class TestClientPollAllocation extends TestCase {
+    private static final int POLLS = 10000;
+    // the future thenApply returns, with room for JIT differences
+    private static final long BUDGET_BYTES_PER_POLL = 256;
+
+    public void testEmptyPollStaysWithinBudget() throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) return;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        Client client = new Client("http://localhost", "token", "client", new EmptyQueueTransport(), "test");
+        // warm up, so that what is measured is the steady state rather than class loading and compilation
+        for (int i = 0; i < POLLS; ++i)
+            assertNull(client.nextTask());
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < POLLS; ++i)
+            client.nextTask();
+        long perPoll = (threads.getThreadAllocatedBytes(thread) - before) / POLLS;
+        assertTrue("an empty poll allocated " + perPoll + " bytes, the budget is " + BUDGET_BYTES_PER_POLL,
+                perPoll <= BUDGET_BYTES_PER_POLL);
+    }
+
+    public void testPollRequestCarriesUrlAndAuthorization() throws Exception {
+        EmptyQueueTransport transport = new EmptyQueueTransport();
+        Client client = new Client("http://localhost/", "token", "client", transport, "test");
+        client.nextTask();
+        Transport.Request first = transport.lastRequest;
+        assertEquals("http://localhost/api/automated_tests/next_test.json?client_id=client&xbot_version=test", first.getUrl());
+        assertEquals("custom api_token=token", first.getHeaders().get("Authorization"));
+        client.nextTask();
+        assertSame(first, transport.lastRequest);
+    }
+
+    private static class EmptyQueueTransport implements Transport {
+        private final CompletableFuture<Response> emptyQueue = CompletableFuture.completedFuture(
+                new Response(200, "HTTP/1.1 200 OK", "{}".getBytes(StandardCharsets.UTF_8)));
+        Request lastRequest;
+
+        public CompletableFuture<Response> execute(Request request) {
+            lastRequest = request;
+            return emptyQueue;
+        }
+
+        public void closeIdleConnections() {
+        }
+
+        public void close() {
+        }
+    }
+}
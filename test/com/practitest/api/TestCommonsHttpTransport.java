@@ -0,0 +1,8 @@
+package com.practitest.api;
+
+public class TestCommonsHttpTransport extends TransportContractTestCase {
+    @Override
+    protected Transport createTransport() {
+        return new CommonsHttpTransport("", "", "", "");
+    }
+}
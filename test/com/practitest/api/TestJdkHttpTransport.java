@@ -0,0 +1,8 @@
+package com.practitest.api;
+
+public class TestJdkHttpTransport extends TransportContractTestCase {
+    @Override
+    protected Transport createTransport() {
+        return new JdkHttpTransport("", "", "", "");
+    }
+}
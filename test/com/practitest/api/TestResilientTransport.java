@@ -0,0 +1,120 @@
+package com.practitest.api;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestResilientTransport extends TestCase {
+    private static final Transport.Request POLL = new Transport.Request("GET", "http://stub/next_test.json",
+            Collections.<String, String>emptyMap(), Collections.<String, File>emptyMap());
+
+    public void testServerErrorsOpenTheBreaker() throws Exception {
+        ScriptedTransport stub = new ScriptedTransport(500, 0);
+        Metrics metrics = new Metrics();
+        ResilientTransport transport = new ResilientTransport(stub, new CircuitBreaker(2, 60000), 0, metrics);
+        assertEquals(500, transport.execute(POLL).get().getStatusCode());
+        assertEquals(500, transport.execute(POLL).get().getStatusCode());
+        try {
+            transport.execute(POLL).get();
+            fail("breaker should be open");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ResilientTransport.CircuitOpenException);
+        }
+        assertEquals(2, stub.calls.get());
+        assertEquals(2, metrics.get("xbot_api_failures_total"));
+        assertEquals(1, metrics.get("xbot_api_rejected_total"));
+        assertEquals(CircuitBreaker.State.OPEN.ordinal(), metrics.get("xbot_api_circuit_breaker_state"));
+    }
+
+    public void testTransportErrorsCountAsFailures() throws Exception {
+        ScriptedTransport stub = new ScriptedTransport(-1, 0);
+        ResilientTransport transport = new ResilientTransport(stub, new CircuitBreaker(1, 60000), 0, new Metrics());
+        try {
+            transport.execute(POLL).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, transport.getCircuitBreaker().getState());
+    }
+
+    public void testProbeThatThrowsReopensTheBreaker() throws Exception {
+        ScriptedTransport stub = new ScriptedTransport(-2, 0);
+        ResilientTransport transport = new ResilientTransport(stub, new CircuitBreaker(1, 50), 0, new Metrics());
+        for (int probe = 0; probe < 2; ++probe) {
+            try {
+                transport.execute(POLL).get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+            }
+            assertEquals(CircuitBreaker.State.OPEN, transport.getCircuitBreaker().getState());
+            Thread.sleep(100);
+        }
+        assertEquals(2, stub.calls.get());
+    }
+
+    public void testHedgedPollAnswersWithTheFasterAttempt() throws Exception {
+        // the first attempt takes 2 s, the hedge after 100 ms answers at once
+        ScriptedTransport stub = new ScriptedTransport(200, 2000);
+        Metrics metrics = new Metrics();
+        ResilientTransport transport = new ResilientTransport(stub, new CircuitBreaker(5, 60000), 100, metrics);
+        long startedAt = System.currentTimeMillis();
+        assertEquals(200, transport.execute(POLL).get().getStatusCode());
+        assertTrue("not hedged", System.currentTimeMillis() - startedAt < 1500);
+        assertEquals(1, metrics.get("xbot_api_hedged_total"));
+        assertEquals(1, metrics.get("xbot_api_hedge_wins_total"));
+    }
+
+    public void testUploadsAreNotHedged() throws Exception {
+        ScriptedTransport stub = new ScriptedTransport(200, 300);
+        Metrics metrics = new Metrics();
+        ResilientTransport transport = new ResilientTransport(stub, new CircuitBreaker(5, 60000), 50, metrics);
+        transport.execute(new Transport.Request("POST", "http://stub/upload_test_result.json",
+                Collections.<String, String>emptyMap(), Collections.<String, File>emptyMap())).get();
+        assertEquals(1, stub.calls.get());
+        assertEquals(0, metrics.get("xbot_api_hedged_total"));
+    }
+
+    /**
+     * Answers with a fixed status (-1 for a transport error, -2 to throw instead of answering), the first call only after <code>firstDelay</code>.
+     */
+    private static class ScriptedTransport implements Transport {
+        private final int status;
+        private final long firstDelay;
+        final AtomicInteger calls = new AtomicInteger();
+
+        ScriptedTransport(int status, long firstDelay) {
+            this.status = status;
+            this.firstDelay = firstDelay;
+        }
+
+        public CompletableFuture<Response> execute(Request request) {
+            CompletableFuture<Response> result = new CompletableFuture<Response>();
+            if (calls.incrementAndGet() == 1 && firstDelay > 0) {
+                try {
+                    Thread.sleep(firstDelay);
+                } catch (InterruptedException ignored) {
+                }
+            }
+            if (status == -2)
+                throw new IllegalArgumentException("Illegal character in path");
+            if (status < 0)
+                result.completeExceptionally(new IOException("connection refused"));
+            else
+                result.complete(new Response(status, "HTTP/1.1 " + status, new byte[0]));
+            return result;
+        }
+
+        public void closeIdleConnections() {
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.practitest.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import junit.framework.TestCase;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+
+public class TestTlsContext extends TestCase {
+    private static final String PASSWORD = "changeit";
+
+    private HttpsServer server;
+    private File keyStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        keyStore = generateKeyStore("dns:localhost,ip:127.0.0.1");
+        startServer(keyStore);
+    }
+
+    private void startServer(File keyStore) throws Exception {
+        KeyStore keys = KeyStore.getInstance("PKCS12");
+        InputStream in = new FileInputStream(keyStore);
+        try {
+            keys.load(in, PASSWORD.toCharArray());
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keys, PASSWORD.toCharArray());
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+        server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(serverContext));
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Connection", "close");
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop(0);
+        TlsContext.configure("", "", KeyStore.getDefaultType(),
+                TlsContext.DEFAULT_SESSION_CACHE_SIZE, TlsContext.DEFAULT_SESSION_TIMEOUT_SECONDS);
+        keyStore.delete();
+    }
+
+    public void testUntrustedServerIsRejected() throws Exception {
+        TlsContext.configure("", "", KeyStore.getDefaultType(), 8, 60);
+        CommonsHttpTransport transport = new CommonsHttpTransport("", "", "", "");
+        try {
+            transport.execute(request()).get();
+            fail("self signed certificate accepted");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IOException);
+        } finally {
+            transport.close();
+        }
+    }
+
+    public void testSessionsAreResumedAcrossConnectionsAndTransports() throws Exception {
+        TlsContext.configure(keyStore.getPath(), PASSWORD, "PKCS12", 8, 60);
+        Metrics metrics = Metrics.getInstance();
+        long handshakes = metrics.get("xbot_tls_handshakes_total");
+        long resumed = metrics.get("xbot_tls_resumed_handshakes_total");
+        for (int i = 0; i < 3; ++i) {
+            // a fresh transport each time, and the server closes every connection
+            CommonsHttpTransport transport = new CommonsHttpTransport("", "", "", "");
+            try {
+                assertEquals(200, transport.execute(request()).get().getStatusCode());
+            } finally {
+                transport.close();
+            }
+        }
+        assertEquals(3, metrics.get("xbot_tls_handshakes_total") - handshakes);
+        assertEquals(2, metrics.get("xbot_tls_resumed_handshakes_total") - resumed);
+    }
+
+    public void testTrustedCertificateForAnotherHostIsRejected() throws Exception {
+        File otherHost = generateKeyStore("dns:xbot.invalid");
+        try {
+            server.stop(0);
+            startServer(otherHost);
+            TlsContext.configure(otherHost.getPath(), PASSWORD, "PKCS12", 8, 60);
+            CommonsHttpTransport transport = new CommonsHttpTransport("", "", "", "");
+            try {
+                transport.execute(request()).get();
+                fail("certificate for another host accepted");
+            } catch (ExecutionException e) {
+                assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IOException);
+            } finally {
+                transport.close();
+            }
+        } finally {
+            otherHost.delete();
+        }
+    }
+
+    private Transport.Request request() {
+        return new Transport.Request("GET", "https://localhost:" + server.getAddress().getPort() + "/",
+                Collections.<String, String>emptyMap(), Collections.<String, File>emptyMap(), 10000);
+    }
+
+    private static File generateKeyStore(String subjectAlternativeNames) throws Exception {
+        File file = File.createTempFile("xbot-tls", ".p12");
+        assertTrue(file.delete());
+        Process keytool = new ProcessBuilder(
+                new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath(),
+                "-genkeypair", "-keyalg", "RSA", "-keysize", "2048", "-validity", "2",
+                "-alias", "stub", "-dname", "CN=" + subjectAlternativeNames.split(",")[0].substring("dns:".length()),
+                "-ext", "SAN=" + subjectAlternativeNames,
+                "-storetype", "PKCS12", "-keystore", file.getPath(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true)
+                .start();
+        assertEquals("keytool failed", 0, keytool.waitFor());
+        return file;
+    }
+}
@@ -0,0 +1,353 @@
+package com.practitest.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Behaviour every {@link Transport} has to provide, checked against a local stub server.
+ */
+public abstract class TransportContractTestCase extends TestCase {
+    private static final String TASK_DOCUMENT =
+            "{\"instance\":{\"id\":\"42\",\"timeout_in_seconds\":30}," +
+            "\"test\":{\"id\":\"7\",\"path_to_application\":\"/bin/true\",\"path_to_results\":\"/tmp\",\"num_of_files_to_upload\":3}," +
+            "\"testSet\":{\"name\":\"smoke\"}}";
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private Transport transport;
+    private String baseURL;
+
+    private volatile String nextTestResponse = TASK_DOCUMENT;
+    private volatile String lastMethod;
+    private volatile String lastQuery;
+    private volatile String lastAuthorization;
+    private volatile String lastContentType;
+    private volatile byte[] lastBody;
+
+    protected abstract Transport createTransport();
+
+    @Override
+    protected void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.createContext("/echo", new StubHandler(200, "pong"));
+        server.createContext("/error", new StubHandler(500, "boom"));
+        server.createContext("/missing", new StubHandler(404, "nothing here"));
+        server.createContext("/slow", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException ignored) {
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        server.createContext("/api/automated_tests/next_test.json", new StubHandler(200, null));
+        server.createContext("/api/automated_tests/upload_test_result.json", new StubHandler(200, "{}"));
+        server.start();
+        baseURL = "http://127.0.0.1:" + server.getAddress().getPort();
+        transport = createTransport();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        transport.close();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    public void testGetDeliversStatusHeadersAndBody() throws Exception {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Authorization", "custom api_token=secret");
+        Transport.Response response = transport.execute(
+                new Transport.Request("GET", baseURL + "/echo?a=1", headers, Collections.<String, File>emptyMap())).get();
+        assertEquals(200, response.getStatusCode());
+        assertEquals("pong", new String(response.getBody(), StandardCharsets.UTF_8));
+        assertEquals("GET", lastMethod);
+        assertEquals("a=1", lastQuery);
+        assertEquals("custom api_token=secret", lastAuthorization);
+    }
+
+    public void testErrorStatusIsAResponse() throws Exception {
+        Transport.Response response = transport.execute(get("/error")).get();
+        assertEquals(500, response.getStatusCode());
+        assertEquals("boom", new String(response.getBody(), StandardCharsets.UTF_8));
+        response = transport.execute(get("/missing")).get();
+        assertEquals(404, response.getStatusCode());
+        assertTrue(response.getStatusLine(), response.getStatusLine().contains("404"));
+    }
+
+    public void testDeadline() throws Exception {
+        long startedAt = System.currentTimeMillis();
+        try {
+            transport.execute(new Transport.Request("GET", baseURL + "/slow",
+                    Collections.<String, String>emptyMap(), Collections.<String, File>emptyMap(), 300)).get();
+            fail("deadline not applied");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof TimeoutException);
+        }
+        assertTrue("took too long", System.currentTimeMillis() - startedAt < 2000);
+    }
+
+    public void testPostStreamsFileParts() throws Exception {
+        File first = createFile("first.txt", "first file content");
+        File second = createFile("second.bin", "second file content");
+        Map<String, File> parts = new LinkedHashMap<String, File>();
+        parts.put("result_files[first.txt]", first);
+        parts.put("result_files[second.bin]", second);
+        Transport.Response response = transport.execute(new Transport.Request(
+                "POST", baseURL + "/echo", Collections.<String, String>emptyMap(), parts)).get();
+        assertEquals(200, response.getStatusCode());
+        assertEquals("POST", lastMethod);
+        assertTrue(lastContentType, lastContentType.startsWith("multipart/form-data"));
+        String body = new String(lastBody, StandardCharsets.UTF_8);
+        assertTrue(body.contains("name=\"result_files[first.txt]\"; filename=\"first.txt\""));
+        assertTrue(body.contains("first file content"));
+        assertTrue(body.contains("name=\"result_files[second.bin]\"; filename=\"second.bin\""));
+        assertTrue(body.contains("second file content"));
+    }
+
+    public void testPostSendsRawBody() throws Exception {
+        byte[] chunk = new byte[1000];
+        for (int i = 0; i < chunk.length; ++i)
+            chunk[i] = (byte) i;
+        Transport.Response response = transport.execute(new Transport.Request("POST", baseURL + "/echo",
+                Collections.singletonMap("Content-Type", "application/octet-stream"), chunk, 0)).get();
+        assertEquals(200, response.getStatusCode());
+        assertEquals("application/octet-stream", lastContentType);
+        assertTrue(Arrays.equals(chunk, lastBody));
+    }
+
+    public void testConcurrentRequests() throws Exception {
+        List<CompletableFuture<Transport.Response>> responses = new ArrayList<CompletableFuture<Transport.Response>>();
+        for (int i = 0; i < 20; ++i)
+            responses.add(transport.execute(get("/echo?i=" + i)));
+        for (CompletableFuture<Transport.Response> response : responses)
+            assertEquals(200, response.get().getStatusCode());
+    }
+
+    public void testClientNextTask() throws Exception {
+        Client.Task task = createClient().nextTask();
+        assertNotNull(task);
+        assertEquals("42", task.getInstanceId());
+        assertEquals("/bin/true", task.getPathToTestApplication());
+        assertEquals("/tmp", task.getPathToTestResults());
+        assertEquals(3, task.getNumOfFilesToUpload());
+        assertEquals(30, task.getTimeoutInSeconds());
+        assertEquals("client_id=client&xbot_version=test", lastQuery);
+        assertEquals("custom api_token=token", lastAuthorization);
+    }
+
+    public void testClientEmptyQueue() throws Exception {
+        nextTestResponse = "{}";
+        assertNull(createClient().nextTask());
+    }
+
+    public void testClientServerError() throws Exception {
+        server.removeContext("/api/automated_tests/next_test.json");
+        server.createContext("/api/automated_tests/next_test.json", new StubHandler(500, "database is down"));
+        try {
+            createClient().nextTask();
+            fail("500 should raise");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("database is down"));
+        }
+    }
+
+    public void testPostSendsFieldsBeforeFileParts() throws Exception {
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        fields.put("exit_code", "0");
+        fields.put("note", "caf\u00e9");
+        Transport.Response response = transport.execute(new Transport.Request(
+                "POST", baseURL + "/echo", Collections.<String, String>emptyMap(), fields,
+                Collections.singletonMap("report", createFile("report.xml", "<testsuite/>")), 0)).get();
+        assertEquals(200, response.getStatusCode());
+        assertTrue(lastContentType, lastContentType.startsWith("multipart/form-data"));
+        String body = new String(lastBody, StandardCharsets.UTF_8);
+        assertTrue(body, body.contains("name=\"exit_code\""));
+        assertTrue(body, body.contains("caf\u00e9"));
+        assertTrue(body.indexOf("name=\"note\"") < body.indexOf("name=\"report\""));
+    }
+
+    public void testClientUploadResult() throws Exception {
+        File file = createFile("report.xml", "<testsuite/>");
+        createClient().uploadResult(new Client.TaskResult("42", 3, Arrays.asList(file), "all good"));
+        assertEquals("POST", lastMethod);
+        assertEquals("client_id=client&xbot_version=test&instance_id=42", lastQuery);
+        String body = new String(lastBody, StandardCharsets.UTF_8);
+        assertTrue(body.contains("name=\"exit_code\""));
+        assertTrue(body.contains("all good"));
+        assertTrue(body.contains("name=\"result_files[report.xml]\""));
+        assertTrue(body.contains("<testsuite/>"));
+    }
+
+    public void testClientUploadFailsUnlessTheServerTookIt() throws Exception {
+        server.removeContext("/api/automated_tests/upload_test_result.json");
+        server.createContext("/api/automated_tests/upload_test_result.json", new StubHandler(503, "maintenance"));
+        try {
+            createClient().uploadResult(new Client.TaskResult("42", 0, null, "all good"));
+            fail("503 should raise");
+        } catch (IOException expected) {
+        }
+        server.removeContext("/api/automated_tests/upload_test_result.json");
+        server.createContext("/api/automated_tests/upload_test_result.json", new StubHandler(500, "unknown instance"));
+        try {
+            createClient().uploadResult(new Client.TaskResult("42", 0, null, "all good"));
+            fail("500 should raise");
+        } catch (Client.APIException e) {
+            // refused, not worth sending again
+            assertTrue(e.getMessage(), e.getMessage().contains("unknown instance"));
+        }
+    }
+
+    public void testClientUploadsOutputFileUntruncated() throws Exception {
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < 1000; ++i)
+            output.append("line ").append(i).append('\n');
+        File outputFile = createFile("output.log", output.toString());
+        createClient().uploadResult(new Client.TaskResult("42", 0, null, outputFile));
+        assertEquals("client_id=client&xbot_version=test&instance_id=42", lastQuery);
+        String body = new String(lastBody, StandardCharsets.UTF_8);
+        assertTrue(body.contains("name=\"result\"; filename=\"output.log\""));
+        assertTrue(body.contains(output.toString()));
+    }
+
+    public void testClientUploadsResultSummary() throws Exception {
+        File outputFile = createFile("output.log", "done");
+        File summaryFile = createFile("summary.json", "{\"tests\":1,\"passed\":1}");
+        createClient().uploadResult(new Client.TaskResult("42", 0, null, outputFile, summaryFile));
+        String body = new String(lastBody, StandardCharsets.UTF_8);
+        assertTrue(body.contains("name=\"result_summary\"; filename=\"summary.json\""));
+        assertTrue(body.contains("{\"tests\":1,\"passed\":1}"));
+    }
+
+    public void testBandwidthLimiterPacesBulkParts() throws Exception {
+        File report = createFile("report.bin", new String(new char[8192]).replace('\0', 'x'));
+        Transport.Request request = new Transport.Request("POST", baseURL + "/echo",
+                Collections.<String, String>emptyMap(), Collections.<String, String>emptyMap(),
+                Collections.singletonMap("result_files[report.bin]", report), 0,
+                new BandwidthLimiter(4096, new Metrics()), Collections.<String>emptySet());
+        long startedAt = System.currentTimeMillis();
+        assertEquals(200, transport.execute(request).get().getStatusCode());
+        long elapsed = System.currentTimeMillis() - startedAt;
+        assertTrue("took " + elapsed + " ms", elapsed >= 700);
+        assertTrue(new String(lastBody, StandardCharsets.UTF_8).contains("xxxxxxxx"));
+    }
+
+    public void testBandwidthLimiterLetsPriorityPartsThrough() throws Exception {
+        File output = createFile("output.log", new String(new char[8192]).replace('\0', 'x'));
+        Transport.Request request = new Transport.Request("POST", baseURL + "/echo",
+                Collections.<String, String>emptyMap(), Collections.<String, String>emptyMap(),
+                Collections.singletonMap("result", output), 0,
+                new BandwidthLimiter(4096, new Metrics()), Collections.singleton("result"));
+        long startedAt = System.currentTimeMillis();
+        assertEquals(200, transport.execute(request).get().getStatusCode());
+        long elapsed = System.currentTimeMillis() - startedAt;
+        assertTrue("took " + elapsed + " ms", elapsed < 700);
+    }
+
+    public void testClientUploadsFilesAfterResult() throws Exception {
+        File outputFile = createFile("output.log", "done");
+        File report = createFile("report.xml", "<testsuite/>");
+        final List<String> bodies = new ArrayList<String>();
+        server.removeContext("/api/automated_tests/upload_test_result.json");
+        server.createContext("/api/automated_tests/upload_test_result.json", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                synchronized (bodies) {
+                    bodies.add(new String(readFully(exchange.getRequestBody()), StandardCharsets.UTF_8));
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        new Client(baseURL, "token", "client", transport, CallPolicy.DEFAULT, null, true, "test")
+                .uploadResult(new Client.TaskResult("42", 1, Arrays.asList(report), outputFile));
+        assertEquals(2, bodies.size());
+        assertTrue(bodies.get(0).contains("name=\"exit_code\""));
+        assertTrue(bodies.get(0).contains("name=\"result\"; filename=\"output.log\""));
+        assertFalse(bodies.get(0).contains("<testsuite/>"));
+        assertFalse(bodies.get(1).contains("name=\"exit_code\""));
+        assertTrue(bodies.get(1).contains("name=\"result_files[report.xml]\""));
+        assertTrue(bodies.get(1).contains("<testsuite/>"));
+    }
+
+    private Client createClient() {
+        return new Client(baseURL + "/", "token", "client", transport, "test");
+    }
+
+    private Transport.Request get(String path) {
+        return new Transport.Request("GET", baseURL + path,
+                Collections.<String, String>emptyMap(), Collections.<String, File>emptyMap());
+    }
+
+    private File createFile(String name, String content) throws IOException {
+        File directory = File.createTempFile("xbot-transport", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        File file = new File(directory, name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            out.close();
+        }
+        file.deleteOnExit();
+        directory.deleteOnExit();
+        return file;
+    }
+
+    private class StubHandler implements HttpHandler {
+        private final int status;
+        private final String body;
+
+        StubHandler(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            lastMethod = exchange.getRequestMethod();
+            lastQuery = exchange.getRequestURI().getRawQuery();
+            lastAuthorization = exchange.getRequestHeaders().getFirst("Authorization");
+            lastContentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            lastBody = readFully(exchange.getRequestBody());
+            byte[] response = (body != null ? body : nextTestResponse).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, response.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(response);
+            out.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0)
+            out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+}
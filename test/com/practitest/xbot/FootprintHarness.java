@@ -0,0 +1,143 @@
+package com.practitest.xbot;
+
+import com.practitest.api.StubPractiTestServer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what an agent costs its host while busy and while idle: resident memory and thread count of the agent
+ * JVM, sampled from <code>/proc</code> (Linux only), and how long the first task after the idle period took from
+ * dispatch to upload.
+ * <p/>
+ * Usage: <code>FootprintHarness &lt;agent classpath&gt; &lt;tasks&gt; &lt;idle after s&gt; &lt;wait s&gt;
+ * [agent JVM arguments...]</code>
+ * <p/>
+ * The busy phase runs the tasks, each sleeping for half a second, against a local {@link StubPractiTestServer}.
+ * The agent is sampled again <code>wait s</code> after the last upload. <code>idle after s</code> is its
+ * <code>com.practitest.xbot.idle_after_s</code>, 0 for no idle mode.
+ */
+public class FootprintHarness {
+    private static final long SAMPLE_INTERVAL_MILLIS = 200;
+    private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: FootprintHarness <agent classpath> <tasks> <idle after s> <wait s> [agent JVM arguments...]");
+            System.exit(1);
+        }
+        String classpath = args[0];
+        int tasks = Integer.parseInt(args[1]);
+        int idleAfterSeconds = Integer.parseInt(args[2]);
+        int waitSeconds = Integer.parseInt(args[3]);
+        List<String> jvmArgs = new ArrayList<String>();
+        for (String arg : Arrays.asList(args).subList(4, args.length)) {
+            if (arg.trim().length() > 0) jvmArgs.add(arg.trim());
+        }
+        jvmArgs.add("-Dcom.practitest.xbot.idle_after_s=" + idleAfterSeconds);
+
+        StubPractiTestServer stub = new StubPractiTestServer().start();
+        try {
+            File workingDirectory = ThroughputHarness.createWorkingDirectory(stub.getURL(), 64);
+            File script = new File(workingDirectory, "busy.sh");
+            FileWriter writer = new FileWriter(script);
+            try {
+                writer.write("#!/bin/sh\necho \"footprint harness task\"\nsleep 0.5\n");
+            } finally {
+                writer.close();
+            }
+            if (!script.setExecutable(true))
+                throw new IOException("Failed to make " + script + " executable");
+            String results = new File(workingDirectory, "result.bin").getPath();
+            int listeningPort = ThroughputHarness.freePort();
+            stub.enqueue(tasks, script.getPath(), results, 1, 60);
+
+            Process agent = ThroughputHarness.startAgent(classpath, jvmArgs, workingDirectory, listeningPort);
+            try {
+                Footprint busy = new Footprint();
+                long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+                while (!stub.awaitUploads(tasks, SAMPLE_INTERVAL_MILLIS)) {
+                    if (!agent.isAlive() || System.currentTimeMillis() > deadline) {
+                        System.err.println("Not all tasks completed, see " + new File(workingDirectory, "agent.log"));
+                        System.exit(2);
+                    }
+                    busy.sample(agent.pid());
+                }
+
+                Thread.sleep(TimeUnit.SECONDS.toMillis(waitSeconds));
+                Footprint idle = new Footprint();
+                for (int i = 0; i < 10; ++i) {
+                    idle.sample(agent.pid());
+                    Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+                }
+                Map<String, Long> status = ThroughputHarness.readStatus(listeningPort);
+
+                // the first task after the idle period, on a fresh connection
+                stub.enqueue(1, script.getPath(), results, 1, 60);
+                if (!stub.awaitUploads(tasks + 1, TIMEOUT_MILLIS)) {
+                    System.err.println("The task after the idle period did not complete");
+                    System.exit(2);
+                }
+                List<Long> turnaround = stub.getTurnaroundLatencies();
+
+                System.out.println("tasks " + tasks + ", idle mode " +
+                        (idleAfterSeconds > 0 ? "after " + idleAfterSeconds + " s" : "off") +
+                        (status.containsKey("xbot_idle") ? " (xbot_idle " + status.get("xbot_idle") + ")" : "") +
+                        ", sampled " + waitSeconds + " s after the last task" + (jvmArgs.size() > 1 ? ", " + jvmArgs.subList(0, jvmArgs.size() - 1) : ""));
+                System.out.println("busy: " + busy);
+                System.out.println("idle: " + idle);
+                System.out.println("heap committed while idle " + status.get("xbot_jvm_heap_committed_bytes") / 1024 + " KB");
+                System.out.println("dispatch to upload ms: busy p50 " + StubPractiTestServer.percentile(turnaround.subList(0, tasks), 50) +
+                        ", first after idle " + turnaround.get(tasks));
+            } finally {
+                agent.destroy();
+                agent.waitFor();
+            }
+        } finally {
+            stub.stop();
+        }
+    }
+
+    /**
+     * Peak and average of the samples taken.
+     */
+    private static class Footprint {
+        private long samples;
+        private long rssTotal;
+        private long rssMax;
+        private long threadsTotal;
+        private long threadsMax;
+
+        void sample(long pid) throws IOException {
+            File status = new File("/proc/" + pid + "/status");
+            if (!status.isFile()) return;
+            long rss = -1;
+            long threads = -1;
+            for (String line : Files.readAllLines(status.toPath(), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmRSS:")) rss = Long.parseLong(line.split("\\s+")[1]);
+                else if (line.startsWith("Threads:")) threads = Long.parseLong(line.split("\\s+")[1]);
+            }
+            if (rss < 0 || threads < 0) return;
+            ++samples;
+            rssTotal += rss;
+            rssMax = Math.max(rssMax, rss);
+            threadsTotal += threads;
+            threadsMax = Math.max(threadsMax, threads);
+        }
+
+        @Override
+        public String toString() {
+            if (samples == 0) return "no samples (needs /proc)";
+            return "RSS avg " + rssTotal / samples / 1024 + " MB, max " + rssMax / 1024 + " MB; threads avg " +
+                    threadsTotal / samples + ", max " + threadsMax;
+        }
+    }
+}
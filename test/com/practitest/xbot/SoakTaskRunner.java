@@ -0,0 +1,322 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Client;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs thousands of {@link Main.TaskRunner}s, several at a time, against scripts that misbehave in the ways tasks
+ * do, and checks that nothing is left behind: threads, file descriptors, child processes or zombies. Reports the
+ * time each run took besides the process itself. Linux only, as it reads <code>/proc</code>.
+ * <p/>
+ * Not part of <code>ant test</code>; run it with <code>ant soak</code>, tuned by <code>-Dsoak.tasks</code> (2000)
+ * and <code>-Dsoak.threads</code> (8).
+ */
+public class SoakTaskRunner extends TestCase {
+    private static final long SETTLE_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    // threads and descriptors the JVM itself may open or close meanwhile
+    private static final int THREAD_SLACK = 2;
+    private static final int FD_SLACK = 4;
+
+    private final String token = "xbot-soak-" + UUID.randomUUID();
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("xbot-soak", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files) file.delete();
+        directory.delete();
+    }
+
+    public void testSoak() throws Exception {
+        if (!new File("/proc/self/fd").isDirectory()) {
+            System.out.println("Skipped, needs /proc");
+            return;
+        }
+        int tasks = Integer.getInteger("soak.tasks", 2000);
+        int threads = Integer.getInteger("soak.threads", 8);
+        List<Scenario> scenarios = createScenarios();
+        final SoakMain main = new SoakMain();
+
+        // warm up so that classes, timers and pools the first run creates for good are not counted as leaks
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (Scenario scenario : scenarios) run(main, scenario, 0).check();
+        int threadsBefore = threadCount();
+        int fdsBefore = fdCount();
+
+        long started = System.nanoTime();
+        List<Future<Run>> futures = new ArrayList<Future<Run>>();
+        for (int i = 0; i < tasks; ++i) {
+            final Scenario scenario = scenarios.get(i % scenarios.size());
+            final int index = i + 1;
+            futures.add(executor.submit(new Callable<Run>() {
+                public Run call() throws Exception {
+                    Run run = run(main, scenario, index);
+                    // a stray interrupt would end the next task on this thread before it started
+                    run.interruptLeaked = Thread.interrupted();
+                    return run;
+                }
+            }));
+        }
+        Map<String, List<Run>> runs = new LinkedHashMap<String, List<Run>>();
+        for (Scenario scenario : scenarios) runs.put(scenario.name, new ArrayList<Run>());
+        for (Future<Run> future : futures) {
+            Run run = future.get();
+            run.check();
+            runs.get(run.scenario.name).add(run);
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        // timers and drainers end shortly after their runs, the JVM reaps exited children in the background
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        while (System.currentTimeMillis() < deadline &&
+                (threadCount() > threadsBefore + THREAD_SLACK || fdCount() > fdsBefore + FD_SLACK ||
+                        !leftoverProcesses().isEmpty() || !zombies().isEmpty()))
+            Thread.sleep(200);
+
+        System.out.println(tasks + " tasks on " + threads + " threads in " + elapsed + " ms");
+        System.out.println("scenario          runs  timed out  run p50/p99 ms  overhead p50/p99 ms  spawn p50/p99 ms");
+        for (Map.Entry<String, List<Run>> entry : runs.entrySet()) {
+            List<Run> scenarioRuns = entry.getValue();
+            List<Long> total = new ArrayList<Long>();
+            List<Long> overhead = new ArrayList<Long>();
+            List<Long> spawn = new ArrayList<Long>();
+            int timedOut = 0;
+            for (Run run : scenarioRuns) {
+                total.add(run.runMicros);
+                overhead.add(run.runMicros - run.processMicros);
+                spawn.add(run.spawnMicros);
+                if (run.timedOut) ++timedOut;
+            }
+            System.out.println(String.format("%-16s %5d  %9d  %6s/%-7s  %10s/%-9s  %8s/%s", entry.getKey(),
+                    scenarioRuns.size(), timedOut, millis(total, 50), millis(total, 99),
+                    millis(overhead, 50), millis(overhead, 99), millis(spawn, 50), millis(spawn, 99)));
+        }
+        System.out.println("threads " + threadsBefore + " -> " + threadCount() + ", file descriptors " + fdsBefore +
+                " -> " + fdCount());
+
+        assertTrue("leftover task processes: " + leftoverProcesses(), leftoverProcesses().isEmpty());
+        assertTrue("zombie children: " + zombies(), zombies().isEmpty());
+        assertTrue("thread leak: " + threadsBefore + " -> " + threadNames(), threadCount() <= threadsBefore + THREAD_SLACK);
+        assertTrue("file descriptor leak: " + fdsBefore + " -> " + fdCount(), fdCount() <= fdsBefore + FD_SLACK);
+    }
+
+    private List<Scenario> createScenarios() throws IOException {
+        List<Scenario> scenarios = new ArrayList<Scenario>();
+        scenarios.add(new Scenario("instant_exit", script("instant.sh", "exit 0"), 10, Outcome.EXITS));
+        scenarios.add(new Scenario("instant_failure", script("failure.sh", "echo failed; exit 3"), 10, Outcome.EXITS));
+        // the common case, twice as often
+        scenarios.add(scenarios.get(0));
+        // more than the output limit, so the spool drops the rest
+        scenarios.add(new Scenario("huge_output", script("huge.sh", "head -c 16777216 /dev/zero | tr '\\0' 'x'"), 30, Outcome.EXITS));
+        scenarios.add(new Scenario("binary_output", script("binary.sh", "head -c 1048576 /dev/urandom"), 30, Outcome.EXITS));
+        scenarios.add(new Scenario("fork_bomb", script("forkbomb.sh",
+                "spawn() {\n" +
+                "  if [ $1 -gt 0 ]; then\n" +
+                "    for i in 1 2 3 4; do spawn $(($1 - 1)) & done\n" +
+                "  fi\n" +
+                "  exec sleep 600\n" +
+                "}\n" +
+                "spawn 3"), 1, Outcome.TIMES_OUT));
+        scenarios.add(new Scenario("ignores_sigterm", script("stubborn.sh",
+                "trap '' TERM\n" +
+                "sleep 600 &\n" +
+                "while true; do sleep 1; done"), 1, Outcome.TIMES_OUT));
+        scenarios.add(new Scenario("timeout_boundary", script("boundary.sh", "sleep 1"), 1, Outcome.EITHER));
+        return scenarios;
+    }
+
+    /**
+     * @return an executable script that marks its processes with the run's token, to find them if they linger
+     */
+    private File script(String name, String body) throws IOException {
+        File script = new File(directory, name);
+        Writer out = new FileWriter(script);
+        try {
+            out.write("#!/bin/sh\nexport XBOT_SOAK_TOKEN=" + token + "\n" + body + "\n");
+        } finally {
+            out.close();
+        }
+        assertTrue(script.setExecutable(true));
+        return script;
+    }
+
+    private Run run(SoakMain main, Scenario scenario, int index) {
+        Client.Task task = new Client.Task("soak-" + index, scenario.name, scenario.script.getPath(),
+                new File(directory, "no-results").getPath(), 0, scenario.timeoutSeconds);
+        TaskTrace trace = new TaskTrace(task.getInstanceId(), task.getDescription());
+        Main.TaskRunner runner = main.createTaskRunner(task, trace);
+        runner.run();
+        Run run = new Run(scenario, runner, trace);
+        runner.discardOutput();
+        return run;
+    }
+
+    /**
+     * @return live threads, but for the JDK's process reapers: a pool that keeps idle threads for a minute
+     */
+    private static int threadCount() {
+        return threadNames().size();
+    }
+
+    private static List<String> threadNames() {
+        List<String> names = new ArrayList<String>();
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            if (!thread.getName().startsWith("process reaper")) names.add(thread.getName());
+        Collections.sort(names);
+        return names;
+    }
+
+    private static int fdCount() {
+        String[] fds = new File("/proc/self/fd").list();
+        return fds != null ? fds.length : 0;
+    }
+
+    /**
+     * @return processes still carrying this run's token, wherever they were reparented to
+     */
+    private List<Long> leftoverProcesses() throws IOException {
+        List<Long> leftovers = new ArrayList<Long>();
+        byte[] marker = ("XBOT_SOAK_TOKEN=" + token).getBytes(StandardCharsets.US_ASCII);
+        for (ProcessHandle process : ProcessHandle.allProcesses().toArray(ProcessHandle[]::new)) {
+            try {
+                byte[] environment = Files.readAllBytes(new File("/proc/" + process.pid() + "/environ").toPath());
+                if (contains(environment, marker)) leftovers.add(process.pid());
+            } catch (IOException ignored) {
+                // exited meanwhile, or not ours to read
+            }
+        }
+        return leftovers;
+    }
+
+    private static List<Long> zombies() {
+        List<Long> zombies = new ArrayList<Long>();
+        long self = ProcessHandle.current().pid();
+        File[] entries = new File("/proc").listFiles();
+        if (entries == null) return zombies;
+        for (File entry : entries) {
+            if (!entry.getName().matches("\\d+")) continue;
+            try {
+                String stat = new String(Files.readAllBytes(new File(entry, "stat").toPath()), StandardCharsets.US_ASCII);
+                // pid (comm) state ppid ..., comm may hold spaces
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                if (fields[0].equals("Z") && Long.parseLong(fields[1]) == self) zombies.add(Long.parseLong(entry.getName()));
+            } catch (IOException ignored) {
+            }
+        }
+        return zombies;
+    }
+
+    private static boolean contains(byte[] haystack, byte[] needle) {
+        outer:
+        for (int i = 0; i + needle.length <= haystack.length; ++i) {
+            for (int j = 0; j < needle.length; ++j)
+                if (haystack[i + j] != needle[j]) continue outer;
+            return true;
+        }
+        return false;
+    }
+
+    private static String millis(List<Long> micros, double percentile) {
+        if (micros.isEmpty()) return "-";
+        List<Long> sorted = new ArrayList<Long>(micros);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+        return String.format("%.1f", sorted.get(Math.max(0, index)) / 1000.0);
+    }
+
+    private enum Outcome {
+        EXITS, TIMES_OUT, EITHER
+    }
+
+    private static class Scenario {
+        final String name;
+        final File script;
+        final int timeoutSeconds;
+        final Outcome outcome;
+
+        Scenario(String name, File script, int timeoutSeconds, Outcome outcome) {
+            this.name = name;
+            this.script = script;
+            this.timeoutSeconds = timeoutSeconds;
+            this.outcome = outcome;
+        }
+    }
+
+    private static class Run {
+        final Scenario scenario;
+        final boolean timedOut;
+        final int exitCode;
+        final long outputBytes;
+        final long runMicros;
+        final long processMicros;
+        final long spawnMicros;
+        boolean interruptLeaked;
+
+        Run(Scenario scenario, Main.TaskRunner runner, TaskTrace trace) {
+            this.scenario = scenario;
+            this.timedOut = runner.isTimedOut();
+            this.exitCode = runner.getExitCode();
+            this.outputBytes = runner.getOutputFile() != null ? runner.getOutputFile().length() : -1;
+            long run = 0, process = 0, spawn = 0;
+            for (TaskTrace.Span span : trace.getSpans()) {
+                if (span.getName().equals("run")) run = span.getDurationMicros();
+                else if (span.getName().equals("process")) process = span.getDurationMicros();
+                else if (span.getName().equals("spawn")) spawn = span.getDurationMicros();
+            }
+            this.runMicros = run;
+            this.processMicros = process;
+            this.spawnMicros = spawn;
+        }
+
+        void check() {
+            String what = scenario.name + ": ";
+            assertFalse(what + "interrupt left on the runner's thread", interruptLeaked);
+            assertTrue(what + "no output captured", outputBytes >= 0);
+            if (scenario.outcome == Outcome.TIMES_OUT) {
+                assertTrue(what + "did not time out", timedOut);
+            } else if (scenario.outcome == Outcome.EXITS || !timedOut) {
+                assertFalse(what + "timed out", timedOut);
+                assertEquals(what + "exit code", scenario.script.getName().equals("failure.sh") ? 3 : 0, exitCode);
+            }
+            // killed tasks may take the grace period on top of their timeout
+            assertTrue(what + "took " + runMicros / 1000 + " ms", runMicros < TimeUnit.SECONDS.toMicros(scenario.timeoutSeconds + 10));
+        }
+    }
+
+    private static class SoakMain extends Main {
+        SoakMain() throws Exception {
+            super(-1, true);
+        }
+
+        TaskRunner createTaskRunner(Client.Task task, TaskTrace trace) {
+            return new TaskRunner(task, trace);
+        }
+    }
+}
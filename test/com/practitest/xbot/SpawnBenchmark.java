@@ -0,0 +1,94 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Metrics;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures how long starting a task process takes, directly from the JVM and from the launcher shell, as the heap
+ * the JVM holds grows.
+ * <p/>
+ * Usage: <code>SpawnBenchmark &lt;runs&gt; &lt;heap MB,heap MB,...&gt;</code>
+ * <p/>
+ * At each heap size, every way starts <code>/bin/true</code> <code>runs</code> times, one after the other, and
+ * reports how long <code>start</code> took and how long until the process was reaped and its output read. The
+ * heap is live, touched arrays, so a forking JVM has that much more to copy page tables for. Run with
+ * <code>-Djdk.lang.Process.launchMechanism=FORK</code> to see what the direct way costs when the JDK cannot
+ * use vfork or posix_spawn.
+ */
+public class SpawnBenchmark {
+    private static final int WARM_UP_RUNS = 20;
+    private static final int MB = 1024 * 1024;
+    private static final int PAGE = 4096;
+
+    private static final List<byte[]> ballast = new ArrayList<byte[]>();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: SpawnBenchmark <runs> <heap MB,heap MB,...>");
+            System.exit(1);
+        }
+        int runs = Integer.parseInt(args[0]);
+        System.out.println("java " + System.getProperty("java.version") + ", launch mechanism " +
+                System.getProperty("jdk.lang.Process.launchMechanism", "default"));
+        ProcessLauncher launcher = ProcessLauncher.start(new Metrics());
+        try {
+            for (String step : args[1].split(",")) {
+                growHeap(Integer.parseInt(step.trim()));
+                long heapMb = (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / MB;
+                measure("direct", null, runs, heapMb);
+                measure("launcher", launcher, runs, heapMb);
+            }
+        } finally {
+            launcher.close();
+        }
+    }
+
+    private static void growHeap(int megabytes) {
+        while (ballast.size() < megabytes) {
+            byte[] chunk = new byte[MB];
+            for (int i = 0; i < chunk.length; i += PAGE)
+                chunk[i] = 1;
+            ballast.add(chunk);
+        }
+    }
+
+    private static void measure(String way, ProcessLauncher launcher, int runs, long heapMb) throws Exception {
+        for (int i = 0; i < WARM_UP_RUNS; ++i)
+            spawn(launcher, null, null);
+        List<Long> starts = new ArrayList<Long>();
+        List<Long> roundTrips = new ArrayList<Long>();
+        for (int i = 0; i < runs; ++i)
+            spawn(launcher, starts, roundTrips);
+        System.out.println(String.format("heap %5d MB  %-8s  start p50 %6d us p99 %6d us  start to exit p50 %6d us p99 %6d us",
+                heapMb, way, percentile(starts, 50), percentile(starts, 99),
+                percentile(roundTrips, 50), percentile(roundTrips, 99)));
+    }
+
+    private static void spawn(ProcessLauncher launcher, List<Long> starts, List<Long> roundTrips) throws Exception {
+        ProcessBuilder builder = new ProcessBuilder("/bin/true");
+        builder.redirectErrorStream(true);
+        long startedAt = System.nanoTime();
+        Process process = launcher != null ? launcher.start(builder) : builder.start();
+        long started = System.nanoTime();
+        InputStream output = process.getInputStream();
+        byte[] buffer = new byte[4096];
+        while (output.read(buffer) >= 0) ;
+        output.close();
+        process.waitFor();
+        long exited = System.nanoTime();
+        if (starts != null) {
+            starts.add((started - startedAt) / 1000);
+            roundTrips.add((exited - startedAt) / 1000);
+        }
+    }
+
+    private static long percentile(List<Long> values, int percentile) {
+        List<Long> sorted = new ArrayList<Long>(values);
+        Collections.sort(sorted);
+        return sorted.get(Math.min(sorted.size() - 1, sorted.size() * percentile / 100));
+    }
+}
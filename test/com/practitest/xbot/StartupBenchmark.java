@@ -0,0 +1,117 @@
+package com.practitest.xbot;
+
+import com.practitest.api.StubPractiTestServer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time from launching the xBot JVM until its first <code>nextTask</code> call reaches the server.
+ * <p/>
+ * Usage: <code>StartupBenchmark &lt;xbot-all.jar&gt; &lt;runs&gt; [agent JVM arguments...]</code>
+ * <p/>
+ * Every run starts the agent in fast startup mode against a local stub server answering with an empty queue,
+ * and lets it exit right after the first poll.
+ */
+public class StartupBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: StartupBenchmark <xbot-all.jar> <runs> [agent JVM arguments...]");
+            System.exit(1);
+        }
+        File jar = new File(args[0]).getAbsoluteFile();
+        int runs = Integer.parseInt(args[1]);
+        List<String> jvmArgs = new ArrayList<String>();
+        for (String arg : Arrays.asList(args).subList(2, args.length)) {
+            if (arg.trim().length() > 0) jvmArgs.add(arg.trim());
+        }
+
+        List<Long> timings = new ArrayList<Long>();
+        for (int i = 0; i < runs; ++i) {
+            long millis = timeToFirstPoll(jar, jvmArgs);
+            System.out.println("run " + (i + 1) + ": time to first nextTask " + millis + " ms");
+            timings.add(millis);
+        }
+        Collections.sort(timings);
+        System.out.println("time to first nextTask" + (jvmArgs.isEmpty() ? "" : " " + jvmArgs) +
+                ": min " + timings.get(0) + " ms" +
+                ", median " + timings.get(timings.size() / 2) + " ms" +
+                ", max " + timings.get(timings.size() - 1) + " ms");
+    }
+
+    private static long timeToFirstPoll(File jar, List<String> jvmArgs) throws Exception {
+        StubPractiTestServer stub = new StubPractiTestServer().start();
+
+        File workingDirectory = createWorkingDirectory(stub.getURL());
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(jvmArgs);
+        command.add("-Dcom.practitest.xbot.no_tray_icon=true");
+        command.add("-Dcom.practitest.xbot.fast_startup=true");
+        command.add("-Dcom.practitest.xbot.exit_after_first_poll=true");
+        command.add("-Dcom.practitest.xbot.listening_port=" + freePort());
+        command.add("-jar");
+        command.add(jar.getPath());
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.directory(workingDirectory);
+        processBuilder.redirectErrorStream(true);
+
+        try {
+            long startedAt = System.nanoTime();
+            final Process process = processBuilder.start();
+            Thread drainer = new Thread(new Runnable() {
+                public void run() {
+                    byte[] buffer = new byte[8192];
+                    try {
+                        while (process.getInputStream().read(buffer) >= 0) ;
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+            drainer.setDaemon(true);
+            drainer.start();
+            if (!stub.awaitFirstPoll(TimeUnit.SECONDS.toMillis(60))) {
+                process.destroy();
+                throw new IllegalStateException("xBot did not poll within 60 seconds (working directory " + workingDirectory + ")");
+            }
+            process.waitFor();
+            return TimeUnit.NANOSECONDS.toMillis(stub.getFirstPollAt() - startedAt);
+        } finally {
+            stub.stop();
+        }
+    }
+
+    private static File createWorkingDirectory(String serverURL) throws IOException {
+        File directory = File.createTempFile("xbot-startup", "");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("Failed to create " + directory);
+        Properties settings = new Properties();
+        settings.setProperty("server_url", serverURL);
+        settings.setProperty("api_token", "benchmark");
+        settings.setProperty("client_id", "benchmark");
+        FileWriter writer = new FileWriter(new File(directory, "xbot.properties"));
+        try {
+            settings.store(writer, null);
+        } finally {
+            writer.close();
+        }
+        return directory;
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
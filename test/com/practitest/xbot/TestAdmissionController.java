@@ -0,0 +1,74 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Metrics;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+public class TestAdmissionController extends TestCase {
+    private File proc;
+
+    @Override
+    protected void setUp() throws Exception {
+        proc = File.createTempFile("xbot-proc", "");
+        assertTrue(proc.delete() && proc.mkdir());
+        write("loadavg", "3.50 2.00 1.00 2/300 4242\n");
+        write("meminfo", "MemTotal:        8000000 kB\nMemFree:          100000 kB\nMemAvailable:    2048000 kB\nCached:           500000 kB\n");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : proc.listFiles()) file.delete();
+        proc.delete();
+    }
+
+    public void testDisabledByDefault() {
+        assertFalse(new AdmissionController(proc, 4, 0, 0, 0, new Metrics()).isEnabled());
+    }
+
+    public void testLoadPerCpu() {
+        Metrics metrics = new Metrics();
+        assertNull(new AdmissionController(proc, 4, 1.0, 0, 0, metrics).check(null));
+        assertEquals(875, metrics.get("xbot_host_load_per_cpu_milli"));
+        assertEquals(1, metrics.get("xbot_admission_open"));
+
+        String refusal = new AdmissionController(proc, 2, 1.0, 0, 0, metrics).check(null);
+        assertNotNull(refusal);
+        assertTrue(refusal, refusal.startsWith("load average 1.75 per CPU"));
+        assertEquals(0, metrics.get("xbot_admission_open"));
+        assertEquals(1, metrics.get("xbot_admission_held_total"));
+    }
+
+    public void testAvailableMemory() throws Exception {
+        long mb = 1024 * 1024;
+        assertNull(new AdmissionController(proc, 1, 0, 1000 * mb, 0, new Metrics()).check(null));
+        assertNotNull(new AdmissionController(proc, 1, 0, 3000 * mb, 0, new Metrics()).check(null));
+
+        // kernels without MemAvailable
+        write("meminfo", "MemTotal:        8000000 kB\nMemFree:          100000 kB\nCached:           500000 kB\n");
+        Metrics metrics = new Metrics();
+        assertNull(new AdmissionController(proc, 1, 0, 500 * mb, 0, metrics).check(null));
+        assertEquals(600000 * 1024L, metrics.get("xbot_host_memory_available_bytes"));
+    }
+
+    public void testFreeDiskInNearestExistingDirectory() {
+        File missing = new File(proc, "not/yet/created");
+        assertNull(new AdmissionController(proc, 1, 0, 0, 1, new Metrics()).check(missing));
+        assertNotNull(new AdmissionController(proc, 1, 0, 0, Long.MAX_VALUE, new Metrics()).check(missing));
+    }
+
+    public void testMissingProcFilesAreIgnored() {
+        File empty = new File(proc, "empty");
+        assertTrue(empty.mkdir());
+        assertNull(new AdmissionController(empty, 1, 0.01, Long.MAX_VALUE, 0, new Metrics()).check(null));
+    }
+
+    private void write(String name, String content) throws IOException {
+        Writer out = new FileWriter(new File(proc, name));
+        out.write(content);
+        out.close();
+    }
+}
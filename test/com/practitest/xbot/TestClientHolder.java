@@ -0,0 +1,56 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Client;
+import junit.framework.TestCase;
+
+public class TestClientHolder extends TestCase {
+    public void testNotConfigured() {
+        ClientHolder holder = new ClientHolder();
+        assertNull(holder.acquire());
+        holder.replace(null);
+        assertNull(holder.acquire());
+    }
+
+    public void testReplaceKeepsLeasedClientOpen() {
+        ClientHolder holder = new ClientHolder();
+        CountingClient first = new CountingClient();
+        holder.replace(first);
+
+        ClientHolder.Lease lease = holder.acquire();
+        assertSame(first, lease.getClient());
+
+        CountingClient second = new CountingClient();
+        holder.replace(second);
+        assertEquals("closed while leased", 0, first.closed);
+        assertSame(second, holder.acquire().getClient());
+
+        lease.release();
+        assertEquals(1, first.closed);
+        assertEquals(0, second.closed);
+    }
+
+    public void testReplaceClosesIdleClient() {
+        ClientHolder holder = new ClientHolder();
+        CountingClient client = new CountingClient();
+        holder.replace(client);
+        holder.acquire().release();
+        assertEquals(0, client.closed);
+        holder.replace(null);
+        assertEquals(1, client.closed);
+        assertNull(holder.acquire());
+    }
+
+    private static class CountingClient extends Client {
+        int closed = 0;
+
+        CountingClient() {
+            super("http://localhost", "token", "client", "", "", "", "", "test");
+        }
+
+        @Override
+        public void close() {
+            ++closed;
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.practitest.xbot;
+
+import junit.framework.TestCase;
+
+public class TestDrainController extends TestCase {
+    public void testIdleAgentDrainsImmediately() throws Exception {
+        DrainController drain = new DrainController();
+        assertTrue(drain.describe().startsWith("state serving\n"));
+        assertTrue(drain.startDrain(60000));
+        assertFalse(drain.beginWork());
+        long started = System.currentTimeMillis();
+        assertTrue(drain.awaitIdle(0));
+        assertTrue(System.currentTimeMillis() - started < 1000);
+        assertTrue(drain.describe().startsWith("state drained\n"));
+    }
+
+    public void testWaitsForTheRunningTask() throws Exception {
+        final DrainController drain = new DrainController();
+        assertTrue(drain.beginWork());
+        drain.taskStarted("42", Thread.currentThread());
+        drain.startDrain(60000);
+        assertTrue(drain.describe().contains("state draining\ntask 42\n"));
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ignored) {
+                }
+                drain.taskFinished();
+                drain.endWork();
+            }
+        }).start();
+        assertTrue(drain.awaitIdle(0));
+        assertTrue(drain.describe().contains("tasks_finished 1\n"));
+    }
+
+    public void testDeadlineInterruptsTheTask() throws Exception {
+        final DrainController drain = new DrainController();
+        assertTrue(drain.beginWork());
+        final boolean[] interrupted = new boolean[1];
+        Thread task = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    interrupted[0] = true;
+                }
+                drain.taskFinished();
+                drain.endWork(); // the upload of what it produced
+            }
+        });
+        drain.taskStarted("42", task);
+        task.start();
+        drain.startDrain(200);
+        assertFalse(drain.awaitIdle(0));
+        assertEquals("42", drain.interruptTask());
+        assertTrue(drain.awaitIdle(5000));
+        task.join();
+        assertTrue(interrupted[0]);
+    }
+
+    public void testLaterRequestCanOnlyShortenTheDeadline() throws Exception {
+        DrainController drain = new DrainController();
+        assertTrue(drain.beginWork());
+        assertTrue(drain.startDrain(60000));
+        assertFalse(drain.startDrain(120000));
+        assertFalse(drain.startDrain(100));
+        long started = System.currentTimeMillis();
+        assertFalse(drain.awaitIdle(0));
+        assertTrue(System.currentTimeMillis() - started < 5000);
+    }
+}
@@ -0,0 +1,148 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Metrics;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+public class TestEventLog extends TestCase {
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("xbot-events", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files) file.delete();
+        directory.delete();
+    }
+
+    public void testFindByInstanceAcrossSegments() throws Exception {
+        EventLog log = open(512, 100);
+        for (int i = 0; i < 50; ++i) {
+            log.append("task-" + (i % 5), "message " + i);
+            log.append(null, "heartbeat " + i);
+        }
+        log.close();
+
+        assertTrue("expected several segments", segmentCount() > 3);
+        List<EventLog.Event> events = log.findByInstance("task-3");
+        assertEquals(10, events.size());
+        for (int i = 0; i < events.size(); ++i) {
+            assertEquals("task-3", events.get(i).getInstanceId());
+            assertEquals("message " + (i * 5 + 3), events.get(i).getMessage());
+        }
+        assertTrue(log.findByInstance("unknown").isEmpty());
+    }
+
+    public void testMessagesKeepTabsAndNewlines() throws Exception {
+        EventLog log = open(4096, 10);
+        log.append("42", "first line\nsecond\tcolumn \\ backslash");
+        log.close();
+        assertEquals("first line\nsecond\tcolumn \\ backslash", log.findByInstance("42").get(0).getMessage());
+    }
+
+    public void testHistorySurvivesRestart() throws Exception {
+        EventLog log = open(4096, 10);
+        log.append("42", "before restart");
+        log.close();
+
+        log = open(4096, 10);
+        log.append("42", "after restart");
+        log.close();
+        List<EventLog.Event> events = log.findByInstance("42");
+        assertEquals(2, events.size());
+        assertEquals("before restart", events.get(0).getMessage());
+        assertEquals("after restart", events.get(1).getMessage());
+    }
+
+    public void testIndexIsRebuiltWhenMissing() throws Exception {
+        EventLog log = open(4096, 10);
+        log.append("42", "indexed");
+        log.close();
+        for (File file : directory.listFiles())
+            if (file.getName().endsWith(".idx")) assertTrue(file.delete());
+
+        log = open(4096, 10);
+        assertEquals("indexed", log.findByInstance("42").get(0).getMessage());
+        log.close();
+    }
+
+    public void testDamagedIndexIsRebuilt() throws Exception {
+        EventLog log = open(4096, 10);
+        log.append("42", "indexed");
+        log.append("43", "also indexed");
+        log.close();
+        File index = null;
+        for (File file : directory.listFiles())
+            if (file.getName().endsWith(".idx")) index = file;
+        assertNotNull(index);
+        String[] damages = {"", "12", "1 2\n42\n", "1 2\n42 1x\n", "1 2\n42 %zz 1\n"};
+        for (String damage : damages) {
+            Writer writer = new FileWriter(index);
+            writer.write(damage);
+            writer.close();
+            // newer than the segment, so it would be trusted
+            assertTrue(index.setLastModified(System.currentTimeMillis() + 60000));
+            log = open(4096, 10);
+            assertEquals("[" + damage + "]", 1, log.findByInstance("42").size());
+            assertEquals("[" + damage + "]", "also indexed", log.findByInstance("43").get(0).getMessage());
+            log.close();
+        }
+    }
+
+    public void testOldestSegmentsAreDeleted() throws Exception {
+        EventLog log = open(256, 3);
+        for (int i = 0; i < 100; ++i)
+            log.append("old", "message number " + i);
+        log.close();
+        assertEquals(3, segmentCount());
+        List<EventLog.Event> events = log.findByInstance("old");
+        assertTrue(events.size() < 100);
+        assertEquals("message number 99", events.get(events.size() - 1).getMessage());
+    }
+
+    public void testFindBetween() throws Exception {
+        EventLog log = open(4096, 10);
+        long before = System.currentTimeMillis();
+        log.append(null, "recent");
+        log.close();
+        assertEquals(1, log.findBetween(before, System.currentTimeMillis()).size());
+        assertTrue(log.findBetween(0, before - 1).isEmpty());
+    }
+
+    public void testEventsAreVisibleWhileWriterRuns() throws Exception {
+        EventLog log = open(4096, 10);
+        try {
+            log.append("42", "live");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (log.findByInstance("42").isEmpty() && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals("live", log.findByInstance("42").get(0).getMessage());
+        } finally {
+            log.close();
+        }
+    }
+
+    private EventLog open(long segmentSize, int maxSegments) throws IOException {
+        EventLog log = new EventLog(directory, segmentSize, maxSegments, new Metrics());
+        log.start();
+        return log;
+    }
+
+    private int segmentCount() {
+        int count = 0;
+        for (File file : directory.listFiles())
+            if (file.getName().endsWith(".log")) ++count;
+        return count;
+    }
+}
@@ -0,0 +1,65 @@
+package com.practitest.xbot;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestFlightRecording extends TestCase {
+    private final FlightRecording recording = new FlightRecording();
+
+    @Override
+    protected void tearDown() throws Exception {
+        recording.close();
+    }
+
+    public void testTaskPhasesAreRecorded() throws Exception {
+        assertEquals("state none\n", recording.describe());
+        assertTrue(recording.start("default", Duration.ofMinutes(1)));
+        assertFalse(recording.start("default", Duration.ofMinutes(1)));
+        assertTrue(recording.describe(), recording.describe().startsWith("state running\n"));
+
+        TaskTrace trace = new TaskTrace("42", "suite");
+        TaskTrace.begin("upload").end(trace, 1234);
+        TaskTrace.begin("poll").end(null, 0);
+        assertEquals("upload", trace.getSpans().get(0).getName());
+
+        List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+        File file = File.createTempFile("xbot-test", ".jfr");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                assertTrue(recording.dump(out));
+            } finally {
+                out.close();
+            }
+            for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath()))
+                if (event.getEventType().getName().equals("com.practitest.xbot.TaskPhase")) events.add(event);
+        } finally {
+            file.delete();
+        }
+        assertEquals(2, events.size());
+        assertEquals("upload", events.get(0).getString("phase"));
+        assertEquals("42", events.get(0).getString("instanceId"));
+        assertEquals(1234, events.get(0).getLong("bytes"));
+        assertEquals("poll", events.get(1).getString("phase"));
+        assertNull(events.get(1).getString("instanceId"));
+    }
+
+    public void testSettingsMustBeAPlainName() throws Exception {
+        try {
+            recording.start("../../secret", Duration.ofMinutes(1));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertFalse(recording.hasRecording());
+        assertFalse(recording.dump(new ByteArrayOutputStream()));
+    }
+}
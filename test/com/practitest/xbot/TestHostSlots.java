@@ -0,0 +1,115 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Metrics;
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class TestHostSlots extends TestCase {
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("xbot-host-slots", "");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testAgentsShareTheSlots() throws Exception {
+        Metrics metrics = new Metrics();
+        HostSlots first = new HostSlots(file, 2, 18081, metrics);
+        HostSlots second = new HostSlots(file, 2, 18082, new Metrics());
+        HostSlots third = new HostSlots(file, 2, 18083, new Metrics());
+        try {
+            HostSlots.Slot firstSlot = first.tryAcquire();
+            assertNotNull(firstSlot);
+            assertEquals(1, metrics.get("xbot_host_slot_held"));
+            assertNull("one slot per agent", first.tryAcquire());
+            HostSlots.Slot secondSlot = second.tryAcquire();
+            assertNotNull(secondSlot);
+            assertTrue(firstSlot.getIndex() != secondSlot.getIndex());
+            assertNull(third.tryAcquire());
+
+            List<String> holders = third.describeHolders();
+            assertEquals(2, holders.size());
+            assertTrue(holders.toString(), holders.toString().contains("(port 18081)"));
+            assertTrue(holders.toString(), holders.toString().contains("(port 18082)"));
+
+            firstSlot.release();
+            assertEquals(0, metrics.get("xbot_host_slot_held"));
+            HostSlots.Slot thirdSlot = third.tryAcquire();
+            assertNotNull(thirdSlot);
+            assertEquals(firstSlot.getIndex(), thirdSlot.getIndex());
+            assertEquals(1, third.describeHolders().size());
+        } finally {
+            first.close();
+            second.close();
+            third.close();
+        }
+    }
+
+    public void testReleaseIsIdempotent() throws Exception {
+        HostSlots slots = new HostSlots(file, 1, 18081, new Metrics());
+        try {
+            HostSlots.Slot slot = slots.tryAcquire();
+            slot.release();
+            HostSlots.Slot again = slots.tryAcquire();
+            assertNotNull(again);
+            // a late second release of the old slot must not free the new one
+            slot.release();
+            HostSlots other = new HostSlots(file, 1, 18082, new Metrics());
+            assertNull(other.tryAcquire());
+            other.close();
+            again.release();
+        } finally {
+            slots.close();
+        }
+    }
+
+    public void testSlotOfAKilledAgentIsFreeAgain() throws Exception {
+        ProcessBuilder builder = new ProcessBuilder(
+                new File(new File(System.getProperty("java.home"), "bin"), "java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                Holder.class.getName(), file.getPath());
+        builder.redirectErrorStream(true);
+        Process holder = builder.start();
+        try {
+            BufferedReader output = new BufferedReader(new InputStreamReader(holder.getInputStream(), "UTF-8"));
+            String line;
+            while ((line = output.readLine()) != null && !line.equals("held")) ;
+            assertEquals("held", line);
+            HostSlots slots = new HostSlots(file, 1, 18081, new Metrics());
+            try {
+                assertNull(slots.tryAcquire());
+                assertEquals("[pid " + holder.pid() + " (port 18099)]", slots.describeHolders().toString());
+                holder.destroyForcibly();
+                assertTrue(holder.waitFor(10, TimeUnit.SECONDS));
+                assertNotNull(slots.tryAcquire());
+            } finally {
+                slots.close();
+            }
+        } finally {
+            holder.destroyForcibly();
+        }
+    }
+
+    /**
+     * Holds the only slot of the file it is given until killed.
+     */
+    public static class Holder {
+        public static void main(String[] args) throws Exception {
+            HostSlots slots = new HostSlots(new File(args[0]), 1, 18099, new Metrics());
+            if (slots.tryAcquire() == null) System.exit(1);
+            System.out.println("held");
+            System.out.flush();
+            Thread.sleep(TimeUnit.MINUTES.toMillis(5));
+        }
+    }
+}
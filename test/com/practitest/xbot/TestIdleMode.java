@@ -0,0 +1,38 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Metrics;
+import junit.framework.TestCase;
+
+public class TestIdleMode extends TestCase {
+    public void testDisabledNeverTurnsIdle() throws Exception {
+        IdleMode idleMode = new IdleMode(0, new Metrics());
+        assertFalse(idleMode.isEnabled());
+        Thread.sleep(10);
+        assertFalse(idleMode.nothingToDo());
+        assertFalse(idleMode.isIdle());
+    }
+
+    public void testTurnsIdleOnceAfterTheQuietPeriod() throws Exception {
+        Metrics metrics = new Metrics();
+        IdleMode idleMode = new IdleMode(100, metrics);
+        assertFalse(idleMode.nothingToDo());
+        Thread.sleep(150);
+        assertTrue(idleMode.nothingToDo());
+        assertFalse(idleMode.nothingToDo());
+        assertTrue(idleMode.isIdle());
+        assertEquals(1, metrics.get("xbot_idle"));
+        assertEquals(1, metrics.get("xbot_idle_entered_total"));
+    }
+
+    public void testTaskEndsIdleModeAndRestartsTheQuietPeriod() throws Exception {
+        Metrics metrics = new Metrics();
+        IdleMode idleMode = new IdleMode(100, metrics);
+        assertFalse(idleMode.taskArrived());
+        Thread.sleep(150);
+        assertTrue(idleMode.nothingToDo());
+        assertTrue(idleMode.taskArrived());
+        assertFalse(idleMode.isIdle());
+        assertEquals(0, metrics.get("xbot_idle"));
+        assertFalse(idleMode.nothingToDo());
+    }
+}
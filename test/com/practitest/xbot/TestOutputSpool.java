@@ -0,0 +1,90 @@
+package com.practitest.xbot;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+public class TestOutputSpool extends TestCase {
+    public void testCapturesOutputToFile() throws Exception {
+        OutputSpool spool = new OutputSpool(1024, false);
+        try {
+            write(spool, "hello\n");
+            write(spool, "world\n");
+            spool.close();
+            assertEquals("hello\nworld\n", read(spool.getFile(), false));
+            assertEquals("hello\nworld\n", spool.getHead());
+            assertEquals(0, spool.getDroppedBytes());
+        } finally {
+            spool.delete();
+        }
+        assertFalse(spool.getFile().exists());
+    }
+
+    public void testDropsOutputPastLimit() throws Exception {
+        OutputSpool spool = new OutputSpool(10, false);
+        try {
+            write(spool, "0123456789abcdef");
+            write(spool, "more");
+            spool.close();
+            assertEquals(10, spool.getCapturedBytes());
+            assertEquals(10, spool.getDroppedBytes());
+            String captured = read(spool.getFile(), false);
+            assertTrue(captured, captured.startsWith("0123456789\n<output truncated, 10 more bytes dropped>"));
+        } finally {
+            spool.delete();
+        }
+    }
+
+    public void testHeadIsShortened() throws Exception {
+        OutputSpool spool = new OutputSpool(4096, false);
+        try {
+            byte[] line = new byte[1000];
+            Arrays.fill(line, (byte) 'x');
+            spool.write(line, 0, line.length);
+            spool.close();
+            assertEquals(255 + "<...>".length(), spool.getHead().length());
+            assertTrue(spool.getHead().endsWith("<...>"));
+        } finally {
+            spool.delete();
+        }
+    }
+
+    public void testCompressedOutput() throws Exception {
+        OutputSpool spool = new OutputSpool(1024, true);
+        try {
+            write(spool, "compressed output\n");
+            spool.close();
+            assertTrue(spool.getFile().getName().endsWith(".gz"));
+            assertEquals("compressed output\n", read(spool.getFile(), true));
+        } finally {
+            spool.delete();
+        }
+    }
+
+    private static void write(OutputSpool spool, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        spool.write(bytes, 0, bytes.length);
+    }
+
+    private static String read(File file, boolean compressed) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (compressed) in = new GZIPInputStream(in);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0)
+                out.write(buffer, 0, read);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
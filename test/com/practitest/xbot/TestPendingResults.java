@@ -0,0 +1,129 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Client;
+import com.practitest.api.Metrics;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestPendingResults extends TestCase {
+    private File directory;
+    private File work;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = createDirectory("xbot-uploads");
+        work = createDirectory("xbot-task");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(directory);
+        delete(work);
+    }
+
+    public void testResultSurvivesRestartWithItsOutputCopied() throws Exception {
+        File output = write(new File(work, "output.txt"), "console output");
+        File summary = write(new File(work, "summary.json"), "{}");
+        File large = write(new File(work, "large.bin"), "attachment");
+        Metrics metrics = new Metrics();
+        new PendingResults(directory, metrics).add(new Client.TaskResult("42", 3, Arrays.asList(large), output, summary));
+        assertEquals(1, metrics.get("xbot_results_pending"));
+        // the temporary output is gone once the task is done with
+        assertTrue(output.delete() && summary.delete());
+
+        List<Client.TaskResult> results = new PendingResults(directory, new Metrics()).list();
+        assertEquals(1, results.size());
+        Client.TaskResult result = results.get(0);
+        assertEquals("42", result.getInstanceId());
+        assertEquals(3, result.getExitCode());
+        assertEquals("console output", read(result.getOutputFile()));
+        assertEquals("{}", read(result.getSummaryFile()));
+        // result files are not copied, so chunked uploads of them resume
+        assertEquals(Arrays.asList(large.getAbsoluteFile()), result.getFiles());
+    }
+
+    public void testOutputGivenAsString() throws Exception {
+        PendingResults pending = new PendingResults(directory, new Metrics());
+        pending.add(new Client.TaskResult("7", 0, null, "short output"));
+        Client.TaskResult result = pending.list().get(0);
+        assertNull(result.getOutputFile());
+        assertEquals("short output", result.getFullOutput());
+        assertTrue(result.getFiles().isEmpty());
+    }
+
+    public void testSummaryKeptWithOutputGivenAsString() throws Exception {
+        File summary = write(new File(work, "summary.json"), "{}");
+        PendingResults pending = new PendingResults(directory, new Metrics());
+        pending.add(new Client.TaskResult("7", 0, null, "short output", summary));
+        assertTrue(summary.delete());
+        Client.TaskResult result = pending.list().get(0);
+        assertEquals("short output", result.getFullOutput());
+        assertEquals("{}", read(result.getSummaryFile()));
+    }
+
+    public void testResultFileChangedSinceIsLeftOut() throws Exception {
+        File kept = write(new File(work, "kept.xml"), "<testsuite/>");
+        File overwritten = write(new File(work, "TEST-suite.xml"), "<testsuite name=\"first\"/>");
+        PendingResults pending = new PendingResults(directory, new Metrics());
+        pending.add(new Client.TaskResult("42", 1, Arrays.asList(kept, overwritten), "output"));
+        // the next task in the same directory writes its report over it
+        write(overwritten, "<testsuite name=\"second run\"/>");
+        assertEquals(Arrays.asList(kept.getAbsoluteFile()), pending.list().get(0).getFiles());
+    }
+
+    public void testRemoveDeletesTheCopiesOfThatInstanceOnly() throws Exception {
+        Metrics metrics = new Metrics();
+        PendingResults pending = new PendingResults(directory, metrics);
+        pending.add(new Client.TaskResult("42", 0, null, write(new File(work, "a.txt"), "a"), null));
+        pending.add(new Client.TaskResult("42-x", 0, null, write(new File(work, "b.txt"), "b"), null));
+        pending.remove("42");
+        assertEquals(1, metrics.get("xbot_results_pending"));
+        List<Client.TaskResult> results = pending.list();
+        assertEquals(1, results.size());
+        assertEquals("b", read(results.get(0).getOutputFile()));
+        assertEquals(2, directory.list().length);
+    }
+
+    public void testStaleResultsAreDropped() throws Exception {
+        PendingResults pending = new PendingResults(directory, new Metrics());
+        pending.add(new Client.TaskResult("42", 0, null, "old"));
+        for (File file : directory.listFiles())
+            assertTrue(file.setLastModified(System.currentTimeMillis() - 8 * 24 * 3600 * 1000L));
+        assertTrue(pending.list().isEmpty());
+        assertEquals(0, directory.list().length);
+    }
+
+    private static File createDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        assertTrue(directory.delete() && directory.mkdir());
+        return directory;
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files) file.delete();
+        directory.delete();
+    }
+
+    private static File write(File file, String content) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+    }
+}
@@ -0,0 +1,153 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Metrics;
+import junit.framework.TestCase;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestPollTrigger extends TestCase {
+    private ScheduledExecutorService scheduler;
+    private CountingPoll poll;
+
+    @Override
+    protected void setUp() throws Exception {
+        scheduler = Executors.newScheduledThreadPool(1);
+        poll = new CountingPoll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        scheduler.shutdownNow();
+    }
+
+    public void testBurstOfRequestsMakesOnePoll() throws Exception {
+        Metrics metrics = new Metrics();
+        PollTrigger trigger = createTrigger(0, metrics);
+        poll.trigger = trigger;
+        CountDownLatch blocked = blockScheduler();
+        assertTrue(trigger.request());
+        for (int i = 0; i < 99; ++i) assertFalse(trigger.request());
+        blocked.countDown();
+        awaitScheduler();
+        assertEquals(1, poll.runs.get());
+        assertEquals(100, metrics.get("xbot_poll_now_requests_total"));
+        assertEquals(1, metrics.get("xbot_poll_now_polls_total"));
+        assertFalse(trigger.isPending());
+    }
+
+    public void testRequestDuringAPollMakesOneMore() throws Exception {
+        PollTrigger trigger = createTrigger(0, new Metrics());
+        poll.trigger = trigger;
+        poll.duringRun = new Runnable() {
+            public void run() {
+                if (poll.runs.get() == 1) {
+                    poll.trigger.request();
+                    poll.trigger.request();
+                }
+            }
+        };
+        trigger.request();
+        awaitScheduler();
+        awaitScheduler();
+        assertEquals(2, poll.runs.get());
+    }
+
+    public void testScheduledPollServesPendingRequest() throws Exception {
+        Metrics metrics = new Metrics();
+        PollTrigger trigger = createTrigger(0, metrics);
+        poll.trigger = trigger;
+        CountDownLatch blocked = blockScheduler();
+        // the regular poll is due before the requested one
+        scheduler.execute(poll);
+        trigger.request();
+        blocked.countDown();
+        awaitScheduler();
+        assertEquals(1, poll.runs.get());
+        assertEquals(0, metrics.get("xbot_poll_now_polls_total"));
+    }
+
+    public void testRequestedPollsKeepTheMinimumInterval() throws Exception {
+        PollTrigger trigger = createTrigger(200, new Metrics());
+        poll.trigger = trigger;
+        trigger.request();
+        awaitScheduler();
+        long start = System.nanoTime();
+        trigger.request();
+        Thread.sleep(50);
+        assertEquals(1, poll.runs.get());
+        assertTrue(trigger.isPending());
+        Thread.sleep(300);
+        assertEquals(2, poll.runs.get());
+        assertTrue((poll.lastRunAt - start) / 1000000 >= 150);
+    }
+
+    public void testLoopbackConnectionRequestsAPoll() throws Exception {
+        PollTrigger trigger = createTrigger(0, new Metrics());
+        poll.trigger = trigger;
+        trigger.listen(0);
+        try {
+            assertTrue(trigger.getPort() > 0);
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), trigger.getPort());
+            try {
+                InputStream in = socket.getInputStream();
+                byte[] answer = new byte[3];
+                assertEquals(3, in.read(answer));
+                assertEquals("OK\n", new String(answer, "US-ASCII"));
+            } finally {
+                socket.close();
+            }
+            awaitScheduler();
+            assertEquals(1, poll.runs.get());
+        } finally {
+            trigger.close();
+        }
+    }
+
+    private PollTrigger createTrigger(long minIntervalMillis, Metrics metrics) {
+        return new PollTrigger(scheduler, poll, minIntervalMillis, metrics);
+    }
+
+    private CountDownLatch blockScheduler() {
+        final CountDownLatch latch = new CountDownLatch(1);
+        scheduler.execute(new Runnable() {
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        return latch;
+    }
+
+    /**
+     * Waits until everything submitted to the scheduler so far ran.
+     */
+    private void awaitScheduler() throws Exception {
+        scheduler.schedule(new Runnable() {
+            public void run() {
+            }
+        }, 0, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+    }
+
+    private static class CountingPoll implements Runnable {
+        final AtomicInteger runs = new AtomicInteger();
+        volatile PollTrigger trigger;
+        volatile Runnable duringRun;
+        volatile long lastRunAt;
+
+        public void run() {
+            trigger.pollStarted();
+            runs.incrementAndGet();
+            lastRunAt = System.nanoTime();
+            if (duringRun != null) duringRun.run();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Metrics;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+public class TestProcessLauncher extends TestCase {
+    private Metrics metrics;
+    private ProcessLauncher launcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        metrics = new Metrics();
+        launcher = ProcessLauncher.start(metrics);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        launcher.close();
+    }
+
+    public void testOutputAndExitStatus() throws Exception {
+        Process process = launcher.start(command("/bin/sh", "-c", "echo out; echo err >&2; exit 3"));
+        assertEquals("out\nerr\n", readAll(process.getInputStream()));
+        assertEquals(3, process.waitFor());
+        assertEquals(3, process.exitValue());
+        assertFalse(process.isAlive());
+        assertTrue(process.pid() > 0);
+        assertEquals(1, metrics.get("xbot_launcher_spawns_total"));
+    }
+
+    public void testOutputIsPipedNotSpooled() throws Exception {
+        Process process = launcher.start(command("head", "-c", "8000000", "/dev/zero"));
+        // held up by the full pipe until the output is read, as it would be when started directly
+        assertFalse(process.waitFor(300, TimeUnit.MILLISECONDS));
+        InputStream output = process.getInputStream();
+        byte[] buffer = new byte[65536];
+        long total = 0;
+        int read;
+        while ((read = output.read(buffer)) > 0)
+            total += read;
+        assertEquals(8000000, total);
+        assertEquals(0, process.waitFor());
+    }
+
+    public void testOutputOfWhatTheCommandLeftRunningIsRead() throws Exception {
+        Process process = launcher.start(command("/bin/sh", "-c", "(sleep 0.3; echo late) & echo early"));
+        assertEquals("early\nlate\n", readAll(process.getInputStream()));
+        assertEquals(0, process.waitFor());
+    }
+
+    public void testWorkingDirectoryAndQuoting() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir")).getCanonicalFile();
+        ProcessBuilder builder = command("/bin/sh", "-c", "pwd; printf '%s|' \"$@\"", "sh", "it's", "$HOME", "a  b", "");
+        builder.directory(directory);
+        Process process = launcher.start(builder);
+        assertEquals(directory.getPath() + "\nit's|$HOME|a  b||", readAll(process.getInputStream()));
+        assertEquals(0, process.waitFor());
+    }
+
+    public void testDestroyEndsTheProcess() throws Exception {
+        Process process = launcher.start(command("sleep", "30"));
+        assertFalse(process.waitFor(100, TimeUnit.MILLISECONDS));
+        assertTrue(process.isAlive());
+        process.destroy();
+        assertTrue(process.waitFor(5, TimeUnit.SECONDS));
+        assertEquals(143, process.exitValue());
+        assertEquals(-1, process.getInputStream().read());
+    }
+
+    public void testProcessTreeOfAnEndedProcess() throws Exception {
+        Process process = launcher.start(command("/bin/true"));
+        assertEquals(0, process.waitFor());
+        // what stopping a task that ended just as it timed out looks at
+        assertEquals(0, process.descendants().count());
+        process.destroy();
+        process.destroyForcibly();
+        assertFalse(process.isAlive());
+    }
+
+    public void testWaitIsInterruptible() throws Exception {
+        Process process = launcher.start(command("sleep", "30"));
+        Thread.currentThread().interrupt();
+        try {
+            process.waitFor();
+            fail("not interrupted");
+        } catch (InterruptedException expected) {
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+
+    public void testWhatTheShellCannotDoIsStartedDirectly() throws Exception {
+        ProcessBuilder separateStderr = new ProcessBuilder("/bin/true");
+        assertEquals(0, launcher.start(separateStderr).waitFor());
+        ProcessBuilder changedEnvironment = command("/bin/true");
+        changedEnvironment.environment().put("XBOT_TEST", "1");
+        assertEquals(0, launcher.start(changedEnvironment).waitFor());
+        assertEquals(0, launcher.start(command("/bin/echo", "two\nlines")).waitFor());
+        assertEquals(3, metrics.get("xbot_launcher_direct_spawns_total"));
+        assertEquals(0, metrics.get("xbot_launcher_spawns_total"));
+    }
+
+    public void testMissingProgramFailsAsItWouldDirectly() throws Exception {
+        try {
+            launcher.start(command("/no/such/program"));
+            fail("started");
+        } catch (IOException expected) {
+        }
+        try {
+            launcher.start(command("/bin/sh", "-c", "true")
+                    .directory(new File("/no/such/directory")));
+            fail("started");
+        } catch (IOException expected) {
+        }
+        // still usable afterwards
+        assertEquals(0, launcher.start(command("/bin/true")).waitFor());
+        assertEquals(1, metrics.get("xbot_launcher_spawns_total"));
+    }
+
+    public void testClosedLauncherStartsDirectly() throws Exception {
+        launcher.close();
+        Process process = launcher.start(command("/bin/sh", "-c", "echo direct"));
+        assertEquals("direct\n", readAll(process.getInputStream()));
+        assertEquals(0, process.waitFor());
+        assertEquals(1, metrics.get("xbot_launcher_direct_spawns_total"));
+    }
+
+    private static ProcessBuilder command(String... command) {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        return builder;
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0)
+            out.write(buffer, 0, read);
+        return out.toString("UTF-8");
+    }
+}
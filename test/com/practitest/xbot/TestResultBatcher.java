@@ -0,0 +1,221 @@
+package com.practitest.xbot;
+
+import com.practitest.api.CallPolicy;
+import com.practitest.api.Client;
+import com.practitest.api.CommonsHttpTransport;
+import com.practitest.api.Metrics;
+import com.practitest.api.StubPractiTestServer;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestResultBatcher extends TestCase {
+    public void testFullBatchGoesOutAtOnce() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        Metrics metrics = new Metrics();
+        ResultBatcher batcher = new ResultBatcher(3, 64 * 1024, 60000, sender, metrics);
+        for (int i = 1; i <= 3; ++i) batcher.add(result(String.valueOf(i), "ok"));
+        assertTrue(sender.awaitBatches(1, 5000));
+        assertEquals(Arrays.asList("1", "2", "3"), sender.getBatch(0));
+        assertEquals(0, batcher.getPending());
+        assertEquals(1, metrics.get("xbot_result_batches_total"));
+        assertEquals(3, metrics.get("xbot_results_batched_total"));
+    }
+
+    public void testBatchGoesOutOnceItHoldsEnoughOutput() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        ResultBatcher batcher = new ResultBatcher(100, 1000, 60000, sender, new Metrics());
+        batcher.add(result("1", repeat('x', 400)));
+        batcher.add(result("2", repeat('x', 400)));
+        batcher.add(result("3", repeat('x', 400)));
+        assertTrue(sender.awaitBatches(1, 5000));
+        // a third would take the batch past its bytes
+        assertEquals(Arrays.asList("1", "2"), sender.getBatch(0));
+        batcher.flush();
+        assertEquals(Collections.singletonList("3"), sender.getBatch(1));
+    }
+
+    public void testLeftoverResultsKeepTheirWait() throws Exception {
+        RecordingSender sender = new RecordingSender() {
+            @Override
+            public Map<String, String> sendBatch(List<Client.TaskResult> results) throws Exception {
+                // the first batch is slow, so the rest queue up meanwhile
+                if (results.get(0).getInstanceId().equals("1")) Thread.sleep(600);
+                return super.sendBatch(results);
+            }
+        };
+        ResultBatcher batcher = new ResultBatcher(2, 64 * 1024, 500, sender, new Metrics());
+        for (int i = 1; i <= 5; ++i) batcher.add(result(String.valueOf(i), "ok"));
+        assertTrue(sender.awaitBatches(2, 5000));
+        long second = System.nanoTime();
+        assertTrue(sender.awaitBatches(3, 5000));
+        // the last one already waited out its linger behind the slow batch
+        assertTrue((System.nanoTime() - second) / 1000000 < 250);
+        assertEquals(Arrays.asList("3", "4"), sender.getBatch(1));
+        assertEquals(Collections.singletonList("5"), sender.getBatch(2));
+    }
+
+    public void testLargeResultGoesOutAlone() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        ResultBatcher batcher = new ResultBatcher(100, 1000, 60000, sender, new Metrics());
+        batcher.add(result("1", "ok"));
+        batcher.add(result("2", repeat('x', 936)));
+        batcher.flush();
+        // in either order, whether the sending thread or the flush got there first
+        assertEquals(2, sender.getBatchCount());
+        assertEquals(1, sender.getBatch(0).size());
+        assertEquals(1, sender.getBatch(1).size());
+    }
+
+    public void testLoneResultGoesOutAfterTheLinger() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        ResultBatcher batcher = new ResultBatcher(100, 64 * 1024, 100, sender, new Metrics());
+        long start = System.nanoTime();
+        batcher.add(result("1", "ok"));
+        assertTrue(sender.awaitBatches(1, 5000));
+        assertTrue((System.nanoTime() - start) / 1000000 >= 100);
+        assertEquals(Collections.singletonList("1"), sender.getBatch(0));
+    }
+
+    public void testFlushSendsRightAway() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        ResultBatcher batcher = new ResultBatcher(100, 64 * 1024, 60000, sender, new Metrics());
+        batcher.add(result("1", "ok"));
+        batcher.add(result("2", "ok"));
+        batcher.flush();
+        assertEquals(1, sender.getBatchCount());
+        assertEquals(Arrays.asList("1", "2"), sender.getBatch(0));
+        batcher.flush();
+        assertEquals(1, sender.getBatchCount());
+    }
+
+    public void testRejectedResultsAreSentOnTheirOwn() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        sender.rejected.put("2", "locked");
+        Metrics metrics = new Metrics();
+        ResultBatcher batcher = new ResultBatcher(100, 64 * 1024, 60000, sender, metrics);
+        for (int i = 1; i <= 3; ++i) batcher.add(result(String.valueOf(i), "ok"));
+        batcher.flush();
+        assertEquals(Collections.singletonList("2"), sender.singles);
+        assertEquals(Collections.singletonList("locked"), sender.reasons);
+        assertEquals(1, metrics.get("xbot_result_batch_fallbacks_total"));
+    }
+
+    public void testFailedBatchIsSentOneByOne() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        sender.failure = new IOException("Remote call failed: 404");
+        Metrics metrics = new Metrics();
+        ResultBatcher batcher = new ResultBatcher(100, 64 * 1024, 60000, sender, metrics);
+        batcher.add(result("1", "ok"));
+        batcher.add(result("2", "ok"));
+        batcher.flush();
+        assertEquals(Arrays.asList("1", "2"), sender.singles);
+        assertEquals(2, metrics.get("xbot_result_batch_fallbacks_total"));
+    }
+
+    public void testOnlyResultsWithoutFilesAreAccepted() throws Exception {
+        ResultBatcher batcher = new ResultBatcher(100, 1000, 60000, new RecordingSender(), new Metrics());
+        assertTrue(batcher.accepts(result("1", "ok")));
+        assertFalse(batcher.accepts(result("1", repeat('x', 1000))));
+        assertFalse(batcher.accepts(new Client.TaskResult("1", 0,
+                Collections.singletonList(new File("report.xml")), "ok")));
+    }
+
+    public void testClientReportsBatchAndNamesRejectedResults() throws Exception {
+        StubPractiTestServer stub = new StubPractiTestServer().start();
+        CommonsHttpTransport transport = new CommonsHttpTransport("", "", "", "");
+        try {
+            stub.rejectInBatch("2");
+            Client client = new Client(stub.getURL(), "token", "client", transport, CallPolicy.DEFAULT, "test");
+            Map<String, String> rejected = client.uploadResults(Arrays.asList(
+                    new Client.TaskResult("1", 0, null, "first"),
+                    new Client.TaskResult("2", 1, null, "second"),
+                    new Client.TaskResult("3", 0, null, "third \"quoted\"")));
+            assertEquals(1, stub.getBatchPosts());
+            assertEquals(Collections.singleton("2"), rejected.keySet());
+            assertEquals("first", stub.getUpload("1").getBody());
+            assertEquals("third \"quoted\"", stub.getUpload("3").getBody());
+            assertNull(stub.getUpload("2"));
+        } finally {
+            transport.close();
+            stub.stop();
+        }
+    }
+
+    public void testResultTheServerDidNotMentionCountsAsTaken() throws Exception {
+        StubPractiTestServer stub = new StubPractiTestServer().start();
+        CommonsHttpTransport transport = new CommonsHttpTransport("", "", "", "");
+        try {
+            stub.leaveOutOfBatchAnswer("2");
+            Client client = new Client(stub.getURL(), "token", "client", transport, CallPolicy.DEFAULT, "test");
+            Map<String, String> rejected = client.uploadResults(Arrays.asList(
+                    new Client.TaskResult("1", 0, null, "first"),
+                    new Client.TaskResult("2", 0, null, "second")));
+            // sending it again on its own could store it twice
+            assertTrue(rejected.isEmpty());
+            assertEquals("second", stub.getUpload("2").getBody());
+        } finally {
+            transport.close();
+            stub.stop();
+        }
+    }
+
+    private static Client.TaskResult result(String instanceId, String output) {
+        return new Client.TaskResult(instanceId, 0, null, output);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static class RecordingSender implements ResultBatcher.Sender {
+        private final List<List<String>> batches = new ArrayList<List<String>>();
+        final Map<String, String> rejected = new HashMap<String, String>();
+        final List<String> singles = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> reasons = Collections.synchronizedList(new ArrayList<String>());
+        volatile Exception failure;
+
+        public synchronized Map<String, String> sendBatch(List<Client.TaskResult> results) throws Exception {
+            List<String> batch = new ArrayList<String>();
+            for (Client.TaskResult result : results) batch.add(result.getInstanceId());
+            batches.add(batch);
+            notifyAll();
+            if (failure != null) throw failure;
+            Map<String, String> answer = new HashMap<String, String>(rejected);
+            answer.keySet().retainAll(batch);
+            return answer;
+        }
+
+        public void sendOne(Client.TaskResult result, String reason) {
+            singles.add(result.getInstanceId());
+            reasons.add(reason);
+        }
+
+        synchronized boolean awaitBatches(int count, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (batches.size() < count) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                wait(left);
+            }
+            return true;
+        }
+
+        synchronized int getBatchCount() {
+            return batches.size();
+        }
+
+        synchronized List<String> getBatch(int index) {
+            return batches.get(index);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Metrics;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class TestResultCache extends TestCase {
+    private File workingDirectory;
+    private File cacheDirectory;
+    private List<String> command;
+
+    @Override
+    protected void setUp() throws Exception {
+        workingDirectory = createDirectory("xbot-task");
+        cacheDirectory = createDirectory("xbot-cache");
+        write(workingDirectory, "check.sh", "#!/bin/sh\nexit 0\n");
+        write(workingDirectory, "schema.json", "{}");
+        new File(workingDirectory, "fixtures").mkdir();
+        write(new File(workingDirectory, "fixtures"), "a.json", "[1]");
+        command = Arrays.asList(new File(workingDirectory, "check.sh").getPath(), "--strict");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(workingDirectory);
+        delete(cacheDirectory);
+    }
+
+    public void testTasksWithoutInputsFileAreNotCached() throws Exception {
+        assertNull(cache(1024).fingerprint(command, workingDirectory, "results", 1));
+    }
+
+    public void testFingerprintFollowsCommandAndInputs() throws Exception {
+        write(workingDirectory, ResultCache.INPUTS_FILE, "# what the check reads\nschema.json\nfixtures\n");
+        ResultCache cache = cache(1024);
+        String key = cache.fingerprint(command, workingDirectory, "results", 1);
+        assertNotNull(key);
+        assertEquals(key, cache.fingerprint(command, workingDirectory, "results", 1));
+        assertFalse(key.equals(cache.fingerprint(Arrays.asList(command.get(0), "--lenient"), workingDirectory, "results", 1)));
+        assertFalse(key.equals(cache.fingerprint(command, workingDirectory, "results", 2)));
+
+        write(new File(workingDirectory, "fixtures"), "a.json", "[2]");
+        String changedInput = cache.fingerprint(command, workingDirectory, "results", 1);
+        assertFalse(key.equals(changedInput));
+        write(new File(workingDirectory, "fixtures"), "b.json", "[]");
+        assertFalse(changedInput.equals(cache.fingerprint(command, workingDirectory, "results", 1)));
+        write(workingDirectory, "check.sh", "#!/bin/sh\nexit 1\n");
+        assertFalse(changedInput.equals(cache.fingerprint(command, workingDirectory, "results", 1)));
+    }
+
+    public void testBareCommandIsFoundAlongThePath() throws Exception {
+        File sh = ResultCache.resolveCommand("sh", workingDirectory);
+        assertTrue(sh.getPath(), sh.isAbsolute() && sh.canExecute() && sh.getName().equals("sh"));
+        assertEquals(new File(workingDirectory, "check.sh"), ResultCache.resolveCommand("./check.sh", workingDirectory).getCanonicalFile());
+        // not found, and not taken from wherever the agent runs
+        assertEquals(new File(workingDirectory, "no-such-program").getAbsoluteFile(),
+                ResultCache.resolveCommand("no-such-program", workingDirectory));
+    }
+
+    public void testRelativeCommandIsTakenFromTheWorkingDirectory() throws Exception {
+        write(workingDirectory, ResultCache.INPUTS_FILE, "schema.json\n");
+        ResultCache cache = cache(1024);
+        List<String> relative = Arrays.asList("./check.sh", "--strict");
+        String key = cache.fingerprint(relative, workingDirectory, "results", 1);
+        write(workingDirectory, "check.sh", "#!/bin/sh\nexit 1\n");
+        assertFalse(key.equals(cache.fingerprint(relative, workingDirectory, "results", 1)));
+    }
+
+    public void testResultFilesOfTheSameNameStayApart() throws Exception {
+        ResultCache cache = cache(1024 * 1024);
+        File unit = new File(workingDirectory, "unit");
+        File integration = new File(workingDirectory, "integration");
+        assertTrue(unit.mkdir() && integration.mkdir());
+        cache.store("abc", 0, null, Arrays.asList(write(unit, "TEST-all.xml", "<unit/>"),
+                write(integration, "TEST-all.xml", "<integration/>")));
+
+        List<File> files = cache.lookup("abc").getResultFiles();
+        assertEquals(2, files.size());
+        assertEquals("TEST-all.xml", files.get(0).getName());
+        assertEquals("<unit/>", new String(Files.readAllBytes(files.get(0).toPath()), "UTF-8"));
+        assertEquals("TEST-all.xml", files.get(1).getName());
+        assertEquals("<integration/>", new String(Files.readAllBytes(files.get(1).toPath()), "UTF-8"));
+    }
+
+    public void testStoreAndLookup() throws Exception {
+        Metrics metrics = new Metrics();
+        ResultCache cache = new ResultCache(cacheDirectory, 1024 * 1024, metrics);
+        assertNull(cache.lookup("abc"));
+
+        File output = write(workingDirectory, "xbot-output1.log", "all good");
+        File report = write(workingDirectory, "report.xml", "<testsuite/>");
+        File screenshot = write(workingDirectory, "screen.png", "png");
+        cache.store("abc", 3, output, Arrays.asList(screenshot, report));
+
+        ResultCache.Entry entry = cache.lookup("abc");
+        assertNotNull(entry);
+        assertEquals(3, entry.getExitCode());
+        assertEquals("all good", new String(Files.readAllBytes(entry.getOutputFile().toPath()), "UTF-8"));
+        assertEquals(2, entry.getResultFiles().size());
+        assertEquals("screen.png", entry.getResultFiles().get(0).getName());
+        assertEquals("<testsuite/>", new String(Files.readAllBytes(entry.getResultFiles().get(1).toPath()), "UTF-8"));
+        assertEquals(1, metrics.get("xbot_result_cache_hits_total"));
+        assertEquals(1, metrics.get("xbot_result_cache_misses_total"));
+        assertEquals(50, metrics.get("xbot_result_cache_hit_ratio_percent"));
+    }
+
+    public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+        Metrics metrics = new Metrics();
+        ResultCache cache = new ResultCache(cacheDirectory, 2500, metrics);
+        File output = write(workingDirectory, "output.log", new String(new char[1000]).replace('\0', 'x'));
+        cache.store("first", 0, output, Collections.<File>emptyList());
+        cache.store("second", 0, output, Collections.<File>emptyList());
+        new File(cacheDirectory, "second").setLastModified(System.currentTimeMillis() - 2000);
+        new File(cacheDirectory, "first").setLastModified(System.currentTimeMillis() - 1000); // used since
+        cache.store("third", 0, output, Collections.<File>emptyList());
+
+        assertNotNull(cache.lookup("first"));
+        assertNull(cache.lookup("second"));
+        assertNotNull(cache.lookup("third"));
+        assertEquals(1, metrics.get("xbot_result_cache_evictions_total"));
+        long bytes = metrics.get("xbot_result_cache_bytes");
+        assertTrue("two outputs and their exit codes: " + bytes, bytes >= 2000 && bytes < 2100);
+    }
+
+    public void testResultsLargerThanTheCacheAreSkipped() throws Exception {
+        ResultCache cache = cache(10);
+        cache.store("big", 0, write(workingDirectory, "output.log", "more than ten bytes"), null);
+        assertNull(cache.lookup("big"));
+    }
+
+    private ResultCache cache(long maxBytes) {
+        return new ResultCache(cacheDirectory, maxBytes, new Metrics());
+    }
+
+    private static File createDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        assertTrue(directory.delete() && directory.mkdir());
+        return directory;
+    }
+
+    private static File write(File directory, String name, String content) throws IOException {
+        File file = new File(directory, name);
+        Writer out = new FileWriter(file);
+        out.write(content);
+        out.close();
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children) delete(child);
+        file.delete();
+    }
+}
@@ -0,0 +1,141 @@
+package com.practitest.xbot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import junit.framework.TestCase;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+public class TestResultSummary extends TestCase {
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("xbot-results", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : directory.listFiles()) file.delete();
+        directory.delete();
+    }
+
+    public void testJUnitReport() throws Exception {
+        File report = write("TEST-com.example.CalcTest.xml",
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<testsuite name=\"com.example.CalcTest\" tests=\"4\">\n" +
+                "  <properties><property name=\"java.version\" value=\"17\"/></properties>\n" +
+                "  <testcase name=\"adds\" classname=\"com.example.CalcTest\" time=\"0.012\"/>\n" +
+                "  <testcase name=\"divides\" classname=\"com.example.CalcTest\" time=\"1,234.5\">\n" +
+                "    <failure message=\"expected 2 but was 3\" type=\"AssertionError\">stack trace</failure>\n" +
+                "    <system-out>lots of output</system-out>\n" +
+                "  </testcase>\n" +
+                "  <testcase name=\"connects\" classname=\"com.example.CalcTest\">\n" +
+                "    <error type=\"IOException\"><![CDATA[java.io.IOException: refused\n\tat Calc.connect]]></error>\n" +
+                "  </testcase>\n" +
+                "  <testcase name=\"later\" classname=\"com.example.CalcTest\"><skipped/></testcase>\n" +
+                "</testsuite>\n");
+        File summaryFile = new File(directory, "summary.json");
+        ResultSummary summary = ResultSummary.write(Arrays.asList(report), summaryFile);
+        assertEquals(Arrays.asList(report), summary.getReports());
+        assertEquals(4, summary.getTests());
+
+        JsonNode json = new ObjectMapper().readTree(summaryFile);
+        assertEquals(1, json.get("passed").asInt());
+        assertEquals(1, json.get("failed").asInt());
+        assertEquals(1, json.get("errors").asInt());
+        assertEquals(1, json.get("skipped").asInt());
+        JsonNode steps = json.get("reports").get(0).get("steps");
+        assertEquals("junit", json.get("reports").get(0).get("format").asText());
+        assertEquals(4, steps.size());
+        assertEquals("adds", steps.get(0).get("name").asText());
+        assertEquals("com.example.CalcTest", steps.get(0).get("class").asText());
+        assertEquals(12, steps.get(0).get("time_ms").asLong());
+        assertEquals("failed", steps.get(1).get("status").asText());
+        assertEquals(1234500, steps.get(1).get("time_ms").asLong());
+        assertEquals("expected 2 but was 3", steps.get(1).get("message").asText());
+        assertEquals("error", steps.get(2).get("status").asText());
+        assertEquals("java.io.IOException: refused\n\tat Calc.connect", steps.get(2).get("message").asText());
+        assertFalse(steps.get(2).has("time_ms"));
+        assertEquals("skipped", steps.get(3).get("status").asText());
+    }
+
+    public void testTapReport() throws Exception {
+        File report = write("results.tap",
+                "TAP version 13\n" +
+                "1..5\n" +
+                "ok 1 - starts up\n" +
+                "not ok 2 - logs in\n" +
+                "  ---\n" +
+                "  message: timeout\n" +
+                "  ...\n" +
+                "    ok 1 - nested subtest line\n" +
+                "ok 3 # SKIP no database\n" +
+                "not ok 4 - exports # TODO not implemented\n" +
+                "ok 5 - shuts down # took 3s\n");
+        File summaryFile = new File(directory, "summary.json");
+        ResultSummary summary = ResultSummary.write(Arrays.asList(report), summaryFile);
+        assertEquals(5, summary.getTests());
+        assertEquals(2, summary.getPassed());
+        assertEquals(1, summary.getFailed());
+        assertEquals(2, summary.getSkipped());
+
+        JsonNode steps = new ObjectMapper().readTree(summaryFile).get("reports").get(0).get("steps");
+        assertEquals("logs in", steps.get(1).get("name").asText());
+        assertEquals("test 3", steps.get(2).get("name").asText());
+        assertEquals("SKIP no database", steps.get(2).get("message").asText());
+        assertEquals("shuts down", steps.get(4).get("name").asText());
+        assertEquals("passed", steps.get(4).get("status").asText());
+    }
+
+    public void testOtherFilesAreLeftOut() throws Exception {
+        File screenshot = write("screenshot.png", "not really a png");
+        File pom = write("pom.xml", "<project><testsuite/></project>");
+        File notes = write("notes.txt", "ok so this is not a TAP stream\n");
+        File broken = write("TEST-broken.xml", "<testsuite><testcase name=\"a\"/><testcase name=\"b\">");
+        File summaryFile = new File(directory, "summary.json");
+        ResultSummary summary = ResultSummary.write(Arrays.asList(screenshot, pom, notes, broken), summaryFile);
+        assertTrue(summary.getReports().isEmpty());
+
+        JsonNode reports = new ObjectMapper().readTree(summaryFile).get("reports");
+        assertEquals(1, reports.size());
+        assertEquals("TEST-broken.xml", reports.get(0).get("file").asText());
+        assertTrue(reports.get(0).has("parse_error"));
+    }
+
+    public void testLargeReportIsStreamed() throws Exception {
+        File report = new File(directory, "TEST-large.xml");
+        Writer out = new BufferedWriter(new FileWriter(report));
+        out.write("<testsuites><testsuite name=\"large\">");
+        for (int i = 0; i < 200000; ++i) {
+            out.write("<testcase name=\"case" + i + "\" classname=\"Large\" time=\"0.001\">");
+            if (i % 1000 == 0)
+                out.write("<failure>" + new String(new char[4096]).replace('\0', 'x') + "</failure>");
+            out.write("<system-out>" + new String(new char[256]).replace('\0', 'y') + "</system-out></testcase>\n");
+        }
+        out.write("</testsuite></testsuites>");
+        out.close();
+
+        File summaryFile = new File(directory, "summary.json");
+        ResultSummary summary = ResultSummary.write(Arrays.asList(report), summaryFile);
+        assertEquals(200000, summary.getTests());
+        assertEquals(200, summary.getFailed());
+        assertTrue("summary should be much smaller than the report", summaryFile.length() * 2 < report.length());
+        JsonNode failed = new ObjectMapper().readTree(summaryFile).get("reports").get(0).get("steps").get(0);
+        assertEquals(1024, failed.get("message").asText().length());
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(directory, name);
+        Writer out = new FileWriter(file);
+        out.write(content);
+        out.close();
+        return file;
+    }
+}
@@ -0,0 +1,127 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Metrics;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestTaskIsolation extends TestCase {
+    private File root;
+
+    @Override
+    protected void setUp() throws Exception {
+        // stands in for a delegated cgroup v2 directory
+        root = Files.createTempDirectory("xbot-cgroup").toFile();
+        write(new File(root, "cgroup.controllers"), "cpuset cpu io memory pids\n");
+        write(new File(root, "cgroup.subtree_control"), "");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : root.listFiles()) {
+            File[] children = file.listFiles();
+            if (children != null)
+                for (File child : children) child.delete();
+            file.delete();
+        }
+        root.delete();
+    }
+
+    public void testDisabledWithoutSettings() {
+        assertFalse(TaskIsolation.create(null, 0, 0, null, new Metrics()).isEnabled());
+        assertFalse(TaskIsolation.create("not a cpu list", 0, 0, null, new Metrics()).isEnabled());
+    }
+
+    public void testUnusableCgroupRootIsLeftOut() throws Exception {
+        File plain = Files.createTempDirectory("xbot-no-cgroup").toFile();
+        try {
+            TaskIsolation isolation = TaskIsolation.create(null, 1, 0, plain, new Metrics());
+            assertFalse(isolation.isEnabled());
+            List<String> command = Arrays.asList("echo", "hello");
+            assertEquals(command, isolation.open("1").wrap(command));
+        } finally {
+            plain.delete();
+        }
+    }
+
+    public void testLimitsAreWrittenToTheTaskCgroup() throws Exception {
+        TaskIsolation isolation = TaskIsolation.create(null, 1.5, 256 * 1024 * 1024, root, new Metrics());
+        assertTrue(isolation.isEnabled());
+        assertEquals("+cpu +memory", read(new File(root, "cgroup.subtree_control")));
+
+        TaskIsolation.Sandbox sandbox = isolation.open("42/a");
+        File cgroup = sandbox.getCgroup();
+        assertEquals(root, cgroup.getParentFile());
+        assertTrue(cgroup.getName(), cgroup.getName().startsWith("task-42_a-"));
+        assertEquals("150000 100000", read(new File(cgroup, "cpu.max")));
+        assertEquals(String.valueOf(256 * 1024 * 1024), read(new File(cgroup, "memory.max")));
+
+        List<String> wrapped = sandbox.wrap(Arrays.asList("run.sh", "--fast"));
+        assertEquals("/bin/sh", wrapped.get(0));
+        assertEquals(new File(cgroup, "cgroup.procs").getPath(), wrapped.get(3));
+        assertEquals(Arrays.asList("run.sh", "--fast"), wrapped.subList(4, wrapped.size()));
+        sandbox.close();
+    }
+
+    public void testTaskProcessJoinsItsCgroup() throws Exception {
+        if (!new File("/bin/sh").canExecute()) return;
+        TaskIsolation.Sandbox sandbox = TaskIsolation.create(null, 0, 0, root, new Metrics()).open("1");
+        Process process = new ProcessBuilder(sandbox.wrap(Arrays.asList("echo", "ran"))).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertEquals(0, process.waitFor());
+        assertEquals("ran\n", output);
+        // the pid written is the one the task ran as
+        assertEquals(String.valueOf(process.pid()), read(new File(sandbox.getCgroup(), "cgroup.procs")));
+        sandbox.close();
+    }
+
+    public void testTaskRunsWhenItCannotJoinItsCgroup() throws Exception {
+        if (!new File("/bin/sh").canExecute()) return;
+        TaskIsolation.Sandbox sandbox = TaskIsolation.create(null, 0, 0, root, new Metrics()).open("1");
+        // gone, as when the cgroup file system refuses the move
+        assertTrue(sandbox.getCgroup().delete());
+        Process process = new ProcessBuilder(sandbox.wrap(Arrays.asList("echo", "ran"))).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertEquals(0, process.waitFor());
+        assertEquals("ran\n", output);
+    }
+
+    public void testUsageIsReadAndTheCgroupRemoved() throws Exception {
+        Metrics metrics = new Metrics();
+        TaskIsolation.Sandbox sandbox = TaskIsolation.create(null, 0, 64 * 1024 * 1024, root, metrics).open("7");
+        File cgroup = sandbox.getCgroup();
+        write(new File(cgroup, "cpu.stat"), "usage_usec 2500000\nuser_usec 2000000\nsystem_usec 500000\n");
+        write(new File(cgroup, "memory.peak"), "52428800\n");
+        write(new File(cgroup, "memory.events"), "low 0\nhigh 0\nmax 3\noom 1\noom_kill 1\n");
+
+        TaskIsolation.Usage usage = sandbox.close();
+        assertEquals(2500000, usage.getCpuMicros());
+        assertEquals(52428800, usage.getPeakMemoryBytes());
+        assertEquals(1, usage.getOomKills());
+        assertEquals("CPU 2500 ms, peak memory 50 MB, 1 processes killed for running out of memory", usage.toString());
+        assertEquals(2500000, metrics.get("xbot_task_cpu_usec_total"));
+        assertEquals(52428800, metrics.get("xbot_task_memory_peak_bytes_max"));
+        assertEquals(1, metrics.get("xbot_task_oom_kills_total"));
+        assertFalse(cgroup.exists());
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+    }
+}
@@ -7,6 +7,10 @@ import com.practitest.api.Client;
 import junit.framework.TestCase;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
 
 public class TestTaskRunner extends TestCase {
     private static String DUMMY_SCRIPT = new File("./etc/dummyTask10.sh").getAbsolutePath();
@@ -29,6 +33,51 @@ public class TestTaskRunner extends TestCase {
         assertEquals(0, taskRunner.getExitCode());
     }
 
+    public void testCachedResultIsReused() throws Exception {
+        File directory = File.createTempFile("xbot-cached-task", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        File cacheDirectory = new File(directory, "cache");
+        File script = new File(directory, "check.sh");
+        write(script, "#!/bin/sh\necho run >> runs.txt\nmkdir -p results\necho '<testsuite/>' > results/report.xml\necho checked\nexit 3\n");
+        assertTrue(script.setExecutable(true));
+        write(new File(directory, "input.txt"), "v1");
+        write(new File(directory, ResultCache.INPUTS_FILE), "input.txt\n");
+        System.setProperty("com.practitest.xbot.result_cache_mb", "1");
+        System.setProperty("com.practitest.xbot.result_cache_dir", cacheDirectory.getPath());
+        try {
+            DummyMain main = new DummyMain();
+            Client.Task task = new Client.Task("cached", "cached", script.getPath(),
+                    new File(directory, "results").getPath(), 5, 10);
+            Main.TaskRunner first = main.createTaskRunner(task);
+            first.run();
+            Main.TaskRunner second = main.createTaskRunner(task);
+            second.run();
+
+            assertEquals(1, Files.readAllLines(new File(directory, "runs.txt").toPath()).size());
+            assertEquals(3, second.getExitCode());
+            assertEquals("report.xml", second.getResultFiles().get(0).getName());
+            assertEquals("checked\n", new String(Files.readAllBytes(second.getOutputFile().toPath()), "UTF-8"));
+            second.discardOutput();
+            assertTrue("cached output must survive the upload", second.getOutputFile().isFile());
+
+            write(new File(directory, "input.txt"), "v2");
+            Main.TaskRunner third = main.createTaskRunner(task);
+            third.run();
+            assertEquals(2, Files.readAllLines(new File(directory, "runs.txt").toPath()).size());
+            first.discardOutput();
+            third.discardOutput();
+        } finally {
+            System.clearProperty("com.practitest.xbot.result_cache_mb");
+            System.clearProperty("com.practitest.xbot.result_cache_dir");
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Writer out = new FileWriter(file);
+        out.write(content);
+        out.close();
+    }
+
     private static class DummyMain extends Main {
         public DummyMain() throws Exception {
             super(-1, true);
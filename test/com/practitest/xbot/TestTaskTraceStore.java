@@ -0,0 +1,55 @@
+package com.practitest.xbot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class TestTaskTraceStore extends TestCase {
+    public void testKeepsMostRecentTraces() {
+        TaskTraceStore store = new TaskTraceStore(2);
+        store.add(new TaskTrace("1", "first"));
+        store.add(new TaskTrace("2", "second"));
+        store.add(new TaskTrace("3", "third"));
+        assertNull(store.get("1"));
+        assertEquals("second", store.get("2").getDescription());
+        assertEquals(2, store.getAll().size());
+        assertEquals("3", store.getAll().get(1).getInstanceId());
+    }
+
+    public void testSpansAreOrderedAndTimed() {
+        TaskTrace trace = new TaskTrace("1", "test");
+        long now = System.nanoTime();
+        trace.record("upload", now + TimeUnit.MILLISECONDS.toNanos(30), now + TimeUnit.MILLISECONDS.toNanos(40));
+        trace.record("poll", now - TimeUnit.MILLISECONDS.toNanos(10), now);
+        assertEquals("poll", trace.getSpans().get(0).getName());
+        assertEquals(10000, trace.getSpans().get(0).getDurationMicros());
+        assertEquals(50000, trace.getDurationMicros());
+        assertEquals(trace.getSpans().get(0).getStartMicros(), trace.getStartMicros());
+    }
+
+    public void testChromeTraceExport() throws Exception {
+        TaskTrace first = new TaskTrace("41", "first");
+        long now = System.nanoTime();
+        first.record("poll", now, now + 1000000);
+        TaskTrace second = new TaskTrace("42", "second \"quoted\"");
+        second.record("process", now, now + 5000000);
+        second.record("upload", now + 5000000, now + 6000000);
+
+        StringWriter json = new StringWriter();
+        TaskTraceStore.writeChromeTrace(Arrays.asList(first, second), json);
+        JsonNode events = new ObjectMapper().readTree(json.toString()).get("traceEvents");
+        assertEquals(5, events.size());
+        assertEquals("M", events.get(0).get("ph").asText());
+        assertEquals("instance 41", events.get(0).get("args").get("name").asText());
+        JsonNode process = events.get(3);
+        assertEquals("process", process.get("name").asText());
+        assertEquals("X", process.get("ph").asText());
+        assertEquals(5000, process.get("dur").asLong());
+        assertEquals(2, process.get("tid").asInt());
+        assertEquals("42", process.get("args").get("instance").asText());
+    }
+}
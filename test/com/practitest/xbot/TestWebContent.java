@@ -0,0 +1,34 @@
+package com.practitest.xbot;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class TestWebContent extends TestCase {
+    public void testTemplateReplacesAndEscapesPlaceholders() throws Exception {
+        WebContent.Template template = new WebContent.Template("<input value=\"{{ url }}\"/>{{token}}{{missing}}!");
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("url", "http://a/?b=1&c=\"2\"");
+        values.put("token", "<t>");
+        assertEquals("<input value=\"http://a/?b=1&amp;c=&quot;2&quot;\"/>&lt;t&gt;!",
+                new String(template.render(values), "UTF-8"));
+    }
+
+    public void testPreferencesPageIsBundled() throws Exception {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("server_url", "https://example.practitest.com");
+        String page = new String(WebContent.template("preferences.html").render(values), "UTF-8");
+        assertTrue(page.contains("value=\"https://example.practitest.com\""));
+        assertTrue(page.contains("/assets/xbot.css"));
+        assertFalse(page.contains("{{"));
+    }
+
+    public void testAssetsHaveStableETags() throws Exception {
+        WebContent.Asset css = WebContent.asset("xbot.css");
+        assertNotNull(css);
+        assertEquals(css.getETag(), WebContent.asset("xbot.css").getETag());
+        assertTrue(css.getETag().startsWith("\""));
+        assertNull(WebContent.asset("../Main.class"));
+    }
+}
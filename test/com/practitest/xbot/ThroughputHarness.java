@@ -0,0 +1,210 @@
+package com.practitest.xbot;
+
+import com.practitest.api.StubPractiTestServer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the complete xBot poll, run and upload loop against a local {@link StubPractiTestServer} and reports
+ * throughput: tasks per minute, how long queued tasks waited to be dispatched, upload throughput and the
+ * agent's CPU time and heap.
+ * <p/>
+ * Usage: <code>ThroughputHarness &lt;agent classpath&gt; &lt;tasks&gt; &lt;latency ms&gt; &lt;error rate&gt;
+ * &lt;result KB&gt; [agent JVM arguments...]</code>
+ * <p/>
+ * The agent runs in its own JVM in fast startup mode, with a one second poll interval so that injected errors
+ * do not stall the run for a full minute. Every task runs a shell script and uploads one result file.
+ */
+public class ThroughputHarness {
+    private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) {
+            System.err.println("Usage: ThroughputHarness <agent classpath> <tasks> <latency ms> <error rate> <result KB> [agent JVM arguments...]");
+            System.exit(1);
+        }
+        String classpath = args[0];
+        int tasks = Integer.parseInt(args[1]);
+        long latencyMillis = Long.parseLong(args[2]);
+        double errorRate = Double.parseDouble(args[3]);
+        int resultKilobytes = Integer.parseInt(args[4]);
+        List<String> jvmArgs = new ArrayList<String>();
+        for (String arg : Arrays.asList(args).subList(5, args.length)) {
+            if (arg.trim().length() > 0) jvmArgs.add(arg.trim());
+        }
+
+        StubPractiTestServer stub = new StubPractiTestServer().start();
+        try {
+            stub.setLatencyMillis(latencyMillis);
+            stub.setErrorRate(errorRate);
+            File workingDirectory = createWorkingDirectory(stub.getURL(), resultKilobytes);
+            int listeningPort = freePort();
+            stub.enqueue(tasks, new File(workingDirectory, "task.sh").getPath(),
+                    new File(workingDirectory, "result.bin").getPath(), 1, 60);
+
+            Process agent = startAgent(classpath, jvmArgs, workingDirectory, listeningPort);
+            boolean completed;
+            try {
+                completed = awaitUploads(stub, tasks, agent);
+                // measured from the first poll, agent JVM startup is what StartupBenchmark is for
+                long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stub.getFirstPollAt()));
+                Map<String, Long> status = readStatus(listeningPort);
+                report(stub, tasks, completed, elapsedMillis, latencyMillis, errorRate, resultKilobytes, jvmArgs, status);
+            } finally {
+                agent.destroy();
+                agent.waitFor();
+            }
+            if (!completed) {
+                System.err.println("Not all tasks completed, see " + new File(workingDirectory, "agent.log"));
+                System.exit(2);
+            }
+        } finally {
+            stub.stop();
+        }
+    }
+
+    private static boolean awaitUploads(StubPractiTestServer stub, int tasks, Process agent) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (stub.awaitUploads(tasks, 1000)) return true;
+            if (!agent.isAlive()) return false;
+        }
+        return false;
+    }
+
+    private static void report(StubPractiTestServer stub, int tasks, boolean completed, long elapsedMillis,
+                               long latencyMillis, double errorRate, int resultKilobytes, List<String> jvmArgs,
+                               Map<String, Long> status) {
+        int uploads = stub.getUploads();
+        List<Long> dispatch = stub.getDispatchLatencies();
+        List<Long> turnaround = stub.getTurnaroundLatencies();
+        System.out.println("tasks " + uploads + "/" + tasks + (completed ? "" : " (timed out)") +
+                ", server latency " + latencyMillis + " ms, error rate " + errorRate +
+                ", result " + resultKilobytes + " KB" + (jvmArgs.isEmpty() ? "" : ", " + jvmArgs));
+        System.out.println("elapsed " + elapsedMillis + " ms, " +
+                String.format("%.1f", uploads * 60000.0 / elapsedMillis) + " tasks/min");
+        System.out.println("polls " + stub.getPolls() + " (" + stub.getEmptyPolls() + " empty), injected errors " +
+                stub.getInjectedErrors());
+        System.out.println("dispatch wait ms: p50 " + StubPractiTestServer.percentile(dispatch, 50) +
+                ", p90 " + StubPractiTestServer.percentile(dispatch, 90) +
+                ", p99 " + StubPractiTestServer.percentile(dispatch, 99) +
+                ", max " + StubPractiTestServer.percentile(dispatch, 100));
+        System.out.println("dispatch to upload ms: p50 " + StubPractiTestServer.percentile(turnaround, 50) +
+                ", p90 " + StubPractiTestServer.percentile(turnaround, 90) +
+                ", p99 " + StubPractiTestServer.percentile(turnaround, 99) +
+                ", max " + StubPractiTestServer.percentile(turnaround, 100));
+        System.out.println("uploaded " + stub.getUploadedBytes() / 1024 + " KB, " +
+                String.format("%.1f", stub.getUploadedBytes() / 1024.0 * 1000 / elapsedMillis) + " KB/s");
+        if (status.isEmpty()) {
+            System.out.println("agent /status not available");
+        } else {
+            Long cpu = status.get("xbot_jvm_cpu_ms");
+            System.out.println("agent cpu " + cpu + " ms" +
+                    (cpu != null && uploads > 0 ? " (" + cpu / uploads + " ms/task)" : "") +
+                    ", heap used " + status.get("xbot_jvm_heap_used_bytes") / 1024 + " KB" +
+                    " of " + status.get("xbot_jvm_heap_committed_bytes") / 1024 + " KB committed" +
+                    ", threads " + status.get("xbot_jvm_threads"));
+        }
+    }
+
+    static Process startAgent(String classpath, List<String> jvmArgs, File workingDirectory, int listeningPort)
+            throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(jvmArgs);
+        command.add("-Dcom.practitest.xbot.no_tray_icon=true");
+        command.add("-Dcom.practitest.xbot.fast_startup=true");
+        command.add("-Dcom.practitest.xbot.poll_interval_s=1");
+        command.add("-Dcom.practitest.xbot.listening_port=" + listeningPort);
+        command.add("-cp");
+        command.add(classpath);
+        command.add("com.practitest.xbot.Main");
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.directory(workingDirectory);
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectOutput(new File(workingDirectory, "agent.log"));
+        return processBuilder.start();
+    }
+
+    static Map<String, Long> readStatus(int listeningPort) {
+        Map<String, Long> status = new LinkedHashMap<String, Long>();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + listeningPort + "/status").openConnection();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(" ");
+                    if (fields.length == 2) status.put(fields[0], Long.valueOf(fields[1]));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read agent status: " + e.getMessage());
+        }
+        return status;
+    }
+
+    static File createWorkingDirectory(String serverURL, int resultKilobytes) throws IOException {
+        File directory = File.createTempFile("xbot-throughput", "");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("Failed to create " + directory);
+        Properties settings = new Properties();
+        settings.setProperty("server_url", serverURL);
+        settings.setProperty("api_token", "benchmark");
+        settings.setProperty("client_id", "benchmark");
+        FileWriter writer = new FileWriter(new File(directory, "xbot.properties"));
+        try {
+            settings.store(writer, null);
+        } finally {
+            writer.close();
+        }
+
+        File script = new File(directory, "task.sh");
+        writer = new FileWriter(script);
+        try {
+            writer.write("#!/bin/sh\necho \"throughput harness task\"\n");
+        } finally {
+            writer.close();
+        }
+        if (!script.setExecutable(true))
+            throw new IOException("Failed to make " + script + " executable");
+
+        OutputStream result = new FileOutputStream(new File(directory, "result.bin"));
+        try {
+            byte[] kilobyte = new byte[1024];
+            Arrays.fill(kilobyte, (byte) 'x');
+            for (int i = 0; i < resultKilobytes; ++i)
+                result.write(kilobyte);
+        } finally {
+            result.close();
+        }
+        return directory;
+    }
+
+    static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}